@@ -0,0 +1,59 @@
+package scicalc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scicalc.Environment;
+import scicalc.FloatValue;
+import scicalc.Value;
+
+/**
+ * Environment.lookup() of a variable some number of environments up the
+ * chain, each of which has a few variables of its own, as the tree
+ * interpreter looks up a variable which the Resolver has not given a slot.
+ *
+ * @author kmill
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+    /** how many environments the lookup goes up through */
+    @Param({ "0", "1", "4", "16", "64" })
+    public int depth;
+
+    private Environment m_env;
+
+    @Setup
+    public void chain() {
+        Environment env = new Environment();
+        env.set("target", new FloatValue(1));
+        for (int i = 0; i < depth; i++) {
+            env = new Environment(env);
+            for (int j = 0; j < 4; j++) {
+                env.set("v" + j, new FloatValue(j));
+            }
+        }
+        m_env = env;
+    }
+
+    @Benchmark
+    public Value lookup() {
+        return m_env.lookup("target");
+    }
+}
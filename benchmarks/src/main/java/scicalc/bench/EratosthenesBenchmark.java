@@ -0,0 +1,23 @@
+package scicalc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import scicalc.Value;
+
+/**
+ * eratosthenes from test.sci, which calls a closure for every number below
+ * n and prints the primes.
+ *
+ * @author kmill
+ *
+ */
+public class EratosthenesBenchmark extends ScriptBenchmark {
+    @Param({ "1000", "100000" })
+    public int n;
+
+    @Benchmark
+    public Value eratosthenes() throws Exception {
+        return run("eratosthenes(" + n + ")");
+    }
+}
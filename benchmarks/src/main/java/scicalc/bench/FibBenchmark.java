@@ -0,0 +1,34 @@
+package scicalc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import scicalc.Value;
+
+/**
+ * The three fibonacci functions of test.sci: fib, which recurses
+ * exponentially many times, fib2, a while loop, and fib3, by powers of a
+ * matrix of arrays.
+ *
+ * @author kmill
+ *
+ */
+public class FibBenchmark extends ScriptBenchmark {
+    @Param({ "15", "25" })
+    public int n;
+
+    @Benchmark
+    public Value fib() throws Exception {
+        return run("fib(" + n + ")");
+    }
+
+    @Benchmark
+    public Value fib2() throws Exception {
+        return run("fib2(" + n + ")");
+    }
+
+    @Benchmark
+    public Value fib3() throws Exception {
+        return run("fib3(" + n + ")");
+    }
+}
@@ -0,0 +1,69 @@
+package scicalc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scicalc.SciParser;
+import scicalc.SciScanner;
+import scicalc.TokenKind;
+
+/**
+ * Scans and parses a generated program (see Sources) of some number of
+ * functions: SciScanner.nextToken() to the end of it, and
+ * SciParser.parseTopExpr() on all of it.
+ *
+ * @author kmill
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+    @Param({ "10", "1000", "10000" })
+    public int functions;
+
+    private String m_source;
+
+    @Setup
+    public void generate() {
+        m_source = Sources.generate(functions);
+    }
+
+    /**
+     * @return the number of tokens
+     */
+    @Benchmark
+    public int nextToken() {
+        SciScanner scanner = new SciScanner(m_source);
+        int tokens = 0;
+        while (true) {
+            scanner.nextToken();
+            if (scanner.isKind(TokenKind.EOF)) {
+                return tokens;
+            }
+            if (scanner.isKind(TokenKind.ERROR)) {
+                throw new IllegalStateException(scanner.getError());
+            }
+            tokens++;
+        }
+    }
+
+    @Benchmark
+    public Object parseTopExpr() throws SciParser.ParseError {
+        return new SciParser(new SciScanner(m_source)).parseTopExpr();
+    }
+}
@@ -0,0 +1,55 @@
+package scicalc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import scicalc.Budget;
+import scicalc.Profiler;
+import scicalc.Value;
+
+/**
+ * What watching a program costs: each run with a Budget (with no limits),
+ * which times the checks a budget makes at every call and loop iteration,
+ * or with a Profiler running throughout, against neither. fib from test.sci
+ * is mostly calls, and fib2 mostly loop iterations.
+ *
+ * @author kmill
+ *
+ */
+public class InstrumentationBenchmark extends ScriptBenchmark {
+    @Param({ "none", "budget", "profiler" })
+    public String instrument;
+
+    private Profiler m_profiler;
+
+    @Setup
+    public void startProfiler() {
+        if (instrument.equals("profiler")) {
+            m_profiler = new Profiler();
+            m_profiler.start();
+        }
+    }
+
+    @TearDown
+    public void stopProfiler() throws InterruptedException {
+        if (m_profiler != null) {
+            m_profiler.stop();
+        }
+    }
+
+    @Benchmark
+    public Value fib() throws Exception {
+        return run("fib(20)", budget());
+    }
+
+    @Benchmark
+    public Value fib2() throws Exception {
+        return run("fib2(10000)", budget());
+    }
+
+    private Budget budget() {
+        return instrument.equals("budget") ? new Budget(Budget.UNLIMITED, Budget.UNLIMITED) : null;
+    }
+}
@@ -0,0 +1,19 @@
+package scicalc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import scicalc.Value;
+
+/**
+ * mandelbrot from test.sci, which prints an 80 by 50 picture and has no
+ * size to vary.
+ *
+ * @author kmill
+ *
+ */
+public class MandelbrotBenchmark extends ScriptBenchmark {
+    @Benchmark
+    public Value mandelbrot() throws Exception {
+        return run("mandelbrot()");
+    }
+}
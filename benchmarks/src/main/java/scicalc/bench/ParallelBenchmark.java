@@ -0,0 +1,93 @@
+package scicalc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scicalc.Interpreter;
+import scicalc.Value;
+
+/**
+ * The parallel primitives (pmap, preduce and parfor; see scicalc.Parallel)
+ * against the same work done by while loops: rows of the Mandelbrot set and
+ * counting primes by trial division. The setup checks that the two agree.
+ * The speedup can be at most the number of workers, one per processor
+ * unless, say, -jvmArgsAppend -Dscicalc.parallelism=4 says otherwise.
+ *
+ * @author kmill
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelBenchmark {
+    private static final String DEFINITIONS = ""
+            + "fun row(j, W, H)"
+            + "  ci := -1.5 + 3 * j / H; total := 0; i := 0;"
+            + "  while i < W do"
+            + "    cr := -2.25 + 3 * i / W; zr := cr; zi := ci; k := 1;"
+            + "    while k < 200 && zr^2 + zi^2 <= 4 do"
+            + "      zr2 := zr^2 - zi^2 + cr; zi <- 2 * zr * zi + ci; zr <- zr2; k <- k + 1"
+            + "    end;"
+            + "    total <- total + k; i <- i + 1"
+            + "  end;"
+            + "  total "
+            + "end;"
+            + "fun mandel(W, H) rows := make_array(H, 0); j := 0;"
+            + "  while j < H do rows[j] <- row(j, W, H); j <- j + 1 end; rows end;"
+            + "fun pmandel(W, H) rows := make_array(H, 0);"
+            + "  parfor j := 0, H do rows[j] <- row(j, W, H) end; rows end;"
+            + "fun is_prime(n) block return do"
+            + "  if n < 2 do return(0) end; d := 2;"
+            + "  while d * d <= n do if n % d == 0 do return(0) end; d <- d + 1 end; 1 end end;"
+            + "fun count_primes(a) s := 0; i := 0; while i < len(a) do s <- s + is_prime(a[i]); i <- i + 1 end; s end;"
+            + "fun pcount_primes(a) preduce(pmap(a, is_prime), fun (x, y) x + y end, 0) end;"
+            + "fun numbers(n) a := make_array(n, 0); i := 0; while i < n do a[i] <- 1000000 + i; i <- i + 1 end; a end";
+
+    @Param({ "mandel", "primes" })
+    public String workload;
+
+    private Interpreter m_interp;
+    private String m_loop;
+    private String m_parallel;
+
+    @Setup
+    public void load() throws Exception {
+        m_interp = new Interpreter();
+        m_interp.evaluate(DEFINITIONS);
+        m_interp.evaluate("a := numbers(5000)");
+        if (workload.equals("mandel")) {
+            m_loop = "mandel(200, 100)";
+            m_parallel = "pmandel(200, 100)";
+        } else {
+            m_loop = "count_primes(a)";
+            m_parallel = "pcount_primes(a)";
+        }
+        if (!m_interp.evaluate(m_loop).toString().equals(m_interp.evaluate(m_parallel).toString())) {
+            throw new IllegalStateException(m_parallel + " does not agree with " + m_loop);
+        }
+    }
+
+    @Benchmark
+    public Value loop() throws Exception {
+        return m_interp.evaluate(m_loop);
+    }
+
+    @Benchmark
+    public Value parallel() throws Exception {
+        return m_interp.evaluate(m_parallel);
+    }
+}
@@ -0,0 +1,28 @@
+package scicalc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import scicalc.Value;
+
+/**
+ * qsort from test.sci, on an array of n numbers in a scrambled order, which
+ * is made again for each operation since qsort sorts it in place.
+ *
+ * @author kmill
+ *
+ */
+public class QsortBenchmark extends ScriptBenchmark {
+    @Param({ "1000", "20000" })
+    public int n;
+
+    @Override
+    protected String definitions() {
+        return "fun shuffled(n) a := make_array(n); i := 0; while i < n do a[i] <- (i * 7919) % n; i <- i + 1 end; a end";
+    }
+
+    @Benchmark
+    public Value qsort() throws Exception {
+        return run("qsort(shuffled(" + n + "))");
+    }
+}
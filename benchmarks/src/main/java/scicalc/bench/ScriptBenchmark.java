@@ -0,0 +1,98 @@
+package scicalc.bench;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scicalc.Budget;
+import scicalc.Interpreter;
+import scicalc.Value;
+
+/**
+ * What the benchmarks of the functions in test.sci have in common: an
+ * interpreter with test.sci loaded, for each engine (the tree walker with the
+ * Jit off, and on, the BytecodeCompiler and the HandleCompiler), and nowhere
+ * for the functions' printing to go.
+ * Each operation evaluates a call, so it includes parsing the call, which
+ * is small next to the call itself except for the quickest of them.
+ *
+ * @author kmill
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+public abstract class ScriptBenchmark {
+    @Param({ "tree", "tree+jit", "bytecode", "handles" })
+    public String engine;
+
+    private Interpreter m_interp;
+    private PrintStream m_out;
+
+    @Setup
+    public void load() throws Exception {
+        m_out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        m_interp = new Interpreter();
+        m_interp.setJit(engine.equals("tree+jit"));
+        m_interp.setEngine(engine.equals("bytecode") ? Interpreter.Engine.BYTECODE
+                : engine.equals("handles") ? Interpreter.Engine.HANDLES : Interpreter.Engine.TREE);
+        try (Reader in = new InputStreamReader(ScriptBenchmark.class.getResourceAsStream("/test.sci"),
+                StandardCharsets.UTF_8)) {
+            m_interp.evaluate(in);
+        }
+        String definitions = definitions();
+        if (definitions != null) {
+            m_interp.evaluate(definitions);
+        }
+    }
+
+    @TearDown
+    public void restore() {
+        System.setOut(m_out);
+    }
+
+    /**
+     * @return more definitions the benchmark needs, or null
+     */
+    protected String definitions() {
+        return null;
+    }
+
+    protected Value run(String program) throws Exception {
+        return m_interp.evaluate(program);
+    }
+
+    /**
+     * Runs the program with a budget, if it is not null.
+     */
+    protected Value run(String program, Budget budget) throws Exception {
+        return m_interp.evaluate(program, budget);
+    }
+}
@@ -0,0 +1,41 @@
+package scicalc.bench;
+
+/**
+ * Makes up programs of any size for the scanner and parser benchmarks. The
+ * functions are all alike apart from their names and numbers, but between
+ * them they have every kind of token and most kinds of expression.
+ *
+ * @author kmill
+ *
+ */
+final class Sources {
+    private Sources() {
+    }
+
+    /**
+     * @return a program defining the given number of functions, about 330
+     *         characters and 110 tokens each
+     */
+    static String generate(int functions) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            sb.append("// function ").append(i).append('\n');
+            sb.append("fun f").append(i).append("(n, xs)\n");
+            sb.append("  s := 0; i := 0;\n");
+            sb.append("  /* add up the even ones */\n");
+            sb.append("  while i < len(xs) do\n");
+            sb.append("    if xs[i] % 2 == 0 && n >= ").append(i % 10).append(".5e1 do\n");
+            sb.append("      s <- s + xs[i] * 2.5 - n / 3\n");
+            sb.append("    elif !(xs[i] != ").append(i).append(") || n div 2 > 1 do\n");
+            sb.append("      s <- s - xs[i]^2\n");
+            sb.append("    end;\n");
+            sb.append("    i <- i + 1\n");
+            sb.append("  end;\n");
+            sb.append("  name := \"f").append(i).append("\";\n");
+            sb.append("  [s, name, block done do done(-n) end, fun (x) x <= ").append(i).append(" end]\n");
+            sb.append("end;\n");
+        }
+        sb.append("f0(1, [1, 2, 3])\n");
+        return sb.toString();
+    }
+}
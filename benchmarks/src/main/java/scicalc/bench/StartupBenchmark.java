@@ -0,0 +1,95 @@
+package scicalc.bench;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scicalc.Interpreter;
+import scicalc.Value;
+
+/**
+ * How long a fresh JVM takes to load a library of functions (see Sources),
+ * with and without the AstCache. Each fork loads the library once, before
+ * anything of the interpreter has been loaded or compiled, so these are
+ * cold starts, and the spread is over the forks. The cache is filled by
+ * another JVM (see main()), so that filling it does not warm this one up.
+ *
+ * @author kmill
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+    @Param({ "false", "true" })
+    public boolean cached;
+
+    @Param({ "2000" })
+    public int functions;
+
+    private Path m_library;
+    private Path m_cache;
+
+    @Setup
+    public void write() throws Exception {
+        m_library = Files.createTempFile("library", ".sci");
+        Files.write(m_library, Sources.generate(functions).getBytes(StandardCharsets.UTF_8));
+        if (cached) {
+            m_cache = Files.createTempDirectory("sciast");
+            Process p = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), StartupBenchmark.class.getName(),
+                    m_library.toString(), m_cache.toString()).inheritIO().start();
+            if (p.waitFor() != 0) {
+                throw new IllegalStateException("filling the cache failed");
+            }
+        }
+    }
+
+    @TearDown
+    public void delete() throws Exception {
+        Files.delete(m_library);
+        if (m_cache != null) {
+            for (File f : m_cache.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(m_cache);
+        }
+    }
+
+    @Benchmark
+    public Value load() throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setCacheDirectory(m_cache);
+        return interp.evaluateFile(m_library);
+    }
+
+    /**
+     * Loads a library with a cache, which fills the cache.
+     *
+     * Usage: StartupBenchmark library.sci cache-directory
+     */
+    public static void main(String[] args) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setCacheDirectory(Paths.get(args[1]));
+        interp.evaluateFile(Paths.get(args[0]));
+    }
+}
@@ -0,0 +1,94 @@
+package scicalc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scicalc.FloatValue;
+import scicalc.Interpreter;
+import scicalc.Value;
+
+/**
+ * The elementwise primitives (vadd and so on; see scicalc.VectorOps) against
+ * the same operations written as while loops in a program, on arrays of a
+ * few sizes. The setup checks that the two agree.
+ *
+ * @author kmill
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorBenchmark {
+    private static final String DEFINITIONS = ""
+            + "fun ramp(n, k) a := make_array(n, 0); i := 0; while i < n do a[i] <- (i * k) % 97 / 8; i <- i + 1 end; a end;"
+            + "fun loop_add(a, b) n := len(a); r := make_array(n, 0); i := 0;"
+            + "  while i < n do r[i] <- a[i] + b[i]; i <- i + 1 end; r end;"
+            + "fun loop_fma(a, b, c) n := len(a); r := make_array(n, 0); i := 0;"
+            + "  while i < n do r[i] <- a[i] * b[i] + c[i]; i <- i + 1 end; r end;"
+            + "fun loop_lt(a, b) n := len(a); r := make_array(n, false); i := 0;"
+            + "  while i < n do r[i] <- a[i] < b[i]; i <- i + 1 end; r end;"
+            + "fun loop_sum(a) n := len(a); s := 0; i := 0; while i < n do s <- s + a[i]; i <- i + 1 end; s end;"
+            + "fun loop_dot(a, b) n := len(a); s := 0; i := 0; while i < n do s <- s + a[i] * b[i]; i <- i + 1 end; s end";
+
+    @Param({ "add", "fma", "lt", "sum", "dot" })
+    public String op;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int n;
+
+    private Interpreter m_interp;
+    private String m_loop;
+    private String m_primitive;
+
+    @Setup
+    public void load() throws Exception {
+        m_interp = new Interpreter();
+        m_interp.evaluate(DEFINITIONS);
+        m_interp.evaluate("a := ramp(" + n + ", 31); b := ramp(" + n + ", 17); c := ramp(" + n + ", 5)");
+        String args = op.equals("fma") ? "(a, b, c)" : op.equals("sum") ? "(a)" : "(a, b)";
+        m_loop = "loop_" + op + args;
+        m_primitive = "v" + op + args;
+        check();
+    }
+
+    /**
+     * Checks that the two programs agree, allowing for sums which were added
+     * up in a different order.
+     */
+    private void check() throws Exception {
+        Value expected = m_interp.evaluate(m_loop);
+        Value result = m_interp.evaluate(m_primitive);
+        if (expected instanceof FloatValue) {
+            double x = expected.asFloat(), y = result.asFloat();
+            if (Math.abs(x - y) > 1e-9 * Math.abs(x)) {
+                throw new IllegalStateException(m_primitive + " gave " + y + ", not " + x);
+            }
+        } else if (!result.toString().equals(expected.toString())) {
+            throw new IllegalStateException(m_primitive + " does not agree with " + m_loop);
+        }
+    }
+
+    @Benchmark
+    public Value loop() throws Exception {
+        return m_interp.evaluate(m_loop);
+    }
+
+    @Benchmark
+    public Value primitive() throws Exception {
+        return m_interp.evaluate(m_primitive);
+    }
+}
@@ -9,10 +9,28 @@ public class AndExpr implements Expr {
 		m_b = b;
 	}
 
+	public Expr getLeft() {
+		return m_a;
+	}
+
+	public Expr getRight() {
+		return m_b;
+	}
+
 	@Override
 	public Value evaluate(Environment e) {
 		// we are taking advantage of Java's built-in short-circuiting && here
-		return BoolValue.create(m_a.evaluate(e).asBool() && m_b.evaluate(e).asBool());
+		return BoolValue.create(evaluateBool(e));
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		return evaluateBool(e) ? 1.0 : 0.0;
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return m_a.evaluateBool(e) && m_b.evaluateBool(e);
 	}
 
 	public String toString() {
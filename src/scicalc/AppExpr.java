@@ -2,16 +2,45 @@ package scicalc;
 
 /**
  * Function application.
+ * 
+ * Each application site keeps an inline cache of the functions (FunExprs,
+ * since closures made by the same fun share one) which it has called. While
+ * the callee is one of those, the call skips the argument count check and
+ * evaluates the arguments straight into the new frame, without an argument
+ * array. The cache is monomorphic at first and grows to at most
+ * MAX_POLYMORPHISM entries. After that, or as soon as the callee is anything
+ * else (a primitive, a label, an unresolved function), the site becomes
+ * megamorphic and goes back to the general Value.apply() for good.
+ * 
+ * An application in tail position (see Resolver) does not call a resolved
+ * function itself, but gives back a TailCall for the FunExpr.call() it is
+ * running in to make.
+ * 
  * @author kmill
  *
  */
 public class AppExpr implements Expr {
 	private Expr m_func;
 	private Expr[] m_args;
+	private boolean m_tail;
+
+	private static final int MAX_POLYMORPHISM = 4;
+	private static final FunExpr[] UNINITIALIZED = new FunExpr[0], MEGAMORPHIC = new FunExpr[0];
+	/**
+	 * The FunExprs this site has called, or MEGAMORPHIC. The array is never
+	 * changed, only replaced, so a site shared between threads at worst loses
+	 * an entry.
+	 */
+	private FunExpr[] m_cache = UNINITIALIZED;
 
 	public AppExpr(Expr func, Expr[] args) {
+		this(func, args, false);
+	}
+
+	public AppExpr(Expr func, Expr[] args, boolean tail) {
 		m_func = func;
 		m_args = args;
+		m_tail = tail;
 	}
 
 	public static AppExpr create(Expr func) {
@@ -29,11 +58,66 @@ public class AppExpr implements Expr {
 	@Override
 	public Value evaluate(Environment e) {
 		Value func = m_func.evaluate(e);
+		FunExpr[] cache = m_cache;
+		if (cache != MEGAMORPHIC) {
+			if (func instanceof FunValue) {
+				FunExpr fun = ((FunValue) func).getFun();
+				for (int i = 0; i < cache.length; i++) {
+					if (cache[i] == fun) {
+						return call((FunValue) func, fun, e);
+					}
+				}
+				if (addToCache(cache, fun)) {
+					return call((FunValue) func, fun, e);
+				}
+			} else {
+				m_cache = MEGAMORPHIC;
+			}
+		}
 		Value[] args = new Value[m_args.length];
 		for (int i = 0; i < m_args.length; i++) {
 			args[i] = m_args[i].evaluate(e);
 		}
-		return func.apply(args);
+		return m_tail ? TailCall.apply(func, args) : func.apply(args);
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
+	/**
+	 * @return whether the function is now in the cache, which it can only be
+	 *         if it was resolved and takes this many arguments
+	 */
+	private boolean addToCache(FunExpr[] cache, FunExpr fun) {
+		if (cache.length == MAX_POLYMORPHISM || !fun.isResolved() || fun.getParameters().length != m_args.length) {
+			m_cache = MEGAMORPHIC;
+			return false;
+		}
+		FunExpr[] grown = new FunExpr[cache.length + 1];
+		System.arraycopy(cache, 0, grown, 0, cache.length);
+		grown[cache.length] = fun;
+		m_cache = grown;
+		return true;
+	}
+
+	/**
+	 * What FunValue.apply() does, for a function which is known to be
+	 * resolved and to take the right number of arguments.
+	 */
+	private Value call(FunValue func, FunExpr fun, Environment e) {
+		Environment frame = new Environment(func.getEnvironment(), fun.getFrameSize());
+		int[] slots = fun.getParamSlots();
+		for (int i = 0; i < m_args.length; i++) {
+			frame.setSlot(slots[i], m_args[i].evaluate(e));
+		}
+		return m_tail ? new TailCall(fun, frame) : fun.call(frame);
 	}
 
 	public String toString() {
@@ -53,5 +137,11 @@ public class AppExpr implements Expr {
 	public Expr[] getArgs() {
 	    return m_args;
 	}
+	/**
+	 * @return whether the application is the last thing its function does
+	 */
+	public boolean isTail() {
+	    return m_tail;
+	}
 
 }
@@ -2,7 +2,7 @@ package scicalc;
 
 import java.util.ArrayList;
 
-// An ArrayExpr is an expression which evaluates to an ArrayValue, which is a wrapper around ArrayList<Value>.
+// An ArrayExpr is an expression which evaluates to an ArrayValue.
 public class ArrayExpr implements Expr {
 	private Expr[] m_items;
 
@@ -10,6 +10,10 @@ public class ArrayExpr implements Expr {
 		m_items = items;
 	}
 
+	public Expr[] getItems() {
+		return m_items;
+	}
+
 	@Override
 	public Value evaluate(Environment e) {
 		ArrayList<Value> items = new ArrayList<>();
@@ -19,6 +23,16 @@ public class ArrayExpr implements Expr {
 		return new ArrayValue(items);
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
 	public String toString() {
 		StringBuffer args = new StringBuffer();
 		String delim = "";
@@ -1,13 +1,221 @@
 package scicalc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+/**
+ * An array. Like the element kinds in V8, the items are kept in whichever of
+ * three representations fits everything stored so far: a double[] while
+ * they are all numbers, a boolean[] while they are all booleans, and a
+ * Value[] otherwise. An array only ever moves to the general kind, the first
+ * time something which does not fit is stored in it, so a numeric array stays
+ * packed and a[i] <- x on it does not box x. An empty array takes the kind of
+ * the first item pushed onto it.
+ *
+ * An array which more than one thread may be using at once is shared (see
+ * share()), for good. Changes to a shared array are made holding its lock,
+ * one at a time, so that none is lost, even when one of them moves the
+ * array to another kind or to bigger storage. Reads do not lock. For them,
+ * the storage of the kind is always written before the kind, and the
+ * storage for the items before the size, and a shared array's storage is
+ * never thrown away, so a read which reads the size, then the kind, then
+ * the storage, always finds the item it checked the index of, though
+ * perhaps one a racing change has already replaced. Anything stored in a
+ * shared array is shared first, so everything a shared array leads to is
+ * shared too.
+ *
+ * @author kmill
+ *
+ */
 public class ArrayValue implements Value {
 
-    private ArrayList<Value> m_items;
+    /**
+     * How the items are stored.
+     */
+    public enum Kind {
+        /** in m_doubles; each item is a FloatValue */
+        DOUBLES,
+        /** in m_bools; each item is a BoolValue */
+        BOOLS,
+        /** in m_values, as anything at all */
+        VALUES
+    }
+
+    private volatile Kind m_kind;
+    private double[] m_doubles;
+    private boolean[] m_bools;
+    private Value[] m_values;
+    private volatile int m_size;
+    private volatile boolean m_shared;
+
+    /**
+     * Writes m_size with release ordering only, after the storage, which is
+     * all a read needs, and cheaper than a volatile write at every push and
+     * pop.
+     */
+    private static final AtomicIntegerFieldUpdater<ArrayValue> SIZE = AtomicIntegerFieldUpdater
+            .newUpdater(ArrayValue.class, "m_size");
 
     public ArrayValue(ArrayList<Value> items) {
-        m_items = items;
+        this(Kind.DOUBLES, items.size());
+        for (Value item : items) {
+            push(item);
+        }
+    }
+
+    /**
+     * An array of the given length with every item the same.
+     */
+    public ArrayValue(int length, Value fill) {
+        this(length == 0 ? Kind.DOUBLES : kindOf(fill), length);
+        m_size = length;
+        switch (m_kind) {
+        case DOUBLES:
+            Arrays.fill(m_doubles, fill.asFloat());
+            break;
+        case BOOLS:
+            Arrays.fill(m_bools, fill.asBool());
+            break;
+        default:
+            Arrays.fill(m_values, fill);
+        }
+    }
+
+    /**
+     * A double array of the first size items, which it takes over.
+     */
+    ArrayValue(double[] items, int size) {
+        m_kind = Kind.DOUBLES;
+        m_doubles = items;
+        m_size = size;
+    }
+
+    /**
+     * A boolean array of the first size items, which it takes over.
+     */
+    ArrayValue(boolean[] items, int size) {
+        m_kind = Kind.BOOLS;
+        m_bools = items;
+        m_size = size;
+    }
+
+    private ArrayValue(Kind kind, int capacity) {
+        m_kind = kind;
+        allocate(kind, Math.max(capacity, 4));
+    }
+
+    private static Kind kindOf(Value value) {
+        if (value instanceof FloatValue) {
+            return Kind.DOUBLES;
+        } else if (value instanceof BoolValue) {
+            return Kind.BOOLS;
+        } else {
+            return Kind.VALUES;
+        }
+    }
+
+    /**
+     * Makes new storage of the kind, and moves to the kind. The items, if
+     * any, are not kept.
+     */
+    private void allocate(Kind kind, int capacity) {
+        switch (kind) {
+        case DOUBLES:
+            m_doubles = new double[capacity];
+            break;
+        case BOOLS:
+            m_bools = new boolean[capacity];
+            break;
+        default:
+            m_values = new Value[capacity];
+        }
+        m_kind = kind;
+        discard();
+    }
+
+    /**
+     * Lets go of the storage of the other kinds, unless another thread may
+     * still be reading it.
+     */
+    private void discard() {
+        if (!m_shared) {
+            m_doubles = m_kind == Kind.DOUBLES ? m_doubles : null;
+            m_bools = m_kind == Kind.BOOLS ? m_bools : null;
+            m_values = m_kind == Kind.VALUES ? m_values : null;
+        }
+    }
+
+    /**
+     * Marks the arrays the value leads to as shared: the value itself, if it
+     * is an array, the items of shared arrays, and the values of the
+     * variables of the environments of functions (for a published global
+     * environment, as the current overlay sees them). The thread which
+     * shares them must be the only one using those which are not shared
+     * yet.
+     */
+    static void share(Value value) {
+        if (value instanceof FunValue || value instanceof ArrayValue && !((ArrayValue) value).m_shared) {
+            share(Collections.singleton(value));
+        }
+    }
+
+    /**
+     * share() for each of the values.
+     */
+    static void share(Collection<Value> values) {
+        share(values, false);
+    }
+
+    /**
+     * share() for each of the values, going through the items of arrays
+     * which are shared already too, for the functions in them.
+     *
+     * @return the environments of the functions the values lead to, and
+     *         their ancestors
+     */
+    static Set<Environment> shareAll(Collection<Value> values) {
+        return share(values, true);
+    }
+
+    private static Set<Environment> share(Collection<Value> values, boolean all) {
+        ArrayDeque<Value> pending = new ArrayDeque<>(values);
+        Set<Environment> seen = Collections.newSetFromMap(new IdentityHashMap<Environment, Boolean>());
+        Set<ArrayValue> arrays = all ? Collections.newSetFromMap(new IdentityHashMap<ArrayValue, Boolean>()) : null;
+        while (!pending.isEmpty()) {
+            Value v = pending.poll();
+            if (v instanceof ArrayValue) {
+                ArrayValue array = (ArrayValue) v;
+                if (all ? arrays.add(array) : !array.m_shared) {
+                    // another thread may be changing it, if it was shared
+                    synchronized (array) {
+                        array.m_shared = true;
+                        if (array.m_kind == Kind.VALUES) {
+                            pending.addAll(Arrays.asList(array.m_values).subList(0, array.m_size));
+                        }
+                    }
+                }
+            } else if (v instanceof FunValue) {
+                for (Environment env = ((FunValue) v).getEnvironment(); env != null && seen.add(env); env = env
+                        .getParent()) {
+                    env.addValues(pending);
+                }
+            }
+        }
+        return seen;
+    }
+
+    public Kind getKind() {
+        return m_kind;
+    }
+
+    public int size() {
+        return m_size;
     }
 
     @Override
@@ -17,7 +225,7 @@ public class ArrayValue implements Value {
 
     @Override
     public boolean asBool() {
-        return m_items.size() > 0; // like in Python
+        return m_size > 0; // like in Python
     }
 
     @Override
@@ -27,34 +235,282 @@ public class ArrayValue implements Value {
 
     @Override
     public Value get(Value index) {
-        double i = index.asFloat();
-        if ((int) i != i) {
-            throw new IllegalArgumentException("Index to array must be an integer");
-        }
-        return m_items.get((int) i);
+        return get(index.asFloat());
     }
 
     @Override
     public Value set(Value index, Value value) {
-        double i = index.asFloat();
-        if ((int) i != i) {
-            throw new IllegalArgumentException("Index to array must be an integer");
-        }
-        m_items.set((int) i, value);
+        set(index.asFloat(), value);
         return NullValue.INSTANCE;
     }
 
-    public ArrayList<Value> getArray() {
-        return m_items;
+    /**
+     * a[i], with the index already a double.
+     */
+    public Value get(double index) {
+        return get(checkIndex(index));
+    }
+
+    /**
+     * a[i] as a double, the same as get(index).asFloat(), but without making
+     * a FloatValue out of an item of a double array. An item which is an
+     * array is thrown in a NotANumber (see ElementwiseValue.asFloat()).
+     */
+    public double getDouble(double index) {
+        int i = checkIndex(index);
+        switch (m_kind) {
+        case DOUBLES:
+            return m_doubles[i];
+        case BOOLS:
+            return m_bools[i] ? 1.0 : 0.0;
+        default:
+            return ElementwiseValue.asFloat(m_values[i]);
+        }
+    }
+
+    /**
+     * a[i] as a boolean, the same as get(index).asBool().
+     */
+    public boolean getBool(double index) {
+        int i = checkIndex(index);
+        switch (m_kind) {
+        case DOUBLES:
+            return m_doubles[i] != 0.0;
+        case BOOLS:
+            return m_bools[i];
+        default:
+            return m_values[i].asBool();
+        }
+    }
+
+    /**
+     * @return the items as doubles: the double array itself (which may be
+     *         longer than size(), and must not be changed) if this is one,
+     *         and otherwise a new one
+     */
+    double[] toDoubles() {
+        int n = m_size;
+        Kind kind = m_kind;
+        if (kind == Kind.DOUBLES) {
+            return m_doubles;
+        }
+        double[] items = new double[n];
+        for (int i = 0; i < n; i++) {
+            items[i] = kind == Kind.BOOLS ? (m_bools[i] ? 1.0 : 0.0) : m_values[i].asFloat();
+        }
+        return items;
+    }
+
+    public void set(double index, Value value) {
+        if (m_shared) {
+            synchronized (this) {
+                share(value);
+                set(checkIndex(index), value);
+            }
+        } else {
+            set(checkIndex(index), value);
+        }
+    }
+
+    /**
+     * a[i] <- value, without making a FloatValue if this is a double array.
+     */
+    public void set(double index, double value) {
+        if (m_shared) {
+            synchronized (this) {
+                setDouble(checkIndex(index), value);
+            }
+        } else {
+            setDouble(checkIndex(index), value);
+        }
+    }
+
+    private void setDouble(int i, double value) {
+        if (m_kind == Kind.DOUBLES) {
+            m_doubles[i] = value;
+        } else {
+            set(i, FloatValue.valueOf(value));
+        }
+    }
+
+    public void push(Value value) {
+        if (m_shared) {
+            synchronized (this) {
+                share(value);
+                append(value);
+            }
+        } else {
+            append(value);
+        }
+    }
+
+    private void append(Value value) {
+        if (m_size == 0 && m_kind != kindOf(value)) {
+            allocate(kindOf(value), Math.max(capacity(), 4));
+        } else if (m_size == capacity()) {
+            grow(m_size + 1);
+        }
+        set(m_size, value);
+        SIZE.lazySet(this, m_size + 1);
+    }
+
+    /**
+     * Removes the last item.
+     *
+     * @return the item
+     */
+    public Value pop() {
+        if (m_shared) {
+            synchronized (this) {
+                return removeLast();
+            }
+        }
+        return removeLast();
+    }
+
+    private Value removeLast() {
+        int last = checkIndex(m_size - 1);
+        Value item = get(last);
+        SIZE.lazySet(this, last);
+        if (m_kind == Kind.VALUES && !m_shared) {
+            m_values[last] = null;
+        }
+        return item;
+    }
+
+    /**
+     * Appends the items of another array (which may be this one).
+     */
+    public void extend(ArrayValue other) {
+        if (m_shared) {
+            synchronized (this) {
+                if (other.m_kind == Kind.VALUES) {
+                    for (int i = 0, n = other.m_size; i < n; i++) {
+                        share(other.m_values[i]);
+                    }
+                }
+                append(other);
+            }
+        } else {
+            append(other);
+        }
+    }
+
+    private void append(ArrayValue other) {
+        int n = other.m_size;
+        Kind kind = other.m_kind;
+        if (m_size == 0 && m_kind != kind && n > 0) {
+            allocate(kind, Math.max(capacity(), n));
+        }
+        if (m_kind != kind) {
+            for (int i = 0; i < n; i++) {
+                append(other.get(i));
+            }
+            return;
+        }
+        if (m_size + n > capacity()) {
+            grow(m_size + n);
+        }
+        switch (kind) {
+        case DOUBLES:
+            System.arraycopy(other.m_doubles, 0, m_doubles, m_size, n);
+            break;
+        case BOOLS:
+            System.arraycopy(other.m_bools, 0, m_bools, m_size, n);
+            break;
+        default:
+            System.arraycopy(other.m_values, 0, m_values, m_size, n);
+        }
+        SIZE.lazySet(this, m_size + n);
+    }
+
+    private Value get(int i) {
+        switch (m_kind) {
+        case DOUBLES:
+            return FloatValue.valueOf(m_doubles[i]);
+        case BOOLS:
+            return BoolValue.create(m_bools[i]);
+        default:
+            return m_values[i];
+        }
+    }
+
+    /**
+     * Stores an item at a checked index, moving to the general kind if it
+     * does not fit.
+     */
+    private void set(int i, Value value) {
+        if (m_kind == Kind.DOUBLES && value instanceof FloatValue) {
+            m_doubles[i] = ((FloatValue) value).asFloat();
+        } else if (m_kind == Kind.BOOLS && value instanceof BoolValue) {
+            m_bools[i] = ((BoolValue) value).asBool();
+        } else {
+            if (m_kind != Kind.VALUES) {
+                generalize();
+            }
+            m_values[i] = value;
+        }
+    }
+
+    /**
+     * Moves the items into a Value[], for good.
+     */
+    private void generalize() {
+        Value[] values = new Value[capacity()];
+        for (int i = 0; i < m_size; i++) {
+            values[i] = get(i);
+        }
+        m_values = values;
+        m_kind = Kind.VALUES;
+        discard();
+    }
+
+    private int capacity() {
+        switch (m_kind) {
+        case DOUBLES:
+            return m_doubles.length;
+        case BOOLS:
+            return m_bools.length;
+        default:
+            return m_values.length;
+        }
+    }
+
+    private void grow(int needed) {
+        int capacity = Math.max(needed, capacity() * 2);
+        switch (m_kind) {
+        case DOUBLES:
+            m_doubles = Arrays.copyOf(m_doubles, capacity);
+            break;
+        case BOOLS:
+            m_bools = Arrays.copyOf(m_bools, capacity);
+            break;
+        default:
+            m_values = Arrays.copyOf(m_values, capacity);
+        }
+    }
+
+    /**
+     * @return the index as an int, if it is an integer and in range
+     */
+    private int checkIndex(double index) {
+        int i = (int) index;
+        if (i != index) {
+            throw new IllegalArgumentException("Index to array must be an integer");
+        }
+        if (i < 0 || i >= m_size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + m_size);
+        }
+        return i;
     }
 
     public String toString() {
         StringBuffer sb = new StringBuffer();
         String delim = "";
-        for (Value item : m_items) {
+        for (int i = 0; i < m_size; i++) {
             sb.append(delim);
             delim = ", ";
-            sb.append(item);
+            sb.append(get(i));
         }
         return "[" + sb.toString() + "]";
     }
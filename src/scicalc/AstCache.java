@@ -0,0 +1,59 @@
+package scicalc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A directory of compiled programs (see ExprCodec), keyed by a hash of the
+ * source file's contents. Since the key only depends on the contents, there is
+ * nothing to invalidate: an edited file simply gets a new entry.
+ *
+ * @author kmill
+ *
+ */
+public class AstCache {
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private Path m_dir;
+
+    public AstCache(Path dir) throws IOException {
+        m_dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    public Path getDirectory() {
+        return m_dir;
+    }
+
+    /**
+     * @return where the compiled form of the given source file goes, whether
+     *         or not it exists yet
+     */
+    public Path entryFor(Path source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new InternalError("SHA-256 is missing");
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(0, ExprCodec.VERSION));
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += WINDOW_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - pos)));
+            }
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return m_dir.resolve(name.append(".sciast").toString());
+    }
+}
@@ -0,0 +1,146 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+/**
+ * An operator with two operands, like a + b, a < b or a[i]. These take the
+ * place of applications of the corresponding primitives (see Lowering). Each
+ * subclass evaluates its operands from left to right and then computes its
+ * result directly, without building an argument array or going through the
+ * switch in PrimFuncValue.apply().
+ * 
+ * The arithmetic and comparison nodes compute on doubles: they evaluate their
+ * operands with evaluateDouble(), and only make a FloatValue (or take a
+ * BoolValue) if they are themselves evaluated as a Value. Since each operand
+ * is converted as soon as it has been evaluated, an operand which is not a
+ * number is found out before the right one is evaluated, rather than after.
+ * An operand which is an array is found out by catching the NotANumber it
+ * throws, and the node then goes on elementwise (see ElementwiseValue), with
+ * the double it already has for the left operand if it was the right one.
+ * 
+ * The == and indexing nodes, which do not just compare numbers, specialize
+ * themselves instead. They start out speculating that the operands are what
+ * they nearly always are (FloatValues, and an ArrayValue being indexed), and
+ * avoid going through the Value interface. The first time an operand is
+ * something else, the node despecializes for good and from then on does the
+ * general thing, so a node never flip-flops between the two. An arithmetic
+ * or comparison node which has gone elementwise is despecialized too, though
+ * all that changes is that the Jit leaves it to the tree interpreter.
+ * 
+ * @author kmill
+ *
+ */
+public abstract class BinaryNode implements Expr {
+    protected final Expr m_left;
+    protected final Expr m_right;
+
+    /**
+     * Whether the node is still speculating on the types of its operands.
+     */
+    protected boolean m_specialized = true;
+
+    protected BinaryNode(Expr left, Expr right) {
+        m_left = left;
+        m_right = right;
+    }
+
+    /**
+     * @return the node for the primitive, or null if it is not a two-operand
+     *         operator
+     */
+    public static BinaryNode create(PrimFuncValue prim, Expr left, Expr right) {
+        switch (prim) {
+        case ADD2:
+            return new AddNode(left, right);
+        case SUB2:
+            return new SubNode(left, right);
+        case MUL2:
+            return new MulNode(left, right);
+        case DIV2:
+            return new DivNode(left, right);
+        case IDIV2:
+            return new IDivNode(left, right);
+        case MOD2:
+            return new ModNode(left, right);
+        case POW2:
+            return new PowNode(left, right);
+        case LT2:
+            return new LtNode(left, right);
+        case LTE2:
+            return new LteNode(left, right);
+        case GT2:
+            return new GtNode(left, right);
+        case GTE2:
+            return new GteNode(left, right);
+        case EQ2:
+            return new EqNode(left, right);
+        case NEQ2:
+            return new NeqNode(left, right);
+        case GET:
+            return new GetNode(left, right);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Stops speculating, since an operand was not what was expected.
+     */
+    protected void despecialize() {
+        m_specialized = false;
+    }
+
+    public boolean isSpecialized() {
+        return m_specialized;
+    }
+
+    /**
+     * Goes on elementwise, the left operand having been the array in x.
+     *
+     * @return the NotANumber for this node to throw, with the result
+     */
+    protected NotANumber leftArray(NotANumber x, Environment e) {
+        despecialize();
+        return new NotANumber(ElementwiseValue.create(getPrim(), x.getValue(), operand(m_right, e)));
+    }
+
+    /**
+     * Goes on elementwise, the left operand having been the number a and the
+     * right one the array in x.
+     *
+     * @return the NotANumber for this node to throw, with the result
+     */
+    protected NotANumber rightArray(double a, NotANumber x) {
+        despecialize();
+        return new NotANumber(ElementwiseValue.create(getPrim(), FloatValue.valueOf(a), x.getValue()));
+    }
+
+    /**
+     * @return the value of an operand of elementwise arithmetic, which is an
+     *         ElementwiseValue rather than an array if it is arithmetic too
+     */
+    static Value operand(Expr operand, Environment e) {
+        try {
+            return FloatValue.valueOf(operand.evaluateDouble(e));
+        } catch (NotANumber x) {
+            return x.getValue();
+        }
+    }
+
+    /**
+     * @return the primitive which this node computes
+     */
+    public abstract PrimFuncValue getPrim();
+
+    public Expr getLeft() {
+        return m_left;
+    }
+
+    public Expr getRight() {
+        return m_right;
+    }
+
+    public String toString() {
+        return "Apply(" + getPrim() + ", " + m_left + ", " + m_right + ")";
+    }
+}
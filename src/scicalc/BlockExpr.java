@@ -1,66 +1,267 @@
 package scicalc;
 
+/**
+ * A block, optionally with a label. Calling the label with a value leaves the
+ * block at once, with that value as the value of the block.
+ *
+ * The Resolver makes leaving cheap where it can. A label which is only ever
+ * called, and never passed around as a value, does not exist at run time:
+ * the calls become ExitExprs, which throw an Exit that the block catches.
+ * The thread's one Exit is used again each time, so leaving allocates
+ * nothing. Calls in the block itself name the block by its exit key. Calls
+ * from a nested function name the frame of the block's entry they belong to
+ * instead (as a recursive function may have entered it again since), and
+ * the label's slot only says whether that entry is still running. Otherwise
+ * the label is a LabelValue, made on each entry, which is also what is
+ * thrown. Neither fills in a stack trace.
+ * A block with no function in it does not get a frame of its own either: its
+ * variables (and label, if any) get slots in the enclosing frame, which are
+ * emptied each time the block is entered.
+ *
+ * @author kmill
+ *
+ */
 public class BlockExpr implements Expr {
 
     private String m_label;
     private Expr m_body;
+    private int m_frame_size;
+    private int m_label_slot;
+    /** the first of the block's slots in the enclosing frame, or -1 if it has a frame */
+    private int m_first_slot;
+    /** what its ExitExprs refer to it by, if the label has been lowered to them */
+    private Object m_exit_key;
 
     public BlockExpr(String label, Expr body) {
+        this(label, body, -1, -1);
+    }
+
+    /**
+     * A block which has been through the Resolver. It gets a frame with the
+     * given number of slots, with the label (if any) in the given slot.
+     */
+    public BlockExpr(String label, Expr body, int frameSize, int labelSlot) {
+        this(label, body, frameSize, labelSlot, -1, null);
+    }
+
+    /**
+     * A block which has been through the Resolver.
+     *
+     * @param firstSlot
+     *            if not -1, the block has no frame, and its size slots start
+     *            at this one in the enclosing frame
+     * @param exitKey
+     *            if not null, the calls of the label are ExitExprs with this
+     *            key, and there is no label slot unless they leave by frame
+     */
+    public BlockExpr(String label, Expr body, int size, int labelSlot, int firstSlot, Object exitKey) {
         m_label = label;
         m_body = body;
+        m_frame_size = size;
+        m_label_slot = labelSlot;
+        m_first_slot = firstSlot;
+        m_exit_key = exitKey;
+    }
+
+    /**
+     * @return the same block (resolved the same way) with a different body
+     */
+    public BlockExpr withBody(Expr body) {
+        return new BlockExpr(m_label, body, m_frame_size, m_label_slot, m_first_slot, m_exit_key);
+    }
+
+    public boolean isResolved() {
+        return m_frame_size >= 0;
+    }
+
+    /**
+     * @return whether the block runs in the enclosing frame
+     */
+    public boolean isShared() {
+        return m_first_slot >= 0;
+    }
+
+    /**
+     * @return the number of slots of the block's frame, or of the slots it
+     *         has in the enclosing frame
+     */
+    public int getFrameSize() {
+        return m_frame_size;
+    }
+
+    /**
+     * @return the slot where the block's slots start: 0, unless it is shared
+     */
+    public int getFirstSlot() {
+        return isShared() ? m_first_slot : 0;
+    }
+
+    public int getLabelSlot() {
+        return m_label_slot;
+    }
+
+    public Object getExitKey() {
+        return m_exit_key;
+    }
+
+    /**
+     * @return whether the calls of the label are ExitExprs which name the
+     *         block's frame, with the label slot saying whether it is running
+     */
+    public boolean exitsByFrame() {
+        return m_exit_key != null && m_label_slot >= 0;
+    }
+
+    public String getLabel() {
+        return m_label;
+    }
+
+    public Expr getBody() {
+        return m_body;
     }
 
     @Override
     public Value evaluate(Environment e) {
-        LabelSecret secret = new LabelSecret();
-        Environment e2 = new Environment(e);
-        e2.set(m_label, new LabelValue(secret));
+        Environment e2;
+        LabelValue label = null;
+        if (isShared()) {
+            e2 = e;
+            if (m_frame_size > 0) {
+                e2.clearSlots(m_first_slot, m_first_slot + m_frame_size);
+            }
+        } else if (isResolved()) {
+            e2 = new Environment(e, m_frame_size);
+        } else {
+            e2 = new Environment(e);
+            label = new LabelValue();
+            e2.set(m_label, label);
+        }
+        Object key = m_exit_key;
+        if (exitsByFrame()) {
+            key = e2;
+            e2.setSlot(m_label_slot, RUNNING);
+        } else if (m_label_slot >= 0) {
+            label = new LabelValue();
+            e2.setSlot(m_label_slot, label);
+        }
         try {
             return m_body.evaluate(e2);
-        } catch (LabelSecret secret2) {
-            if (secret == secret2) {
-                return secret.getValue();
-            } else {
-                throw secret2;
+        } catch (Exit exit) {
+            if (exit.getKey() == key) {
+                return exit.getValue();
             }
+            throw exit;
+        } catch (LabelValue label2) {
+            if (label2 == label) {
+                return label.getValue();
+            }
+            throw label2;
         } finally {
-            secret.invalidate();
+            if (label != null) {
+                label.invalidate();
+            } else if (key == e2) {
+                e2.clearSlots(m_label_slot, m_label_slot + 1);
+            }
         }
     }
 
+    @Override
+    public double evaluateDouble(Environment e) {
+        return ElementwiseValue.asFloat(evaluate(e));
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return evaluate(e).asBool();
+    }
+
     public String toString() {
         return "Block(" + m_label + ", " + m_body + ")";
     }
 
-    private class LabelSecret extends RuntimeException {
+    /**
+     * What an ExitExpr throws to leave its block. Each thread has one, which
+     * is given the key and the value of each exit it makes in turn; the
+     * block reads them as soon as it catches it.
+     */
+    static final class Exit extends RuntimeException {
+        private static final ThreadLocal<Exit> CURRENT = new ThreadLocal<Exit>() {
+            @Override
+            protected Exit initialValue() {
+                return new Exit(Thread.currentThread(), null, null);
+            }
+        };
+        /** the Exit of the thread which last left a block, found without the ThreadLocal */
+        private static Exit s_last;
+
+        private final Thread m_thread;
+        private Object m_key;
         private Value m_value;
-        private boolean m_valid = true;
 
-        public String getLabel() {
-            return m_label;
+        private Exit(Thread thread, Object key, Value value) {
+            super(null, null, false, false);
+            m_thread = thread;
+            m_key = key;
+            m_value = value;
         }
 
-        public Value getValue() {
-            return m_value;
+        /**
+         * @return the thread's Exit, leaving the block with the key (its exit
+         *         key, or the frame of its entry) with the value
+         */
+        static Exit of(Object key, Value value) {
+            Exit exit = s_last;
+            if (exit == null || exit.m_thread != Thread.currentThread()) {
+                exit = CURRENT.get();
+                s_last = exit;
+            }
+            exit.m_key = key;
+            exit.m_value = value;
+            return exit;
         }
 
-        public void setValue(Value value) {
-            m_value = value;
+        /**
+         * @return an Exit of its own with the same key and value, for
+         *         another thread to throw (this one is used again on the
+         *         thread's next exit)
+         */
+        Exit copy() {
+            return new Exit(null, m_key, m_value);
         }
-        
-        public void invalidate() {
-            m_valid = false;
+
+        public Object getKey() {
+            return m_key;
         }
-        public boolean isValid() {
-            return m_valid;
+
+        public Value getValue() {
+            return m_value;
         }
     }
 
-    private static class LabelValue implements Value {
-        private LabelSecret m_secret;
+    /**
+     * What the label slot of a block which is left by frame holds while the
+     * block is running.
+     */
+    private static final Value RUNNING = new LabelValue();
+
+    /**
+     * A label as a value. Calling it throws the label itself, which the
+     * block it belongs to catches.
+     */
+    private static class LabelValue extends RuntimeException implements Value {
+        private Value m_value;
+        private boolean m_valid = true;
 
-        public LabelValue(LabelSecret secret) {
-            m_secret = secret;
+        public LabelValue() {
+            super(null, null, false, false);
+        }
+
+        public Value getValue() {
+            return m_value;
+        }
+
+        public void invalidate() {
+            m_valid = false;
         }
 
         @Override
@@ -75,17 +276,17 @@ public class BlockExpr implements Expr {
 
         @Override
         public Value apply(Value[] values) {
-            if (!m_secret.isValid()) {
+            if (!m_valid) {
                 throw new IllegalStateException("Label invalid outside defining block");
             }
             if (values.length == 0) {
-                m_secret.setValue(NullValue.INSTANCE);
+                m_value = NullValue.INSTANCE;
             } else if (values.length == 1) {
-                m_secret.setValue(values[0]);
+                m_value = values[0];
             } else {
                 throw new IllegalArgumentException("Label expecting exactly one argument");
             }
-            throw m_secret;
+            throw this;
         }
 
         @Override
@@ -97,5 +298,9 @@ public class BlockExpr implements Expr {
         public Value set(Value index, Value value) {
             throw new IllegalArgumentException("Label cannot be indexed");
         }
+
+        public String toString() {
+            return "<label>";
+        }
     }
 }
@@ -29,6 +29,16 @@ public class BoolValue implements Expr, Value {
         return this;
     }
 
+    @Override
+    public double evaluateDouble(Environment e) {
+        return asFloat();
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return m_val;
+    }
+
     @Override
     public double asFloat() {
         return m_val ? 1.0 : 0.0;
@@ -0,0 +1,202 @@
+package scicalc;
+
+/**
+ * Limits on running a program: a number of steps, a deadline, and
+ * cancellation, by cancel() from any thread or by interrupting the thread
+ * running it (which is left interrupted, for whatever else is watching for
+ * that). A step is a call of a function or an iteration of a while loop,
+ * and those are the only places the budget is checked, in every engine: on
+ * entry to FunExpr.call(), which every call of a resolved function goes
+ * through (tail calls included), or FunValue.apply() for one which is not,
+ * and at the back-edge of each while loop, however it is compiled. Between
+ * them a program can only run straight through its code once, so it cannot
+ * run away.
+ *
+ * A budget is given to Interpreter.Session.setBudget() and is current in
+ * the thread while the session evaluates (and in the workers of a parallel
+ * operation it starts, which share its steps, so that count is only
+ * approximate there). While no thread has a budget, a check is one read of
+ * a static field. Otherwise a step is counted down in the budget (which is
+ * found without a ThreadLocal while only one thread has one), and once
+ * every CHUNK steps, the clock, the cancellation and the thread's interrupt
+ * are looked at too. Running out of any of them throws an ExceededException
+ * saying where the program was.
+ *
+ * @author kmill
+ *
+ */
+public final class Budget {
+    /** for a budget without a limit on steps or time */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /** how many steps there are between looking at the clock */
+    private static final int CHUNK = 1024;
+
+    private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<>();
+    /**
+     * How many threads have a current budget. Compiled code reads it at its
+     * checks (see JitCompiler and HandleCompiler) before calling poll().
+     */
+    static volatile int s_running;
+    /** while only one thread has a budget, that thread and its budget */
+    private static volatile Sole s_sole;
+
+    private final long m_steps, m_millis;
+    private final long m_deadline;
+    private volatile boolean m_cancelled;
+    /** the steps counted before the current chunk */
+    private long m_used;
+    /** how many steps the current chunk has, and how many are left */
+    private int m_chunk, m_left;
+
+    /**
+     * @param steps
+     *            how many function calls and loop iterations the program may
+     *            make, or UNLIMITED
+     * @param millis
+     *            how long from now it may run for, or UNLIMITED
+     */
+    public Budget(long steps, long millis) {
+        m_steps = steps;
+        m_millis = millis;
+        m_deadline = millis == UNLIMITED ? 0 : System.nanoTime() + millis * 1000000;
+        m_chunk = (int) Math.min(steps, CHUNK);
+        m_left = m_chunk;
+    }
+
+    /**
+     * Stops the program at its next check, from any thread.
+     */
+    public void cancel() {
+        m_cancelled = true;
+    }
+
+    /**
+     * @return how many steps have been taken
+     */
+    public long getSteps() {
+        return m_used + m_chunk - Math.max(m_left, 0);
+    }
+
+    /**
+     * Counts a step, at the place given (a FunExpr or a WhileExpr).
+     */
+    static void check(Expr where) {
+        if (s_running != 0) {
+            poll(where);
+        }
+    }
+
+    /**
+     * check() once there is some thread with a budget.
+     */
+    static void poll(Expr where) {
+        Sole sole = s_sole;
+        Budget budget = sole != null && sole.m_thread == Thread.currentThread() ? sole.m_budget : CURRENT.get();
+        if (budget != null && --budget.m_left < 0) {
+            budget.next(where);
+        }
+    }
+
+    /**
+     * Starts the next chunk, with the step which is one past the last one.
+     */
+    private synchronized void next(Expr where) {
+        m_used += m_chunk;
+        String reason = null;
+        if (m_cancelled || Thread.currentThread().isInterrupted()) {
+            m_cancelled = true;
+            reason = "Cancelled";
+        } else if (m_used >= m_steps) {
+            reason = "Ran out of steps (" + m_steps + ")";
+        } else if (m_deadline != 0 && System.nanoTime() - m_deadline > 0) {
+            reason = "Ran out of time (" + m_millis + " ms)";
+        }
+        if (reason != null) {
+            // every check from now on comes straight back here
+            m_chunk = 0;
+            m_left = 0;
+            throw new ExceededException(reason, where);
+        }
+        m_chunk = (int) Math.min(m_steps - m_used, CHUNK);
+        m_left = m_chunk - 1;
+    }
+
+    /**
+     * @return the budget current in this thread, or null
+     */
+    static Budget current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes a budget current in this thread (or none, if it is null).
+     *
+     * @return the one which was current before, for leave()
+     */
+    static Budget enter(Budget budget) {
+        Budget saved = CURRENT.get();
+        replace(saved, budget);
+        return saved;
+    }
+
+    static void leave(Budget saved) {
+        replace(CURRENT.get(), saved);
+    }
+
+    private static void replace(Budget current, Budget budget) {
+        if (current == budget) {
+            return;
+        }
+        CURRENT.set(budget);
+        Thread thread = Thread.currentThread();
+        synchronized (Budget.class) {
+            if (current == null || budget == null) {
+                s_running += current == null ? 1 : -1;
+            }
+            Sole sole = s_sole;
+            if (budget != null && s_running == 1) {
+                s_sole = new Sole(thread, budget);
+            } else if (sole != null && (sole.m_thread == thread || s_running > 1)) {
+                // no one thread is known to have the only budget
+                s_sole = null;
+            }
+        }
+    }
+
+    private static final class Sole {
+        final Thread m_thread;
+        final Budget m_budget;
+
+        Sole(Thread thread, Budget budget) {
+            m_thread = thread;
+            m_budget = budget;
+        }
+    }
+
+    /**
+     * Thrown when a program runs out of its budget, or is cancelled.
+     */
+    public static class ExceededException extends RuntimeException {
+        private final Expr m_where;
+
+        ExceededException(String reason, Expr where) {
+            super(reason + " in " + describe(where));
+            m_where = where;
+        }
+
+        /**
+         * @return the FunExpr or WhileExpr the program was in
+         */
+        public Expr getWhere() {
+            return m_where;
+        }
+
+        private static String describe(Expr where) {
+            if (where instanceof FunExpr) {
+                return "a call of " + ((FunExpr) where).describe();
+            }
+            return ((WhileExpr) where).describe();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package scicalc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiles a resolved tree (see Resolver and Lowering) into a BytecodeExpr.
+ * Functions and blocks are compiled separately: a function becomes a FunExpr
+ * whose body is a BytecodeExpr, and a block becomes a BlockExpr whose body is
+ * one, which then keeps handling its label as it always has. Anything the
+ * compiler does not know is kept as a tree and evaluated with an EVAL
+ * instruction, so compiling never changes what a program does.
+ *
+ * Registers are allocated like a stack: each expression is compiled into a
+ * given destination register, using the registers above the ones in use for
+ * its intermediate values.
+ *
+ * @author kmill
+ *
+ */
+public class BytecodeCompiler {
+
+    private int[] m_code = new int[64];
+    private int m_length;
+    private ArrayList<Object> m_constants = new ArrayList<>();
+    private HashMap<Object, Integer> m_constant_indices = new HashMap<>();
+    private int m_top; // the lowest free register
+    private int m_registers; // the number of registers used
+
+    private BytecodeCompiler() {
+    }
+
+    public static BytecodeExpr compile(Expr e) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        int result = compiler.allocate();
+        compiler.compile(e, result);
+        compiler.emit(BytecodeExpr.RETURN, result);
+        int[] code = new int[compiler.m_length];
+        System.arraycopy(compiler.m_code, 0, code, 0, code.length);
+        return new BytecodeExpr(code, compiler.m_constants.toArray(), compiler.m_registers, e);
+    }
+
+    private int allocate() {
+        int r = m_top++;
+        m_registers = Math.max(m_registers, m_top);
+        return r;
+    }
+
+    private void emit(int... words) {
+        while (m_length + words.length > m_code.length) {
+            int[] code = new int[m_code.length * 2];
+            System.arraycopy(m_code, 0, code, 0, m_length);
+            m_code = code;
+        }
+        System.arraycopy(words, 0, m_code, m_length, words.length);
+        m_length += words.length;
+    }
+
+    /**
+     * @return the position of the operand to fill in with patch()
+     */
+    private int emitJump(int op, int... operands) {
+        emit(op);
+        emit(operands);
+        emit(-1);
+        return m_length - 1;
+    }
+
+    private void patch(int operand) {
+        m_code[operand] = m_length;
+    }
+
+    /**
+     * @return the index of the constant, which is shared with any earlier
+     *         occurrence of the same object, or of an equal name
+     */
+    private int constant(Object c) {
+        Integer index = m_constant_indices.get(c instanceof String ? c : new Identity(c));
+        if (index == null) {
+            index = m_constants.size();
+            m_constants.add(c);
+            m_constant_indices.put(c instanceof String ? c : new Identity(c), index);
+        }
+        return index;
+    }
+
+    /**
+     * Wraps a constant so it is compared by identity in m_constant_indices.
+     */
+    private static class Identity {
+        private final Object m_object;
+
+        public Identity(Object object) {
+            m_object = object;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).m_object == m_object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(m_object);
+        }
+    }
+
+    /**
+     * Compiles code which puts the value of e in register dst.
+     */
+    private void compile(Expr e, int dst) {
+        int saved = m_top;
+        if (e instanceof Value) {
+            // FloatValue, StringValue, PrimFuncValue and so on evaluate to
+            // themselves
+            emit(BytecodeExpr.CONST, dst, constant(e));
+        } else if (e instanceof VariableExpr) {
+            emit(BytecodeExpr.LOAD_GLOBAL, dst, constant(((VariableExpr) e).getIdentifier()));
+        } else if (e instanceof LocalExpr) {
+            LocalExpr local = (LocalExpr) e;
+            if (local.getDepths().length == 1) {
+                emit(BytecodeExpr.LOAD_SLOT, dst, local.getDepths()[0], local.getSlots()[0], constant(local));
+            } else {
+                emit(BytecodeExpr.LOAD_LOCAL, dst, constant(local));
+            }
+        } else if (e instanceof LocalStoreExpr) {
+            LocalStoreExpr store = (LocalStoreExpr) e;
+            compile(store.getExpr(), dst);
+            emit(BytecodeExpr.STORE_SLOT, store.getSlot(), dst);
+            emit(BytecodeExpr.CONST, dst, constant(NullValue.INSTANCE));
+        } else if (e instanceof StoreExpr) {
+            StoreExpr store = (StoreExpr) e;
+            compile(store.getExpr(), dst);
+            emit(BytecodeExpr.STORE_GLOBAL, constant(store.getIdentifier()), dst);
+            emit(BytecodeExpr.CONST, dst, constant(NullValue.INSTANCE));
+        } else if (e instanceof LocalUpdateExpr) {
+            LocalUpdateExpr update = (LocalUpdateExpr) e;
+            compile(update.getExpr(), dst);
+            emit(BytecodeExpr.UPDATE_LOCAL, constant(update), dst);
+            emit(BytecodeExpr.CONST, dst, constant(NullValue.INSTANCE));
+        } else if (e instanceof UpdateExpr) {
+            UpdateExpr update = (UpdateExpr) e;
+            compile(update.getExpr(), dst);
+            emit(BytecodeExpr.UPDATE_GLOBAL, constant(update.getIdentifier()), dst);
+            emit(BytecodeExpr.CONST, dst, constant(NullValue.INSTANCE));
+        } else if (e instanceof SeqExpr) {
+            for (Expr part : ((SeqExpr) e).getExprs()) {
+                compile(part, dst);
+            }
+        } else if (e instanceof IfExpr) {
+            IfExpr ife = (IfExpr) e;
+            int toAlt = compileCondition(ife.getCond(), dst);
+            compile(ife.getCons(), dst);
+            int toEnd = emitJump(BytecodeExpr.JUMP);
+            patch(toAlt);
+            compile(ife.getAlt(), dst);
+            patch(toEnd);
+        } else if (e instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) e;
+            int top = m_length;
+            int toEnd = compileCondition(w.getCond(), dst);
+            compile(w.getBody(), dst);
+            emit(BytecodeExpr.LOOP, top, constant(w));
+            patch(toEnd);
+            emit(BytecodeExpr.CONST, dst, constant(NullValue.INSTANCE));
+        } else if (e instanceof AndExpr) {
+            compileShortCircuit(((AndExpr) e).getLeft(), ((AndExpr) e).getRight(), BytecodeExpr.JUMP_IF_FALSE, dst);
+        } else if (e instanceof OrExpr) {
+            compileShortCircuit(((OrExpr) e).getLeft(), ((OrExpr) e).getRight(), BytecodeExpr.JUMP_IF_TRUE, dst);
+        } else if (e instanceof ArrayExpr) {
+            Expr[] items = ((ArrayExpr) e).getItems();
+            int first = m_top;
+            for (Expr item : items) {
+                compile(item, allocate());
+            }
+            emit(BytecodeExpr.ARRAY, dst, first, items.length);
+        } else if (e instanceof AppExpr) {
+            AppExpr app = (AppExpr) e;
+            int func = allocate();
+            compile(app.getFunc(), func);
+            for (Expr arg : app.getArgs()) {
+                compile(arg, allocate());
+            }
+            emit(app.isTail() ? BytecodeExpr.TAIL_CALL : BytecodeExpr.CALL, dst, func, app.getArgs().length);
+        } else if (e instanceof ChainExpr) {
+            ChainExpr chain = (ChainExpr) e;
+            Expr[] operands = chain.getOperands();
+            compile(operands[0], dst);
+            int operand = allocate();
+            for (int i = 0; i < chain.getOps().length; i++) {
+                compile(operands[i + 1], operand);
+                emit(opcode(chain.getOps()[i]), dst, dst, operand);
+            }
+        } else if (e instanceof BinaryNode) {
+            BinaryNode node = (BinaryNode) e;
+            compile(node.getLeft(), dst);
+            int right = allocate();
+            compile(node.getRight(), right);
+            emit(opcode(node.getPrim()), dst, dst, right);
+        } else if (e instanceof UnaryNode) {
+            UnaryNode node = (UnaryNode) e;
+            compile(node.getOperand(), dst);
+            emit(opcode(node.getPrim()), dst, dst);
+        } else if (e instanceof SetNode) {
+            SetNode node = (SetNode) e;
+            int array = allocate(), index = allocate(), value = allocate();
+            compile(node.getArray(), array);
+            compile(node.getIndex(), index);
+            compile(node.getValue(), value);
+            emit(BytecodeExpr.SET, dst, array, index, value);
+        } else if (e instanceof FunExpr) {
+            FunExpr fun = (FunExpr) e;
+            emit(BytecodeExpr.CLOSURE, dst, constant(fun.withBody(compile(fun.getBody()))));
+        } else if (e instanceof BlockExpr) {
+            BlockExpr block = (BlockExpr) e;
+            emit(BytecodeExpr.EVAL, dst, constant(block.withBody(compile(block.getBody()))));
+        } else {
+            emit(BytecodeExpr.EVAL, dst, constant(e));
+        }
+        m_top = saved;
+    }
+
+    /**
+     * Compiles a jump which is taken when the condition is false, using dst
+     * and the registers above it.
+     * 
+     * @return the jump's target operand, for patch()
+     */
+    private int compileCondition(Expr cond, int dst) {
+        if (cond instanceof BinaryNode) {
+            int op;
+            switch (((BinaryNode) cond).getPrim()) {
+            case LT2:
+                op = BytecodeExpr.JUMP_UNLESS_LT;
+                break;
+            case LTE2:
+                op = BytecodeExpr.JUMP_UNLESS_LTE;
+                break;
+            case GT2:
+                op = BytecodeExpr.JUMP_UNLESS_GT;
+                break;
+            case GTE2:
+                op = BytecodeExpr.JUMP_UNLESS_GTE;
+                break;
+            default:
+                op = -1;
+                break;
+            }
+            if (op >= 0) {
+                int saved = m_top;
+                compile(((BinaryNode) cond).getLeft(), dst);
+                int right = allocate();
+                compile(((BinaryNode) cond).getRight(), right);
+                m_top = saved;
+                return emitJump(op, dst, right);
+            }
+        }
+        compile(cond, dst);
+        return emitJump(BytecodeExpr.JUMP_IF_FALSE, dst);
+    }
+
+    /**
+     * Like Java's && and ||, but the result is a BoolValue.
+     */
+    private void compileShortCircuit(Expr left, Expr right, int jump, int dst) {
+        compile(left, dst);
+        int toEnd = emitJump(jump, dst);
+        compile(right, dst);
+        patch(toEnd);
+        emit(BytecodeExpr.TO_BOOL, dst, dst);
+    }
+
+    private static int opcode(PrimFuncValue prim) {
+        switch (prim) {
+        case ADD2:
+            return BytecodeExpr.ADD;
+        case SUB2:
+            return BytecodeExpr.SUB;
+        case MUL2:
+            return BytecodeExpr.MUL;
+        case DIV2:
+            return BytecodeExpr.DIV;
+        case IDIV2:
+            return BytecodeExpr.IDIV;
+        case MOD2:
+            return BytecodeExpr.MOD;
+        case POW2:
+            return BytecodeExpr.POW;
+        case LT2:
+            return BytecodeExpr.LT;
+        case LTE2:
+            return BytecodeExpr.LTE;
+        case GT2:
+            return BytecodeExpr.GT;
+        case GTE2:
+            return BytecodeExpr.GTE;
+        case EQ2:
+            return BytecodeExpr.EQ;
+        case NEQ2:
+            return BytecodeExpr.NEQ;
+        case NEG1:
+            return BytecodeExpr.NEG;
+        case PLUS1:
+            return BytecodeExpr.PLUS;
+        case NOT1:
+            return BytecodeExpr.NOT;
+        case GET:
+            return BytecodeExpr.GET;
+        default:
+            throw new InternalError("no instruction for " + prim);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package scicalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A piece of code compiled by the BytecodeCompiler: a top-level statement, the
+ * body of a function, or the body of a block. Evaluating it runs the
+ * instructions in a single loop instead of walking a tree.
+ *
+ * The machine has registers, which are local to one evaluation and hold
+ * intermediate values. Variables stay where the Resolver put them, in the
+ * slots of the Environment (or by name in the global environment), since
+ * closures and blocks share them. An instruction is an opcode followed by its
+ * operands, all ints, where most operands are register numbers. Constants,
+ * names, functions and anything the compiler does not handle itself are in a
+ * separate table.
+ *
+ * @author kmill
+ *
+ */
+public class BytecodeExpr implements Expr {
+
+    /*
+     * The instruction set. "r" operands are registers, "k" operands are
+     * indices into the constant table, and "@" operands are code positions.
+     */
+
+    /** CONST r k: r = constant k */
+    public static final int CONST = 0;
+    /** MOVE r s: r = s */
+    public static final int MOVE = 1;
+    /** LOAD_SLOT r depth slot k: a variable with one candidate slot (LocalExpr k) */
+    public static final int LOAD_SLOT = 2;
+    /** LOAD_LOCAL r k: a variable with several candidate slots (LocalExpr k) */
+    public static final int LOAD_LOCAL = 3;
+    /** LOAD_GLOBAL r k: the variable named by constant k */
+    public static final int LOAD_GLOBAL = 4;
+    /** STORE_SLOT slot s: defines a variable in the current frame */
+    public static final int STORE_SLOT = 5;
+    /** STORE_GLOBAL k s: defines the variable named by constant k */
+    public static final int STORE_GLOBAL = 6;
+    /** UPDATE_LOCAL k s: updates a resolved variable (LocalUpdateExpr k) */
+    public static final int UPDATE_LOCAL = 7;
+    /** UPDATE_GLOBAL k s: updates the variable named by constant k */
+    public static final int UPDATE_GLOBAL = 8;
+    /** ADD r a b, and so on: r = a op b */
+    public static final int ADD = 9, SUB = 10, MUL = 11, DIV = 12, IDIV = 13, MOD = 14, POW = 15;
+    public static final int LT = 16, LTE = 17, GT = 18, GTE = 19, EQ = 20, NEQ = 21;
+    /** NEG r a, and so on: r = op a */
+    public static final int NEG = 22, PLUS = 23, NOT = 24;
+    /** TO_BOOL r a: r = the truth value of a, as a BoolValue */
+    public static final int TO_BOOL = 25;
+    /** GET r a i: r = a[i] */
+    public static final int GET = 26;
+    /** SET r a i v: a[i] = v, and r = null */
+    public static final int SET = 27;
+    /** JUMP @ */
+    public static final int JUMP = 28;
+    /** JUMP_IF_FALSE a @, JUMP_IF_TRUE a @ */
+    public static final int JUMP_IF_FALSE = 29, JUMP_IF_TRUE = 30;
+    /** ARRAY r first n: r = an array of registers first..first+n-1 */
+    public static final int ARRAY = 31;
+    /** CALL r f n: r = f applied to registers f+1..f+n */
+    public static final int CALL = 32;
+    /** CLOSURE r k: r = a function value for FunExpr k */
+    public static final int CLOSURE = 33;
+    /** EVAL r k: r = the tree Expr k, evaluated in the current environment */
+    public static final int EVAL = 34;
+    /** RETURN a */
+    public static final int RETURN = 35;
+    /**
+     * JUMP_UNLESS_LT a b @, and so on: a comparison and a JUMP_IF_FALSE in one,
+     * which is how the conditions of ifs and whiles are usually compiled
+     */
+    public static final int JUMP_UNLESS_LT = 36, JUMP_UNLESS_LTE = 37, JUMP_UNLESS_GT = 38, JUMP_UNLESS_GTE = 39;
+    /** TAIL_CALL r f n: a CALL in tail position, which may give back a TailCall */
+    public static final int TAIL_CALL = 40;
+    /** LOOP @ k: JUMP back to the top of the while loop k, counting a step (see Budget) */
+    public static final int LOOP = 41;
+
+    private static final String[] NAMES = { "CONST", "MOVE", "LOAD_SLOT", "LOAD_LOCAL", "LOAD_GLOBAL", "STORE_SLOT",
+            "STORE_GLOBAL", "UPDATE_LOCAL", "UPDATE_GLOBAL", "ADD", "SUB", "MUL", "DIV", "IDIV", "MOD", "POW", "LT",
+            "LTE", "GT", "GTE", "EQ", "NEQ", "NEG", "PLUS", "NOT", "TO_BOOL", "GET", "SET", "JUMP", "JUMP_IF_FALSE",
+            "JUMP_IF_TRUE", "ARRAY", "CALL", "CLOSURE", "EVAL", "RETURN", "JUMP_UNLESS_LT", "JUMP_UNLESS_LTE",
+            "JUMP_UNLESS_GT", "JUMP_UNLESS_GTE", "TAIL_CALL", "LOOP" };
+    private static final int[] LENGTHS = { 3, 3, 5, 3, 3, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 3, 3, 3,
+            3, 4, 5, 2, 3, 3, 4, 4, 3, 3, 2, 4, 4, 4, 4, 4, 3 };
+
+    private final int[] m_code;
+    private final Object[] m_constants;
+    private final int m_registers;
+    private final Expr m_source;
+
+    public BytecodeExpr(int[] code, Object[] constants, int registers, Expr source) {
+        m_code = code;
+        m_constants = constants;
+        m_registers = registers;
+        m_source = source;
+    }
+
+    /**
+     * @return the tree this was compiled from
+     */
+    public Expr getSource() {
+        return m_source;
+    }
+
+    @Override
+    public Value evaluate(Environment env) {
+        final int[] code = m_code;
+        final Object[] k = m_constants;
+        final Value[] r = new Value[m_registers];
+        int pc = 0;
+        while (true) {
+            switch (code[pc]) {
+            case CONST:
+                r[code[pc + 1]] = (Value) k[code[pc + 2]];
+                pc += 3;
+                break;
+            case MOVE:
+                r[code[pc + 1]] = r[code[pc + 2]];
+                pc += 3;
+                break;
+            case LOAD_SLOT: {
+                Value value = env.getAncestor(code[pc + 2]).getSlot(code[pc + 3]);
+                if (value == null) {
+                    value = ((LocalExpr) k[code[pc + 4]]).evaluate(env);
+                }
+                r[code[pc + 1]] = value;
+                pc += 5;
+                break;
+            }
+            case LOAD_LOCAL:
+                r[code[pc + 1]] = ((LocalExpr) k[code[pc + 2]]).evaluate(env);
+                pc += 3;
+                break;
+            case LOAD_GLOBAL:
+                r[code[pc + 1]] = env.lookup((String) k[code[pc + 2]]);
+                pc += 3;
+                break;
+            case STORE_SLOT:
+                env.setSlot(code[pc + 1], r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case STORE_GLOBAL:
+                env.set((String) k[code[pc + 1]], r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case UPDATE_LOCAL:
+                ((LocalUpdateExpr) k[code[pc + 1]]).assign(env, r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case UPDATE_GLOBAL:
+                env.update((String) k[code[pc + 1]], r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case ADD: {
+                Value a = r[code[pc + 2]], b = r[code[pc + 3]];
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    r[code[pc + 1]] = FloatValue.valueOf(((FloatValue) a).asFloat() + ((FloatValue) b).asFloat());
+                } else {
+                    r[code[pc + 1]] = PrimFuncValue.add(a, b);
+                }
+                pc += 4;
+                break;
+            }
+            case SUB: {
+                Value a = r[code[pc + 2]], b = r[code[pc + 3]];
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    r[code[pc + 1]] = FloatValue.valueOf(((FloatValue) a).asFloat() - ((FloatValue) b).asFloat());
+                } else {
+                    r[code[pc + 1]] = PrimFuncValue.sub(a, b);
+                }
+                pc += 4;
+                break;
+            }
+            case MUL: {
+                Value a = r[code[pc + 2]], b = r[code[pc + 3]];
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    r[code[pc + 1]] = FloatValue.valueOf(((FloatValue) a).asFloat() * ((FloatValue) b).asFloat());
+                } else {
+                    r[code[pc + 1]] = PrimFuncValue.mul(a, b);
+                }
+                pc += 4;
+                break;
+            }
+            case DIV:
+                r[code[pc + 1]] = PrimFuncValue.div(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case IDIV:
+                r[code[pc + 1]] = PrimFuncValue.idiv(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case MOD:
+                r[code[pc + 1]] = PrimFuncValue.mod(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case POW:
+                r[code[pc + 1]] = PrimFuncValue.pow(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case LT: {
+                Value a = r[code[pc + 2]], b = r[code[pc + 3]];
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    r[code[pc + 1]] = BoolValue.create(((FloatValue) a).asFloat() < ((FloatValue) b).asFloat());
+                } else {
+                    r[code[pc + 1]] = PrimFuncValue.lt(a, b);
+                }
+                pc += 4;
+                break;
+            }
+            case LTE:
+                r[code[pc + 1]] = PrimFuncValue.lte(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case GT:
+                r[code[pc + 1]] = PrimFuncValue.gt(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case GTE:
+                r[code[pc + 1]] = PrimFuncValue.gte(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case EQ:
+                r[code[pc + 1]] = PrimFuncValue.eq(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case NEQ:
+                r[code[pc + 1]] = PrimFuncValue.neq(r[code[pc + 2]], r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case NEG:
+                r[code[pc + 1]] = PrimFuncValue.neg(r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case PLUS:
+                r[code[pc + 1]] = PrimFuncValue.plus(r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case NOT:
+                r[code[pc + 1]] = PrimFuncValue.not(r[code[pc + 2]]);
+                pc += 3;
+                break;
+            case TO_BOOL:
+                r[code[pc + 1]] = BoolValue.create(r[code[pc + 2]].asBool());
+                pc += 3;
+                break;
+            case GET:
+                r[code[pc + 1]] = r[code[pc + 2]].get(r[code[pc + 3]]);
+                pc += 4;
+                break;
+            case SET:
+                r[code[pc + 1]] = PrimFuncValue.set(r[code[pc + 2]], r[code[pc + 3]], r[code[pc + 4]]);
+                pc += 5;
+                break;
+            case JUMP:
+                pc = code[pc + 1];
+                break;
+            case LOOP:
+                Budget.check((Expr) k[code[pc + 2]]);
+                pc = code[pc + 1];
+                break;
+            case JUMP_IF_FALSE:
+                pc = isTrue(r[code[pc + 1]]) ? pc + 3 : code[pc + 2];
+                break;
+            case JUMP_IF_TRUE:
+                pc = isTrue(r[code[pc + 1]]) ? code[pc + 2] : pc + 3;
+                break;
+            case JUMP_UNLESS_LT: {
+                Value a = r[code[pc + 1]], b = r[code[pc + 2]];
+                boolean taken;
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    taken = ((FloatValue) a).asFloat() < ((FloatValue) b).asFloat();
+                } else {
+                    taken = PrimFuncValue.lt(a, b).asBool();
+                }
+                pc = taken ? pc + 4 : code[pc + 3];
+                break;
+            }
+            case JUMP_UNLESS_LTE: {
+                Value a = r[code[pc + 1]], b = r[code[pc + 2]];
+                boolean taken;
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    taken = ((FloatValue) a).asFloat() <= ((FloatValue) b).asFloat();
+                } else {
+                    taken = PrimFuncValue.lte(a, b).asBool();
+                }
+                pc = taken ? pc + 4 : code[pc + 3];
+                break;
+            }
+            case JUMP_UNLESS_GT: {
+                Value a = r[code[pc + 1]], b = r[code[pc + 2]];
+                boolean taken;
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    taken = ((FloatValue) a).asFloat() > ((FloatValue) b).asFloat();
+                } else {
+                    taken = PrimFuncValue.gt(a, b).asBool();
+                }
+                pc = taken ? pc + 4 : code[pc + 3];
+                break;
+            }
+            case JUMP_UNLESS_GTE: {
+                Value a = r[code[pc + 1]], b = r[code[pc + 2]];
+                boolean taken;
+                if (a instanceof FloatValue && b instanceof FloatValue) {
+                    taken = ((FloatValue) a).asFloat() >= ((FloatValue) b).asFloat();
+                } else {
+                    taken = PrimFuncValue.gte(a, b).asBool();
+                }
+                pc = taken ? pc + 4 : code[pc + 3];
+                break;
+            }
+            case ARRAY: {
+                int first = code[pc + 2], n = code[pc + 3];
+                ArrayList<Value> items = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    items.add(r[first + i]);
+                }
+                r[code[pc + 1]] = new ArrayValue(items);
+                pc += 4;
+                break;
+            }
+            case CALL:
+                r[code[pc + 1]] = call(r, code[pc + 2], code[pc + 3], false);
+                pc += 4;
+                break;
+            case TAIL_CALL:
+                r[code[pc + 1]] = call(r, code[pc + 2], code[pc + 3], true);
+                pc += 4;
+                break;
+            case CLOSURE:
+                r[code[pc + 1]] = new FunValue(env, (FunExpr) k[code[pc + 2]]);
+                pc += 3;
+                break;
+            case EVAL:
+                r[code[pc + 1]] = ((Expr) k[code[pc + 2]]).evaluate(env);
+                pc += 3;
+                break;
+            case RETURN:
+                return r[code[pc + 1]];
+            default:
+                throw new InternalError("bad opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    @Override
+    public double evaluateDouble(Environment env) {
+        return ElementwiseValue.asFloat(evaluate(env));
+    }
+
+    @Override
+    public boolean evaluateBool(Environment env) {
+        return evaluate(env).asBool();
+    }
+
+    /**
+     * Value.asBool(), without the interface call for the usual BoolValues.
+     */
+    private static boolean isTrue(Value v) {
+        if (v == BoolValue.TRUE_INSTANCE) {
+            return true;
+        } else if (v == BoolValue.FALSE_INSTANCE) {
+            return false;
+        }
+        return v.asBool();
+    }
+
+    /**
+     * Applies the function in register f to the n registers after it. A
+     * resolved function gets its frame filled straight from the registers,
+     * and is given back as a TailCall if the call is in tail position.
+     */
+    private static Value call(Value[] r, int f, int n, boolean tail) {
+        Value func = r[f];
+        if (func instanceof FunValue) {
+            FunExpr fun = ((FunValue) func).getFun();
+            if (fun.isResolved() && fun.getParameters().length == n) {
+                Environment frame = new Environment(((FunValue) func).getEnvironment(), fun.getFrameSize());
+                int[] slots = fun.getParamSlots();
+                for (int i = 0; i < n; i++) {
+                    frame.setSlot(slots[i], r[f + 1 + i]);
+                }
+                return tail ? new TailCall(fun, frame) : fun.call(frame);
+            }
+        }
+        return func.apply(Arrays.copyOfRange(r, f + 1, f + 1 + n));
+    }
+
+    /**
+     * @return a listing of the instructions, one per line
+     */
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        for (int pc = 0; pc < m_code.length; pc += LENGTHS[m_code[pc]]) {
+            sb.append(String.format("%4d  %-13s", pc, NAMES[m_code[pc]]));
+            for (int i = 1; i < LENGTHS[m_code[pc]]; i++) {
+                sb.append(' ').append(m_code[pc + i]);
+            }
+            sb.append('\n');
+        }
+        for (int i = 0; i < m_constants.length; i++) {
+            sb.append(String.format("  k%d = %s%n", i, m_constants[i]));
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return "Bytecode(" + m_source + ")";
+    }
+}
@@ -0,0 +1,148 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+/**
+ * A left-associative chain of arithmetic, like a + b - c + d or a * b / c,
+ * kept as one flat node instead of a deep tree of two-argument applications.
+ * It is evaluated with a loop, so the Java stack does not grow with the
+ * length of the chain. The operands are still evaluated and combined from
+ * left to right, exactly like the nested applications would be, and an
+ * operand which is an array makes the rest of the chain elementwise, as it
+ * would with them (see BinaryNode).
+ * 
+ * @author kmill
+ *
+ */
+public class ChainExpr implements Expr {
+	private Expr[] m_operands;
+	private PrimFuncValue[] m_ops;
+	/** whether the operands have only been numbers, as in BinaryNode */
+	private boolean m_specialized = true;
+
+	/**
+	 * @param operands
+	 *            at least two operands
+	 * @param ops
+	 *            one fewer than the operands; each of ADD2, SUB2, MUL2, DIV2,
+	 *            IDIV2 or MOD2
+	 */
+	public ChainExpr(Expr[] operands, PrimFuncValue[] ops) {
+		m_operands = operands;
+		m_ops = ops;
+	}
+
+	public Expr[] getOperands() {
+		return m_operands;
+	}
+
+	public PrimFuncValue[] getOps() {
+		return m_ops;
+	}
+
+	public boolean isSpecialized() {
+		return m_specialized;
+	}
+
+	@Override
+	public Value evaluate(Environment e) {
+		try {
+			return FloatValue.valueOf(evaluateDouble(e));
+		} catch (NotANumber x) {
+			return x.materialize();
+		}
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		double acc;
+		try {
+			acc = m_operands[0].evaluateDouble(e);
+		} catch (NotANumber x) {
+			throw elementwise(x.getValue(), 0, e);
+		}
+		for (int i = 0; i < m_ops.length; i++) {
+			double b;
+			try {
+				b = m_operands[i + 1].evaluateDouble(e);
+			} catch (NotANumber x) {
+				Value a = ElementwiseValue.create(m_ops[i], FloatValue.valueOf(acc), x.getValue());
+				throw elementwise(a, i + 1, e);
+			}
+			acc = combine(m_ops[i], acc, b);
+		}
+		return acc;
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		try {
+			return evaluateDouble(e) != 0.0;
+		} catch (NotANumber x) {
+			return x.materialize().asBool();
+		}
+	}
+
+	/**
+	 * Goes on elementwise from the given operator on.
+	 * 
+	 * @param acc
+	 *            the result of the chain up to there, an array
+	 * @return the NotANumber to throw, with the result
+	 */
+	private NotANumber elementwise(Value acc, int from, Environment e) {
+		m_specialized = false;
+		for (int i = from; i < m_ops.length; i++) {
+			acc = ElementwiseValue.create(m_ops[i], acc, BinaryNode.operand(m_operands[i + 1], e));
+		}
+		return new NotANumber(acc);
+	}
+
+	private static double combine(PrimFuncValue op, double a, double b) {
+		switch (op) {
+		case ADD2:
+			return a + b;
+		case SUB2:
+			return a - b;
+		case MUL2:
+			return a * b;
+		case DIV2:
+			return a / b;
+		case IDIV2:
+			return (int) a / (int) b;
+		case MOD2:
+			return a % b;
+		default:
+			throw new InternalError("not a chain operator: " + op);
+		}
+	}
+
+	private static String symbol(PrimFuncValue op) {
+		switch (op) {
+		case ADD2:
+			return "+";
+		case SUB2:
+			return "-";
+		case MUL2:
+			return "*";
+		case DIV2:
+			return "/";
+		case IDIV2:
+			return "div";
+		case MOD2:
+			return "%";
+		default:
+			return op.toString();
+		}
+	}
+
+	public String toString() {
+		StringBuffer chain = new StringBuffer();
+		chain.append(m_operands[0]);
+		for (int i = 0; i < m_ops.length; i++) {
+			chain.append(" " + symbol(m_ops[i]) + " ");
+			chain.append(m_operands[i + 1]);
+		}
+		return "Chain(" + chain + ")";
+	}
+}
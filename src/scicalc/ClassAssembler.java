@@ -0,0 +1,406 @@
+package scicalc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Just enough of a class file writer for the JitCompiler: one class, with
+ * fields and methods whose code can have branches and exception handlers.
+ * The files are version 49 (Java 5), which the JVM verifies by type
+ * inference, so no stack map frames have to be computed.
+ *
+ * @author kmill
+ *
+ */
+public class ClassAssembler {
+    public static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_PROTECTED = 0x0004,
+            ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private final String m_name;
+    private final String m_super;
+    private final ByteArrayOutputStream m_pool_bytes = new ByteArrayOutputStream();
+    private final DataOutputStream m_pool = new DataOutputStream(m_pool_bytes);
+    private final HashMap<String, Integer> m_pool_indices = new HashMap<>();
+    private int m_pool_count = 1;
+    private final ArrayList<byte[]> m_fields = new ArrayList<>();
+    private final ArrayList<byte[]> m_methods = new ArrayList<>();
+
+    /**
+     * @param name
+     *            the internal name of the class, like scicalc/Foo
+     * @param superName
+     *            the internal name of its superclass
+     */
+    public ClassAssembler(String name, String superName) {
+        m_name = name;
+        m_super = superName;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /*
+     * The constant pool. Each of these adds an entry if there is not already
+     * an equal one, and returns its index.
+     */
+
+    public int utf8(String s) {
+        Integer index = m_pool_indices.get("U" + s);
+        if (index != null) {
+            return index;
+        }
+        try {
+            m_pool.writeByte(1);
+            m_pool.writeUTF(s);
+        } catch (IOException x) {
+            throw new AssertionError(x);
+        }
+        return add("U" + s, 1);
+    }
+
+    public int classRef(String name) {
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    public int string(String s) {
+        return entry("S" + s, 8, utf8(s), -1);
+    }
+
+    public int doubleConstant(double d) {
+        long bits = Double.doubleToRawLongBits(d);
+        Integer index = m_pool_indices.get("D" + bits);
+        if (index != null) {
+            return index;
+        }
+        try {
+            m_pool.writeByte(6);
+            m_pool.writeLong(bits);
+        } catch (IOException x) {
+            throw new AssertionError(x);
+        }
+        return add("D" + bits, 2);
+    }
+
+    public int fieldRef(String owner, String name, String desc) {
+        return entry("F" + owner + "." + name + ":" + desc, 9, classRef(owner), nameAndType(name, desc));
+    }
+
+    public int methodRef(String owner, String name, String desc) {
+        return entry("M" + owner + "." + name + desc, 10, classRef(owner), nameAndType(name, desc));
+    }
+
+    public int interfaceMethodRef(String owner, String name, String desc) {
+        return entry("I" + owner + "." + name + desc, 11, classRef(owner), nameAndType(name, desc));
+    }
+
+    private int nameAndType(String name, String desc) {
+        return entry("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+    }
+
+    /**
+     * An entry made of a tag and one or two u2 indices.
+     */
+    private int entry(String key, int tag, int a, int b) {
+        Integer index = m_pool_indices.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            m_pool.writeByte(tag);
+            m_pool.writeShort(a);
+            if (b >= 0) {
+                m_pool.writeShort(b);
+            }
+        } catch (IOException x) {
+            throw new AssertionError(x);
+        }
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int index = m_pool_count;
+        m_pool_indices.put(key, index);
+        m_pool_count += size;
+        return index;
+    }
+
+    public void field(int access, String name, String desc) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(0);
+        } catch (IOException x) {
+            throw new AssertionError(x);
+        }
+        m_fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * Starts a method. It is added to the class by Code.finish().
+     */
+    public Code method(int access, String name, String desc) {
+        return new Code(access, name, desc);
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int thisClass = classRef(m_name);
+            int superClass = classRef(m_super);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(m_pool_count);
+            out.write(m_pool_bytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(m_fields.size());
+            for (byte[] field : m_fields) {
+                out.write(field);
+            }
+            out.writeShort(m_methods.size());
+            for (byte[] method : m_methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException x) {
+            throw new AssertionError(x);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A position in the code, which jumps can refer to before it is marked.
+     */
+    public static class Label {
+        private int m_position = -1;
+    }
+
+    /**
+     * The code of one method.
+     */
+    public class Code {
+        private final int m_access;
+        private final String m_method_name;
+        private final String m_desc;
+        private byte[] m_code = new byte[256];
+        private int m_length;
+        private int m_max_stack;
+        private int m_max_locals;
+        private final ArrayList<Label> m_fixup_labels = new ArrayList<>();
+        private final ArrayList<Integer> m_fixup_positions = new ArrayList<>();
+        /** start, end, handler and type of each handler */
+        private final ArrayList<Object[]> m_handlers = new ArrayList<>();
+
+        private Code(int access, String name, String desc) {
+            m_access = access;
+            m_method_name = name;
+            m_desc = desc;
+        }
+
+        /**
+         * @return the number of bytes of code so far
+         */
+        public int size() {
+            return m_length;
+        }
+
+        public void setMaxStack(int maxStack) {
+            m_max_stack = maxStack;
+        }
+
+        public void setMaxLocals(int maxLocals) {
+            m_max_locals = maxLocals;
+        }
+
+        private void u1(int b) {
+            if (m_length == m_code.length) {
+                byte[] code = new byte[m_code.length * 2];
+                System.arraycopy(m_code, 0, code, 0, m_length);
+                m_code = code;
+            }
+            m_code[m_length++] = (byte) b;
+        }
+
+        private void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        /**
+         * An instruction without operands.
+         */
+        public void op(int opcode) {
+            u1(opcode);
+        }
+
+        /**
+         * A load or store (ILOAD, DLOAD, ALOAD, ISTORE, DSTORE or ASTORE) of a
+         * local variable.
+         */
+        public void local(int opcode, int index) {
+            if (index > 255) {
+                u1(Opcodes.WIDE);
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+        }
+
+        public void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(Opcodes.ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(Opcodes.BIPUSH);
+                u1(value);
+            } else {
+                u1(Opcodes.SIPUSH);
+                u2(value);
+            }
+        }
+
+        public void dconst(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                u1(Opcodes.DCONST_0);
+            } else if (value == 1.0) {
+                u1(Opcodes.DCONST_1);
+            } else {
+                u1(Opcodes.LDC2_W);
+                u2(doubleConstant(value));
+            }
+        }
+
+        public void ldcString(String s) {
+            int index = string(s);
+            if (index > 255) {
+                u1(Opcodes.LDC_W);
+                u2(index);
+            } else {
+                u1(Opcodes.LDC);
+                u1(index);
+            }
+        }
+
+        /**
+         * NEW, CHECKCAST, INSTANCEOF or ANEWARRAY of a class.
+         */
+        public void type(int opcode, String className) {
+            u1(opcode);
+            u2(classRef(className));
+        }
+
+        public void field(int opcode, String owner, String name, String desc) {
+            u1(opcode);
+            u2(fieldRef(owner, name, desc));
+        }
+
+        /**
+         * INVOKEVIRTUAL, INVOKESPECIAL or INVOKESTATIC.
+         */
+        public void invoke(int opcode, String owner, String name, String desc) {
+            u1(opcode);
+            u2(methodRef(owner, name, desc));
+        }
+
+        public void invokeInterface(String owner, String name, String desc, int argWords) {
+            u1(Opcodes.INVOKEINTERFACE);
+            u2(interfaceMethodRef(owner, name, desc));
+            u1(argWords + 1);
+            u1(0);
+        }
+
+        /**
+         * A GOTO or conditional branch to the label.
+         */
+        public void jump(int opcode, Label label) {
+            m_fixup_labels.add(label);
+            m_fixup_positions.add(m_length);
+            u1(opcode);
+            u2(0);
+        }
+
+        public void mark(Label label) {
+            label.m_position = m_length;
+        }
+
+        /**
+         * Catches exceptions of the given class (or any, if it is null) thrown
+         * by the code from start up to end, jumping to the handler with the
+         * exception on the stack.
+         */
+        public void handler(Label start, Label end, Label handler, String className) {
+            m_handlers.add(new Object[] { start, end, handler, className });
+        }
+
+        /**
+         * Resolves the jumps and adds the method to the class.
+         *
+         * @throws IllegalStateException
+         *             if the code is too long for two-byte branch offsets
+         */
+        public void finish() {
+            if (m_length > Short.MAX_VALUE) {
+                throw new IllegalStateException("method too long");
+            }
+            for (int i = 0; i < m_fixup_labels.size(); i++) {
+                int at = m_fixup_positions.get(i);
+                int offset = m_fixup_labels.get(i).m_position - at;
+                m_code[at + 1] = (byte) (offset >> 8);
+                m_code[at + 2] = (byte) offset;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(m_access);
+                out.writeShort(utf8(m_method_name));
+                out.writeShort(utf8(m_desc));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + m_length + 8 * m_handlers.size());
+                out.writeShort(m_max_stack);
+                out.writeShort(m_max_locals);
+                out.writeInt(m_length);
+                out.write(m_code, 0, m_length);
+                out.writeShort(m_handlers.size());
+                for (Object[] handler : m_handlers) {
+                    out.writeShort(((Label) handler[0]).m_position);
+                    out.writeShort(((Label) handler[1]).m_position);
+                    out.writeShort(((Label) handler[2]).m_position);
+                    out.writeShort(handler[3] == null ? 0 : classRef((String) handler[3]));
+                }
+                out.writeShort(0); // attributes
+            } catch (IOException x) {
+                throw new AssertionError(x);
+            }
+            m_methods.add(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * The JVM opcodes the JitCompiler uses.
+     */
+    public static class Opcodes {
+        public static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10,
+                SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19,
+                AALOAD = 0x32, ISTORE = 0x36, DSTORE = 0x39, ASTORE = 0x3a, AASTORE = 0x53, POP = 0x57, DUP = 0x59,
+                IADD = 0x60, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, IDIV = 0x6c, DDIV = 0x6f, DREM = 0x73,
+                DNEG = 0x77, IXOR = 0x82, I2D = 0x87, D2I = 0x8e, DCMPL = 0x97, DCMPG = 0x98, IFEQ = 0x99,
+                IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, IF_ICMPNE = 0xa0, IF_ACMPEQ = 0xa5,
+                IF_ACMPNE = 0xa6, GOTO = 0xa7, IRETURN = 0xac, DRETURN = 0xaf, ARETURN = 0xb0, RETURN = 0xb1,
+                GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+                INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9, NEW = 0xbb, ANEWARRAY = 0xbd, ATHROW = 0xbf,
+                CHECKCAST = 0xc0, INSTANCEOF = 0xc1, WIDE = 0xc4, IFNULL = 0xc6, IFNONNULL = 0xc7;
+    }
+}
@@ -0,0 +1,120 @@
+package scicalc;
+
+/**
+ * What the classes the JitCompiler generates have in common: the constants
+ * the code refers to and the cache of global variables' bindings.
+ *
+ * @author kmill
+ *
+ */
+public abstract class CompiledCode {
+    /**
+     * The objects the generated code refers to, like the LocalExprs for
+     * variables of enclosing functions.
+     */
+    protected final Object[] m_constants;
+    /**
+     * The bindings found by each global variable reference, if it was made
+     * in the environment the code runs in (and, for a published global, in
+     * the overlay it runs in; see Environment).
+     */
+    private final Environment.Binding[] m_bindings;
+
+    protected CompiledCode(Object[] constants, int globals) {
+        m_constants = constants;
+        m_bindings = new Environment.Binding[globals];
+    }
+
+    /**
+     * Looks up a global variable, the same as env.lookup(identifier).
+     * 
+     * @param site
+     *            the number of the reference, from 0 up to the number given
+     *            to the constructor
+     */
+    protected final Value lookup(Environment env, String identifier, int site) {
+        Environment.Binding binding = m_bindings[site];
+        if (binding == null || binding.getEnvironment() != env || !binding.isCurrent()) {
+            binding = env.getBinding(identifier);
+            if (binding == null) {
+                return env.lookup(identifier);
+            }
+            m_bindings[site] = binding;
+        }
+        Value value = binding.getValue();
+        return value != null ? value : env.lookup(identifier);
+    }
+
+    /**
+     * @return whether some thread has a Budget, so that a check (at a loop
+     *         back-edge, or a call not made through FunValue.apply()) is to
+     *         call checkBudget()
+     */
+    protected static boolean budgeted() {
+        return Budget.s_running != 0;
+    }
+
+    /**
+     * Counts a step against the current Budget, if there is one.
+     */
+    protected static void checkBudget(Expr where) {
+        Budget.poll(where);
+    }
+
+    /**
+     * @return whether a Profiler is running, so that a call of the function
+     *         made straight to its compiled body is to call countCall()
+     */
+    protected static boolean profiling() {
+        return Profiler.s_active != null;
+    }
+
+    /**
+     * Counts a call of the function made without FunExpr.call(), which
+     * leaves the stack the Profiler sees as it is.
+     */
+    protected static void countCall(FunExpr fun) {
+        Profiler.count(fun);
+    }
+
+    /**
+     * Applies func to the arguments from tail position, which gives back a
+     * TailCall for a resolved function (see TailCall).
+     */
+    protected static Value tailCall(Value func, Value[] args) {
+        return TailCall.apply(func, args);
+    }
+
+    /**
+     * @return the result, or if it is a TailCall, the result of making it
+     */
+    protected static Value complete(Value result) {
+        if (result instanceof TailCall) {
+            TailCall tail = (TailCall) result;
+            return tail.getFun().call(tail.getFrame());
+        }
+        return result;
+    }
+
+    /**
+     * array[index], with the index not boxed.
+     */
+    protected static Value get(Value array, double index) {
+        if (array instanceof ArrayValue) {
+            return ((ArrayValue) array).get(index);
+        }
+        return array.get(FloatValue.valueOf(index));
+    }
+
+    /**
+     * array[index] <- value, with neither the index nor the value boxed
+     * (unless the array is not a double array).
+     */
+    protected static Value set(Value array, double index, double value) {
+        if (array instanceof ArrayValue) {
+            ((ArrayValue) array).set(index, value);
+            return NullValue.INSTANCE;
+        }
+        return PrimFuncValue.set(array, FloatValue.valueOf(index), FloatValue.valueOf(value));
+    }
+}
@@ -0,0 +1,37 @@
+package scicalc;
+
+/**
+ * The base class of the classes the JitCompiler generates, one per compiled
+ * FunExpr. Calls come in through invoke(), with the frame the caller made for
+ * the tree interpreter, and a compiled function calls itself directly,
+ * without a frame.
+ *
+ * @author kmill
+ *
+ */
+public abstract class CompiledFunction extends CompiledCode {
+    protected final FunExpr m_fun;
+
+    protected CompiledFunction(Object[] constants, FunExpr fun, int globals) {
+        super(constants, globals);
+        m_fun = fun;
+    }
+
+    public FunExpr getFun() {
+        return m_fun;
+    }
+
+    /**
+     * Calls the function with the arguments in the frame's parameter slots.
+     */
+    public abstract Value invoke(Environment frame);
+
+    /**
+     * What invoke() does when the arguments are not of the types the code was
+     * compiled for: the call is evaluated by the tree interpreter instead.
+     */
+    protected Value deoptimize(Environment frame) {
+        m_fun.deoptimized(this);
+        return m_fun.getBody().evaluate(frame);
+    }
+}
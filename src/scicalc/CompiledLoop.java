@@ -0,0 +1,126 @@
+package scicalc;
+
+import java.util.ArrayList;
+
+/**
+ * The base class of the classes the JitCompiler generates for traces of hot
+ * loops (see WhileExpr). A trace is the path one iteration of the loop took
+ * through the statements of its body, compiled with the variables the loop
+ * uses in JVM locals, and with each 'if' statement replaced by a guard that
+ * it goes the same way again.
+ *
+ * run() checks that the variables hold values of the types seen when the
+ * trace was recorded, and then runs iterations until the loop ends or a guard
+ * fails. Either way, the variables are written back to their environments
+ * first. After a failed guard, resume() does the rest of the iteration with
+ * the tree interpreter, from the branch the trace did not take. A trace which
+ * is left too often is thrown away, and the next one compiles both branches
+ * of the 'if' statements whose guards failed the most.
+ *
+ * @author kmill
+ *
+ */
+public abstract class CompiledLoop extends CompiledCode {
+    /**
+     * What run() gives when the loop's condition was false.
+     */
+    public static final int DONE = -1;
+    /**
+     * What run() gives when the variables were not of the types the trace
+     * was compiled for, and no iteration was run.
+     */
+    public static final int NOT_ENTERED = -2;
+
+    /**
+     * How many times the trace may be left early before checking whether it
+     * is worth keeping.
+     */
+    private static final int MIN_EXITS = 100;
+
+    private final WhileExpr m_loop;
+    /**
+     * For each guard, the 'if' statement it is of, the statements left in
+     * the iteration when it fails, and how often it has.
+     */
+    private final IfExpr[] m_guards;
+    private final Expr[][] m_continuations;
+    private final long[] m_guard_exits;
+    private long m_iterations;
+    private long m_exits;
+
+    protected CompiledLoop(Object[] constants, WhileExpr loop, IfExpr[] guards, Expr[][] continuations,
+            int globals) {
+        super(constants, globals);
+        m_loop = loop;
+        m_guards = guards;
+        m_continuations = continuations;
+        m_guard_exits = new long[guards.length];
+    }
+
+    /**
+     * Runs the loop from the top of an iteration.
+     * 
+     * @return DONE, NOT_ENTERED, or the number of the guard which failed
+     */
+    public final int run(Environment env) {
+        int exit = enter(env);
+        if (exit == NOT_ENTERED) {
+            exited();
+        }
+        return exit;
+    }
+
+    /**
+     * Finishes the iteration in which the given guard failed.
+     */
+    public final void resume(int exit, Environment env) {
+        m_guard_exits[exit]++;
+        exited();
+        for (Expr e : m_continuations[exit]) {
+            e.evaluate(env);
+        }
+    }
+
+    /**
+     * The generated code.
+     */
+    protected abstract int enter(Environment env);
+
+    /**
+     * Counts the iterations the generated code ran before it returned.
+     */
+    protected final void iterated(int iterations) {
+        m_iterations += iterations;
+    }
+
+    /**
+     * @return the binding env.update(identifier, value) would change, or null
+     *         if there is none
+     */
+    protected static Environment.Binding find(Environment env, String identifier) {
+        do {
+            Environment.Binding binding = env.getBinding(identifier);
+            if (binding != null) {
+                return binding;
+            }
+            env = env.getParent();
+        } while (env != null);
+        return null;
+    }
+
+    /**
+     * A trace which is left more than once every eight iterations is not the
+     * common path after all, so the loop records another.
+     */
+    private void exited() {
+        if (++m_exits >= MIN_EXITS && m_exits * 8 > m_iterations) {
+            ArrayList<IfExpr> unbiased = new ArrayList<>();
+            for (int i = 0; i < m_guards.length; i++) {
+                if (m_guard_exits[i] * 4 >= m_exits) {
+                    unbiased.add(m_guards[i]);
+                }
+            }
+            m_loop.retrace(this, unbiased);
+        }
+    }
+}
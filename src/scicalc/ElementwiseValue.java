@@ -0,0 +1,366 @@
+package scicalc;
+
+import java.util.Arrays;
+
+/**
+ * Arithmetic on arrays which has not been done yet. The arithmetic and
+ * comparison operators (+, -, *, /, div, %, ^, <, <=, >, >=, and - and +
+ * on one operand) work item by item on arrays of numbers, with a number
+ * operand used with every item, as with vadd and friends (see VectorOps).
+ * Rather than computing a new array for each operator, a + b makes one of
+ * these, and (a + b) * c another on top of it, so that a whole expression is
+ * a tree of them. Only when the result is needed as a Value, which is
+ * anywhere other than as an operand of more arithmetic, is it materialized:
+ * computed in one pass over the items, a block at a time, into one new array
+ * which is like the first array operand (see VectorOps.like()). The blocks of
+ * intermediate results stay in the cache, so a * b + c * d does not make or
+ * go over any temporary arrays.
+ *
+ * The nodes of the tree interpreter find out that an operand is an array by
+ * catching a NotANumber from its evaluateDouble(), which carries the array
+ * (or the ElementwiseValue the operand has made). From then on the node does
+ * its operator elementwise, and throws the result in a NotANumber of its own
+ * for the node above, until it gets to a node which wants a Value. A
+ * NotANumber therefore only ever comes out of the evaluateDouble() of the
+ * expression whose value it has, and anything which evaluates an expression
+ * as a number for another purpose (like an index) turns it into an ordinary
+ * error. The HandleCompiler does the same with handles. The other engines
+ * compute one operator at a time, through the methods in PrimFuncValue.
+ *
+ * The items of the array operands are read when the expression is
+ * materialized, which is as soon as the expression has been evaluated.
+ *
+ * @author kmill
+ *
+ */
+public class ElementwiseValue implements Value {
+    /** how many items are computed at a time */
+    private static final int BLOCK = 256;
+
+    private final PrimFuncValue m_op;
+    private final Operand m_left;
+    /** null for the operators with one operand */
+    private final Operand m_right;
+    private final int m_size;
+    /** the array the result is like */
+    private final Value m_like;
+
+    /**
+     * Thrown by the evaluateDouble() of an expression whose value turned out
+     * to be an array, with the array, which is not a number.
+     */
+    public static class NotANumber extends IllegalArgumentException {
+        private final Value m_value;
+
+        public NotANumber(Value value) {
+            super("Array is not a number");
+            m_value = value;
+        }
+
+        /**
+         * @return the array, or the ElementwiseValue which computes it
+         */
+        public Value getValue() {
+            return m_value;
+        }
+
+        /**
+         * @return the array, computed if need be
+         */
+        public Value materialize() {
+            return ElementwiseValue.materialize(m_value);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // it is caught, not reported
+            return this;
+        }
+    }
+
+    /**
+     * An operand: the items of an array, a block of copies of a number, or a
+     * block for another ElementwiseValue to compute into.
+     */
+    private static class Operand {
+        private final ElementwiseValue m_lazy;
+        private final double[] m_items;
+        /** whether m_items is a block, rather than all of the items */
+        private final boolean m_block;
+
+        private Operand(ElementwiseValue lazy, double[] items, boolean block) {
+            m_lazy = lazy;
+            m_items = items;
+            m_block = block;
+        }
+
+        /**
+         * @return the items from the given one on, at offset(from)
+         */
+        private double[] read(int from, int length) {
+            if (m_lazy != null) {
+                m_lazy.compute(from, length, m_items, 0);
+            }
+            return m_items;
+        }
+
+        private int offset(int from) {
+            return m_block ? 0 : from;
+        }
+    }
+
+    private ElementwiseValue(PrimFuncValue op, Value left, Value right, int size, Value like) {
+        m_op = op;
+        m_size = size;
+        m_like = like;
+        m_left = operand(left, size);
+        m_right = right == null ? null : operand(right, size);
+    }
+
+    private static Operand operand(Value v, int size) {
+        int block = Math.max(Math.min(BLOCK, size), 1);
+        if (v instanceof ElementwiseValue) {
+            return new Operand((ElementwiseValue) v, new double[block], true);
+        } else if (VectorOps.isArray(v)) {
+            return new Operand(null, VectorOps.items(v), false);
+        }
+        double[] copies = new double[block];
+        Arrays.fill(copies, v.asFloat());
+        return new Operand(null, copies, true);
+    }
+
+    /**
+     * @return op applied to the operands elementwise, to be computed when it
+     *         is materialized. At least one of them is an array (or an
+     *         ElementwiseValue), and any others must have the same number of
+     *         items.
+     * @param right
+     *            null for NEG1 and PLUS1
+     */
+    public static ElementwiseValue create(PrimFuncValue op, Value left, Value right) {
+        Value like = arrayOf(left);
+        if (like == null) {
+            like = arrayOf(right);
+        }
+        if (like == null) {
+            throw new IllegalArgumentException("Expecting an array");
+        }
+        int size = VectorOps.count(like);
+        Value other = arrayOf(right);
+        if (other != null && other != like) {
+            if (VectorOps.count(other) != size) {
+                throw new IllegalArgumentException("Arrays have different lengths");
+            }
+            if (like instanceof NDArrayValue && other instanceof NDArrayValue
+                    && !((NDArrayValue) like).hasShapeOf((NDArrayValue) other)) {
+                throw new IllegalArgumentException("Arrays have different shapes");
+            }
+        }
+        return new ElementwiseValue(op, left, right, size, like);
+    }
+
+    /**
+     * @return the array which v is or which its result will be like, or null
+     *         if it is not an array
+     */
+    private static Value arrayOf(Value v) {
+        if (v instanceof ElementwiseValue) {
+            return ((ElementwiseValue) v).m_like;
+        }
+        return VectorOps.isArray(v) ? v : null;
+    }
+
+    /**
+     * @return whether the operator works elementwise on arrays
+     */
+    public static boolean isElementwise(PrimFuncValue op) {
+        switch (op) {
+        case ADD2:
+        case SUB2:
+        case MUL2:
+        case DIV2:
+        case IDIV2:
+        case MOD2:
+        case POW2:
+        case LT2:
+        case LTE2:
+        case GT2:
+        case GTE2:
+        case NEG1:
+        case PLUS1:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return value.asFloat(), for the evaluateDouble() of an expression
+     *         whose value it is; an array is thrown in a NotANumber instead
+     */
+    public static double asFloat(Value value) {
+        if (value instanceof FloatValue) {
+            return ((FloatValue) value).asFloat();
+        } else if (VectorOps.isArray(value)) {
+            throw new NotANumber(value);
+        }
+        return value.asFloat();
+    }
+
+    /**
+     * @return op applied to the values, elementwise (and computed straight
+     *         away) if either is an array, for the operators in PrimFuncValue
+     */
+    public static Value apply(PrimFuncValue op, Value left, Value right) {
+        return create(op, left, right).materialize();
+    }
+
+    /**
+     * @return the value, computed if it is an ElementwiseValue
+     */
+    public static Value materialize(Value value) {
+        if (value instanceof ElementwiseValue) {
+            return ((ElementwiseValue) value).materialize();
+        }
+        return value;
+    }
+
+    /**
+     * @return the result as a new array
+     */
+    public Value materialize() {
+        double[] items = new double[m_size];
+        for (int from = 0; from < m_size; from += BLOCK) {
+            compute(from, Math.min(BLOCK, m_size - from), items, from);
+        }
+        switch (m_op) {
+        case LT2:
+        case LTE2:
+        case GT2:
+        case GTE2:
+            if (m_like instanceof ArrayValue) {
+                boolean[] bools = new boolean[m_size];
+                for (int i = 0; i < m_size; i++) {
+                    bools[i] = items[i] != 0.0;
+                }
+                return new ArrayValue(bools, m_size);
+            }
+            // an NDArrayValue holds them as 1s and 0s
+        default:
+            return VectorOps.like(m_like, items, m_size);
+        }
+    }
+
+    /**
+     * Computes the items from 'from' on into r, from ro on.
+     */
+    private void compute(int from, int n, double[] r, int ro) {
+        double[] x = m_left.read(from, n);
+        int xo = m_left.offset(from);
+        if (m_right == null) {
+            if (m_op == PrimFuncValue.NEG1) {
+                for (int i = 0; i < n; i++) {
+                    r[ro + i] = -x[xo + i];
+                }
+            } else {
+                System.arraycopy(x, xo, r, ro, n);
+            }
+            return;
+        }
+        double[] y = m_right.read(from, n);
+        int yo = m_right.offset(from);
+        switch (m_op) {
+        case ADD2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] + y[yo + i];
+            }
+            break;
+        case SUB2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] - y[yo + i];
+            }
+            break;
+        case MUL2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] * y[yo + i];
+            }
+            break;
+        case DIV2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] / y[yo + i];
+            }
+            break;
+        case IDIV2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = (int) x[xo + i] / (int) y[yo + i];
+            }
+            break;
+        case MOD2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] % y[yo + i];
+            }
+            break;
+        case POW2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = Math.pow(x[xo + i], y[yo + i]);
+            }
+            break;
+        case LT2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] < y[yo + i] ? 1.0 : 0.0;
+            }
+            break;
+        case LTE2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] <= y[yo + i] ? 1.0 : 0.0;
+            }
+            break;
+        case GT2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] > y[yo + i] ? 1.0 : 0.0;
+            }
+            break;
+        case GTE2:
+            for (int i = 0; i < n; i++) {
+                r[ro + i] = x[xo + i] >= y[yo + i] ? 1.0 : 0.0;
+            }
+            break;
+        default:
+            throw new InternalError("not an elementwise operator: " + m_op);
+        }
+    }
+
+    /*
+     * Should one get out to where a Value is wanted, it behaves like the
+     * array it computes.
+     */
+
+    @Override
+    public double asFloat() {
+        throw new IllegalArgumentException("Array is not a number");
+    }
+
+    @Override
+    public boolean asBool() {
+        return m_size > 0; // like ArrayValue
+    }
+
+    @Override
+    public Value apply(Value[] values) {
+        throw new IllegalArgumentException("Array is not a function");
+    }
+
+    @Override
+    public Value get(Value index) {
+        return materialize().get(index);
+    }
+
+    @Override
+    public Value set(Value index, Value value) {
+        return materialize().set(index, value);
+    }
+
+    public String toString() {
+        return materialize().toString();
+    }
+}
@@ -1,16 +1,70 @@
 package scicalc;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * An Environment is what holds the current values for variables.
  * 
+ * There are two kinds. The global environment (and any environment made for
+ * code which has not been through the Resolver) keeps variables by name in a
+ * HashMap. Frames for resolved functions and blocks instead keep their
+ * variables in numbered slots, and the Resolver tells each variable reference
+ * which slot of which enclosing frame to look in. An empty slot means the
+ * variable has not been defined yet.
+ * 
+ * A name-based environment keeps each variable in a Binding, which stays the
+ * same for as long as the environment exists, so compiled code (see
+ * CompiledCode) can hold on to one instead of looking the name up again.
+ * 
+ * While a parallel operation (see Parallel) is running a function, the
+ * environments of every function it can get to are shared by its workers,
+ * and assigning to any of their variables is an error. Each call of a
+ * function has a frame of its own, which is not shared.
+ * 
+ * The global environment of an Interpreter is published (see publish()): its
+ * variables are kept in an image, a map which is never changed, only
+ * replaced, and which any number of threads can read without locking. Code
+ * runs in an Overlay (see Interpreter.Session), which is current in its
+ * thread for as long as it runs, and the global variables it defines or
+ * assigns go into the overlay instead, copied on write. The overlay sees the
+ * image as it was when the overlay was made (or last committed), whatever
+ * other overlays commit in the meantime, and its own changes reach the image
+ * only when it commits them, all at once. Since every function's frames lead
+ * to the same global environment, a function defined in the image sees the
+ * globals of whichever overlay it is called in.
+ * 
+ * The values in the image are not copied, so an array in the image is the
+ * same array in every overlay. Once overlays can run in several threads at
+ * once (see shareImage()), such arrays are shared ArrayValues, which any
+ * number of threads can change.
+ * 
  * @author kmill
  *
  */
 public class Environment {
-	private HashMap<String, Value> m_variables;
+	private HashMap<String, Binding> m_variables;
+	private Value[] m_slots;
 	private Environment m_parent;
+	/**
+	 * How many parallel operations are running code which can see this
+	 * environment. It is changed only by the thread starting or finishing
+	 * an operation, which hands the work to the workers (and takes it back)
+	 * through the pool, so the workers see it without it being volatile.
+	 */
+	private int m_sharers;
+	/**
+	 * For a published global environment, its variables' values, and
+	 * otherwise null.
+	 */
+	private volatile HashMap<String, Value> m_image;
+	/**
+	 * Whether overlays of this published environment may be running in
+	 * more than one thread at once.
+	 */
+	private volatile boolean m_concurrent;
 
 	public Environment() {
 		m_variables = new HashMap<>();
@@ -21,32 +75,432 @@ public class Environment {
 		m_parent = parent;
 	}
 
+	/**
+	 * Makes a frame with the given number of slots.
+	 */
+	public Environment(Environment parent, int size) {
+		m_parent = parent;
+		m_slots = new Value[size];
+	}
+
 	public Value lookup(String identifier) {
-		if (m_variables.containsKey(identifier)) {
-			return m_variables.get(identifier);
-		} else if (m_parent != null) {
-			return m_parent.lookup(identifier);
-		} else {
-			throw new NoSuchVariableException(identifier);
-		}
+		Environment env = this;
+		do {
+			if (env.m_variables != null) {
+				Binding binding = env.m_variables.get(identifier);
+				if (binding != null && binding.m_value != null) {
+					return binding.m_value;
+				}
+			} else if (env.m_image != null) {
+				Value value = env.lookupPublished(identifier);
+				if (value != null) {
+					return value;
+				}
+			}
+			env = env.m_parent;
+		} while (env != null);
+		throw new NoSuchVariableException(identifier);
 	}
 
 	public void set(String identifier, Value value) {
-		m_variables.put(identifier, value);
+		if (m_image != null) {
+			overlay().set(identifier, value);
+			return;
+		}
+		checkUnshared(identifier);
+		if (m_variables == null) {
+			m_variables = new HashMap<>();
+		}
+		Binding binding = m_variables.get(identifier);
+		if (binding == null) {
+			m_variables.put(identifier, new Binding(this, value));
+		} else {
+			binding.m_value = value;
+		}
 	}
 
 	public void update(String identifier, Value value) {
-		if (m_variables.containsKey(identifier)) {
-			m_variables.put(identifier, value);
-		} else if (m_parent != null) {
-			m_parent.update(identifier, value);
+		Environment env = this;
+		do {
+			if (env.m_variables != null) {
+				Binding binding = env.m_variables.get(identifier);
+				if (binding != null) {
+					env.checkUnshared(identifier);
+					binding.m_value = value;
+					return;
+				}
+			} else if (env.m_image != null) {
+				Binding binding = env.overlay().getBinding(identifier, true);
+				if (binding != null) {
+					env.checkUnshared(identifier);
+					binding.m_value = value;
+					return;
+				}
+			}
+			env = env.m_parent;
+		} while (env != null);
+		throw new NoSuchVariableException(identifier);
+	}
+
+	public void set(String identifier, double value) {
+		set(identifier, FloatValue.valueOf(value));
+	}
+
+	public Environment getParent() {
+		return m_parent;
+	}
+
+	/**
+	 * @return the frame the given number of levels up
+	 */
+	public Environment getAncestor(int depth) {
+		Environment env = this;
+		while (depth > 0) {
+			env = env.m_parent;
+			depth--;
+		}
+		return env;
+	}
+
+	/**
+	 * @return the value in the slot, or null if nothing has been stored there
+	 */
+	public Value getSlot(int slot) {
+		return m_slots[slot];
+	}
+
+	public void setSlot(int slot, Value value) {
+		if (m_sharers != 0) {
+			throw new SharedVariableException(null);
+		}
+		m_slots[slot] = value;
+	}
+
+	/**
+	 * Empties the slots from start up to (not including) end.
+	 */
+	public void clearSlots(int start, int end) {
+		Arrays.fill(m_slots, start, end, null);
+	}
+
+	/**
+	 * @return the binding of the name in this environment itself (not its
+	 *         parents), or null if there is none
+	 */
+	public Binding getBinding(String identifier) {
+		if (m_image != null) {
+			Overlay overlay = Overlay.current(this);
+			return overlay == null ? null : overlay.getBinding(identifier, false);
+		}
+		return m_variables == null ? null : m_variables.get(identifier);
+	}
+
+	/**
+	 * Adds the values of this environment's own variables (for a published
+	 * global environment, as the current overlay sees them) to the
+	 * collection.
+	 */
+	void addValues(Collection<Value> values) {
+		if (m_slots != null) {
+			for (Value value : m_slots) {
+				if (value != null) {
+					values.add(value);
+				}
+			}
+		}
+		if (m_variables != null) {
+			for (Binding binding : m_variables.values()) {
+				if (binding.m_value != null) {
+					values.add(binding.m_value);
+				}
+			}
+		}
+		if (m_image != null) {
+			Overlay overlay = Overlay.current(this);
+			values.addAll(overlay == null ? m_image.values() : overlay.m_base.values());
+			if (overlay != null) {
+				for (Binding binding : overlay.m_changes.values()) {
+					if (binding.m_value != null) {
+						values.add(binding.m_value);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes this the published global environment of an Interpreter: its
+	 * variables so far become the first image, and from then on it can only
+	 * be changed through an Overlay.
+	 */
+	void publish() {
+		HashMap<String, Value> image = new HashMap<>();
+		for (Map.Entry<String, Binding> entry : m_variables.entrySet()) {
+			image.put(entry.getKey(), entry.getValue().m_value);
+		}
+		m_variables = null;
+		m_image = image;
+	}
+
+	/**
+	 * Lets overlays of this published environment run in any number of
+	 * threads at once from now on: the arrays the image leads to, and those
+	 * every commit adds to it, are shared (see ArrayValue.share()), so that
+	 * changes to them are safe wherever they come from.
+	 */
+	synchronized void shareImage() {
+		if (!m_concurrent) {
+			m_concurrent = true;
+			ArrayValue.share(m_image.values());
+		}
+	}
+
+	/**
+	 * @return the value of a published global, as the current overlay sees
+	 *         it, or null if there is none
+	 */
+	private Value lookupPublished(String identifier) {
+		Overlay overlay = Overlay.current(this);
+		if (overlay == null) {
+			return m_image.get(identifier);
+		}
+		Binding binding = overlay.m_changes.get(identifier);
+		if (binding != null && binding.m_value != null) {
+			return binding.m_value;
+		}
+		return overlay.m_base.get(identifier);
+	}
+
+	private Overlay overlay() {
+		Overlay overlay = Overlay.current(this);
+		if (overlay == null) {
+			throw new IllegalStateException("Global variables can only be changed in a session");
+		}
+		return overlay;
+	}
+
+	/**
+	 * The changes one evaluation context makes to the global variables of a
+	 * published environment, on top of the image it started from.
+	 */
+	static class Overlay {
+		private static final ThreadLocal<Overlay> CURRENT = new ThreadLocal<>();
+
+		private final Environment m_global;
+		private HashMap<String, Value> m_base;
+		private HashMap<String, Binding> m_changes = new HashMap<>();
+		/** as in Environment, for the global environment as this sees it */
+		private volatile int m_sharers;
+		/**
+		 * a thread this is current in, if any, so that isCurrent() is
+		 * usually just a comparison with Thread.currentThread()
+		 */
+		private volatile Thread m_thread;
+
+		Overlay(Environment global) {
+			m_global = global;
+			m_base = global.m_image;
+		}
+
+		/**
+		 * @return the overlay of the global environment which is current in
+		 *         this thread, or null if there is none
+		 */
+		static Overlay current(Environment global) {
+			Overlay overlay = CURRENT.get();
+			return overlay != null && overlay.m_global == global ? overlay : null;
+		}
+
+		/**
+		 * Makes this the current overlay in this thread (or none, if it is
+		 * null).
+		 * 
+		 * @return the one which was current before, for leave()
+		 */
+		static Overlay enter(Overlay overlay) {
+			Overlay saved = CURRENT.get();
+			replace(saved, overlay);
+			return saved;
+		}
+
+		static void leave(Overlay saved) {
+			replace(CURRENT.get(), saved);
+		}
+
+		private static void replace(Overlay current, Overlay overlay) {
+			Thread thread = Thread.currentThread();
+			if (current != null && current.m_thread == thread) {
+				current.m_thread = null;
+			}
+			CURRENT.set(overlay);
+			if (overlay != null) {
+				overlay.m_thread = thread;
+			}
+		}
+
+		/**
+		 * @return the overlay which is current in this thread, of whichever
+		 *         environment, or null
+		 */
+		static Overlay current() {
+			return CURRENT.get();
+		}
+
+		private void set(String identifier, Value value) {
+			checkUnshared(identifier);
+			Binding binding = m_changes.get(identifier);
+			if (binding == null) {
+				m_changes.put(identifier, new Binding(m_global, value, this));
+			} else {
+				binding.m_value = value;
+			}
+		}
+
+		/**
+		 * @param update
+		 *            whether it is for an assignment, which there can be no
+		 *            binding for while the variables are shared
+		 * @return the binding of a global for this overlay to read and write,
+		 *         copied from the image if need be, or null if there is no
+		 *         such global
+		 */
+		private Binding getBinding(String identifier, boolean update) {
+			Binding binding = m_changes.get(identifier);
+			if (binding != null) {
+				return binding;
+			}
+			Value value = m_base.get(identifier);
+			if (value == null) {
+				return null;
+			}
+			binding = new Binding(m_global, value, this);
+			if (m_sharers != 0) {
+				if (update) {
+					throw new SharedVariableException(identifier);
+				}
+				// the workers of a parallel operation only read the overlay,
+				// and assigning to this binding is an error
+				return binding;
+			}
+			m_changes.put(identifier, binding);
+			return binding;
+		}
+
+		private void checkUnshared(String identifier) {
+			if (m_sharers != 0) {
+				throw new SharedVariableException(identifier);
+			}
+		}
+
+		private synchronized void addSharers(int delta) {
+			m_sharers += delta;
+		}
+
+		/**
+		 * Puts the changes into a new image of the global environment, in
+		 * place of the variables' values in the latest image, and starts
+		 * again from it. The bindings stay the same (compiled code may have
+		 * them), with the values in the new image.
+		 */
+		void commit() {
+			HashMap<String, Value> changed = new HashMap<>();
+			for (Map.Entry<String, Binding> entry : m_changes.entrySet()) {
+				Value value = entry.getValue().m_value;
+				if (value != m_base.get(entry.getKey())) {
+					changed.put(entry.getKey(), value);
+				}
+			}
+			HashMap<String, Value> image;
+			synchronized (m_global) {
+				if (m_global.m_concurrent) {
+					ArrayValue.share(changed.values());
+				}
+				image = m_global.m_image;
+				if (!changed.isEmpty()) {
+					image = new HashMap<>(image);
+					image.putAll(changed);
+					m_global.m_image = image;
+				}
+			}
+			m_base = image;
+			for (Map.Entry<String, Binding> entry : m_changes.entrySet()) {
+				entry.getValue().m_value = image.get(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Shares this environment (not its ancestors) with the workers of one
+	 * more parallel operation, or (with -1) one fewer.
+	 */
+	void share(int delta) {
+		if (m_image != null) {
+			overlay().addSharers(delta);
 		} else {
-			throw new NoSuchVariableException(identifier);
+			addSharers(delta);
 		}
 	}
 
-	public void set(String identifier, double value) {
-		set(identifier, new FloatValue(value));
+	private synchronized void addSharers(int delta) {
+		m_sharers += delta;
+	}
+
+	private void checkUnshared(String identifier) {
+		if (m_image != null) {
+			overlay().checkUnshared(identifier);
+		} else if (m_sharers != 0) {
+			throw new SharedVariableException(identifier);
+		}
+	}
+
+	/**
+	 * A variable of a name-based environment.
+	 */
+	public static class Binding {
+		private final Environment m_env;
+		private Value m_value;
+		/** the overlay it belongs to, for a published global */
+		private final Overlay m_overlay;
+
+		private Binding(Environment env, Value value) {
+			this(env, value, null);
+		}
+
+		private Binding(Environment env, Value value, Overlay overlay) {
+			m_env = env;
+			m_value = value;
+			m_overlay = overlay;
+		}
+
+		public Environment getEnvironment() {
+			return m_env;
+		}
+
+		/**
+		 * @return whether this is the binding which getBinding() on its
+		 *         environment gives in this thread, as far as the overlay
+		 *         goes: a published global's binding belongs to one overlay
+		 */
+		public boolean isCurrent() {
+			return m_overlay == null || m_overlay.m_thread == Thread.currentThread()
+					|| m_overlay == Overlay.current();
+		}
+
+		public Value getValue() {
+			return m_value;
+		}
+
+		public void setValue(Value value) {
+			m_env.checkUnshared(null);
+			m_value = value;
+		}
+	}
+
+	public static class SharedVariableException extends RuntimeException {
+		public SharedVariableException(String identifier) {
+			super("Cannot assign to " + (identifier == null ? "a variable" : identifier)
+					+ " outside a parallel function while it runs");
+		}
 	}
 
 	public static class NoSuchVariableException extends RuntimeException {
@@ -0,0 +1,40 @@
+package scicalc;
+
+public class EqNode extends BinaryNode {
+
+    public EqNode(Expr left, Expr right) {
+        super(left, right);
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.EQ2;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        return BoolValue.create(evaluateBool(e));
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return evaluateBool(e) ? 1.0 : 0.0;
+    }
+
+    /**
+     * Unlike the other comparisons, this compares Values (with equals()), so
+     * it still speculates on its operands being FloatValues.
+     */
+    @Override
+    public boolean evaluateBool(Environment e) {
+        Value a = m_left.evaluate(e);
+        Value b = m_right.evaluate(e);
+        if (m_specialized) {
+            if (a instanceof FloatValue && b instanceof FloatValue) {
+                return ((FloatValue) a).asFloat() == ((FloatValue) b).asFloat();
+            }
+            despecialize();
+        }
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,105 @@
+package scicalc;
+
+/**
+ * A call of a block's label which the Resolver found could only leave that
+ * block: the label is used for nothing else. It evaluates the value and
+ * leaves the block with it, without there being a label at run time (see
+ * BlockExpr). A call in the block's own body names the block by its exit
+ * key. One from a nested function names the block's frame, by its depth,
+ * and looks at the label's slot there to check the block is still running.
+ *
+ * @author kmill
+ *
+ */
+public class ExitExpr implements Expr {
+    private final String m_label;
+    private final Object m_key;
+    private final int m_depth, m_slot;
+    private final Expr m_expr;
+
+    /**
+     * @param key
+     *            the exit key of the BlockExpr to leave
+     */
+    public ExitExpr(String label, Object key, Expr expr) {
+        this(label, key, -1, -1, expr);
+    }
+
+    /**
+     * @param depth
+     *            if not -1, how many frames up the block's frame is, and
+     *            the exit is by frame
+     * @param slot
+     *            the label's slot in that frame
+     */
+    public ExitExpr(String label, Object key, int depth, int slot, Expr expr) {
+        m_label = label;
+        m_key = key;
+        m_depth = depth;
+        m_slot = slot;
+        m_expr = expr;
+    }
+
+    public String getLabel() {
+        return m_label;
+    }
+
+    public Object getKey() {
+        return m_key;
+    }
+
+    public Expr getExpr() {
+        return m_expr;
+    }
+
+    /**
+     * @return whether the block is left by frame (see BlockExpr)
+     */
+    public boolean isByFrame() {
+        return m_depth >= 0;
+    }
+
+    public int getDepth() {
+        return m_depth;
+    }
+
+    public int getSlot() {
+        return m_slot;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        Value value = m_expr.evaluate(e);
+        if (m_depth < 0) {
+            throw BlockExpr.Exit.of(m_key, value);
+        }
+        leave(e, value);
+        return null;
+    }
+
+    /**
+     * Leaves a block by frame with the value, from the environment the
+     * exit's depth is counted from.
+     */
+    public void leave(Environment e, Value value) {
+        Environment frame = e.getAncestor(m_depth);
+        if (frame.getSlot(m_slot) == null) {
+            throw new IllegalStateException("Label invalid outside defining block");
+        }
+        throw BlockExpr.Exit.of(frame, value);
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return evaluate(e).asFloat();
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return evaluate(e).asBool();
+    }
+
+    public String toString() {
+        return "Exit(" + m_label + ", " + m_expr + ")";
+    }
+}
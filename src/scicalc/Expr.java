@@ -1,5 +1,22 @@
 package scicalc;
 
+/**
+ * A node of the tree.
+ * 
+ * Besides evaluate(), every node can be evaluated straight to a double or a
+ * boolean, giving the same as evaluate(e).asFloat() or evaluate(e).asBool()
+ * would. The arithmetic, comparisons and control flow pass these through to
+ * their operands, so a numeric subtree computes on doubles from end to end,
+ * and a FloatValue is only made where a number is stored or passed on as a
+ * Value. The other nodes just convert what evaluate() gives.
+ * 
+ * @author kmill
+ *
+ */
 public interface Expr {
 	public Value evaluate(Environment e);
+
+	public double evaluateDouble(Environment e);
+
+	public boolean evaluateBool(Environment e);
 }
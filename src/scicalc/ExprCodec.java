@@ -0,0 +1,341 @@
+package scicalc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A compact binary format for parsed programs, so that they can be loaded
+ * again without scanning and parsing. A file is a header followed by a
+ * sequence of top-level statements and an END tag.
+ *
+ * Each node is written as a one-byte tag followed by its children in prefix
+ * order. Names (variables, parameters, labels) are written once and then
+ * referred to by number, and counts are written as variable-length integers.
+ * Only the nodes which the parser produces can be written.
+ *
+ * @author kmill
+ *
+ */
+public class ExprCodec {
+    private static final int MAGIC = 0x53434943; // "SCIC"
+    public static final int VERSION = 4;
+
+    private static final byte T_END = 0, T_FLOAT = 1, T_STRING = 2, T_NULL = 3, T_TRUE = 4, T_FALSE = 5, T_PRIM = 6,
+            T_VAR = 7, T_APP = 8, T_ARRAY = 9, T_IF = 10, T_WHILE = 11, T_FUN = 12, T_STORE = 13, T_UPDATE = 14,
+            T_BLOCK = 15, T_SEQ = 16, T_AND = 17, T_OR = 18, T_CHAIN = 19;
+
+    public static class Encoder implements AutoCloseable {
+        private DataOutputStream m_out;
+        private HashMap<String, Integer> m_names = new HashMap<>();
+
+        public Encoder(OutputStream out) throws IOException {
+            m_out = new DataOutputStream(out);
+            m_out.writeInt(MAGIC);
+            m_out.writeInt(VERSION);
+        }
+
+        public void writeStatement(Expr e) throws IOException {
+            write(e);
+        }
+
+        /**
+         * Writes the END tag, after which nothing more should be written.
+         */
+        public void finish() throws IOException {
+            m_out.writeByte(T_END);
+            m_out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_out.close();
+        }
+
+        private void write(Expr e) throws IOException {
+            if (e instanceof FloatValue) {
+                m_out.writeByte(T_FLOAT);
+                m_out.writeDouble(((FloatValue) e).asFloat());
+            } else if (e instanceof StringValue) {
+                m_out.writeByte(T_STRING);
+                byte[] bytes = ((StringValue) e).getString().getBytes(StandardCharsets.UTF_8);
+                writeCount(bytes.length);
+                m_out.write(bytes);
+            } else if (e == NullValue.INSTANCE) {
+                m_out.writeByte(T_NULL);
+            } else if (e == BoolValue.TRUE_INSTANCE) {
+                m_out.writeByte(T_TRUE);
+            } else if (e == BoolValue.FALSE_INSTANCE) {
+                m_out.writeByte(T_FALSE);
+            } else if (e instanceof PrimFuncValue) {
+                m_out.writeByte(T_PRIM);
+                writeCount(((PrimFuncValue) e).ordinal());
+            } else if (e instanceof VariableExpr) {
+                m_out.writeByte(T_VAR);
+                writeName(((VariableExpr) e).getIdentifier());
+            } else if (e instanceof AppExpr) {
+                AppExpr app = (AppExpr) e;
+                m_out.writeByte(T_APP);
+                write(app.getFunc());
+                writeAll(app.getArgs());
+            } else if (e instanceof ArrayExpr) {
+                m_out.writeByte(T_ARRAY);
+                writeAll(((ArrayExpr) e).getItems());
+            } else if (e instanceof IfExpr) {
+                IfExpr ife = (IfExpr) e;
+                m_out.writeByte(T_IF);
+                write(ife.getCond());
+                write(ife.getCons());
+                write(ife.getAlt());
+            } else if (e instanceof WhileExpr) {
+                WhileExpr w = (WhileExpr) e;
+                m_out.writeByte(T_WHILE);
+                writeCount(w.getLine());
+                writeCount(w.getColumn());
+                write(w.getCond());
+                write(w.getBody());
+            } else if (e instanceof FunExpr) {
+                FunExpr f = (FunExpr) e;
+                m_out.writeByte(T_FUN);
+                writeCount(f.getParameters().length);
+                for (String param : f.getParameters()) {
+                    writeName(param);
+                }
+                writeName(f.getName());
+                writeCount(f.getLine());
+                writeCount(f.getColumn());
+                write(f.getBody());
+            } else if (e instanceof StoreExpr) {
+                m_out.writeByte(T_STORE);
+                writeName(((StoreExpr) e).getIdentifier());
+                write(((StoreExpr) e).getExpr());
+            } else if (e instanceof UpdateExpr) {
+                m_out.writeByte(T_UPDATE);
+                writeName(((UpdateExpr) e).getIdentifier());
+                write(((UpdateExpr) e).getExpr());
+            } else if (e instanceof BlockExpr) {
+                m_out.writeByte(T_BLOCK);
+                writeName(((BlockExpr) e).getLabel());
+                write(((BlockExpr) e).getBody());
+            } else if (e instanceof SeqExpr) {
+                m_out.writeByte(T_SEQ);
+                writeAll(((SeqExpr) e).getExprs());
+            } else if (e instanceof ChainExpr) {
+                ChainExpr chain = (ChainExpr) e;
+                m_out.writeByte(T_CHAIN);
+                writeAll(chain.getOperands());
+                for (PrimFuncValue op : chain.getOps()) {
+                    writeCount(op.ordinal());
+                }
+            } else if (e instanceof AndExpr) {
+                m_out.writeByte(T_AND);
+                write(((AndExpr) e).getLeft());
+                write(((AndExpr) e).getRight());
+            } else if (e instanceof OrExpr) {
+                m_out.writeByte(T_OR);
+                write(((OrExpr) e).getLeft());
+                write(((OrExpr) e).getRight());
+            } else {
+                throw new IllegalArgumentException("Cannot encode " + e.getClass().getSimpleName());
+            }
+        }
+
+        private void writeAll(Expr[] exprs) throws IOException {
+            writeCount(exprs.length);
+            for (Expr e : exprs) {
+                write(e);
+            }
+        }
+
+        /**
+         * Writes a name as 0 followed by the name the first time it is seen,
+         * and as its number plus one after that. The null name is number 0.
+         */
+        private void writeName(String name) throws IOException {
+            if (name == null) {
+                writeCount(1);
+                return;
+            }
+            Integer n = m_names.get(name);
+            if (n != null) {
+                writeCount(n + 1);
+            } else {
+                writeCount(0);
+                m_out.writeUTF(name);
+                m_names.put(name, m_names.size() + 1);
+            }
+        }
+
+        private void writeCount(int n) throws IOException {
+            while ((n & ~0x7f) != 0) {
+                m_out.writeByte((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            m_out.writeByte(n);
+        }
+    }
+
+    public static class Decoder implements AutoCloseable {
+        private DataInputStream m_in;
+        private ArrayList<String> m_names = new ArrayList<>();
+        private static final PrimFuncValue[] PRIMS = PrimFuncValue.values();
+
+        public Decoder(InputStream in) throws IOException {
+            m_in = new DataInputStream(in);
+            if (m_in.readInt() != MAGIC || m_in.readInt() != VERSION) {
+                throw new IOException("Not a compiled program, or from a different version");
+            }
+            m_names.add(null);
+        }
+
+        /**
+         * @return the next top-level statement, or null after the last one
+         */
+        public Expr readStatement() throws IOException {
+            byte tag = m_in.readByte();
+            if (tag == T_END) {
+                return null;
+            }
+            return read(tag);
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+
+        private Expr read() throws IOException {
+            return read(m_in.readByte());
+        }
+
+        private Expr read(byte tag) throws IOException {
+            switch (tag) {
+            case T_FLOAT:
+                return new FloatValue(m_in.readDouble());
+            case T_STRING: {
+                byte[] bytes = new byte[readCount()];
+                m_in.readFully(bytes);
+                return new StringValue(new String(bytes, StandardCharsets.UTF_8));
+            }
+            case T_NULL:
+                return NullValue.INSTANCE;
+            case T_TRUE:
+                return BoolValue.TRUE_INSTANCE;
+            case T_FALSE:
+                return BoolValue.FALSE_INSTANCE;
+            case T_PRIM:
+                return readPrim();
+            case T_VAR:
+                return new VariableExpr(readName());
+            case T_APP: {
+                Expr func = read();
+                return new AppExpr(func, readAll());
+            }
+            case T_ARRAY:
+                return new ArrayExpr(readAll());
+            case T_IF: {
+                Expr cond = read();
+                Expr cons = read();
+                return new IfExpr(cond, cons, read());
+            }
+            case T_WHILE: {
+                int line = readCount(), column = readCount();
+                Expr cond = read();
+                WhileExpr w = new WhileExpr(cond, read());
+                w.setSource(line, column);
+                return w;
+            }
+            case T_FUN: {
+                String[] params = new String[readCount()];
+                for (int i = 0; i < params.length; i++) {
+                    params[i] = readName();
+                }
+                String name = readName();
+                int line = readCount(), column = readCount();
+                FunExpr f = new FunExpr(params, read());
+                f.setSource(name, line, column);
+                return f;
+            }
+            case T_STORE: {
+                String name = readName();
+                return new StoreExpr(name, read());
+            }
+            case T_UPDATE: {
+                String name = readName();
+                return new UpdateExpr(name, read());
+            }
+            case T_BLOCK: {
+                String label = readName();
+                return new BlockExpr(label, read());
+            }
+            case T_SEQ:
+                return new SeqExpr(readAll());
+            case T_CHAIN: {
+                Expr[] operands = readAll();
+                PrimFuncValue[] ops = new PrimFuncValue[operands.length - 1];
+                for (int i = 0; i < ops.length; i++) {
+                    ops[i] = readPrim();
+                }
+                return new ChainExpr(operands, ops);
+            }
+            case T_AND: {
+                Expr a = read();
+                return new AndExpr(a, read());
+            }
+            case T_OR: {
+                Expr a = read();
+                return new OrExpr(a, read());
+            }
+            default:
+                throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        private PrimFuncValue readPrim() throws IOException {
+            int n = readCount();
+            if (n >= PRIMS.length) {
+                throw new IOException("Unknown primitive " + n);
+            }
+            return PRIMS[n];
+        }
+
+        private Expr[] readAll() throws IOException {
+            Expr[] exprs = new Expr[readCount()];
+            for (int i = 0; i < exprs.length; i++) {
+                exprs[i] = read();
+            }
+            return exprs;
+        }
+
+        private String readName() throws IOException {
+            int n = readCount();
+            if (n == 0) {
+                String name = m_in.readUTF().intern();
+                m_names.add(name);
+                return name;
+            } else if (n - 1 < m_names.size()) {
+                return m_names.get(n - 1);
+            } else {
+                throw new IOException("Unknown name " + n);
+            }
+        }
+
+        private int readCount() throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = m_in.readUnsignedByte();
+                n |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new EOFException("Malformed count");
+        }
+    }
+}
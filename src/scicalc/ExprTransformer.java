@@ -0,0 +1,156 @@
+package scicalc;
+
+/**
+ * A base class for passes which rewrite a tree. By default, transform()
+ * rebuilds each node out of its transformed children (so the result shares no
+ * interior nodes with the input), and leaves variables and values alone. A
+ * pass overrides the methods for the nodes it cares about.
+ *
+ * @author kmill
+ *
+ */
+public abstract class ExprTransformer {
+
+    public Expr transform(Expr e) {
+        if (e instanceof AppExpr) {
+            return transformApp((AppExpr) e);
+        } else if (e instanceof ChainExpr) {
+            return transformChain((ChainExpr) e);
+        } else if (e instanceof SeqExpr) {
+            return transformSeq((SeqExpr) e);
+        } else if (e instanceof IfExpr) {
+            return transformIf((IfExpr) e);
+        } else if (e instanceof WhileExpr) {
+            return transformWhile((WhileExpr) e);
+        } else if (e instanceof AndExpr) {
+            return transformAnd((AndExpr) e);
+        } else if (e instanceof OrExpr) {
+            return transformOr((OrExpr) e);
+        } else if (e instanceof ArrayExpr) {
+            return transformArray((ArrayExpr) e);
+        } else if (e instanceof FunExpr) {
+            return transformFun((FunExpr) e);
+        } else if (e instanceof BlockExpr) {
+            return transformBlock((BlockExpr) e);
+        } else if (e instanceof ExitExpr) {
+            return transformExit((ExitExpr) e);
+        } else if (e instanceof StoreExpr) {
+            return transformStore((StoreExpr) e);
+        } else if (e instanceof UpdateExpr) {
+            return transformUpdate((UpdateExpr) e);
+        } else if (e instanceof VariableExpr) {
+            return transformVariable((VariableExpr) e);
+        } else if (e instanceof LocalExpr) {
+            return transformLocal((LocalExpr) e);
+        } else if (e instanceof LocalStoreExpr) {
+            return transformLocalStore((LocalStoreExpr) e);
+        } else if (e instanceof LocalUpdateExpr) {
+            return transformLocalUpdate((LocalUpdateExpr) e);
+        } else if (e instanceof BinaryNode) {
+            return transformBinary((BinaryNode) e);
+        } else if (e instanceof UnaryNode) {
+            return transformUnary((UnaryNode) e);
+        } else if (e instanceof SetNode) {
+            return transformSetNode((SetNode) e);
+        } else {
+            return e;
+        }
+    }
+
+    protected Expr[] transformAll(Expr[] exprs) {
+        Expr[] result = new Expr[exprs.length];
+        for (int i = 0; i < exprs.length; i++) {
+            result[i] = transform(exprs[i]);
+        }
+        return result;
+    }
+
+    protected Expr transformApp(AppExpr e) {
+        Expr func = transform(e.getFunc());
+        return new AppExpr(func, transformAll(e.getArgs()), e.isTail());
+    }
+
+    protected Expr transformChain(ChainExpr e) {
+        return new ChainExpr(transformAll(e.getOperands()), e.getOps());
+    }
+
+    protected Expr transformSeq(SeqExpr e) {
+        return new SeqExpr(transformAll(e.getExprs()));
+    }
+
+    protected Expr transformIf(IfExpr e) {
+        Expr cond = transform(e.getCond());
+        Expr cons = transform(e.getCons());
+        return new IfExpr(cond, cons, transform(e.getAlt()));
+    }
+
+    protected Expr transformWhile(WhileExpr e) {
+        Expr cond = transform(e.getCond());
+        return new WhileExpr(cond, transform(e.getBody())).withSourceOf(e);
+    }
+
+    protected Expr transformAnd(AndExpr e) {
+        Expr left = transform(e.getLeft());
+        return new AndExpr(left, transform(e.getRight()));
+    }
+
+    protected Expr transformOr(OrExpr e) {
+        Expr left = transform(e.getLeft());
+        return new OrExpr(left, transform(e.getRight()));
+    }
+
+    protected Expr transformArray(ArrayExpr e) {
+        return new ArrayExpr(transformAll(e.getItems()));
+    }
+
+    protected Expr transformFun(FunExpr e) {
+        return e.withBody(transform(e.getBody()));
+    }
+
+    protected Expr transformBlock(BlockExpr e) {
+        return e.withBody(transform(e.getBody()));
+    }
+
+    protected Expr transformExit(ExitExpr e) {
+        return new ExitExpr(e.getLabel(), e.getKey(), e.getDepth(), e.getSlot(), transform(e.getExpr()));
+    }
+
+    protected Expr transformStore(StoreExpr e) {
+        return new StoreExpr(e.getIdentifier(), transform(e.getExpr()));
+    }
+
+    protected Expr transformUpdate(UpdateExpr e) {
+        return new UpdateExpr(e.getIdentifier(), transform(e.getExpr()));
+    }
+
+    protected Expr transformVariable(VariableExpr e) {
+        return e;
+    }
+
+    protected Expr transformLocal(LocalExpr e) {
+        return e;
+    }
+
+    protected Expr transformLocalStore(LocalStoreExpr e) {
+        return new LocalStoreExpr(e.getIdentifier(), e.getSlot(), transform(e.getExpr()));
+    }
+
+    protected Expr transformLocalUpdate(LocalUpdateExpr e) {
+        return new LocalUpdateExpr(e.getIdentifier(), e.getDepths(), e.getSlots(), transform(e.getExpr()));
+    }
+
+    protected Expr transformBinary(BinaryNode e) {
+        Expr left = transform(e.getLeft());
+        return BinaryNode.create(e.getPrim(), left, transform(e.getRight()));
+    }
+
+    protected Expr transformUnary(UnaryNode e) {
+        return UnaryNode.create(e.getPrim(), transform(e.getOperand()));
+    }
+
+    protected Expr transformSetNode(SetNode e) {
+        Expr array = transform(e.getArray());
+        Expr index = transform(e.getIndex());
+        return new SetNode(array, index, transform(e.getValue()));
+    }
+}
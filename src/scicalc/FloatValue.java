@@ -8,17 +8,53 @@ package scicalc;
  *
  */
 public class FloatValue implements Expr, Value {
+    /**
+     * The range of integers which valueOf() keeps one FloatValue for each of.
+     * Counters, indices and small results are nearly always in it.
+     */
+    private static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+    private static final FloatValue[] CACHE = new FloatValue[CACHE_HIGH - CACHE_LOW + 1];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new FloatValue(i + CACHE_LOW);
+        }
+    }
+
     private double m_number;
 
     public FloatValue(double number) {
         m_number = number;
     }
 
+    /**
+     * @return a FloatValue for the number, which is a shared one if the number
+     *         is a small integer (but not -0.0)
+     */
+    public static FloatValue valueOf(double number) {
+        int i = (int) number;
+        if (i == number && i >= CACHE_LOW && i <= CACHE_HIGH
+                && (i != 0 || Double.doubleToRawLongBits(number) == 0L)) {
+            return CACHE[i - CACHE_LOW];
+        }
+        return new FloatValue(number);
+    }
+
     @Override
     public Value evaluate(Environment e) {
         return this;
     }
 
+    @Override
+    public double evaluateDouble(Environment e) {
+        return m_number;
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return m_number != 0.0;
+    }
+
     @Override
     public double asFloat() {
         return m_number;
@@ -4,10 +4,112 @@ public class FunExpr implements Expr {
 
 	private String[] m_parameters;
 	private Expr m_body;
+	private int m_frame_size;
+	private int[] m_param_slots;
+
+	/*
+	 * Tiered compilation (see Jit). A function the Jit has instrumented counts
+	 * its calls and the back-edges of its loops, and is compiled to JVM
+	 * bytecode when the count reaches Jit.THRESHOLD.
+	 */
+	private boolean m_profiling;
+	private int m_heat;
+	private volatile CompiledFunction m_compiled;
+	private int m_deoptimizations;
+
+	/*
+	 * The name the function was defined with, if any, and where it starts in
+	 * the source (see SciParser), for the Profiler and error messages. The
+	 * line is 0 when that is not known.
+	 */
+	private String m_name;
+	private int m_line, m_column;
+	/** what the Profiler which last saw the function called knows it as */
+	Profiler.Key m_profile_key;
 
 	public FunExpr(String[] parameters, Expr body) {
+		this(parameters, body, -1, null);
+	}
+
+	/**
+	 * A function which has been through the Resolver. Each call gets a frame
+	 * with the given number of slots, with the arguments in the given slots.
+	 */
+	public FunExpr(String[] parameters, Expr body, int frameSize, int[] paramSlots) {
 		m_parameters = parameters;
 		m_body = body;
+		m_frame_size = frameSize;
+		m_param_slots = paramSlots;
+	}
+
+	/**
+	 * @return the same function (resolved the same way) with a different body
+	 */
+	public FunExpr withBody(Expr body) {
+		return new FunExpr(m_parameters, body, m_frame_size, m_param_slots).withSourceOf(this);
+	}
+
+	/**
+	 * Gives the function the name and source position of another, which it
+	 * is a version of.
+	 *
+	 * @return this function
+	 */
+	FunExpr withSourceOf(FunExpr original) {
+		setSource(original.m_name, original.m_line, original.m_column);
+		return this;
+	}
+
+	void setSource(String name, int line, int column) {
+		m_name = name;
+		m_line = line;
+		m_column = column;
+	}
+
+	/**
+	 * @return the name the function was defined with, or null
+	 */
+	public String getName() {
+		return m_name;
+	}
+
+	public int getLine() {
+		return m_line;
+	}
+
+	public int getColumn() {
+		return m_column;
+	}
+
+	/**
+	 * @return the name of the function and where it starts, as in "fib
+	 *         (3:7)", or with its parameters, as in "fun (n)", if the parser
+	 *         did not say where
+	 */
+	public String describe() {
+		String name = m_name != null ? m_name : "fun";
+		if (m_line > 0) {
+			return name + " (" + m_line + ":" + m_column + ")";
+		}
+		StringBuilder sb = new StringBuilder(name).append(" (");
+		String delim = "";
+		for (String param : m_parameters) {
+			sb.append(delim).append(param);
+			delim = ", ";
+		}
+		return sb.append(")").toString();
+	}
+
+	public boolean isResolved() {
+		return m_frame_size >= 0;
+	}
+
+	public int getFrameSize() {
+		return m_frame_size;
+	}
+
+	public int[] getParamSlots() {
+		return m_param_slots;
 	}
 
 	public String[] getParameters() {
@@ -23,6 +125,97 @@ public class FunExpr implements Expr {
 		return new FunValue(e, this);
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		return evaluate(e).asFloat();
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
+	/**
+	 * Evaluates the body in a frame which has the arguments in their slots,
+	 * with the compiled code if there is any. When the body ends in a tail
+	 * call, this makes that call too, and so on (see TailCall). While a
+	 * Profiler is running, the call is on its stack for the thread, with each
+	 * tail call taking the place of the one before.
+	 */
+	public Value call(Environment frame) {
+		Profiler.Stack stack = Profiler.enter(this);
+		if (stack == null) {
+			return call(this, frame, null);
+		}
+		try {
+			return call(this, frame, stack);
+		} finally {
+			stack.leave();
+		}
+	}
+
+	private static Value call(FunExpr fun, Environment frame, Profiler.Stack stack) {
+		while (true) {
+			Budget.check(fun);
+			Value result = fun.enter(frame);
+			if (!(result instanceof TailCall)) {
+				return result;
+			}
+			TailCall tail = (TailCall) result;
+			fun = tail.getFun();
+			frame = tail.getFrame();
+			if (stack != null) {
+				stack.replace(fun);
+			}
+		}
+	}
+
+	/**
+	 * @return the value of the body, or the TailCall it ends in
+	 */
+	private Value enter(Environment frame) {
+		CompiledFunction compiled = m_compiled;
+		if (compiled != null) {
+			return compiled.invoke(frame);
+		}
+		if (m_profiling) {
+			heat();
+		}
+		return m_body.evaluate(frame);
+	}
+
+	/**
+	 * Makes calls to the function count towards compiling it.
+	 */
+	void startProfiling() {
+		m_profiling = true;
+	}
+
+	/**
+	 * Counts a call or a loop iteration.
+	 */
+	void heat() {
+		if (++m_heat >= Jit.THRESHOLD && m_profiling) {
+			m_profiling = false;
+			m_compiled = Jit.compile(this, true);
+		}
+	}
+
+	/**
+	 * Called when compiled code has given a call back to the tree
+	 * interpreter. Once that happens often, the code is replaced by code which
+	 * makes no assumptions about the arguments.
+	 */
+	void deoptimized(CompiledFunction compiled) {
+		if (++m_deoptimizations == Jit.MAX_DEOPTIMIZATIONS && m_compiled == compiled) {
+			m_compiled = Jit.compile(this, false);
+		}
+	}
+
+	public CompiledFunction getCompiled() {
+		return m_compiled;
+	}
+
 	public String toString() {
 		StringBuffer params = new StringBuffer();
 		String delim = "";
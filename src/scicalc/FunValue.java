@@ -10,6 +10,14 @@ public class FunValue implements Value {
         m_fun = fun;
     }
 
+    public Environment getEnvironment() {
+        return m_env;
+    }
+
+    public FunExpr getFun() {
+        return m_fun;
+    }
+
     @Override
     public double asFloat() {
         throw new IllegalArgumentException("Function cannot be float");
@@ -22,15 +30,51 @@ public class FunValue implements Value {
 
     @Override
     public Value apply(Value[] values) {
+        checkArguments(values);
+        if (m_fun.isResolved()) {
+            return m_fun.call(frame(values));
+        }
+        Budget.check(m_fun);
+        Environment env = new Environment(m_env);
+        for (int i = 0; i < values.length; i++) {
+            env.set(m_fun.getParameters()[i], values[i]);
+        }
+        Profiler.Stack stack = Profiler.enter(m_fun);
+        try {
+            return m_fun.getBody().evaluate(env);
+        } finally {
+            if (stack != null) {
+                stack.leave();
+            }
+        }
+    }
+
+    /**
+     * Like apply(), for a call in tail position: a resolved function is not
+     * called, but given back as a TailCall.
+     */
+    Value applyTail(Value[] values) {
+        if (!m_fun.isResolved()) {
+            return apply(values);
+        }
+        checkArguments(values);
+        return new TailCall(m_fun, frame(values));
+    }
+
+    private void checkArguments(Value[] values) {
         if (values.length != m_fun.getParameters().length) {
             throw new IllegalArgumentException(
                     "Expecting " + m_fun.getParameters().length + " arguments but given " + values.length);
         }
-        Environment env = new Environment(m_env);
+    }
+
+    private Environment frame(Value[] values) {
+        Environment env = new Environment(m_env, m_fun.getFrameSize());
+        int[] slots = m_fun.getParamSlots();
         for (int i = 0; i < values.length; i++) {
-            env.set(m_fun.getParameters()[i], values[i]);
+            env.setSlot(slots[i], values[i]);
         }
-        return m_fun.getBody().evaluate(env);
+        return env;
     }
 
     @Override
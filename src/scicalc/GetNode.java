@@ -0,0 +1,111 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+/**
+ * Indexing, a[i]. Rather than floats, this speculates that it is indexing an
+ * ArrayValue, which saves going through the Value interface, and lets the
+ * index and (for evaluateDouble() and evaluateBool()) the item stay unboxed.
+ * 
+ * An item which is an array is thrown from evaluateDouble() in a NotANumber,
+ * for arithmetic on it to go elementwise.
+ * 
+ * A[i, j] parses as A[i][j]. When A turns out to be a matrix (an
+ * NDArrayValue), the outer node indexes it with both at once, rather than
+ * letting the inner one make a view of row i.
+ * 
+ * @author kmill
+ *
+ */
+public class GetNode extends BinaryNode {
+    /** the left operand, if it is itself indexing (the a[i] of a[i][j]) */
+    private final GetNode m_row;
+
+    public GetNode(Expr array, Expr index) {
+        super(array, index);
+        m_row = array instanceof GetNode ? (GetNode) array : null;
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.GET;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        if (m_row != null) {
+            Value matrix = m_row.m_left.evaluate(e);
+            if (matrix instanceof NDArrayValue) {
+                double i = evaluateIndex(m_row.m_right, e);
+                return ((NDArrayValue) matrix).get(i, evaluateIndex(m_right, e));
+            }
+            return index(m_row.index(matrix, e), e);
+        }
+        return index(m_left.evaluate(e), e);
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        Value array;
+        if (m_row != null) {
+            Value matrix = m_row.m_left.evaluate(e);
+            if (matrix instanceof NDArrayValue) {
+                double i = evaluateIndex(m_row.m_right, e);
+                return ((NDArrayValue) matrix).getDouble(i, evaluateIndex(m_right, e));
+            }
+            array = m_row.index(matrix, e);
+        } else {
+            array = m_left.evaluate(e);
+        }
+        if (m_specialized) {
+            if (array instanceof ArrayValue) {
+                return ((ArrayValue) array).getDouble(evaluateIndex(m_right, e));
+            }
+            despecialize();
+        }
+        if (array instanceof NDArrayValue) {
+            return ((NDArrayValue) array).getDouble(evaluateIndex(m_right, e));
+        }
+        return ElementwiseValue.asFloat(array.get(m_right.evaluate(e)));
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        Value array = m_row != null ? m_row.evaluate(e) : m_left.evaluate(e);
+        if (m_specialized) {
+            if (array instanceof ArrayValue) {
+                return ((ArrayValue) array).getBool(evaluateIndex(m_right, e));
+            }
+            despecialize();
+        }
+        return index(array, e).asBool();
+    }
+
+    /**
+     * @return the value of an index, which must be a number (and not an
+     *         array, even of arithmetic which has gone elementwise)
+     */
+    static double evaluateIndex(Expr index, Environment e) {
+        try {
+            return index.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw new IllegalArgumentException(x.getMessage());
+        }
+    }
+
+    /**
+     * @return array[index], with the array already evaluated
+     */
+    Value index(Value array, Environment e) {
+        if (m_specialized) {
+            if (array instanceof ArrayValue) {
+                return ((ArrayValue) array).get(evaluateIndex(m_right, e));
+            }
+            despecialize();
+        }
+        if (array instanceof NDArrayValue) {
+            return ((NDArrayValue) array).get(evaluateIndex(m_right, e));
+        }
+        return array.get(m_right.evaluate(e));
+    }
+}
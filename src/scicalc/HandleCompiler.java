@@ -0,0 +1,714 @@
+package scicalc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+import static scicalc.ClassAssembler.Opcodes.*;
+
+/**
+ * Compiles a resolved tree (see Resolver and Lowering) into a HandleExpr: a
+ * tree of java.lang.invoke combinators instead of Expr nodes, which the JVM
+ * can compile and inline as a whole rather than calling evaluate() on each
+ * node in turn. An IfExpr becomes a guardWithTest, a sequence and the
+ * operands of an operator become foldArguments, and arithmetic is done on
+ * unboxed doubles, with filterReturnValue converting to and from Values
+ * where something needs one.
+ *
+ * As with the BytecodeCompiler, functions and blocks are compiled separately,
+ * each body into a HandleExpr of its own, and anything the compiler does not
+ * know is kept as a tree and evaluated by a handle bound to it.
+ *
+ * The JVM only inlines through a handle it can see is a constant, so the
+ * root of each function body and the condition, body and Budget check of
+ * each loop are put in static final fields of a small class made for them with the
+ * ClassAssembler, which invokes them from a static method. A loop is a
+ * plain while in that method, since MethodHandles.whileLoop only came with
+ * Java 9. Where no class can be defined, the whileLoop method below is used
+ * instead, with the handles as arguments.
+ *
+ * Operands are evaluated from left to right, as the tree does: the handles
+ * are combined with foldArguments, whose combiner always runs before its
+ * target, rather than with filterArguments, which makes no promise about the
+ * order.
+ *
+ * Arithmetic on arrays is elementwise, and is found out as in the tree
+ * interpreter (see ElementwiseValue): the handle for each operand of an
+ * arithmetic or comparison operator is wrapped in a catchException which,
+ * on a NotANumber, makes the ElementwiseValue for the operator and throws it
+ * on, and the handles which want a Value or a boolean from arithmetic catch
+ * it and materialize it.
+ *
+ * @author kmill
+ *
+ */
+public class HandleCompiler {
+    private static final MethodHandle EVALUATE, LOOKUP, STORE_SLOT, STORE, UPDATE, UPDATE_LOCAL, WHILE, APPLY,
+            TAIL_APPLY, GET, SET, MAKE_ARRAY;
+    /** conversions between Values, doubles and booleans */
+    private static final MethodHandle AS_FLOAT, AS_BOOL, BOX, BOOL, TO_FLOAT, NONZERO;
+    /** going on elementwise, and getting the result, from a NotANumber */
+    private static final MethodHandle RESUME_LEFT, RESUME_RIGHT, RESUME_UNARY, ARRAY, MATERIALIZE,
+            MATERIALIZE_BOOL, NOT_A_NUMBER;
+    private static final MethodHandle ADD, SUB, MUL, DIV, IDIV, MOD, POW, NEG, NOT, LT, LTE, GT, GTE, EQ, NEQ,
+            EQUALS;
+    private static final MethodHandle TRUE, FALSE;
+    /** Budget.check(), at the back-edge of a loop */
+    private static final MethodHandle CHECK;
+
+    private static final AtomicInteger s_classes = new AtomicInteger();
+    /** the handles for each generated class, until its static initializer takes them */
+    private static final ConcurrentHashMap<String, MethodHandle[]> s_pending = new ConcurrentHashMap<>();
+    private static final String ENV_TO_VALUE = "(Lscicalc/Environment;)Lscicalc/Value;";
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            EVALUATE = lookup.findVirtual(Expr.class, "evaluate", unit(Value.class));
+            LOOKUP = lookup.findVirtual(Environment.class, "lookup",
+                    MethodType.methodType(Value.class, String.class));
+            STORE_SLOT = helper(lookup, "storeSlot", Value.class, Environment.class, int.class);
+            STORE = helper(lookup, "store", Value.class, Environment.class, String.class);
+            UPDATE = helper(lookup, "update", Value.class, Environment.class, String.class);
+            UPDATE_LOCAL = helper(lookup, "updateLocal", Value.class, Environment.class, LocalUpdateExpr.class);
+            WHILE = helper(lookup, "whileLoop", MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    Environment.class);
+            APPLY = lookup.findVirtual(Value.class, "apply", MethodType.methodType(Value.class, Value[].class));
+            TAIL_APPLY = lookup.findStatic(TailCall.class, "apply", MethodType.methodType(Value.class,
+                    Value.class, Value[].class));
+            GET = lookup.findVirtual(Value.class, "get", MethodType.methodType(Value.class, Value.class));
+            SET = lookup.findStatic(PrimFuncValue.class, "set",
+                    MethodType.methodType(Value.class, Value.class, Value.class, Value.class));
+            MAKE_ARRAY = helper(lookup, "makeArray", Value[].class);
+            AS_FLOAT = lookup.findStatic(ElementwiseValue.class, "asFloat", MethodType.methodType(double.class,
+                    Value.class));
+            AS_BOOL = lookup.findVirtual(Value.class, "asBool", MethodType.methodType(boolean.class));
+            BOX = helper(lookup, "box", double.class);
+            TO_FLOAT = lookup.findStatic(HandleCompiler.class, "toFloat", MethodType.methodType(double.class,
+                    boolean.class));
+            NONZERO = lookup.findStatic(HandleCompiler.class, "nonzero", MethodType.methodType(boolean.class,
+                    double.class));
+            BOOL = lookup.findStatic(BoolValue.class, "create", MethodType.methodType(BoolValue.class,
+                    boolean.class)).asType(MethodType.methodType(Value.class, boolean.class));
+            RESUME_LEFT = lookup.findStatic(HandleCompiler.class, "resumeLeft", MethodType.methodType(
+                    double.class, PrimFuncValue.class, NotANumber.class, Value.class));
+            RESUME_RIGHT = lookup.findStatic(HandleCompiler.class, "resumeRight", MethodType.methodType(
+                    double.class, PrimFuncValue.class, NotANumber.class, double.class));
+            RESUME_UNARY = lookup.findStatic(HandleCompiler.class, "resumeUnary", MethodType.methodType(
+                    double.class, PrimFuncValue.class, NotANumber.class));
+            ARRAY = lookup.findVirtual(NotANumber.class, "getValue", MethodType.methodType(Value.class));
+            MATERIALIZE = lookup.findVirtual(NotANumber.class, "materialize", MethodType.methodType(Value.class));
+            MATERIALIZE_BOOL = lookup.findStatic(HandleCompiler.class, "materializeBool", MethodType.methodType(
+                    boolean.class, NotANumber.class));
+            NOT_A_NUMBER = lookup.findStatic(HandleCompiler.class, "notANumber", MethodType.methodType(
+                    boolean.class, NotANumber.class));
+            ADD = arithmetic(lookup, "add");
+            SUB = arithmetic(lookup, "sub");
+            MUL = arithmetic(lookup, "mul");
+            DIV = arithmetic(lookup, "div");
+            IDIV = arithmetic(lookup, "idiv");
+            MOD = arithmetic(lookup, "mod");
+            POW = lookup.findStatic(Math.class, "pow", MethodType.methodType(double.class, double.class,
+                    double.class));
+            NEG = lookup.findStatic(HandleCompiler.class, "neg", MethodType.methodType(double.class,
+                    double.class));
+            NOT = lookup.findStatic(HandleCompiler.class, "not", MethodType.methodType(boolean.class,
+                    boolean.class));
+            LT = comparison(lookup, "lt");
+            LTE = comparison(lookup, "lte");
+            GT = comparison(lookup, "gt");
+            GTE = comparison(lookup, "gte");
+            EQ = comparison(lookup, "eq");
+            NEQ = comparison(lookup, "neq");
+            EQUALS = lookup.findVirtual(Object.class, "equals", MethodType.methodType(boolean.class,
+                    Object.class)).asType(MethodType.methodType(boolean.class, Value.class, Value.class));
+            CHECK = lookup.findStatic(Budget.class, "check", MethodType.methodType(void.class, Expr.class));
+        } catch (ReflectiveOperationException x) {
+            throw new ExceptionInInitializerError(x);
+        }
+        TRUE = constant(boolean.class, true);
+        FALSE = constant(boolean.class, false);
+    }
+
+    private HandleCompiler() {
+    }
+
+    public static HandleExpr compile(Expr e) {
+        return new HandleExpr(new HandleCompiler().compile(e, Value.class), e);
+    }
+
+    /**
+     * Compiles a handle which evaluates e in the Environment it is given.
+     *
+     * @param type
+     *            Value, double or boolean: how the handle returns the value,
+     *            converted the way asFloat() or asBool() would
+     */
+    private MethodHandle compile(Expr e, Class<?> type) {
+        if (type != Value.class) {
+            Class<?> natural = naturalType(e);
+            if (natural == Value.class) {
+                return MethodHandles.filterReturnValue(compile(e, Value.class),
+                        type == double.class ? AS_FLOAT : AS_BOOL);
+            } else if (natural != type && type == double.class) {
+                return MethodHandles.filterReturnValue(compile(e, natural), TO_FLOAT);
+            } else if (natural != type) {
+                // arithmetic on an array is true if the array is not empty
+                return materialized(e, MethodHandles.filterReturnValue(compile(e, natural), NONZERO),
+                        MATERIALIZE_BOOL);
+            }
+        } else if (naturalType(e) != Value.class) {
+            Class<?> natural = naturalType(e);
+            return materialized(e, MethodHandles.filterReturnValue(compile(e, natural),
+                    natural == double.class ? BOX : BOOL), MATERIALIZE);
+        }
+        // here, the type is e's natural type
+        if (e instanceof FloatValue) {
+            return constant(double.class, ((FloatValue) e).asFloat());
+        } else if (e instanceof BoolValue) {
+            return ((BoolValue) e).asBool() ? TRUE : FALSE;
+        } else if (e instanceof Value) {
+            return constant(Value.class, e);
+        } else if (e instanceof VariableExpr) {
+            return MethodHandles.insertArguments(LOOKUP, 1, ((VariableExpr) e).getIdentifier());
+        } else if (e instanceof LocalStoreExpr) {
+            LocalStoreExpr store = (LocalStoreExpr) e;
+            return assign(MethodHandles.insertArguments(STORE_SLOT, 2, store.getSlot()), store.getExpr());
+        } else if (e instanceof StoreExpr) {
+            StoreExpr store = (StoreExpr) e;
+            return assign(MethodHandles.insertArguments(STORE, 2, store.getIdentifier()), store.getExpr());
+        } else if (e instanceof LocalUpdateExpr) {
+            LocalUpdateExpr update = (LocalUpdateExpr) e;
+            return assign(MethodHandles.insertArguments(UPDATE_LOCAL, 2, update), update.getExpr());
+        } else if (e instanceof UpdateExpr) {
+            UpdateExpr update = (UpdateExpr) e;
+            return assign(MethodHandles.insertArguments(UPDATE, 2, update.getIdentifier()), update.getExpr());
+        } else if (e instanceof SeqExpr) {
+            Expr[] exprs = ((SeqExpr) e).getExprs();
+            return sequence(exprs, 0, exprs.length);
+        } else if (e instanceof IfExpr) {
+            IfExpr ife = (IfExpr) e;
+            return MethodHandles.guardWithTest(condition(ife.getCond()),
+                    compile(ife.getCons(), Value.class), compile(ife.getAlt(), Value.class));
+        } else if (e instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) e;
+            MethodHandle body = compile(w.getBody(), Value.class).asType(unit(void.class));
+            return loop(condition(w.getCond()), body, MethodHandles.insertArguments(CHECK, 0, w));
+        } else if (e instanceof AndExpr) {
+            AndExpr and = (AndExpr) e;
+            return MethodHandles.guardWithTest(condition(and.getLeft()), condition(and.getRight()), FALSE);
+        } else if (e instanceof OrExpr) {
+            OrExpr or = (OrExpr) e;
+            return MethodHandles.guardWithTest(condition(or.getLeft()), TRUE, condition(or.getRight()));
+        } else if (e instanceof ArrayExpr) {
+            Expr[] items = ((ArrayExpr) e).getItems();
+            return inOrder(MAKE_ARRAY.asCollector(Value[].class, items.length), compileAll(items));
+        } else if (e instanceof AppExpr) {
+            AppExpr app = (AppExpr) e;
+            ArrayList<MethodHandle> parts = new ArrayList<>();
+            parts.add(compile(app.getFunc(), Value.class));
+            parts.addAll(Arrays.asList(compileAll(app.getArgs())));
+            MethodHandle apply = app.isTail() ? TAIL_APPLY : APPLY;
+            return inOrder(apply.asCollector(Value[].class, app.getArgs().length),
+                    parts.toArray(new MethodHandle[parts.size()]));
+        } else if (e instanceof ChainExpr) {
+            ChainExpr chain = (ChainExpr) e;
+            Expr[] operands = chain.getOperands();
+            MethodHandle acc = compile(operands[0], double.class);
+            for (int i = 0; i < chain.getOps().length; i++) {
+                PrimFuncValue prim = chain.getOps()[i];
+                acc = elementwise(prim, operator(prim), acc, compile(operands[i + 1], double.class));
+            }
+            return acc;
+        } else if (e instanceof BinaryNode) {
+            BinaryNode node = (BinaryNode) e;
+            MethodHandle op = operator(node.getPrim());
+            if (ElementwiseValue.isElementwise(node.getPrim())) {
+                return elementwise(node.getPrim(), op, compile(node.getLeft(), double.class),
+                        compile(node.getRight(), double.class));
+            } else if (node.getPrim() == PrimFuncValue.EQ2) {
+                // FloatValue.equals() is ==, but anything else is compared
+                // as Values
+                boolean numbers = naturalType(node.getLeft()) == double.class
+                        && naturalType(node.getRight()) == double.class;
+                op = numbers ? EQ : EQUALS;
+            } else if (op == null) {
+                op = GET;
+            }
+            Class<?> operands = op.type().parameterType(0);
+            MethodHandle compared = inOrder(op, compile(node.getLeft(), operands),
+                    compile(node.getRight(), operands));
+            // == and != are not elementwise, so an array is just not a number
+            return operands == double.class
+                    ? MethodHandles.catchException(compared, NotANumber.class, NOT_A_NUMBER) : compared;
+        } else if (e instanceof UnaryNode) {
+            UnaryNode node = (UnaryNode) e;
+            switch (node.getPrim()) {
+            case NEG1:
+                return MethodHandles.filterReturnValue(elementwise(node.getPrim(), node.getOperand()), NEG);
+            case NOT1:
+                return MethodHandles.filterReturnValue(condition(node.getOperand()), NOT);
+            default:
+                return elementwise(node.getPrim(), node.getOperand());
+            }
+        } else if (e instanceof SetNode) {
+            SetNode node = (SetNode) e;
+            return inOrder(SET, compileAll(new Expr[] { node.getArray(), node.getIndex(), node.getValue() }));
+        } else if (e instanceof FunExpr) {
+            FunExpr fun = (FunExpr) e;
+            Expr body = fun.getBody();
+            return EVALUATE.bindTo(fun.withBody(new HandleExpr(root(compile(body, Value.class)), body)));
+        } else if (e instanceof BlockExpr) {
+            BlockExpr block = (BlockExpr) e;
+            return EVALUATE.bindTo(block.withBody(compile(block.getBody())));
+        }
+        return EVALUATE.bindTo(e);
+    }
+
+    private MethodHandle[] compileAll(Expr[] exprs) {
+        MethodHandle[] handles = new MethodHandle[exprs.length];
+        for (int i = 0; i < exprs.length; i++) {
+            handles[i] = compile(exprs[i], Value.class);
+        }
+        return handles;
+    }
+
+    /**
+     * @return the type which the handle for e most naturally returns: double
+     *         for arithmetic, boolean for comparisons and logic, and Value
+     *         for everything else
+     */
+    private static Class<?> naturalType(Expr e) {
+        if (e instanceof FloatValue || e instanceof ChainExpr) {
+            return double.class;
+        } else if (e instanceof BoolValue || e instanceof AndExpr || e instanceof OrExpr) {
+            return boolean.class;
+        } else if (e instanceof BinaryNode) {
+            switch (((BinaryNode) e).getPrim()) {
+            case LT2:
+            case LTE2:
+            case GT2:
+            case GTE2:
+            case EQ2:
+            case NEQ2:
+                return boolean.class;
+            case GET:
+                return Value.class;
+            default:
+                return double.class;
+            }
+        } else if (e instanceof UnaryNode) {
+            return ((UnaryNode) e).getPrim() == PrimFuncValue.NOT1 ? boolean.class : double.class;
+        }
+        return Value.class;
+    }
+
+    /**
+     * @return whether e is arithmetic or a comparison, which may throw a
+     *         NotANumber with an ElementwiseValue
+     */
+    private static boolean isElementwise(Expr e) {
+        if (e instanceof ChainExpr) {
+            return true;
+        } else if (e instanceof BinaryNode) {
+            return ElementwiseValue.isElementwise(((BinaryNode) e).getPrim());
+        } else if (e instanceof UnaryNode) {
+            return ElementwiseValue.isElementwise(((UnaryNode) e).getPrim());
+        }
+        return false;
+    }
+
+    /**
+     * @return h, which evaluates e, with handler, which is (NotANumber)T,
+     *         for the result if e turns out to be elementwise
+     */
+    private static MethodHandle materialized(Expr e, MethodHandle h, MethodHandle handler) {
+        return isElementwise(e) ? MethodHandles.catchException(h, NotANumber.class, handler) : h;
+    }
+
+    /**
+     * @return a handle for e as the condition of an if, a while or a logical
+     *         operator; a comparison of arrays is true if the result is not
+     *         empty, as in the tree interpreter
+     */
+    private MethodHandle condition(Expr e) {
+        MethodHandle h = compile(e, boolean.class);
+        return naturalType(e) == boolean.class ? materialized(e, h, MATERIALIZE_BOOL) : h;
+    }
+
+    /**
+     * @return a handle which evaluates left and then right, which are
+     *         (Environment)double, and gives them to op, the operator on
+     *         doubles. If either operand turns out to be an array, it goes on
+     *         elementwise, as BinaryNode does, and throws the ElementwiseValue
+     *         for prim in a NotANumber.
+     */
+    private static MethodHandle elementwise(PrimFuncValue prim, MethodHandle op, MethodHandle left,
+            MethodHandle right) {
+        // (NotANumber, Environment)double, which evaluates right as a Value
+        MethodHandle leftArray = MethodHandles.filterArguments(MethodHandles.insertArguments(RESUME_LEFT, 0, prim),
+                1, MethodHandles.catchException(MethodHandles.filterReturnValue(right, BOX), NotANumber.class,
+                        ARRAY));
+        left = MethodHandles.catchException(left, NotANumber.class, leftArray);
+        // (a, Environment)double
+        right = MethodHandles.catchException(MethodHandles.dropArguments(right, 0, double.class),
+                NotANumber.class, MethodHandles.insertArguments(RESUME_RIGHT, 0, prim));
+        // (b, a, Environment) to op(a, b)
+        MethodHandle target = MethodHandles.permuteArguments(MethodHandles.dropArguments(op, 2, Environment.class),
+                MethodType.methodType(op.type().returnType(), double.class, double.class, Environment.class), 1,
+                0, 2);
+        return MethodHandles.foldArguments(MethodHandles.foldArguments(target, right), left);
+    }
+
+    /**
+     * @return a handle for operand as a double, which goes on elementwise
+     *         with prim (NEG1 or PLUS1) if it is an array
+     */
+    private MethodHandle elementwise(PrimFuncValue prim, Expr operand) {
+        return MethodHandles.catchException(compile(operand, double.class), NotANumber.class,
+                MethodHandles.insertArguments(RESUME_UNARY, 0, prim));
+    }
+
+    /**
+     * @return the operator on doubles, or null if the primitive is not one
+     *         (or is EQ2, which depends on the operands)
+     */
+    private static MethodHandle operator(PrimFuncValue prim) {
+        switch (prim) {
+        case ADD2:
+            return ADD;
+        case SUB2:
+            return SUB;
+        case MUL2:
+            return MUL;
+        case DIV2:
+            return DIV;
+        case IDIV2:
+            return IDIV;
+        case MOD2:
+            return MOD;
+        case POW2:
+            return POW;
+        case LT2:
+            return LT;
+        case LTE2:
+            return LTE;
+        case GT2:
+            return GT;
+        case GTE2:
+            return GTE;
+        case NEQ2:
+            return NEQ;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return a handle which evaluates value and gives it and the
+     *         Environment to the assignment, which is (Value, Environment)
+     */
+    private MethodHandle assign(MethodHandle assignment, Expr value) {
+        return MethodHandles.foldArguments(assignment, compile(value, Value.class));
+    }
+
+    /**
+     * Halves the sequence each time, so that a long one does not make a deep
+     * chain of handles.
+     */
+    private MethodHandle sequence(Expr[] exprs, int from, int to) {
+        if (to - from == 1) {
+            return compile(exprs[from], Value.class);
+        }
+        int middle = (from + to) / 2;
+        MethodHandle first = sequence(exprs, from, middle).asType(unit(void.class));
+        return MethodHandles.foldArguments(sequence(exprs, middle, to), first);
+    }
+
+    /**
+     * @return a handle which evaluates the parts in order, each with the
+     *         Environment, and gives their results to op
+     */
+    private static MethodHandle inOrder(MethodHandle op, MethodHandle... parts) {
+        // s(env, v0, ..., v(i-1)) evaluates the parts from i on
+        MethodHandle s = MethodHandles.dropArguments(op, 0, Environment.class);
+        for (int i = parts.length - 1; i >= 0; i--) {
+            MethodType type = s.type();
+            // x(vi, env, v0, ..., v(i-1)) = s(env, v0, ..., v(i-1), vi)
+            Class<?>[] params = new Class<?>[i + 2];
+            int[] reorder = new int[i + 2];
+            params[0] = type.parameterType(i + 1);
+            params[1] = Environment.class;
+            reorder[0] = 1;
+            for (int j = 0; j < i; j++) {
+                params[j + 2] = type.parameterType(j + 1);
+                reorder[j + 1] = j + 2;
+            }
+            reorder[i + 1] = 0;
+            MethodHandle x = MethodHandles.permuteArguments(s, MethodType.methodType(type.returnType(), params),
+                    reorder);
+            s = MethodHandles.foldArguments(x, parts[i]);
+        }
+        return s;
+    }
+
+    private static MethodType unit(Class<?> returnType) {
+        return MethodType.methodType(returnType, Environment.class);
+    }
+
+    /**
+     * @return a handle which runs a while loop with the given condition and
+     *         body, which are of types (Environment)boolean and
+     *         (Environment)void
+     */
+    private static MethodHandle loop(MethodHandle cond, MethodHandle body, MethodHandle check) {
+        String name = "scicalc/HandleLoop" + s_classes.incrementAndGet();
+        ClassAssembler asm = holder(name, cond, body, check);
+        ClassAssembler.Code c = asm.method(ClassAssembler.ACC_PUBLIC | ClassAssembler.ACC_STATIC, "run",
+                ENV_TO_VALUE);
+        ClassAssembler.Label top = new ClassAssembler.Label(), end = new ClassAssembler.Label();
+        c.mark(top);
+        c.field(GETSTATIC, name, "H0", "Ljava/lang/invoke/MethodHandle;");
+        c.local(ALOAD, 0);
+        c.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", "(Lscicalc/Environment;)Z");
+        c.jump(IFEQ, end);
+        c.field(GETSTATIC, name, "H1", "Ljava/lang/invoke/MethodHandle;");
+        c.local(ALOAD, 0);
+        c.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", "(Lscicalc/Environment;)V");
+        c.field(GETSTATIC, name, "H2", "Ljava/lang/invoke/MethodHandle;");
+        c.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", "()V");
+        c.jump(GOTO, top);
+        c.mark(end);
+        c.field(GETSTATIC, "scicalc/NullValue", "INSTANCE", "Lscicalc/NullValue;");
+        c.op(ARETURN);
+        c.setMaxStack(2);
+        c.setMaxLocals(1);
+        c.finish();
+        MethodHandle run = define(asm, name);
+        return run != null ? run : MethodHandles.insertArguments(WHILE, 0, cond, body, check);
+    }
+
+    /**
+     * @return a handle which invokes the given one through a constant, so
+     *         that the JVM can inline all of it into one method
+     */
+    private static MethodHandle root(MethodHandle handle) {
+        String name = "scicalc/HandleRoot" + s_classes.incrementAndGet();
+        ClassAssembler asm = holder(name, handle);
+        ClassAssembler.Code c = asm.method(ClassAssembler.ACC_PUBLIC | ClassAssembler.ACC_STATIC, "run",
+                ENV_TO_VALUE);
+        c.field(GETSTATIC, name, "H0", "Ljava/lang/invoke/MethodHandle;");
+        c.local(ALOAD, 0);
+        c.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", ENV_TO_VALUE);
+        c.op(ARETURN);
+        c.setMaxStack(2);
+        c.setMaxLocals(1);
+        c.finish();
+        MethodHandle run = define(asm, name);
+        return run != null ? run : handle;
+    }
+
+    /**
+     * Starts a class with the handles in static final fields H0, H1, ...,
+     * which its static initializer gets from takeHandles.
+     */
+    private static ClassAssembler holder(String name, MethodHandle... handles) {
+        s_pending.put(name, handles);
+        ClassAssembler asm = new ClassAssembler(name, "java/lang/Object");
+        ClassAssembler.Code c = asm.method(ClassAssembler.ACC_STATIC, "<clinit>", "()V");
+        c.ldcString(name);
+        c.invoke(INVOKESTATIC, "scicalc/HandleCompiler", "takeHandles",
+                "(Ljava/lang/String;)[Ljava/lang/invoke/MethodHandle;");
+        c.local(ASTORE, 0);
+        for (int i = 0; i < handles.length; i++) {
+            asm.field(ClassAssembler.ACC_PUBLIC | ClassAssembler.ACC_STATIC | ClassAssembler.ACC_FINAL, "H" + i,
+                    "Ljava/lang/invoke/MethodHandle;");
+            c.local(ALOAD, 0);
+            c.iconst(i);
+            c.op(AALOAD);
+            c.field(PUTSTATIC, name, "H" + i, "Ljava/lang/invoke/MethodHandle;");
+        }
+        c.op(RETURN);
+        c.setMaxStack(2);
+        c.setMaxLocals(1);
+        c.finish();
+        return asm;
+    }
+
+    /**
+     * @return the run method of the class, or null if it could not be
+     *         defined
+     */
+    private static MethodHandle define(ClassAssembler asm, String name) {
+        try {
+            Class<?> c = Jit.define(name, asm.toByteArray());
+            return MethodHandles.publicLookup().findStatic(c, "run", unit(Value.class));
+        } catch (ReflectiveOperationException | LinkageError x) {
+            s_pending.remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Only for the static initializers of the classes made by holder.
+     */
+    public static MethodHandle[] takeHandles(String name) {
+        return s_pending.remove(name);
+    }
+
+    private static MethodHandle constant(Class<?> type, Object value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(type, value), 0, Environment.class);
+    }
+
+    /**
+     * @return one of the methods below which give a Value
+     */
+    private static MethodHandle helper(MethodHandles.Lookup lookup, String name, Class<?>... params)
+            throws ReflectiveOperationException {
+        return lookup.findStatic(HandleCompiler.class, name, MethodType.methodType(Value.class, params));
+    }
+
+    private static MethodHandle arithmetic(MethodHandles.Lookup lookup, String name)
+            throws ReflectiveOperationException {
+        return lookup.findStatic(HandleCompiler.class, name, MethodType.methodType(double.class, double.class,
+                double.class));
+    }
+
+    private static MethodHandle comparison(MethodHandles.Lookup lookup, String name)
+            throws ReflectiveOperationException {
+        return lookup.findStatic(HandleCompiler.class, name, MethodType.methodType(boolean.class, double.class,
+                double.class));
+    }
+
+    /*
+     * What the handles call. The operators are those of PrimFuncValue, on
+     * doubles.
+     */
+
+    private static double resumeLeft(PrimFuncValue op, NotANumber x, Value right) {
+        throw new NotANumber(ElementwiseValue.create(op, x.getValue(), right));
+    }
+
+    private static double resumeRight(PrimFuncValue op, NotANumber x, double left) {
+        throw new NotANumber(ElementwiseValue.create(op, FloatValue.valueOf(left), x.getValue()));
+    }
+
+    private static double resumeUnary(PrimFuncValue op, NotANumber x) {
+        throw new NotANumber(ElementwiseValue.create(op, x.getValue(), null));
+    }
+
+    private static boolean materializeBool(NotANumber x) {
+        return x.materialize().asBool();
+    }
+
+    private static boolean notANumber(NotANumber x) {
+        throw new IllegalArgumentException(x.getMessage());
+    }
+
+    private static Value storeSlot(Value value, Environment e, int slot) {
+        e.setSlot(slot, value);
+        return NullValue.INSTANCE;
+    }
+
+    private static Value store(Value value, Environment e, String identifier) {
+        e.set(identifier, value);
+        return NullValue.INSTANCE;
+    }
+
+    private static Value update(Value value, Environment e, String identifier) {
+        e.update(identifier, value);
+        return NullValue.INSTANCE;
+    }
+
+    private static Value updateLocal(Value value, Environment e, LocalUpdateExpr update) {
+        update.assign(e, value);
+        return NullValue.INSTANCE;
+    }
+
+    private static Value whileLoop(MethodHandle cond, MethodHandle body, MethodHandle check, Environment e)
+            throws Throwable {
+        while ((boolean) cond.invokeExact(e)) {
+            body.invokeExact(e);
+            check.invokeExact();
+        }
+        return NullValue.INSTANCE;
+    }
+
+    private static Value makeArray(Value[] items) {
+        return new ArrayValue(new ArrayList<>(Arrays.asList(items)));
+    }
+
+    private static Value box(double value) {
+        return FloatValue.valueOf(value);
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double sub(double a, double b) {
+        return a - b;
+    }
+
+    private static double mul(double a, double b) {
+        return a * b;
+    }
+
+    private static double div(double a, double b) {
+        return a / b;
+    }
+
+    private static double idiv(double a, double b) {
+        return (int) a / (int) b;
+    }
+
+    private static double mod(double a, double b) {
+        return a % b;
+    }
+
+    private static double neg(double a) {
+        return -a;
+    }
+
+    private static boolean not(boolean a) {
+        return !a;
+    }
+
+    private static boolean lt(double a, double b) {
+        return a < b;
+    }
+
+    private static boolean lte(double a, double b) {
+        return a <= b;
+    }
+
+    private static boolean gt(double a, double b) {
+        return a > b;
+    }
+
+    private static boolean gte(double a, double b) {
+        return a >= b;
+    }
+
+    private static boolean eq(double a, double b) {
+        return a == b;
+    }
+
+    private static boolean neq(double a, double b) {
+        return a != b;
+    }
+
+    private static double toFloat(boolean a) {
+        return a ? 1.0 : 0.0;
+    }
+
+    private static boolean nonzero(double a) {
+        return a != 0.0;
+    }
+}
@@ -0,0 +1,57 @@
+package scicalc;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * A piece of code compiled by the HandleCompiler: a top-level statement, the
+ * body of a function, or the body of a block. Evaluating it invokes a method
+ * handle of type (Environment)Value, made of combinators of the handles for
+ * the parts of the tree.
+ *
+ * @author kmill
+ *
+ */
+public class HandleExpr implements Expr {
+    private final MethodHandle m_handle;
+    /** the tree the handle was compiled from */
+    private final Expr m_tree;
+
+    public HandleExpr(MethodHandle handle, Expr tree) {
+        m_handle = handle;
+        m_tree = tree;
+    }
+
+    public MethodHandle getHandle() {
+        return m_handle;
+    }
+
+    public Expr getTree() {
+        return m_tree;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        try {
+            return (Value) m_handle.invokeExact(e);
+        } catch (RuntimeException | Error x) {
+            throw x;
+        } catch (Throwable x) {
+            // the handles only call code which throws unchecked exceptions
+            throw new AssertionError(x);
+        }
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return ElementwiseValue.asFloat(evaluate(e));
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return evaluate(e).asBool();
+    }
+
+    public String toString() {
+        return "Handle(" + m_tree + ")";
+    }
+}
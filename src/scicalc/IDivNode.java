@@ -0,0 +1,48 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+public class IDivNode extends BinaryNode {
+
+    public IDivNode(Expr left, Expr right) {
+        super(left, right);
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.IDIV2;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        try {
+            return FloatValue.valueOf(evaluateDouble(e));
+        } catch (NotANumber x) {
+            return x.materialize();
+        }
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        double a;
+        try {
+            a = m_left.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw leftArray(x, e);
+        }
+        try {
+            return (int) a / (int) m_right.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw rightArray(a, x);
+        }
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        try {
+            return evaluateDouble(e) != 0.0;
+        } catch (NotANumber x) {
+            return x.materialize().asBool();
+        }
+    }
+}
@@ -19,15 +19,45 @@ public class IfExpr implements Expr {
 		m_alt = alt;
 	}
 
+	public Expr getCond() {
+		return m_cond;
+	}
+
+	public Expr getCons() {
+		return m_cons;
+	}
+
+	public Expr getAlt() {
+		return m_alt;
+	}
+
 	@Override
 	public Value evaluate(Environment e) {
-		if (m_cond.evaluate(e).asBool()) {
+		if (m_cond.evaluateBool(e)) {
 			return m_cons.evaluate(e);
 		} else {
 			return m_alt.evaluate(e);
 		}
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		if (m_cond.evaluateBool(e)) {
+			return m_cons.evaluateDouble(e);
+		} else {
+			return m_alt.evaluateDouble(e);
+		}
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		if (m_cond.evaluateBool(e)) {
+			return m_cons.evaluateBool(e);
+		} else {
+			return m_alt.evaluateBool(e);
+		}
+	}
+
 	public String toString() {
 		return "if " + m_cond + " then " + m_cons + " else " + m_alt + " end";
 	}
@@ -1,7 +1,51 @@
 package scicalc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs programs against a global environment of its own. The global
+ * environment is published (see Environment): its variables form an image
+ * which is read without locking, and each evaluation runs in a Session, with
+ * an overlay of its own changes. evaluate() and friends each run in a new
+ * session which commits when they finish. For many concurrent requests
+ * against one loaded library, each can have its own session instead, and
+ * commit only what should be kept, if anything.
+ *
+ * Only the variables are copied on write. Values are shared as they are, so
+ * an array in the image is the same array in every session. evaluate() and
+ * friends are for one thread at a time; sessions from newSession() can run
+ * in as many threads as there are sessions, and from the first such session
+ * on, the arrays in the image are made safe to change from any number of
+ * threads (see Environment.shareImage()).
+ *
+ * @author kmill
+ *
+ */
 public class Interpreter {
     private Environment m_env;
+    private AstCache m_cache;
+    private boolean m_optimize = Boolean.parseBoolean(System.getProperty("scicalc.optimize", "true"));
+    private Engine m_engine = Engine.valueOf(System.getProperty("scicalc.engine", "TREE").toUpperCase());
+    private boolean m_jit = Boolean.parseBoolean(System.getProperty("scicalc.jit", "true"));
+
+    /**
+     * The ways a prepared tree can be run.
+     */
+    public enum Engine {
+        /** evaluate the tree directly */
+        TREE,
+        /** compile it with the BytecodeCompiler first */
+        BYTECODE,
+        /** compile it into method handles with the HandleCompiler first */
+        HANDLES
+    }
 
     public Interpreter() {
         m_env = new Environment();
@@ -16,9 +60,290 @@ public class Interpreter {
         m_env.set("extend", PrimFuncValue.EXTEND);
         m_env.set("len", PrimFuncValue.LEN);
         m_env.set("char", PrimFuncValue.CHAR);
+        m_env.set("ndarray", PrimFuncValue.NDARRAY);
+        m_env.set("zeros", PrimFuncValue.ZEROS);
+        m_env.set("shape", PrimFuncValue.SHAPE);
+        m_env.set("reshape", PrimFuncValue.RESHAPE);
+        m_env.set("transpose", PrimFuncValue.TRANSPOSE);
+        m_env.set("slice", PrimFuncValue.SLICE);
+        m_env.set("matmul", PrimFuncValue.MATMUL);
+        m_env.set("vadd", PrimFuncValue.VADD);
+        m_env.set("vsub", PrimFuncValue.VSUB);
+        m_env.set("vmul", PrimFuncValue.VMUL);
+        m_env.set("vdiv", PrimFuncValue.VDIV);
+        m_env.set("vfma", PrimFuncValue.VFMA);
+        m_env.set("vsqrt", PrimFuncValue.VSQRT);
+        m_env.set("vlt", PrimFuncValue.VLT);
+        m_env.set("vgt", PrimFuncValue.VGT);
+        m_env.set("vsum", PrimFuncValue.VSUM);
+        m_env.set("vdot", PrimFuncValue.VDOT);
+        m_env.set("pmap", PrimFuncValue.PMAP);
+        m_env.set("preduce", PrimFuncValue.PREDUCE);
+        m_env.publish();
+    }
+
+    /**
+     * An evaluation context for one thread at a time. The global variables
+     * it defines and assigns go into its own overlay, on top of the image as
+     * it was when the session was made (or last committed), and nothing else
+     * sees them until it commits. Any number of sessions can evaluate at
+     * once, in different threads.
+     */
+    public class Session {
+        private final Environment.Overlay m_overlay = new Environment.Overlay(m_env);
+        private Budget m_budget;
+
+        /**
+         * Runs what the session evaluates from now on within the budget (or
+         * none, if it is null). The steps it takes add up, over as many
+         * evaluations as the budget is used for.
+         */
+        public void setBudget(Budget budget) {
+            m_budget = budget;
+        }
+
+        public Value evaluate(final String input) throws Exception {
+            return within(new Callable<Value>() {
+                @Override
+                public Value call() throws Exception {
+                    return run(input);
+                }
+            });
+        }
+
+        public Value evaluate(final Reader input) throws Exception {
+            return within(new Callable<Value>() {
+                @Override
+                public Value call() throws Exception {
+                    return run(input);
+                }
+            });
+        }
+
+        public Value evaluateFile(final Path path) throws Exception {
+            return within(new Callable<Value>() {
+                @Override
+                public Value call() throws Exception {
+                    return runFile(path);
+                }
+            });
+        }
+
+        /**
+         * Does the work with the session's state current in this thread: its
+         * overlay, its budget, and a profiler stack if the profiler is on.
+         */
+        private Value within(Callable<Value> work) throws Exception {
+            Environment.Overlay saved = Environment.Overlay.enter(m_overlay);
+            Budget savedBudget = Budget.enter(m_budget);
+            Profiler.Stack stack = Profiler.enterTopLevel();
+            try {
+                return work.call();
+            } finally {
+                if (stack != null) {
+                    stack.leave();
+                }
+                Budget.leave(savedBudget);
+                Environment.Overlay.leave(saved);
+            }
+        }
+
+        /**
+         * Publishes the session's changes to the global variables in a new
+         * image, all at once, over whatever other sessions have committed.
+         * Sessions made from then on see them, and the session carries on
+         * from the new image.
+         */
+        public void commit() {
+            m_overlay.commit();
+        }
+    }
+
+    /**
+     * @return a new session, which may run in a thread of its own
+     */
+    public Session newSession() {
+        m_env.shareImage();
+        return new Session();
     }
 
     public Value evaluate(String input) throws Exception {
-        return new SciParser(new SciScanner(input)).parseTopExpr().evaluate(m_env);
+        Session session = new Session();
+        try {
+            return session.evaluate(input);
+        } finally {
+            session.commit();
+        }
+    }
+
+    /**
+     * Like evaluate(String), but stopped with a Budget.ExceededException if
+     * it runs out of the budget, or the budget is cancelled. What ran before
+     * that is kept, as it is for any other error.
+     */
+    public Value evaluate(String input, Budget budget) throws Exception {
+        Session session = new Session();
+        session.setBudget(budget);
+        try {
+            return session.evaluate(input);
+        } finally {
+            session.commit();
+        }
+    }
+
+    public Value evaluate(Reader input) throws Exception {
+        Session session = new Session();
+        try {
+            return session.evaluate(input);
+        } finally {
+            session.commit();
+        }
+    }
+
+    public Value evaluateFile(Path path) throws Exception {
+        Session session = new Session();
+        try {
+            return session.evaluateFile(path);
+        } finally {
+            session.commit();
+        }
+    }
+
+    private Value run(String input) throws Exception {
+        return prepare(new SciParser(new SciScanner(input)).parseTopExpr()).evaluate(m_env);
+    }
+
+    /**
+     * Runs a program one top-level statement at a time: each statement is
+     * parsed, evaluated, and then dropped before the next one is read. Unlike
+     * evaluate(String), neither the whole source nor the whole tree is ever
+     * held in memory, and statements before a syntax error will have run.
+     * 
+     * @return the value of the last statement
+     */
+    private Value run(Reader input) throws Exception {
+        SciParser parser = new SciParser(new SciScanner(input));
+        Value result = NullValue.INSTANCE;
+        Expr statement;
+        while ((statement = parser.parseStatement()) != null) {
+            result = prepare(statement).evaluate(m_env);
+        }
+        return result;
+    }
+
+    /**
+     * Runs a UTF-8 source file statement by statement, reading it through
+     * memory-mapped windows. If there is a cache, the parsed statements are
+     * taken from it when they are there, and put into it when they are not.
+     * An entry which turns out to be damaged (truncated, say) is deleted,
+     * and the file is parsed instead, from the statement the entry failed
+     * at, so that none runs twice.
+     */
+    private Value runFile(Path path) throws Exception {
+        if (m_cache == null) {
+            try (Reader reader = new MappedFileReader(path)) {
+                return run(reader);
+            } catch (SciScanner.UncheckedIOException x) {
+                throw (IOException) x.getCause();
+            }
+        }
+        Path entry = m_cache.entryFor(path);
+        Value result = NullValue.INSTANCE;
+        int done = 0;
+        if (Files.isRegularFile(entry)) {
+            try (ExprCodec.Decoder decoder = new ExprCodec.Decoder(
+                    new BufferedInputStream(Files.newInputStream(entry)))) {
+                Expr statement;
+                while ((statement = decoder.readStatement()) != null) {
+                    result = prepare(statement).evaluate(m_env);
+                    done++;
+                }
+                return result;
+            } catch (IOException x) {
+                Files.deleteIfExists(entry);
+            }
+        }
+        // write to a temporary file and move it into place at the end, so a
+        // failed run never leaves a partial entry behind.
+        Path temp = Files.createTempFile(m_cache.getDirectory(), "partial", ".tmp");
+        try {
+            try (Reader reader = new MappedFileReader(path);
+                    ExprCodec.Encoder encoder = new ExprCodec.Encoder(
+                            new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                SciParser parser = new SciParser(new SciScanner(reader));
+                Expr statement;
+                for (int i = 0; (statement = parser.parseStatement()) != null; i++) {
+                    encoder.writeStatement(statement);
+                    if (i >= done) {
+                        result = prepare(statement).evaluate(m_env);
+                    }
+                }
+                encoder.finish();
+            } catch (SciScanner.UncheckedIOException x) {
+                throw (IOException) x.getCause();
+            }
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException x) {
+                // the program has run, and only the entry is lost
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Turns the Optimizer on or off (it is on unless the scicalc.optimize
+     * system property is false). Turning it off is mostly useful for
+     * debugging, since then what runs is exactly what was parsed.
+     */
+    public void setOptimize(boolean optimize) {
+        m_optimize = optimize;
+    }
+
+    /**
+     * Chooses how programs are run from now on (by default, the one named by
+     * the scicalc.engine system property, or TREE). All the engines give the
+     * same results.
+     */
+    public void setEngine(Engine engine) {
+        m_engine = engine;
+    }
+
+    /**
+     * Turns the Jit on or off for the TREE engine (it is on unless the
+     * scicalc.jit system property is false). Functions already prepared keep
+     * the setting they were prepared with.
+     */
+    public void setJit(boolean jit) {
+        m_jit = jit;
+    }
+
+    /**
+     * Everything that happens to a tree between parsing and evaluation.
+     */
+    private Expr prepare(Expr e) {
+        if (m_optimize) {
+            e = new Optimizer().transform(e);
+        }
+        e = new Resolver().transform(e);
+        e = new Lowering().transform(e);
+        if (m_engine == Engine.BYTECODE) {
+            e = BytecodeCompiler.compile(e);
+        } else if (m_engine == Engine.HANDLES) {
+            e = HandleCompiler.compile(e);
+        } else if (m_jit) {
+            e = Jit.instrument(e);
+        }
+        return e;
+    }
+
+    /**
+     * Makes evaluateFile keep parsed programs in the given directory, or
+     * stop doing so if it is null.
+     */
+    public void setCacheDirectory(Path dir) throws IOException {
+        m_cache = dir == null ? null : new AstCache(dir);
     }
 }
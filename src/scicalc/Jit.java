@@ -0,0 +1,201 @@
+package scicalc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The second tier of the tree interpreter. instrument() makes the functions
+ * in a tree count their calls and loop iterations, and a function which gets
+ * hot is compiled by the JitCompiler into a class of its own, so that the
+ * JVM's compiler can inline the whole body and keep numbers unboxed. Where a
+ * function cannot be compiled, or its compiled code's assumptions about the
+ * arguments do not hold, the tree interpreter carries on as before.
+ *
+ * Loops which get hot where no compiled function runs them, such as at the
+ * top level or in a function which could not be compiled, are traced instead
+ * (see WhileExpr and CompiledLoop): the path one iteration takes is compiled,
+ * and the tree interpreter takes over whenever an iteration strays from it.
+ *
+ * The classes are defined as hidden classes when the JVM has them (Java 15
+ * and later), which are unloaded along with the last function using them, and
+ * by a class loader of their own otherwise.
+ *
+ * The scicalc.jit.threshold system property sets how many calls and
+ * iterations make a function or loop hot, and scicalc.jit.trace prints what
+ * is compiled.
+ *
+ * @author kmill
+ *
+ */
+public class Jit {
+    public static final int THRESHOLD = Integer.getInteger("scicalc.jit.threshold", 1000);
+    /**
+     * How many calls a compiled function hands back to the tree interpreter
+     * before it is compiled again without assumptions about its arguments.
+     */
+    public static final int MAX_DEOPTIMIZATIONS = 100;
+    private static final boolean TRACE = Boolean.getBoolean("scicalc.jit.trace");
+
+    private static final AtomicInteger s_classes = new AtomicInteger();
+    private static final Method s_define_hidden_class;
+    private static final Object s_no_options;
+
+    static {
+        Method define = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+                    options.getClass());
+        } catch (ReflectiveOperationException x) {
+            // before Java 15
+        }
+        s_define_hidden_class = define;
+        s_no_options = options;
+    }
+
+    private Jit() {
+    }
+
+    /**
+     * Starts profiling every resolved function in the tree, and gives each
+     * loop the function it is in, so that its iterations count too. Every
+     * loop also starts counting towards a trace.
+     */
+    public static Expr instrument(Expr e) {
+        return new ExprTransformer() {
+            private ArrayList<WhileExpr> m_loops;
+
+            @Override
+            protected Expr transformFun(FunExpr e) {
+                ArrayList<WhileExpr> saved = m_loops;
+                m_loops = new ArrayList<>();
+                try {
+                    FunExpr fun = (FunExpr) super.transformFun(e);
+                    if (fun.isResolved()) {
+                        for (WhileExpr loop : m_loops) {
+                            loop.setOwner(fun);
+                        }
+                        fun.startProfiling();
+                    }
+                    return fun;
+                } finally {
+                    m_loops = saved;
+                }
+            }
+
+            @Override
+            protected Expr transformWhile(WhileExpr e) {
+                WhileExpr loop = (WhileExpr) super.transformWhile(e);
+                loop.startTracing();
+                if (m_loops != null) {
+                    m_loops.add(loop);
+                }
+                return loop;
+            }
+        }.transform(e);
+    }
+
+    /**
+     * @param speculate
+     *            whether the code may assume that parameters used as numbers
+     *            are given numbers
+     * @return the compiled function, or null if it cannot be compiled
+     */
+    static CompiledFunction compile(FunExpr fun, boolean speculate) {
+        String name = "scicalc/JitCode" + s_classes.incrementAndGet();
+        try {
+            JitCompiler compiler = new JitCompiler(fun, speculate);
+            byte[] bytes = compiler.compile(name);
+            Class<?> c = define(name, bytes);
+            CompiledFunction compiled = (CompiledFunction) c.getConstructor(Object[].class, FunExpr.class)
+                    .newInstance(compiler.getConstants(), fun);
+            if (TRACE) {
+                System.err.println("jit: compiled " + describe(fun) + (speculate ? "" : " without speculation"));
+            }
+            return compiled;
+        } catch (JitCompiler.UnsupportedException x) {
+            if (TRACE) {
+                System.err.println("jit: not compiling " + describe(fun) + ": " + x.getMessage());
+            }
+        } catch (ReflectiveOperationException | LinkageError | IllegalStateException x) {
+            if (TRACE) {
+                System.err.println("jit: failed to compile " + describe(fun) + ": " + x);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param path
+     *            which way each 'if' statement in the body went in the
+     *            recorded iteration
+     * @param env
+     *            the environment the loop is running in
+     * @return the compiled trace, or null if it cannot be compiled
+     */
+    static CompiledLoop compileLoop(WhileExpr loop, IdentityHashMap<IfExpr, Boolean> path, Environment env) {
+        String name = "scicalc/JitCode" + s_classes.incrementAndGet();
+        try {
+            JitCompiler compiler = new JitCompiler(loop, path, env);
+            byte[] bytes = compiler.compileLoop(name);
+            Class<?> c = define(name, bytes);
+            CompiledLoop compiled = (CompiledLoop) c
+                    .getConstructor(Object[].class, WhileExpr.class, IfExpr[].class, Expr[][].class)
+                    .newInstance(compiler.getConstants(), loop, compiler.getGuards(), compiler.getContinuations());
+            if (TRACE) {
+                System.err.println("jit: traced " + describe(loop) + " through " + path.size() + " branches");
+            }
+            return compiled;
+        } catch (JitCompiler.UnsupportedException x) {
+            if (TRACE) {
+                System.err.println("jit: not tracing " + describe(loop) + ": " + x.getMessage());
+            }
+        } catch (ReflectiveOperationException | LinkageError | IllegalStateException x) {
+            if (TRACE) {
+                System.err.println("jit: failed to trace " + describe(loop) + ": " + x);
+            }
+        }
+        return null;
+    }
+
+    private static String describe(Expr e) {
+        String s = e.toString();
+        return s.length() > 60 ? s.substring(0, 60) + "..." : s;
+    }
+
+    static Class<?> define(String name, byte[] bytes) throws ReflectiveOperationException {
+        if (s_define_hidden_class != null) {
+            try {
+                MethodHandles.Lookup lookup = (MethodHandles.Lookup) s_define_hidden_class
+                        .invoke(MethodHandles.lookup(), bytes, true, s_no_options);
+                return lookup.lookupClass();
+            } catch (InvocationTargetException x) {
+                if (x.getCause() instanceof LinkageError) {
+                    throw (LinkageError) x.getCause();
+                }
+                throw x;
+            }
+        }
+        return new Loader().define(name.replace('/', '.'), bytes);
+    }
+
+    /**
+     * Defines one class, for JVMs without hidden classes.
+     */
+    private static class Loader extends ClassLoader {
+        public Loader() {
+            super(Jit.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,1781 @@
+package scicalc;
+
+import static scicalc.ClassAssembler.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import scicalc.ClassAssembler.Code;
+import scicalc.ClassAssembler.Label;
+
+/**
+ * Compiles the body of a resolved FunExpr into a class for the Jit.
+ *
+ * The frames of the function and of the blocks in it do not exist in the
+ * compiled code: each of their variables becomes a JVM local variable, and a
+ * variable which is only ever given numbers is kept as an unboxed double.
+ * Intermediate results are likewise doubles, booleans or Values, depending
+ * on what produced them, and are converted only where something needs
+ * another kind. Variables of enclosing functions are read and written in
+ * their frames, as the tree interpreter does.
+ *
+ * When speculating, a parameter which the body uses as a number is passed as
+ * a double. invoke() guards this, giving the call to the tree interpreter if
+ * an argument is not a FloatValue, and a call of the function from itself
+ * passes the double directly. Such a call also gets a double back when the
+ * body always gives a number. If it is in tail position, it is not a call at
+ * all but a jump back to the start of body() with the new arguments, so a
+ * tail-recursive function runs in constant stack. Other calls in tail
+ * position give back a TailCall, as in the tree, unless body() returns a
+ * double, in which case they are made as ordinary calls.
+ *
+ * Only functions whose variables stay inside them can be compiled this way.
+ * The compiler gives up (with an UnsupportedException) on a nested function,
+ * a label used other than by calling it, a variable which might be read
+ * before it has been defined, arithmetic which the tree interpreter has seen
+ * go elementwise on arrays (see ElementwiseValue), and anything it does not
+ * know. Arithmetic compiled before it saw an array is an error on one.
+ *
+ * The compiler also compiles traces of loops into CompiledLoops. There the
+ * variables belong to the environment the loop runs in (or its ancestors),
+ * and are loaded into JVM locals when the trace is entered and written back
+ * when it is left. Only a loop which calls nothing is traced, since a call
+ * could see or change the variables in the meantime (and the calls would be
+ * where its time goes anyway). A variable which cannot be promoted is read
+ * and written in its environment, as in the tree.
+ *
+ * @author kmill
+ *
+ */
+public class JitCompiler {
+    private static final int DOUBLE = 0, BOOL = 1, VALUE = 2;
+    /**
+     * The result of a call of the function from itself: a Value from the
+     * general path, or null and a double from the direct one.
+     */
+    private static final int DOUBLE_OR_VALUE = 3;
+
+    private static final String OBJECT = "java/lang/Object", VALUE_CLASS = "scicalc/Value",
+            FLOAT_CLASS = "scicalc/FloatValue", BOOL_CLASS = "scicalc/BoolValue", NULL_CLASS = "scicalc/NullValue",
+            ENVIRONMENT = "scicalc/Environment", FUN_VALUE = "scicalc/FunValue", FUN_EXPR = "scicalc/FunExpr",
+            COMPILED_CODE = "scicalc/CompiledCode", COMPILED_FUNCTION = "scicalc/CompiledFunction",
+            COMPILED_LOOP = "scicalc/CompiledLoop", BINDING = "scicalc/Environment$Binding",
+            WHILE_EXPR = "scicalc/WhileExpr", EXPR = "scicalc/Expr", EXPR_ARRAYS = "[[Lscicalc/Expr;";
+    private static final String VALUE_DESC = "L" + VALUE_CLASS + ";", ENVIRONMENT_DESC = "L" + ENVIRONMENT + ";";
+
+    /**
+     * Beyond this, the JVM would not compile the method anyway.
+     */
+    private static final int MAX_CODE_SIZE = 8000;
+
+    /**
+     * A variable of the function's frame or of one of its blocks' frames.
+     */
+    private static class Var {
+        private final int m_id;
+        private int m_kind = DOUBLE;
+        private int m_local;
+        private boolean m_param;
+        /** whether the body uses the variable as a number */
+        private boolean m_numeric;
+        private boolean m_label;
+        private ArrayList<Expr> m_assignments = new ArrayList<>();
+        /** for a label, where a call of it jumps to */
+        private Label m_exit;
+        /** for a label, where the block's value goes */
+        private int m_result;
+        /**
+         * for a variable of a loop's environment, where it is: a slot of the
+         * frame at a depth, or a global with a name
+         */
+        private int m_depth, m_slot;
+        private String m_name;
+        /** for a global, whether the loop defines it with := */
+        private boolean m_defines;
+        /** for a global, the local with its Binding */
+        private int m_binding;
+
+        public Var(int id) {
+            m_id = id;
+        }
+    }
+
+    /**
+     * An intermediate result in a local variable (or two, for
+     * DOUBLE_OR_VALUE).
+     */
+    private static class Operand {
+        private final int m_kind;
+        private final int m_local;
+        private final int m_value_local;
+
+        public Operand(int kind, int local) {
+            this(kind, local, -1);
+        }
+
+        public Operand(int kind, int local, int valueLocal) {
+            m_kind = kind;
+            m_local = local;
+            m_value_local = valueLocal;
+        }
+    }
+
+    public static class UnsupportedException extends Exception {
+        public UnsupportedException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final FunExpr m_fun;
+    private final boolean m_speculate;
+
+    /** for a trace, the loop, the way each 'if' statement went, and where */
+    private final WhileExpr m_loop;
+    private final IdentityHashMap<IfExpr, Boolean> m_path;
+    private final Environment m_env;
+    /**
+     * the references to the loop's variables, loads as well as assignments,
+     * in the order they were scanned
+     */
+    private final ArrayList<Expr> m_loop_refs = new ArrayList<>();
+    /** the loop's variables which are kept in JVM locals */
+    private final ArrayList<Var> m_promoted = new ArrayList<>();
+    /** whether the loop calls anything but labels */
+    private boolean m_calls;
+    /**
+     * the guards, and for each, the 'if' statement it is of and the rest of
+     * the iteration after it fails
+     */
+    private final ArrayList<Label> m_exits = new ArrayList<>();
+    private final ArrayList<IfExpr> m_guards = new ArrayList<>();
+    private final ArrayList<Expr[]> m_continuations = new ArrayList<>();
+
+    private final ArrayList<Var> m_vars = new ArrayList<>();
+    /** the parameters' variables, one per slot, in order */
+    private final ArrayList<Var> m_params = new ArrayList<>();
+    /** whether every parameter has a slot of its own */
+    private boolean m_distinct_params = true;
+    /** the frames in scope while scanning, innermost last */
+    private final ArrayList<Var[]> m_frames = new ArrayList<>();
+    private final IdentityHashMap<BlockExpr, Var[]> m_blocks = new IdentityHashMap<>();
+    /** for a trace, the variables of the blocks which share the loop's frame, by slot */
+    private final HashMap<Integer, Var> m_loop_slots = new HashMap<>();
+    /** which variable each local reference, store and update is of */
+    private final IdentityHashMap<Expr, Var> m_refs = new IdentityHashMap<>();
+    /**
+     * references to enclosing functions' variables, as they are seen from the
+     * function's closure environment
+     */
+    private final IdentityHashMap<Expr, Expr> m_outer = new IdentityHashMap<>();
+    /** the applications which are calls of labels */
+    private final IdentityHashMap<AppExpr, Var> m_label_calls = new IdentityHashMap<>();
+    /** for each exit key of a block in the code, the label-like Var its ExitExprs go to */
+    private final IdentityHashMap<Object, Var> m_block_exits = new IdentityHashMap<>();
+
+    private final ArrayList<Object> m_constants = new ArrayList<>();
+    private final IdentityHashMap<Object, Integer> m_constant_indices = new IdentityHashMap<>();
+
+    private String m_class_name;
+    private String m_body_desc;
+    /** DOUBLE if body() returns a double, otherwise VALUE */
+    private int m_return_kind;
+    private Code m_code;
+    /** the start of body(), before its variables are initialized */
+    private Label m_start;
+    private int m_next_local;
+    /** the number of global variable references so far */
+    private int m_globals;
+
+    public JitCompiler(FunExpr fun, boolean speculate) {
+        m_fun = fun;
+        m_speculate = speculate;
+        m_loop = null;
+        m_path = null;
+        m_env = null;
+    }
+
+    /**
+     * @param path
+     *            which way each 'if' statement went in the recorded
+     *            iteration
+     * @param env
+     *            the environment the loop is running in
+     */
+    public JitCompiler(WhileExpr loop, IdentityHashMap<IfExpr, Boolean> path, Environment env) {
+        m_fun = null;
+        m_speculate = false;
+        m_loop = loop;
+        m_path = path;
+        m_env = env;
+    }
+
+    /**
+     * @return the class file of a CompiledFunction with the given internal
+     *         name, whose constructor takes getConstants() and the FunExpr
+     */
+    public byte[] compile(String className) throws UnsupportedException {
+        if (!m_fun.isResolved()) {
+            throw new UnsupportedException("not resolved");
+        }
+        m_class_name = className;
+        Var[] frame = new Var[m_fun.getFrameSize()];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = newVar();
+        }
+        for (int slot : m_fun.getParamSlots()) {
+            Var param = frame[slot];
+            if (param.m_param) {
+                m_distinct_params = false;
+            } else {
+                param.m_param = true;
+                m_params.add(param);
+            }
+        }
+        m_frames.add(frame);
+        scan(m_fun.getBody());
+        m_frames.remove(0);
+        inferKinds();
+        BitSet assigned = new BitSet();
+        for (Var param : m_params) {
+            assigned.set(param.m_id);
+        }
+        assigned(m_fun.getBody(), assigned);
+
+        m_return_kind = kindOf(m_fun.getBody()) == DOUBLE ? DOUBLE : VALUE;
+        StringBuilder desc = new StringBuilder("(" + ENVIRONMENT_DESC);
+        for (Var param : m_params) {
+            desc.append(param.m_kind == DOUBLE ? "D" : VALUE_DESC);
+        }
+        m_body_desc = desc.append(")" + (m_return_kind == DOUBLE ? "D" : VALUE_DESC)).toString();
+
+        ClassAssembler assembler = new ClassAssembler(className, COMPILED_FUNCTION);
+        compileInvoke(assembler);
+        compileBody(assembler);
+        compileConstructor(assembler);
+        return assembler.toByteArray();
+    }
+
+    /**
+     * @return the class file of a CompiledLoop with the given internal name,
+     *         whose constructor takes getConstants(), the WhileExpr,
+     *         getGuards() and getContinuations()
+     */
+    public byte[] compileLoop(String className) throws UnsupportedException {
+        m_class_name = className;
+        scan(m_loop.getCond());
+        scan(m_loop.getBody());
+        if (m_calls) {
+            throw new UnsupportedException("calls");
+        }
+        promote();
+        inferKinds();
+        BitSet assigned = new BitSet();
+        for (Var var : m_promoted) {
+            assigned.set(var.m_id);
+        }
+        assigned(m_loop, assigned);
+
+        ClassAssembler assembler = new ClassAssembler(className, COMPILED_LOOP);
+        compileEnter(assembler);
+        compileLoopConstructor(assembler);
+        return assembler.toByteArray();
+    }
+
+    public Object[] getConstants() {
+        return m_constants.toArray();
+    }
+
+    public IfExpr[] getGuards() {
+        return m_guards.toArray(new IfExpr[m_guards.size()]);
+    }
+
+    public Expr[][] getContinuations() {
+        return m_continuations.toArray(new Expr[m_continuations.size()][]);
+    }
+
+    private Var newVar() {
+        Var var = new Var(m_vars.size());
+        m_vars.add(var);
+        return var;
+    }
+
+    /*
+     * Scanning: works out which variable every reference is to, and checks
+     * that everything can be compiled.
+     */
+
+    private void scan(Expr e) throws UnsupportedException {
+        if (e instanceof Value) {
+            return;
+        } else if (e instanceof VariableExpr) {
+            loopRef(e);
+        } else if (e instanceof LocalExpr) {
+            LocalExpr local = (LocalExpr) e;
+            Var var = resolve(local.getDepths(), local.getSlots());
+            if (var == null) {
+                m_outer.put(e, new LocalExpr(local.getIdentifier(), outerDepths(local.getDepths()), local.getSlots()));
+                loopRef(e);
+            } else if (var.m_label) {
+                throw new UnsupportedException("label " + local.getIdentifier() + " used as a value");
+            } else {
+                m_refs.put(e, var);
+            }
+        } else if (e instanceof LocalStoreExpr) {
+            LocalStoreExpr store = (LocalStoreExpr) e;
+            scan(store.getExpr());
+            if (m_frames.isEmpty() && m_loop_slots.containsKey(store.getSlot())) {
+                assign(e, m_loop_slots.get(store.getSlot()), store.getExpr(), store.getIdentifier());
+            } else if (m_frames.isEmpty()) {
+                loopRef(e);
+            } else {
+                assign(e, m_frames.get(m_frames.size() - 1)[store.getSlot()], store.getExpr(),
+                        store.getIdentifier());
+            }
+        } else if (e instanceof LocalUpdateExpr) {
+            LocalUpdateExpr update = (LocalUpdateExpr) e;
+            scan(update.getExpr());
+            Var var = resolve(update.getDepths(), update.getSlots());
+            if (var == null) {
+                m_outer.put(e, new LocalUpdateExpr(update.getIdentifier(), outerDepths(update.getDepths()),
+                        update.getSlots(), update.getExpr()));
+                loopRef(e);
+            } else {
+                assign(e, var, update.getExpr(), update.getIdentifier());
+            }
+        } else if (e instanceof UpdateExpr) {
+            scan(((UpdateExpr) e).getExpr());
+            loopRef(e);
+        } else if (e instanceof StoreExpr && m_loop != null) {
+            scan(((StoreExpr) e).getExpr());
+            loopRef(e);
+        } else if (e instanceof AppExpr) {
+            AppExpr app = (AppExpr) e;
+            Var label = null;
+            if (app.getFunc() instanceof LocalExpr) {
+                LocalExpr func = (LocalExpr) app.getFunc();
+                label = resolve(func.getDepths(), func.getSlots());
+            }
+            if (label != null && label.m_label) {
+                if (app.getArgs().length > 1) {
+                    throw new UnsupportedException("label called with more than one argument");
+                }
+                m_label_calls.put(app, label);
+            } else {
+                scan(app.getFunc());
+                m_calls = true;
+            }
+            scanAll(app.getArgs());
+        } else if (e instanceof BinaryNode) {
+            BinaryNode node = (BinaryNode) e;
+            if (!node.isSpecialized() && ElementwiseValue.isElementwise(node.getPrim())) {
+                throw new UnsupportedException("elementwise arithmetic");
+            }
+            scan(node.getLeft());
+            scan(node.getRight());
+            if (node.getPrim() != PrimFuncValue.EQ2 && node.getPrim() != PrimFuncValue.GET) {
+                numeric(node.getLeft());
+                numeric(node.getRight());
+            }
+        } else if (e instanceof UnaryNode) {
+            UnaryNode node = (UnaryNode) e;
+            if (!node.isSpecialized()) {
+                throw new UnsupportedException("elementwise arithmetic");
+            }
+            scan(node.getOperand());
+            if (node.getPrim() != PrimFuncValue.NOT1) {
+                numeric(node.getOperand());
+            }
+        } else if (e instanceof ChainExpr) {
+            if (!((ChainExpr) e).isSpecialized()) {
+                throw new UnsupportedException("elementwise arithmetic");
+            }
+            scanAll(((ChainExpr) e).getOperands());
+            for (Expr operand : ((ChainExpr) e).getOperands()) {
+                numeric(operand);
+            }
+        } else if (e instanceof SetNode) {
+            SetNode node = (SetNode) e;
+            scan(node.getArray());
+            scan(node.getIndex());
+            scan(node.getValue());
+        } else if (e instanceof SeqExpr) {
+            scanAll(((SeqExpr) e).getExprs());
+        } else if (e instanceof IfExpr) {
+            IfExpr ife = (IfExpr) e;
+            scan(ife.getCond());
+            scan(ife.getCons());
+            scan(ife.getAlt());
+        } else if (e instanceof WhileExpr) {
+            scan(((WhileExpr) e).getCond());
+            scan(((WhileExpr) e).getBody());
+        } else if (e instanceof AndExpr) {
+            scan(((AndExpr) e).getLeft());
+            scan(((AndExpr) e).getRight());
+        } else if (e instanceof OrExpr) {
+            scan(((OrExpr) e).getLeft());
+            scan(((OrExpr) e).getRight());
+        } else if (e instanceof ArrayExpr) {
+            scanAll(((ArrayExpr) e).getItems());
+        } else if (e instanceof BlockExpr) {
+            BlockExpr block = (BlockExpr) e;
+            if (!block.isResolved()) {
+                throw new UnsupportedException("unresolved block");
+            }
+            Var[] frame;
+            int first = block.getFirstSlot();
+            if (block.isShared() && !m_frames.isEmpty()) {
+                // the block's variables are some of the enclosing frame's
+                frame = Arrays.copyOfRange(m_frames.get(m_frames.size() - 1), first, first + block.getFrameSize());
+            } else if (block.isShared()) {
+                // in a trace, the block's slots of the loop's frame are
+                // emptied on each entry, so they can be locals like those
+                // of a block with a frame
+                frame = new Var[block.getFrameSize()];
+                for (int i = 0; i < frame.length; i++) {
+                    frame[i] = newVar();
+                    m_loop_slots.put(first + i, frame[i]);
+                }
+            } else {
+                frame = new Var[block.getFrameSize()];
+                for (int i = 0; i < frame.length; i++) {
+                    frame[i] = newVar();
+                }
+            }
+            if (block.getLabelSlot() >= 0) {
+                frame[block.getLabelSlot() - first].m_label = true;
+            }
+            if (block.getExitKey() != null) {
+                Var exit = newVar();
+                exit.m_label = true;
+                m_block_exits.put(block.getExitKey(), exit);
+            }
+            m_blocks.put(block, frame);
+            if (!block.isShared()) {
+                m_frames.add(frame);
+            }
+            scan(block.getBody());
+            if (!block.isShared()) {
+                m_frames.remove(m_frames.size() - 1);
+            }
+        } else if (e instanceof ExitExpr) {
+            ExitExpr exit = (ExitExpr) e;
+            if (exit.isByFrame() && exit.getDepth() >= m_frames.size()) {
+                // leaving a block of an enclosing function, which is like
+                // calling its label
+                m_outer.put(e, new ExitExpr(exit.getLabel(), exit.getKey(), exit.getDepth() - m_frames.size(),
+                        exit.getSlot(), exit.getExpr()));
+                m_calls = true;
+            } else if (!m_block_exits.containsKey(exit.getKey())) {
+                throw new UnsupportedException("exit from a block outside the loop");
+            }
+            scan(exit.getExpr());
+        } else if (e instanceof FunExpr) {
+            throw new UnsupportedException("nested function");
+        } else {
+            throw new UnsupportedException("cannot compile " + e.getClass().getSimpleName());
+        }
+    }
+
+    private void scanAll(Expr[] exprs) throws UnsupportedException {
+        for (Expr e : exprs) {
+            scan(e);
+        }
+    }
+
+    /**
+     * Notes a reference to a variable of a loop's environment.
+     */
+    private void loopRef(Expr e) {
+        if (m_loop != null) {
+            m_loop_refs.add(e);
+        }
+    }
+
+    /*
+     * Promotion: a variable of a loop's environment is kept in a JVM local if
+     * it has a value when the trace is compiled (which is likely to mean it
+     * always will have at the top of an iteration), and if it is not also a
+     * later candidate of some reference, whose value the tree might use
+     * instead.
+     */
+
+    private void promote() {
+        HashSet<String> excluded = new HashSet<>();
+        HashSet<String> defined = new HashSet<>();
+        for (Expr ref : m_loop_refs) {
+            Expr outer = m_outer.containsKey(ref) ? m_outer.get(ref) : ref;
+            int[] depths = null, slots = null;
+            if (outer instanceof LocalExpr) {
+                depths = ((LocalExpr) outer).getDepths();
+                slots = ((LocalExpr) outer).getSlots();
+            } else if (outer instanceof LocalUpdateExpr) {
+                depths = ((LocalUpdateExpr) outer).getDepths();
+                slots = ((LocalUpdateExpr) outer).getSlots();
+            } else if (ref instanceof StoreExpr) {
+                defined.add(((StoreExpr) ref).getIdentifier());
+            }
+            if (depths != null && depths.length > 1) {
+                for (int i = 0; i < depths.length; i++) {
+                    excluded.add(depths[i] + ":" + slots[i]);
+                }
+            }
+        }
+        HashMap<String, Var> vars = new HashMap<>();
+        for (Expr ref : m_loop_refs) {
+            Expr outer = m_outer.containsKey(ref) ? m_outer.get(ref) : ref;
+            int depth = 0, slot = -1;
+            String name = null;
+            Expr value = null;
+            if (outer instanceof LocalExpr) {
+                depth = ((LocalExpr) outer).getDepths()[0];
+                slot = ((LocalExpr) outer).getSlots()[0];
+            } else if (outer instanceof LocalUpdateExpr) {
+                depth = ((LocalUpdateExpr) outer).getDepths()[0];
+                slot = ((LocalUpdateExpr) outer).getSlots()[0];
+                value = ((LocalUpdateExpr) outer).getExpr();
+            } else if (ref instanceof LocalStoreExpr) {
+                slot = ((LocalStoreExpr) ref).getSlot();
+                value = ((LocalStoreExpr) ref).getExpr();
+            } else if (ref instanceof VariableExpr) {
+                name = ((VariableExpr) ref).getIdentifier();
+            } else if (ref instanceof UpdateExpr) {
+                name = ((UpdateExpr) ref).getIdentifier();
+                value = ((UpdateExpr) ref).getExpr();
+            } else {
+                name = ((StoreExpr) ref).getIdentifier();
+                value = ((StoreExpr) ref).getExpr();
+            }
+            String key = name == null ? depth + ":" + slot : "$" + name;
+            if (excluded.contains(key)) {
+                continue;
+            }
+            Var var = vars.get(key);
+            if (var == null) {
+                Value observed;
+                if (name == null) {
+                    observed = m_env.getAncestor(depth).getSlot(slot);
+                } else {
+                    Environment.Binding binding = defined.contains(name) ? m_env.getBinding(name)
+                            : CompiledLoop.find(m_env, name);
+                    observed = binding == null ? null : binding.getValue();
+                }
+                if (observed == null) {
+                    excluded.add(key);
+                    continue;
+                }
+                var = newVar();
+                var.m_kind = observed instanceof FloatValue ? DOUBLE : VALUE;
+                var.m_depth = depth;
+                var.m_slot = slot;
+                var.m_name = name;
+                var.m_defines = name != null && defined.contains(name);
+                vars.put(key, var);
+                m_promoted.add(var);
+            }
+            if (value != null) {
+                var.m_assignments.add(value);
+            }
+            m_refs.put(ref, var);
+        }
+    }
+
+    private void assign(Expr e, Var var, Expr value, String name) throws UnsupportedException {
+        if (var.m_label) {
+            throw new UnsupportedException("label " + name + " assigned");
+        }
+        var.m_assignments.add(value);
+        m_refs.put(e, var);
+    }
+
+    /**
+     * @return the variable of the first candidate, or null if that is in an
+     *         enclosing function (and then so are the rest)
+     */
+    private Var resolve(int[] depths, int[] slots) {
+        if (depths[0] == m_frames.size() && m_loop_slots.containsKey(slots[0])) {
+            return m_loop_slots.get(slots[0]);
+        } else if (depths[0] >= m_frames.size()) {
+            return null;
+        }
+        return m_frames.get(m_frames.size() - 1 - depths[0])[slots[0]];
+    }
+
+    private int[] outerDepths(int[] depths) {
+        int[] outer = new int[depths.length];
+        for (int i = 0; i < depths.length; i++) {
+            outer[i] = depths[i] - m_frames.size();
+        }
+        return outer;
+    }
+
+    /**
+     * Notes that operand is used as a number, which an array (as in x + [1])
+     * is not: that is left to the tree, to be done elementwise.
+     */
+    private void numeric(Expr operand) throws UnsupportedException {
+        if (operand instanceof ArrayExpr) {
+            throw new UnsupportedException("elementwise arithmetic");
+        }
+        Var var = m_refs.get(operand);
+        if (var != null) {
+            var.m_numeric = true;
+        }
+    }
+
+    /*
+     * Kinds: a variable is a double if it is only ever given numbers.
+     * Parameters are doubles only when speculating, since whatever the
+     * caller passes is assigned to them.
+     */
+
+    private void inferKinds() {
+        for (Var var : m_vars) {
+            if (var.m_label || var.m_param && !(m_speculate && var.m_numeric)) {
+                var.m_kind = VALUE;
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Var var : m_vars) {
+                if (var.m_kind == DOUBLE) {
+                    for (Expr value : var.m_assignments) {
+                        if (kindOf(value) != DOUBLE) {
+                            var.m_kind = VALUE;
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int kindOf(Expr e) {
+        if (e instanceof FloatValue) {
+            return DOUBLE;
+        } else if (e instanceof BoolValue) {
+            return BOOL;
+        } else if (e instanceof LocalExpr || e instanceof VariableExpr) {
+            Var var = m_refs.get(e);
+            return var == null ? VALUE : var.m_kind;
+        } else if (e instanceof BinaryNode) {
+            switch (((BinaryNode) e).getPrim()) {
+            case GET:
+                return VALUE;
+            case LT2:
+            case LTE2:
+            case GT2:
+            case GTE2:
+            case EQ2:
+            case NEQ2:
+                return BOOL;
+            default:
+                return DOUBLE;
+            }
+        } else if (e instanceof UnaryNode) {
+            return ((UnaryNode) e).getPrim() == PrimFuncValue.NOT1 ? BOOL : DOUBLE;
+        } else if (e instanceof ChainExpr) {
+            return DOUBLE;
+        } else if (e instanceof AndExpr || e instanceof OrExpr) {
+            return BOOL;
+        } else if (e instanceof IfExpr) {
+            int cons = kindOf(((IfExpr) e).getCons());
+            return cons == kindOf(((IfExpr) e).getAlt()) ? cons : VALUE;
+        } else if (e instanceof SeqExpr) {
+            Expr[] exprs = ((SeqExpr) e).getExprs();
+            return kindOf(exprs[exprs.length - 1]);
+        } else {
+            return VALUE;
+        }
+    }
+
+    /*
+     * Definite assignment: a variable of the function can only be read where
+     * it has certainly been defined, since the compiled code has no empty
+     * slot to fall through to the next candidate with.
+     */
+
+    /**
+     * @return the variables certainly defined after e, given those certainly
+     *         defined before it
+     */
+    private BitSet assigned(Expr e, BitSet in) throws UnsupportedException {
+        if (e instanceof LocalExpr) {
+            check(m_refs.get(e), in, ((LocalExpr) e).getIdentifier());
+            return in;
+        } else if (e instanceof LocalStoreExpr) {
+            BitSet out = (BitSet) assigned(((LocalStoreExpr) e).getExpr(), in).clone();
+            Var var = m_refs.get(e);
+            if (var != null) {
+                out.set(var.m_id);
+            }
+            return out;
+        } else if (e instanceof LocalUpdateExpr) {
+            BitSet out = assigned(((LocalUpdateExpr) e).getExpr(), in);
+            check(m_refs.get(e), out, ((LocalUpdateExpr) e).getIdentifier());
+            return out;
+        } else if (e instanceof UpdateExpr) {
+            return assigned(((UpdateExpr) e).getExpr(), in);
+        } else if (e instanceof StoreExpr) {
+            return assigned(((StoreExpr) e).getExpr(), in);
+        } else if (e instanceof AppExpr) {
+            AppExpr app = (AppExpr) e;
+            BitSet out = m_label_calls.containsKey(app) ? in : assigned(app.getFunc(), in);
+            return assignedAll(app.getArgs(), out);
+        } else if (e instanceof BinaryNode) {
+            return assigned(((BinaryNode) e).getRight(), assigned(((BinaryNode) e).getLeft(), in));
+        } else if (e instanceof UnaryNode) {
+            return assigned(((UnaryNode) e).getOperand(), in);
+        } else if (e instanceof ChainExpr) {
+            return assignedAll(((ChainExpr) e).getOperands(), in);
+        } else if (e instanceof SetNode) {
+            SetNode node = (SetNode) e;
+            return assigned(node.getValue(), assigned(node.getIndex(), assigned(node.getArray(), in)));
+        } else if (e instanceof SeqExpr) {
+            return assignedAll(((SeqExpr) e).getExprs(), in);
+        } else if (e instanceof ArrayExpr) {
+            return assignedAll(((ArrayExpr) e).getItems(), in);
+        } else if (e instanceof IfExpr) {
+            IfExpr ife = (IfExpr) e;
+            BitSet cond = assigned(ife.getCond(), in);
+            BitSet out = (BitSet) assigned(ife.getCons(), cond).clone();
+            out.and(assigned(ife.getAlt(), cond));
+            return out;
+        } else if (e instanceof WhileExpr) {
+            BitSet cond = assigned(((WhileExpr) e).getCond(), in);
+            assigned(((WhileExpr) e).getBody(), cond);
+            return cond;
+        } else if (e instanceof AndExpr) {
+            BitSet left = assigned(((AndExpr) e).getLeft(), in);
+            assigned(((AndExpr) e).getRight(), left);
+            return left;
+        } else if (e instanceof OrExpr) {
+            BitSet left = assigned(((OrExpr) e).getLeft(), in);
+            assigned(((OrExpr) e).getRight(), left);
+            return left;
+        } else if (e instanceof BlockExpr) {
+            BlockExpr block = (BlockExpr) e;
+            BitSet inner = (BitSet) in.clone();
+            for (Var var : m_blocks.get(block)) {
+                inner.set(var.m_id, var.m_label);
+            }
+            assigned(block.getBody(), inner);
+            return in;
+        } else if (e instanceof ExitExpr) {
+            return assigned(((ExitExpr) e).getExpr(), in);
+        } else {
+            return in;
+        }
+    }
+
+    private BitSet assignedAll(Expr[] exprs, BitSet in) throws UnsupportedException {
+        for (Expr e : exprs) {
+            in = assigned(e, in);
+        }
+        return in;
+    }
+
+    private static void check(Var var, BitSet assigned, String name) throws UnsupportedException {
+        if (var != null && !assigned.get(var.m_id)) {
+            throw new UnsupportedException(name + " might not be defined");
+        }
+    }
+
+    /*
+     * Code generation.
+     */
+
+    private void compileConstructor(ClassAssembler assembler) {
+        Code code = assembler.method(ClassAssembler.ACC_PUBLIC, "<init>", "([L" + OBJECT + ";L" + FUN_EXPR + ";)V");
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 1);
+        code.local(ALOAD, 2);
+        code.iconst(m_globals);
+        code.invoke(INVOKESPECIAL, COMPILED_FUNCTION, "<init>", "([L" + OBJECT + ";L" + FUN_EXPR + ";I)V");
+        code.op(RETURN);
+        code.setMaxStack(4);
+        code.setMaxLocals(3);
+        code.finish();
+    }
+
+    /**
+     * invoke(frame) takes the arguments out of the frame, checks those passed
+     * as doubles, and calls body().
+     */
+    private void compileInvoke(ClassAssembler assembler) {
+        Code code = assembler.method(ClassAssembler.ACC_PUBLIC, "invoke", "(" + ENVIRONMENT_DESC + ")" + VALUE_DESC);
+        Label deoptimize = new Label();
+        int[] slots = m_fun.getParamSlots();
+        ArrayList<Integer> paramSlots = new ArrayList<>();
+        for (int slot : slots) {
+            if (!paramSlots.contains(slot)) {
+                paramSlots.add(slot);
+            }
+        }
+        code.local(ALOAD, 1);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getParent", "()" + ENVIRONMENT_DESC);
+        code.local(ASTORE, 2);
+        for (int i = 0; i < m_params.size(); i++) {
+            code.local(ALOAD, 1);
+            code.iconst(paramSlots.get(i));
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getSlot", "(I)" + VALUE_DESC);
+            code.local(ASTORE, 3 + i);
+            if (m_params.get(i).m_kind == DOUBLE) {
+                code.local(ALOAD, 3 + i);
+                code.type(INSTANCEOF, FLOAT_CLASS);
+                code.jump(IFEQ, deoptimize);
+            }
+        }
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 2);
+        for (int i = 0; i < m_params.size(); i++) {
+            code.local(ALOAD, 3 + i);
+            if (m_params.get(i).m_kind == DOUBLE) {
+                code.type(CHECKCAST, FLOAT_CLASS);
+                code.invoke(INVOKEVIRTUAL, FLOAT_CLASS, "asFloat", "()D");
+            }
+        }
+        code.invoke(INVOKEVIRTUAL, m_class_name, "body", m_body_desc);
+        if (m_return_kind == DOUBLE) {
+            code.invoke(INVOKESTATIC, FLOAT_CLASS, "valueOf", "(D)L" + FLOAT_CLASS + ";");
+        }
+        code.op(ARETURN);
+        code.mark(deoptimize);
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 1);
+        code.invoke(INVOKEVIRTUAL, COMPILED_FUNCTION, "deoptimize", "(" + ENVIRONMENT_DESC + ")" + VALUE_DESC);
+        code.op(ARETURN);
+        code.setMaxStack(4 + 2 * m_params.size() + 2);
+        code.setMaxLocals(3 + m_params.size());
+        code.finish();
+    }
+
+    /**
+     * body(closure, parameters...) is the function itself.
+     */
+    private void compileBody(ClassAssembler assembler) throws UnsupportedException {
+        m_code = assembler.method(ClassAssembler.ACC_PUBLIC, "body", m_body_desc);
+        m_next_local = 2; // this and the closure environment
+        for (Var param : m_params) {
+            param.m_local = allocate(param.m_kind);
+        }
+        m_start = new Label();
+        m_code.mark(m_start);
+        for (Var var : m_vars) {
+            if (!var.m_param && !var.m_label) {
+                // the variable is defined before it is used, but the JVM's
+                // verifier cannot know that
+                var.m_local = allocate(var.m_kind);
+                if (var.m_kind == DOUBLE) {
+                    m_code.op(DCONST_0);
+                    m_code.local(DSTORE, var.m_local);
+                } else {
+                    m_code.op(ACONST_NULL);
+                    m_code.local(ASTORE, var.m_local);
+                }
+            }
+        }
+        Operand result = compile(m_fun.getBody(), true);
+        load(result, m_return_kind);
+        m_code.op(m_return_kind == DOUBLE ? DRETURN : ARETURN);
+        if (m_code.size() > MAX_CODE_SIZE) {
+            throw new UnsupportedException("too long");
+        }
+        if (m_next_local > 0xffff) {
+            throw new UnsupportedException("too many locals");
+        }
+        m_code.setMaxStack(16 + 2 * m_params.size());
+        m_code.setMaxLocals(m_next_local);
+        m_code.finish();
+    }
+
+    private void compileLoopConstructor(ClassAssembler assembler) {
+        String desc = "([L" + OBJECT + ";L" + WHILE_EXPR + ";[Lscicalc/IfExpr;" + EXPR_ARRAYS;
+        Code code = assembler.method(ClassAssembler.ACC_PUBLIC, "<init>", desc + ")V");
+        code.local(ALOAD, 0);
+        code.local(ALOAD, 1);
+        code.local(ALOAD, 2);
+        code.local(ALOAD, 3);
+        code.local(ALOAD, 4);
+        code.iconst(m_globals);
+        code.invoke(INVOKESPECIAL, COMPILED_LOOP, "<init>", desc + "I)V");
+        code.op(RETURN);
+        code.setMaxStack(6);
+        code.setMaxLocals(5);
+        code.finish();
+    }
+
+    /**
+     * enter(env) loads the promoted variables, checking their types, and
+     * runs the trace until it is left, writing them back.
+     */
+    private void compileEnter(ClassAssembler assembler) throws UnsupportedException {
+        m_code = assembler.method(ClassAssembler.ACC_PROTECTED, "enter", "(" + ENVIRONMENT_DESC + ")I");
+        m_next_local = 2; // this and the environment
+        Label notEntered = new Label();
+        HashMap<Integer, Integer> frames = new HashMap<>();
+        for (Var var : m_promoted) {
+            if (var.m_name == null && !frames.containsKey(var.m_depth)) {
+                m_code.local(ALOAD, 1);
+                m_code.iconst(var.m_depth);
+                m_code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAncestor", "(I)" + ENVIRONMENT_DESC);
+                int frame = allocate(VALUE);
+                m_code.local(ASTORE, frame);
+                frames.put(var.m_depth, frame);
+            }
+        }
+        int value = allocate(VALUE);
+        for (Var var : m_promoted) {
+            if (var.m_name == null) {
+                var.m_binding = frames.get(var.m_depth);
+                m_code.local(ALOAD, var.m_binding);
+                m_code.iconst(var.m_slot);
+                m_code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getSlot", "(I)" + VALUE_DESC);
+            } else {
+                m_code.local(ALOAD, 1);
+                m_code.ldcString(var.m_name);
+                if (var.m_defines) {
+                    m_code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getBinding", "(Ljava/lang/String;)L" + BINDING + ";");
+                } else {
+                    m_code.invoke(INVOKESTATIC, COMPILED_LOOP, "find",
+                            "(" + ENVIRONMENT_DESC + "Ljava/lang/String;)L" + BINDING + ";");
+                }
+                var.m_binding = allocate(VALUE);
+                m_code.local(ASTORE, var.m_binding);
+                m_code.local(ALOAD, var.m_binding);
+                m_code.jump(IFNULL, notEntered);
+                m_code.local(ALOAD, var.m_binding);
+                m_code.invoke(INVOKEVIRTUAL, BINDING, "getValue", "()" + VALUE_DESC);
+            }
+            m_code.local(ASTORE, value);
+            var.m_local = allocate(var.m_kind);
+            m_code.local(ALOAD, value);
+            if (var.m_kind == DOUBLE) {
+                m_code.type(INSTANCEOF, FLOAT_CLASS);
+                m_code.jump(IFEQ, notEntered);
+                m_code.local(ALOAD, value);
+                m_code.type(CHECKCAST, FLOAT_CLASS);
+                m_code.invoke(INVOKEVIRTUAL, FLOAT_CLASS, "asFloat", "()D");
+                m_code.local(DSTORE, var.m_local);
+            } else {
+                m_code.jump(IFNULL, notEntered);
+                m_code.local(ALOAD, value);
+                m_code.local(ASTORE, var.m_local);
+            }
+        }
+        for (Var var : m_vars) {
+            if (!m_promoted.contains(var) && !var.m_label) {
+                // a variable of a block in the loop, which the verifier
+                // cannot know is defined before it is used
+                var.m_local = allocate(var.m_kind);
+                if (var.m_kind == DOUBLE) {
+                    m_code.op(DCONST_0);
+                    m_code.local(DSTORE, var.m_local);
+                } else {
+                    m_code.op(ACONST_NULL);
+                    m_code.local(ASTORE, var.m_local);
+                }
+            }
+        }
+        int iterations = allocate(BOOL);
+        int exit = allocate(BOOL);
+        m_code.iconst(0);
+        m_code.local(ISTORE, iterations);
+
+        Label start = new Label(), top = new Label(), done = new Label(), end = new Label();
+        Label leave = new Label(), handler = new Label();
+        m_code.mark(start);
+        m_code.mark(top);
+        jumpUnless(m_loop.getCond(), done);
+        compileTrace(m_loop.getBody(), new Expr[0]);
+        m_code.local(ILOAD, iterations);
+        m_code.iconst(1);
+        m_code.op(IADD);
+        m_code.local(ISTORE, iterations);
+        checkBudget(m_loop);
+        m_code.jump(GOTO, top);
+        m_code.mark(done);
+        m_code.iconst(CompiledLoop.DONE);
+        m_code.local(ISTORE, exit);
+        m_code.jump(GOTO, leave);
+        for (int i = 0; i < m_exits.size(); i++) {
+            m_code.mark(m_exits.get(i));
+            m_code.iconst(i);
+            m_code.local(ISTORE, exit);
+            m_code.jump(GOTO, leave);
+        }
+        m_code.mark(end);
+        m_code.handler(start, end, handler, null);
+
+        m_code.mark(leave);
+        leaveTrace(iterations);
+        m_code.local(ILOAD, exit);
+        m_code.op(IRETURN);
+
+        // whatever the loop throws, the tree would have left the variables'
+        // values in their environments
+        m_code.mark(handler);
+        int thrown = allocate(VALUE);
+        m_code.local(ASTORE, thrown);
+        leaveTrace(iterations);
+        m_code.local(ALOAD, thrown);
+        m_code.op(ATHROW);
+
+        m_code.mark(notEntered);
+        m_code.iconst(CompiledLoop.NOT_ENTERED);
+        m_code.op(IRETURN);
+
+        if (m_code.size() > MAX_CODE_SIZE) {
+            throw new UnsupportedException("too long");
+        }
+        if (m_next_local > 0xffff) {
+            throw new UnsupportedException("too many locals");
+        }
+        m_code.setMaxStack(16);
+        m_code.setMaxLocals(m_next_local);
+        m_code.finish();
+    }
+
+    /**
+     * Counts the iterations, and writes back the promoted variables the loop
+     * assigns.
+     */
+    private void leaveTrace(int iterations) {
+        m_code.local(ALOAD, 0);
+        m_code.local(ILOAD, iterations);
+        m_code.invoke(INVOKEVIRTUAL, COMPILED_LOOP, "iterated", "(I)V");
+        for (Var var : m_promoted) {
+            if (var.m_assignments.isEmpty()) {
+                continue;
+            }
+            m_code.local(ALOAD, var.m_binding);
+            if (var.m_name == null) {
+                m_code.iconst(var.m_slot);
+                load(new Operand(var.m_kind, var.m_local), VALUE);
+                m_code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "setSlot", "(I" + VALUE_DESC + ")V");
+            } else {
+                load(new Operand(var.m_kind, var.m_local), VALUE);
+                m_code.invoke(INVOKEVIRTUAL, BINDING, "setValue", "(" + VALUE_DESC + ")V");
+            }
+        }
+    }
+
+    /**
+     * Compiles a statement of the loop's body, turning each 'if' statement on
+     * the recorded path into a guard.
+     *
+     * @param rest
+     *            the statements which follow it in the iteration
+     */
+    private void compileTrace(Expr e, Expr[] rest) throws UnsupportedException {
+        if (e instanceof SeqExpr) {
+            Expr[] exprs = ((SeqExpr) e).getExprs();
+            for (int i = 0; i < exprs.length; i++) {
+                compileTrace(exprs[i], concat(Arrays.copyOfRange(exprs, i + 1, exprs.length), rest));
+            }
+            return;
+        }
+        Boolean taken = e instanceof IfExpr ? m_path.get(e) : null;
+        if (taken == null) {
+            compile(e, false);
+            return;
+        }
+        IfExpr ife = (IfExpr) e;
+        Label exit = new Label();
+        if (taken) {
+            jumpUnless(ife.getCond(), exit);
+        } else {
+            Label stay = new Label();
+            jumpUnless(ife.getCond(), stay);
+            m_code.jump(GOTO, exit);
+            m_code.mark(stay);
+        }
+        m_exits.add(exit);
+        m_guards.add(ife);
+        m_continuations.add(concat(new Expr[] { taken ? ife.getAlt() : ife.getCons() }, rest));
+        compileTrace(taken ? ife.getCons() : ife.getAlt(), rest);
+    }
+
+    private static Expr[] concat(Expr[] first, Expr[] second) {
+        Expr[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    private int allocate(int kind) {
+        int local = m_next_local;
+        m_next_local += kind == DOUBLE ? 2 : 1;
+        return local;
+    }
+
+    private Operand store(int kind) {
+        Operand o = new Operand(kind, allocate(kind));
+        m_code.local(kind == DOUBLE ? DSTORE : kind == BOOL ? ISTORE : ASTORE, o.m_local);
+        return o;
+    }
+
+    private int constant(Object c) {
+        Integer index = m_constant_indices.get(c);
+        if (index == null) {
+            index = m_constants.size();
+            m_constants.add(c);
+            m_constant_indices.put(c, index);
+        }
+        return index;
+    }
+
+    /**
+     * Counts a step against the Budget, where the tree would have: at the
+     * back-edge of a loop, or for a call which does not go through
+     * FunValue.apply(). Until some thread has a budget, it is one test.
+     */
+    private void checkBudget(Expr where) {
+        Label skip = new Label();
+        m_code.invoke(INVOKESTATIC, COMPILED_CODE, "budgeted", "()Z");
+        m_code.jump(IFEQ, skip);
+        loadConstant(where, EXPR);
+        m_code.invoke(INVOKESTATIC, COMPILED_CODE, "checkBudget", "(L" + EXPR + ";)V");
+        m_code.mark(skip);
+    }
+
+    /**
+     * Counts a call of this function made straight to body(), or by jumping
+     * back to the start, for the Profiler. The recursion is not on the stack
+     * it samples, which is as though the calls were merged into the one which
+     * went through FunExpr.call().
+     */
+    private void countCall() {
+        Label skip = new Label();
+        m_code.invoke(INVOKESTATIC, COMPILED_CODE, "profiling", "()Z");
+        m_code.jump(IFEQ, skip);
+        loadConstant(m_fun, FUN_EXPR);
+        m_code.invoke(INVOKESTATIC, COMPILED_CODE, "countCall", "(L" + FUN_EXPR + ";)V");
+        m_code.mark(skip);
+    }
+
+    private void loadConstant(Object c, String type) {
+        m_code.local(ALOAD, 0);
+        m_code.field(GETFIELD, COMPILED_CODE, "m_constants", "[L" + OBJECT + ";");
+        m_code.iconst(constant(c));
+        m_code.op(AALOAD);
+        m_code.type(CHECKCAST, type);
+    }
+
+    private Operand nullResult(boolean want) {
+        if (!want) {
+            return null;
+        }
+        m_code.field(GETSTATIC, NULL_CLASS, "INSTANCE", "L" + NULL_CLASS + ";");
+        return store(VALUE);
+    }
+
+    /**
+     * Pushes the operand, converted to the given kind the way the Value
+     * methods would.
+     */
+    private void load(Operand o, int kind) {
+        switch (o.m_kind) {
+        case DOUBLE:
+            if (kind == VALUE) {
+                m_code.local(DLOAD, o.m_local);
+                m_code.invoke(INVOKESTATIC, FLOAT_CLASS, "valueOf", "(D)L" + FLOAT_CLASS + ";");
+            } else {
+                m_code.local(DLOAD, o.m_local);
+                if (kind == BOOL) {
+                    m_code.op(DCONST_0);
+                    m_code.op(DCMPL);
+                    pushCondition(IFEQ);
+                }
+            }
+            break;
+        case BOOL:
+            m_code.local(ILOAD, o.m_local);
+            if (kind == VALUE) {
+                m_code.invoke(INVOKESTATIC, BOOL_CLASS, "create", "(Z)L" + BOOL_CLASS + ";");
+            } else if (kind == DOUBLE) {
+                m_code.op(I2D);
+            }
+            break;
+        case DOUBLE_OR_VALUE:
+            Label value = new Label(), end = new Label();
+            m_code.local(ALOAD, o.m_value_local);
+            m_code.jump(IFNONNULL, value);
+            load(new Operand(DOUBLE, o.m_local), kind);
+            m_code.jump(GOTO, end);
+            m_code.mark(value);
+            load(new Operand(VALUE, o.m_value_local), kind);
+            m_code.mark(end);
+            break;
+        default:
+            m_code.local(ALOAD, o.m_local);
+            if (kind == DOUBLE) {
+                m_code.invokeInterface(VALUE_CLASS, "asFloat", "()D", 0);
+            } else if (kind == BOOL) {
+                m_code.invokeInterface(VALUE_CLASS, "asBool", "()Z", 0);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Turns a test on the stack into 0 if the jump would be taken and 1
+     * otherwise.
+     */
+    private void pushCondition(int jumpIfFalse) {
+        Label no = new Label(), end = new Label();
+        m_code.jump(jumpIfFalse, no);
+        m_code.iconst(1);
+        m_code.jump(GOTO, end);
+        m_code.mark(no);
+        m_code.iconst(0);
+        m_code.mark(end);
+    }
+
+    /**
+     * Compiles code which evaluates e.
+     *
+     * @param want
+     *            whether the result is used
+     * @return where the result is, which might be null if it is not wanted
+     */
+    private Operand compile(Expr e, boolean want) throws UnsupportedException {
+        if (e instanceof Value) {
+            if (!want) {
+                return null;
+            } else if (e instanceof FloatValue) {
+                m_code.dconst(((FloatValue) e).asFloat());
+                return store(DOUBLE);
+            } else if (e instanceof BoolValue) {
+                m_code.iconst(((BoolValue) e).asBool() ? 1 : 0);
+                return store(BOOL);
+            } else if (e == NullValue.INSTANCE) {
+                return nullResult(true);
+            }
+            loadConstant(e, VALUE_CLASS);
+            return store(VALUE);
+        } else if (e instanceof VariableExpr) {
+            Var var = m_refs.get(e);
+            if (var != null) {
+                return copy(var, want);
+            }
+            m_code.local(ALOAD, 0);
+            m_code.local(ALOAD, 1);
+            m_code.ldcString(((VariableExpr) e).getIdentifier());
+            m_code.iconst(m_globals++);
+            m_code.invoke(INVOKEVIRTUAL, COMPILED_CODE, "lookup",
+                    "(" + ENVIRONMENT_DESC + "Ljava/lang/String;I)" + VALUE_DESC);
+            return result(want);
+        } else if (e instanceof LocalExpr) {
+            Var var = m_refs.get(e);
+            if (var == null) {
+                loadConstant(m_outer.get(e), "scicalc/LocalExpr");
+                m_code.local(ALOAD, 1);
+                m_code.invoke(INVOKEVIRTUAL, "scicalc/LocalExpr", "evaluate",
+                        "(" + ENVIRONMENT_DESC + ")" + VALUE_DESC);
+                return result(want);
+            }
+            return copy(var, want);
+        } else if (e instanceof LocalStoreExpr) {
+            Operand value = compile(((LocalStoreExpr) e).getExpr(), true);
+            Var var = m_refs.get(e);
+            if (var == null) {
+                // a loop's variable which stays in its frame
+                m_code.local(ALOAD, 1);
+                m_code.iconst(((LocalStoreExpr) e).getSlot());
+                load(value, VALUE);
+                m_code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "setSlot", "(I" + VALUE_DESC + ")V");
+            } else {
+                assignVar(var, value);
+            }
+            return nullResult(want);
+        } else if (e instanceof LocalUpdateExpr) {
+            Operand value = compile(((LocalUpdateExpr) e).getExpr(), true);
+            Var var = m_refs.get(e);
+            if (var == null) {
+                loadConstant(m_outer.get(e), "scicalc/LocalUpdateExpr");
+                m_code.local(ALOAD, 1);
+                load(value, VALUE);
+                m_code.invoke(INVOKEVIRTUAL, "scicalc/LocalUpdateExpr", "assign",
+                        "(" + ENVIRONMENT_DESC + VALUE_DESC + ")V");
+            } else {
+                assignVar(var, value);
+            }
+            return nullResult(want);
+        } else if (e instanceof UpdateExpr || e instanceof StoreExpr) {
+            boolean update = e instanceof UpdateExpr;
+            Operand value = compile(update ? ((UpdateExpr) e).getExpr() : ((StoreExpr) e).getExpr(), true);
+            Var var = m_refs.get(e);
+            if (var != null) {
+                assignVar(var, value);
+                return nullResult(want);
+            }
+            m_code.local(ALOAD, 1);
+            m_code.ldcString(update ? ((UpdateExpr) e).getIdentifier() : ((StoreExpr) e).getIdentifier());
+            load(value, VALUE);
+            m_code.invoke(INVOKEVIRTUAL, ENVIRONMENT, update ? "update" : "set",
+                    "(Ljava/lang/String;" + VALUE_DESC + ")V");
+            return nullResult(want);
+        } else if (e instanceof SeqExpr) {
+            Expr[] exprs = ((SeqExpr) e).getExprs();
+            for (int i = 0; i < exprs.length - 1; i++) {
+                compile(exprs[i], false);
+            }
+            return compile(exprs[exprs.length - 1], want);
+        } else if (e instanceof IfExpr) {
+            return compileIf((IfExpr) e, want);
+        } else if (e instanceof WhileExpr) {
+            WhileExpr w = (WhileExpr) e;
+            Label top = new Label(), end = new Label();
+            m_code.mark(top);
+            jumpUnless(w.getCond(), end);
+            compile(w.getBody(), false);
+            checkBudget(w);
+            m_code.jump(GOTO, top);
+            m_code.mark(end);
+            return nullResult(want);
+        } else if (e instanceof AndExpr || e instanceof OrExpr) {
+            Label end = new Label();
+            jumpUnless(e, end);
+            m_code.iconst(1);
+            Label done = new Label();
+            m_code.jump(GOTO, done);
+            m_code.mark(end);
+            m_code.iconst(0);
+            m_code.mark(done);
+            return store(BOOL);
+        } else if (e instanceof BinaryNode) {
+            return compileBinary((BinaryNode) e);
+        } else if (e instanceof UnaryNode) {
+            UnaryNode node = (UnaryNode) e;
+            Operand operand = compile(node.getOperand(), true);
+            switch (node.getPrim()) {
+            case NOT1:
+                load(operand, BOOL);
+                m_code.iconst(1);
+                m_code.op(IXOR);
+                return store(BOOL);
+            case NEG1:
+                load(operand, DOUBLE);
+                m_code.op(DNEG);
+                return store(DOUBLE);
+            default:
+                load(operand, DOUBLE);
+                return store(DOUBLE);
+            }
+        } else if (e instanceof ChainExpr) {
+            ChainExpr chain = (ChainExpr) e;
+            Expr[] operands = chain.getOperands();
+            Operand first = compile(operands[0], true);
+            Operand second = compile(operands[1], true);
+            load(first, DOUBLE);
+            load(second, DOUBLE);
+            arithmetic(chain.getOps()[0]);
+            Operand acc = store(DOUBLE);
+            for (int i = 1; i < chain.getOps().length; i++) {
+                Operand operand = compile(operands[i + 1], true);
+                m_code.local(DLOAD, acc.m_local);
+                load(operand, DOUBLE);
+                arithmetic(chain.getOps()[i]);
+                m_code.local(DSTORE, acc.m_local);
+            }
+            return acc;
+        } else if (e instanceof SetNode) {
+            SetNode node = (SetNode) e;
+            Operand array = compile(node.getArray(), true);
+            Operand index = compile(node.getIndex(), true);
+            Operand value = compile(node.getValue(), true);
+            load(array, VALUE);
+            if (index.m_kind == DOUBLE && value.m_kind == DOUBLE) {
+                load(index, DOUBLE);
+                load(value, DOUBLE);
+                m_code.invoke(INVOKESTATIC, COMPILED_CODE, "set", "(" + VALUE_DESC + "DD)" + VALUE_DESC);
+            } else {
+                load(index, VALUE);
+                load(value, VALUE);
+                m_code.invoke(INVOKESTATIC, "scicalc/PrimFuncValue", "set",
+                        "(" + VALUE_DESC + VALUE_DESC + VALUE_DESC + ")" + VALUE_DESC);
+            }
+            return result(want);
+        } else if (e instanceof ArrayExpr) {
+            Expr[] items = ((ArrayExpr) e).getItems();
+            Operand[] operands = new Operand[items.length];
+            for (int i = 0; i < items.length; i++) {
+                operands[i] = compile(items[i], true);
+            }
+            m_code.type(NEW, "java/util/ArrayList");
+            m_code.op(DUP);
+            m_code.invoke(INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V");
+            Operand list = store(VALUE);
+            for (Operand item : operands) {
+                m_code.local(ALOAD, list.m_local);
+                load(item, VALUE);
+                m_code.invoke(INVOKEVIRTUAL, "java/util/ArrayList", "add", "(L" + OBJECT + ";)Z");
+                m_code.op(POP);
+            }
+            m_code.type(NEW, "scicalc/ArrayValue");
+            m_code.op(DUP);
+            m_code.local(ALOAD, list.m_local);
+            m_code.invoke(INVOKESPECIAL, "scicalc/ArrayValue", "<init>", "(Ljava/util/ArrayList;)V");
+            return store(VALUE);
+        } else if (e instanceof AppExpr) {
+            return compileApp((AppExpr) e);
+        } else if (e instanceof ExitExpr) {
+            ExitExpr exit = (ExitExpr) e;
+            if (m_outer.containsKey(e)) {
+                Operand value = compile(exit.getExpr(), true);
+                loadConstant(m_outer.get(e), "scicalc/ExitExpr");
+                m_code.local(ALOAD, 1);
+                load(value, VALUE);
+                m_code.invoke(INVOKEVIRTUAL, "scicalc/ExitExpr", "leave", "(" + ENVIRONMENT_DESC + VALUE_DESC + ")V");
+                // never reached
+                return nullResult(want);
+            }
+            return compileExit(m_block_exits.get(exit.getKey()), exit.getExpr());
+        } else if (e instanceof BlockExpr) {
+            BlockExpr block = (BlockExpr) e;
+            Var label = null;
+            if (block.getLabelSlot() >= 0) {
+                label = m_blocks.get(block)[block.getLabelSlot() - block.getFirstSlot()];
+            } else if (block.getExitKey() != null) {
+                label = m_block_exits.get(block.getExitKey());
+            }
+            if (label == null) {
+                return compile(block.getBody(), want);
+            }
+            label.m_exit = new Label();
+            label.m_result = allocate(VALUE);
+            Operand body = compile(block.getBody(), true);
+            load(body, VALUE);
+            m_code.local(ASTORE, label.m_result);
+            m_code.mark(label.m_exit);
+            return new Operand(VALUE, label.m_result);
+        }
+        throw new UnsupportedException("cannot compile " + e.getClass().getSimpleName());
+    }
+
+    /**
+     * Stores or drops the Value on the stack.
+     */
+    private Operand result(boolean want) {
+        if (want) {
+            return store(VALUE);
+        }
+        m_code.op(POP);
+        return null;
+    }
+
+    /**
+     * Copies the variable, since it might change before the result is used.
+     */
+    private Operand copy(Var var, boolean want) {
+        if (!want) {
+            return null;
+        }
+        m_code.local(var.m_kind == DOUBLE ? DLOAD : ALOAD, var.m_local);
+        return store(var.m_kind);
+    }
+
+    private void assignVar(Var var, Operand value) {
+        load(value, var.m_kind);
+        m_code.local(var.m_kind == DOUBLE ? DSTORE : ASTORE, var.m_local);
+    }
+
+    private Operand compileIf(IfExpr e, boolean want) throws UnsupportedException {
+        int kind = kindOf(e);
+        int result = want ? allocate(kind) : -1;
+        Label alt = new Label(), end = new Label();
+        jumpUnless(e.getCond(), alt);
+        Operand cons = compile(e.getCons(), want);
+        if (want) {
+            load(cons, kind);
+            m_code.local(kind == DOUBLE ? DSTORE : kind == BOOL ? ISTORE : ASTORE, result);
+        }
+        m_code.jump(GOTO, end);
+        m_code.mark(alt);
+        Operand alternative = compile(e.getAlt(), want);
+        if (want) {
+            load(alternative, kind);
+            m_code.local(kind == DOUBLE ? DSTORE : kind == BOOL ? ISTORE : ASTORE, result);
+        }
+        m_code.mark(end);
+        return want ? new Operand(kind, result) : null;
+    }
+
+    /**
+     * Compiles code which evaluates the condition and jumps to the label if
+     * it is false.
+     */
+    private void jumpUnless(Expr cond, Label target) throws UnsupportedException {
+        if (cond instanceof AndExpr) {
+            jumpUnless(((AndExpr) cond).getLeft(), target);
+            jumpUnless(((AndExpr) cond).getRight(), target);
+            return;
+        } else if (cond instanceof OrExpr) {
+            Label yes = new Label();
+            Operand left = compile(((OrExpr) cond).getLeft(), true);
+            load(left, BOOL);
+            m_code.jump(IFNE, yes);
+            jumpUnless(((OrExpr) cond).getRight(), target);
+            m_code.mark(yes);
+            return;
+        } else if (cond instanceof BinaryNode) {
+            BinaryNode node = (BinaryNode) cond;
+            int jump = comparison(node.getPrim());
+            if (jump >= 0) {
+                Operand left = compile(node.getLeft(), true);
+                Operand right = compile(node.getRight(), true);
+                if (compare(node.getPrim(), left, right)) {
+                    m_code.jump(jump, target);
+                    return;
+                }
+                m_code.jump(IFEQ, target);
+                return;
+            }
+        }
+        Operand value = compile(cond, true);
+        load(value, BOOL);
+        m_code.jump(IFEQ, target);
+    }
+
+    /**
+     * @return the jump taken when the comparison is false, after compare(),
+     *         or -1 if the operator is not a comparison
+     */
+    private static int comparison(PrimFuncValue prim) {
+        switch (prim) {
+        case LT2:
+            return IFGE;
+        case LTE2:
+            return IFGT;
+        case GT2:
+            return IFLE;
+        case GTE2:
+            return IFLT;
+        case EQ2:
+            return IFNE;
+        case NEQ2:
+            return IFEQ;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Pushes what is needed to test the comparison.
+     *
+     * @return true if the result is a dcmp result, to test with comparison(),
+     *         or false if it is a boolean (only for equality of Values)
+     */
+    private boolean compare(PrimFuncValue prim, Operand left, Operand right) {
+        if (prim == PrimFuncValue.EQ2 && (left.m_kind != DOUBLE || right.m_kind != DOUBLE)) {
+            load(left, VALUE);
+            load(right, VALUE);
+            m_code.invoke(INVOKEVIRTUAL, OBJECT, "equals", "(L" + OBJECT + ";)Z");
+            return false;
+        }
+        load(left, DOUBLE);
+        load(right, DOUBLE);
+        // the same as Java's comparisons, which are false for NaN
+        m_code.op(prim == PrimFuncValue.LT2 || prim == PrimFuncValue.LTE2 ? DCMPG : DCMPL);
+        return true;
+    }
+
+    private Operand compileBinary(BinaryNode node) throws UnsupportedException {
+        Operand left = compile(node.getLeft(), true);
+        Operand right = compile(node.getRight(), true);
+        PrimFuncValue prim = node.getPrim();
+        int jump = comparison(prim);
+        if (jump >= 0) {
+            if (compare(prim, left, right)) {
+                pushCondition(jump);
+            }
+            return store(BOOL);
+        } else if (prim == PrimFuncValue.GET) {
+            load(left, VALUE);
+            if (right.m_kind == DOUBLE) {
+                load(right, DOUBLE);
+                m_code.invoke(INVOKESTATIC, COMPILED_CODE, "get", "(" + VALUE_DESC + "D)" + VALUE_DESC);
+            } else {
+                load(right, VALUE);
+                m_code.invokeInterface(VALUE_CLASS, "get", "(" + VALUE_DESC + ")" + VALUE_DESC, 1);
+            }
+            return store(VALUE);
+        }
+        load(left, DOUBLE);
+        if (prim == PrimFuncValue.IDIV2) {
+            m_code.op(D2I);
+        }
+        load(right, DOUBLE);
+        arithmetic(prim);
+        return store(DOUBLE);
+    }
+
+    /**
+     * Combines the two doubles on the stack (with the second operand of
+     * IDIV2 not yet truncated).
+     */
+    private void arithmetic(PrimFuncValue prim) {
+        switch (prim) {
+        case ADD2:
+            m_code.op(DADD);
+            break;
+        case SUB2:
+            m_code.op(DSUB);
+            break;
+        case MUL2:
+            m_code.op(DMUL);
+            break;
+        case DIV2:
+            m_code.op(DDIV);
+            break;
+        case IDIV2:
+            m_code.op(D2I);
+            m_code.op(IDIV);
+            m_code.op(I2D);
+            break;
+        case MOD2:
+            m_code.op(DREM);
+            break;
+        case POW2:
+            m_code.invoke(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+            break;
+        default:
+            throw new InternalError("not arithmetic: " + prim);
+        }
+    }
+
+    private Operand compileApp(AppExpr app) throws UnsupportedException {
+        Expr[] args = app.getArgs();
+        Var label = m_label_calls.get(app);
+        if (label != null) {
+            return compileExit(label, args.length == 0 ? NullValue.INSTANCE : args[0]);
+        }
+        Operand func = compile(app.getFunc(), true);
+        Operand[] operands = new Operand[args.length];
+        for (int i = 0; i < args.length; i++) {
+            operands[i] = compile(args[i], true);
+        }
+        boolean direct = canCallDirectly(operands);
+        int result = allocate(VALUE);
+        int doubleResult = direct && m_return_kind == DOUBLE ? allocate(DOUBLE) : -1;
+        Label slow = new Label(), done = new Label();
+        if (direct) {
+            // a call of this same function, without a frame
+            load(func, VALUE);
+            m_code.type(INSTANCEOF, FUN_VALUE);
+            m_code.jump(IFEQ, slow);
+            load(func, VALUE);
+            m_code.type(CHECKCAST, FUN_VALUE);
+            m_code.invoke(INVOKEVIRTUAL, FUN_VALUE, "getFun", "()L" + FUN_EXPR + ";");
+            loadConstant(m_fun, FUN_EXPR);
+            m_code.jump(IF_ACMPNE, slow);
+            for (int i = 0; i < operands.length; i++) {
+                if (m_params.get(i).m_kind == DOUBLE && operands[i].m_kind == VALUE) {
+                    load(operands[i], VALUE);
+                    m_code.type(INSTANCEOF, FLOAT_CLASS);
+                    m_code.jump(IFEQ, slow);
+                }
+            }
+            checkBudget(m_fun);
+            countCall();
+            if (!app.isTail()) {
+                m_code.local(ALOAD, 0);
+            }
+            load(func, VALUE);
+            m_code.type(CHECKCAST, FUN_VALUE);
+            m_code.invoke(INVOKEVIRTUAL, FUN_VALUE, "getEnvironment", "()" + ENVIRONMENT_DESC);
+            for (int i = 0; i < operands.length; i++) {
+                if (m_params.get(i).m_kind == DOUBLE && operands[i].m_kind == VALUE) {
+                    load(operands[i], VALUE);
+                    m_code.type(CHECKCAST, FLOAT_CLASS);
+                    m_code.invoke(INVOKEVIRTUAL, FLOAT_CLASS, "asFloat", "()D");
+                } else {
+                    load(operands[i], m_params.get(i).m_kind);
+                }
+            }
+            if (app.isTail()) {
+                // the closure and the arguments replace this call's own
+                for (int i = operands.length - 1; i >= 0; i--) {
+                    Var param = m_params.get(i);
+                    m_code.local(param.m_kind == DOUBLE ? DSTORE : ASTORE, param.m_local);
+                }
+                m_code.local(ASTORE, 1);
+                m_code.jump(GOTO, m_start);
+            } else {
+                m_code.invoke(INVOKEVIRTUAL, m_class_name, "body", m_body_desc);
+                if (m_return_kind == VALUE) {
+                    m_code.invoke(INVOKESTATIC, COMPILED_CODE, "complete", "(" + VALUE_DESC + ")" + VALUE_DESC);
+                }
+                if (doubleResult >= 0) {
+                    m_code.local(DSTORE, doubleResult);
+                    m_code.op(ACONST_NULL);
+                }
+                m_code.local(ASTORE, result);
+                m_code.jump(GOTO, done);
+            }
+        }
+        m_code.mark(slow);
+        if (doubleResult >= 0) {
+            m_code.op(DCONST_0);
+            m_code.local(DSTORE, doubleResult);
+        }
+        load(func, VALUE);
+        m_code.iconst(operands.length);
+        m_code.type(ANEWARRAY, VALUE_CLASS);
+        for (int i = 0; i < operands.length; i++) {
+            m_code.op(DUP);
+            m_code.iconst(i);
+            load(operands[i], VALUE);
+            m_code.op(AASTORE);
+        }
+        if (app.isTail() && m_return_kind == VALUE) {
+            m_code.invoke(INVOKESTATIC, COMPILED_CODE, "tailCall",
+                    "(" + VALUE_DESC + "[" + VALUE_DESC + ")" + VALUE_DESC);
+        } else {
+            m_code.invokeInterface(VALUE_CLASS, "apply", "([" + VALUE_DESC + ")" + VALUE_DESC, 1);
+        }
+        m_code.local(ASTORE, result);
+        m_code.mark(done);
+        if (doubleResult >= 0) {
+            return new Operand(DOUBLE_OR_VALUE, doubleResult, result);
+        }
+        return new Operand(VALUE, result);
+    }
+
+    /**
+     * Leaves the block of the label with the value, as calling the label
+     * would.
+     */
+    private Operand compileExit(Var label, Expr value) throws UnsupportedException {
+        if (value == NullValue.INSTANCE) {
+            m_code.field(GETSTATIC, NULL_CLASS, "INSTANCE", "L" + NULL_CLASS + ";");
+        } else {
+            load(compile(value, true), VALUE);
+        }
+        m_code.local(ASTORE, label.m_result);
+        m_code.jump(GOTO, label.m_exit);
+        // never reached
+        return new Operand(VALUE, label.m_result);
+    }
+
+    /**
+     * @return whether the arguments could be passed straight to body(), if
+     *         the function being called turns out to be this one
+     */
+    private boolean canCallDirectly(Operand[] operands) {
+        if (m_fun == null || !m_distinct_params || operands.length != m_params.size()) {
+            return false;
+        }
+        for (int i = 0; i < operands.length; i++) {
+            if (m_params.get(i).m_kind == DOUBLE && operands[i].m_kind == BOOL) {
+                return false; // would not pass invoke()'s guard
+            }
+        }
+        return true;
+    }
+}
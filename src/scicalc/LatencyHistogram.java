@@ -0,0 +1,84 @@
+package scicalc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies, in microseconds, in buckets which are 16 to each power of
+ * two, as in HdrHistogram, so that any percentile is known to within about
+ * 6% however long the latencies get, in a fixed 8 KB. Any number of threads
+ * can record at once.
+ *
+ * @author kmill
+ *
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(64 * SUB);
+    private final AtomicLong m_max = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        m_counts.incrementAndGet(bucket(micros));
+        long max = m_max.get();
+        while (micros > max && !m_max.compareAndSet(max, micros)) {
+            max = m_max.get();
+        }
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB) {
+            return (int) micros;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (power - SUB_BITS)) & (SUB - 1);
+        return (power - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /**
+     * @return the least number of microseconds in the bucket
+     */
+    private static long lowest(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int power = bucket / SUB + SUB_BITS - 1;
+        return (long) (SUB + bucket % SUB) << (power - SUB_BITS);
+    }
+
+    long count() {
+        long n = 0;
+        for (int i = 0; i < m_counts.length(); i++) {
+            n += m_counts.get(i);
+        }
+        return n;
+    }
+
+    /**
+     * @return the latency, in ms, which the given fraction of those recorded
+     *         are at most (as far as the buckets tell: it is the top of the
+     *         bucket it is in)
+     */
+    double percentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * count());
+        long seen = 0;
+        for (int i = 0; i < m_counts.length(); i++) {
+            seen += m_counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(lowest(i + 1) - 1, m_max.get()) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    double max() {
+        return m_max.get() / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%.3f ms p99=%.3f ms max=%.3f ms", count(), percentile(0.5),
+                percentile(0.99), max());
+    }
+}
@@ -0,0 +1,59 @@
+package scicalc;
+
+/**
+ * A reference to a variable which the Resolver found defined in one or more
+ * enclosing frames. Since a definition might not have run yet, each candidate
+ * slot is tried from the innermost out, and if they are all empty the
+ * variable is looked up by name in the global environment, just like a
+ * VariableExpr would have.
+ * 
+ * @author kmill
+ *
+ */
+public class LocalExpr implements Expr {
+	private String m_identifier;
+	private int[] m_depths, m_slots;
+
+	public LocalExpr(String identifier, int[] depths, int[] slots) {
+		m_identifier = identifier;
+		m_depths = depths;
+		m_slots = slots;
+	}
+
+	public String getIdentifier() {
+		return m_identifier;
+	}
+
+	public int[] getDepths() {
+		return m_depths;
+	}
+
+	public int[] getSlots() {
+		return m_slots;
+	}
+
+	@Override
+	public Value evaluate(Environment e) {
+		for (int i = 0; i < m_depths.length; i++) {
+			Value value = e.getAncestor(m_depths[i]).getSlot(m_slots[i]);
+			if (value != null) {
+				return value;
+			}
+		}
+		return e.lookup(m_identifier);
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
+	public String toString() {
+		return m_identifier;
+	}
+}
@@ -0,0 +1,52 @@
+package scicalc;
+
+/**
+ * A definition which the Resolver assigned to a slot of the current frame.
+ * 
+ * @author kmill
+ *
+ */
+public class LocalStoreExpr implements Expr {
+
+	private String m_identifier;
+	private int m_slot;
+	private Expr m_expr;
+
+	public LocalStoreExpr(String identifier, int slot, Expr expr) {
+		m_identifier = identifier;
+		m_slot = slot;
+		m_expr = expr;
+	}
+
+	public String getIdentifier() {
+		return m_identifier;
+	}
+
+	public int getSlot() {
+		return m_slot;
+	}
+
+	public Expr getExpr() {
+		return m_expr;
+	}
+
+	@Override
+	public Value evaluate(Environment e) {
+		e.setSlot(m_slot, m_expr.evaluate(e));
+		return NullValue.INSTANCE;
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
+	public String toString() {
+		return "Store(" + m_identifier + ", " + m_expr + ")";
+	}
+}
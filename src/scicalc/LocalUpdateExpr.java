@@ -0,0 +1,73 @@
+package scicalc;
+
+/**
+ * An update of a variable which the Resolver found defined in enclosing
+ * frames. Like LocalExpr, the first candidate slot which has been defined is
+ * the one which gets updated, and otherwise it is a global update.
+ * 
+ * @author kmill
+ *
+ */
+public class LocalUpdateExpr implements Expr {
+
+	private String m_identifier;
+	private int[] m_depths, m_slots;
+	private Expr m_expr;
+
+	public LocalUpdateExpr(String identifier, int[] depths, int[] slots, Expr expr) {
+		m_identifier = identifier;
+		m_depths = depths;
+		m_slots = slots;
+		m_expr = expr;
+	}
+
+	public String getIdentifier() {
+		return m_identifier;
+	}
+
+	public int[] getDepths() {
+		return m_depths;
+	}
+
+	public int[] getSlots() {
+		return m_slots;
+	}
+
+	public Expr getExpr() {
+		return m_expr;
+	}
+
+	@Override
+	public Value evaluate(Environment e) {
+		assign(e, m_expr.evaluate(e));
+		return NullValue.INSTANCE;
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
+	/**
+	 * Does the update with an already evaluated value.
+	 */
+	public void assign(Environment e, Value value) {
+		for (int i = 0; i < m_depths.length; i++) {
+			Environment frame = e.getAncestor(m_depths[i]);
+			if (frame.getSlot(m_slots[i]) != null) {
+				frame.setSlot(m_slots[i], value);
+				return;
+			}
+		}
+		e.update(m_identifier, value);
+	}
+
+	public String toString() {
+		return "Update(" + m_identifier + ", " + m_expr + ")";
+	}
+}
@@ -0,0 +1,39 @@
+package scicalc;
+
+/**
+ * Replaces applications of the operator primitives, which is what the parser
+ * produces for a + b, a[i] <- v and so on, with dedicated nodes (AddNode,
+ * SetNode, ...) which evaluate their operands and compute the result
+ * directly. This runs last, after the Optimizer and the Resolver, since those
+ * recognize operators as applications.
+ * 
+ * Only applications of a literal primitive are lowered. The primitives are
+ * still values, so something like f := len; f(a) is an ordinary application
+ * and still works.
+ * 
+ * @author kmill
+ *
+ */
+public class Lowering extends ExprTransformer {
+
+    @Override
+    protected Expr transformApp(AppExpr e) {
+        Expr func = transform(e.getFunc());
+        Expr[] args = transformAll(e.getArgs());
+        if (func instanceof PrimFuncValue) {
+            PrimFuncValue prim = (PrimFuncValue) func;
+            Expr node = null;
+            if (args.length == 1) {
+                node = UnaryNode.create(prim, args[0]);
+            } else if (args.length == 2) {
+                node = BinaryNode.create(prim, args[0], args[1]);
+            } else if (args.length == 3 && prim == PrimFuncValue.SET) {
+                node = new SetNode(args[0], args[1], args[2]);
+            }
+            if (node != null) {
+                return node;
+            }
+        }
+        return new AppExpr(func, args, e.isTail());
+    }
+}
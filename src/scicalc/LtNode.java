@@ -0,0 +1,52 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+public class LtNode extends BinaryNode {
+
+    public LtNode(Expr left, Expr right) {
+        super(left, right);
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.LT2;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        try {
+            return BoolValue.create(compare(e));
+        } catch (NotANumber x) {
+            return x.materialize();
+        }
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return compare(e) ? 1.0 : 0.0;
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        try {
+            return compare(e);
+        } catch (NotANumber x) {
+            return x.materialize().asBool();
+        }
+    }
+
+    private boolean compare(Environment e) {
+        double a;
+        try {
+            a = m_left.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw leftArray(x, e);
+        }
+        try {
+            return a < m_right.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw rightArray(a, x);
+        }
+    }
+}
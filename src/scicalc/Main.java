@@ -1,12 +1,34 @@
 package scicalc;
 
-import java.io.FileInputStream;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
+/**
+ * Usage: Main, to run the examples, Main serve address [file ...] to
+ * evaluate requests over a socket (see Server), or Main profile file [out]
+ * to run a file with a Profiler, print the functions it spent the most time
+ * in, and write the stacks it sampled to out and out.alloc for flame graphs.
+ */
 public class Main {
-	public static void main(String[] args) {
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("serve")) {
+			Server.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 1 && args[0].equals("profile")) {
+			Profiler profiler = new Profiler();
+			profiler.start();
+			try {
+				System.out.println(new Interpreter().evaluateFile(Paths.get(args[1])));
+			} finally {
+				profiler.stop();
+				System.out.print(profiler.top(20));
+				if (args.length > 2) {
+					profiler.save(Paths.get(args[2]));
+				}
+			}
+			return;
+		}
 		Interpreter interp = new Interpreter();
 		try {
 			System.out.println(interp.evaluate("1+2*3"));
@@ -16,8 +38,7 @@ public class Main {
 			System.out.println(interp.evaluate("fib := fun (n) if n <= 1 do n else fib(n-1) + fib(n-2) end end"));
 			System.out.println(interp.evaluate("fib(10)"));
 
-			String testFile = new String(Files.readAllBytes(Paths.get("test.sci")), StandardCharsets.UTF_8);
-			System.out.println(interp.evaluate(testFile));
+			System.out.println(interp.evaluateFile(Paths.get("test.sci")));
 		} catch (Exception x) {
 			System.err.println(x.toString());
 		}
@@ -0,0 +1,87 @@
+package scicalc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Reader which decodes a file through memory-mapped windows, one after the
+ * other, so that the contents of the file are never copied onto the heap all
+ * at once. Together with SciScanner(Reader) this lets us run scripts which are
+ * much bigger than we would like to hold in memory.
+ *
+ * @author kmill
+ *
+ */
+public class MappedFileReader extends Reader {
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private FileChannel m_channel;
+    private long m_size;
+    private long m_window_start;
+    private MappedByteBuffer m_window;
+    private CharsetDecoder m_decoder;
+    private boolean m_eof;
+
+    public MappedFileReader(Path path) throws IOException {
+        this(path, StandardCharsets.UTF_8);
+    }
+
+    public MappedFileReader(Path path, Charset charset) throws IOException {
+        m_channel = FileChannel.open(path, StandardOpenOption.READ);
+        m_size = m_channel.size();
+        m_decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        map(0);
+    }
+
+    private void map(long start) throws IOException {
+        m_window_start = start;
+        m_window = m_channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, m_size - start));
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (m_eof) {
+            return -1;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (out.position() == off) {
+            boolean last = m_window_start + m_window.limit() >= m_size;
+            CoderResult result = m_decoder.decode(m_window, out, last);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isUnderflow()) {
+                if (last) {
+                    m_decoder.flush(out);
+                    m_eof = true;
+                    break;
+                } else {
+                    // a character might straddle the end of the window, so the
+                    // next window starts with whatever was not decoded yet.
+                    map(m_window_start + m_window.position());
+                }
+            }
+        }
+        return out.position() == off ? -1 : out.position() - off;
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_window = null;
+        m_channel.close();
+    }
+}
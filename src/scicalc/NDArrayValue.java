@@ -0,0 +1,563 @@
+package scicalc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An n-dimensional array of numbers, like a matrix. The items are in one
+ * block of doubles, and the array is a view of it: an offset, a shape, and a
+ * stride for each dimension (how far apart consecutive indices are in the
+ * block). Indexing with fewer indices than dimensions, slicing, transposing
+ * and most reshaping just make another view of the same block, so they copy
+ * nothing, and storing through a view changes the array it came from.
+ *
+ * The block is a double[], or if the scicalc.ndarray.offheap system property
+ * is true, a direct buffer outside the Java heap.
+ *
+ * A[i, j] is GET(GET(A, i), j), and GetNode and SetNode do that in one step
+ * on an NDArrayValue rather than making a view of row i first.
+ *
+ * @author kmill
+ *
+ */
+public class NDArrayValue implements Value {
+    private static final boolean OFF_HEAP = Boolean.getBoolean("scicalc.ndarray.offheap");
+    /**
+     * The side of the square blocks matmul() works on; three blocks of
+     * doubles fit in a typical L2 cache.
+     */
+    private static final int BLOCK = 64;
+
+    /** the block, if it is on the heap */
+    private final double[] m_heap;
+    /** the block, if it is off the heap */
+    private final DoubleBuffer m_direct;
+    private final int m_offset;
+    private final int[] m_shape;
+    private final int[] m_strides;
+
+    private NDArrayValue(double[] heap, DoubleBuffer direct, int offset, int[] shape, int[] strides) {
+        m_heap = heap;
+        m_direct = direct;
+        m_offset = offset;
+        m_shape = shape;
+        m_strides = strides;
+    }
+
+    /**
+     * A new array of zeros.
+     */
+    public NDArrayValue(int[] shape) {
+        this(shape, size(shape));
+    }
+
+    private NDArrayValue(int[] shape, int size) {
+        this(OFF_HEAP ? null : new double[size],
+                OFF_HEAP ? ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer() : null,
+                0, shape.clone(), rowMajor(shape));
+    }
+
+    /**
+     * A new array holding the given items in row-major order.
+     */
+    static NDArrayValue of(int[] shape, double[] items) {
+        if (OFF_HEAP) {
+            NDArrayValue result = new NDArrayValue(shape);
+            result.m_direct.put(items, 0, items.length);
+            result.m_direct.clear();
+            return result;
+        }
+        return new NDArrayValue(items, null, 0, shape.clone(), rowMajor(shape));
+    }
+
+    private static int size(int[] shape) {
+        long size = 1;
+        for (int n : shape) {
+            if (n < 0) {
+                throw new IllegalArgumentException("Dimensions must not be negative");
+            }
+            size *= n;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Array too large");
+        }
+        return (int) size;
+    }
+
+    private static int[] rowMajor(int[] shape) {
+        int[] strides = new int[shape.length];
+        int stride = 1;
+        for (int d = shape.length - 1; d >= 0; d--) {
+            strides[d] = stride;
+            stride *= shape[d];
+        }
+        return strides;
+    }
+
+    /**
+     * @return the value as an NDArrayValue: itself, or a copy of an array of
+     *         arrays of numbers, which must be rectangular
+     */
+    public static NDArrayValue from(Value value) {
+        if (value instanceof NDArrayValue) {
+            return (NDArrayValue) value;
+        } else if (!(value instanceof ArrayValue)) {
+            throw new IllegalArgumentException("Expecting an array");
+        }
+        ArrayList<Integer> dims = new ArrayList<>();
+        for (Value v = value; v instanceof ArrayValue || v instanceof NDArrayValue; v = v.get(FloatValue.valueOf(0))) {
+            if (v instanceof NDArrayValue) {
+                for (int n : ((NDArrayValue) v).m_shape) {
+                    dims.add(n);
+                }
+                break;
+            }
+            int n = ((ArrayValue) v).size();
+            dims.add(n);
+            if (n == 0) {
+                break;
+            }
+        }
+        int[] shape = new int[dims.size()];
+        for (int d = 0; d < shape.length; d++) {
+            shape[d] = dims.get(d);
+        }
+        double[] items = new double[size(shape)];
+        fill(value, shape, 0, items, 0);
+        return of(shape, items);
+    }
+
+    /**
+     * Copies the nested arrays into items, from position pos.
+     *
+     * @return the position after the last item copied
+     */
+    private static int fill(Value value, int[] shape, int d, double[] items, int pos) {
+        if (d == shape.length) {
+            if (!(value instanceof FloatValue || value instanceof BoolValue)) {
+                throw new IllegalArgumentException("Array is not rectangular, or not all numbers");
+            }
+            items[pos] = value.asFloat();
+            return pos + 1;
+        }
+        int n;
+        if (value instanceof ArrayValue) {
+            n = ((ArrayValue) value).size();
+        } else if (value instanceof NDArrayValue) {
+            n = ((NDArrayValue) value).m_shape[0];
+        } else {
+            throw new IllegalArgumentException("Array is not rectangular");
+        }
+        if (n != shape[d]) {
+            throw new IllegalArgumentException("Array is not rectangular");
+        }
+        for (int i = 0; i < n; i++) {
+            pos = fill(value.get(FloatValue.valueOf(i)), shape, d + 1, items, pos);
+        }
+        return pos;
+    }
+
+    public int getRank() {
+        return m_shape.length;
+    }
+
+    /**
+     * @return the number of items
+     */
+    public int size() {
+        return size(m_shape);
+    }
+
+    /**
+     * @return whether the other array has the same shape as this one
+     */
+    boolean hasShapeOf(NDArrayValue other) {
+        return Arrays.equals(m_shape, other.m_shape);
+    }
+
+    /**
+     * @return a new array with the same shape as this one, holding the given
+     *         items in row-major order
+     */
+    NDArrayValue withItems(double[] items) {
+        return of(m_shape, items);
+    }
+
+    /**
+     * @return the length of the first dimension
+     */
+    public int length() {
+        return m_shape[0];
+    }
+
+    /**
+     * @return the shape, as an array of numbers
+     */
+    public ArrayValue shape() {
+        ArrayList<Value> dims = new ArrayList<>();
+        for (int n : m_shape) {
+            dims.add(FloatValue.valueOf(n));
+        }
+        return new ArrayValue(dims);
+    }
+
+    private double load(int pos) {
+        return m_heap != null ? m_heap[pos] : m_direct.get(pos);
+    }
+
+    private void store(int pos, double value) {
+        if (m_heap != null) {
+            m_heap[pos] = value;
+        } else {
+            m_direct.put(pos, value);
+        }
+    }
+
+    @Override
+    public double asFloat() {
+        throw new IllegalArgumentException("Array is not a number");
+    }
+
+    @Override
+    public boolean asBool() {
+        return m_shape[0] > 0; // like ArrayValue
+    }
+
+    @Override
+    public Value apply(Value[] values) {
+        throw new IllegalArgumentException("Array is not a function");
+    }
+
+    @Override
+    public Value get(Value index) {
+        return get(index.asFloat());
+    }
+
+    @Override
+    public Value set(Value index, Value value) {
+        set(index.asFloat(), value);
+        return NullValue.INSTANCE;
+    }
+
+    /**
+     * A[i]: a number, if this has one dimension, and otherwise the view of
+     * the part of the array with that first index.
+     */
+    public Value get(double index) {
+        int pos = m_offset + checkIndex(0, index) * m_strides[0];
+        if (m_shape.length == 1) {
+            return FloatValue.valueOf(load(pos));
+        }
+        return new NDArrayValue(m_heap, m_direct, pos, Arrays.copyOfRange(m_shape, 1, m_shape.length),
+                Arrays.copyOfRange(m_strides, 1, m_strides.length));
+    }
+
+    /**
+     * A[i, j], without making a view of A[i] if there are two dimensions.
+     */
+    public Value get(double i, double j) {
+        if (m_shape.length != 2) {
+            return get(i).get(FloatValue.valueOf(j));
+        }
+        return FloatValue.valueOf(load(position(i, j)));
+    }
+
+    /**
+     * A[i] as a double, the same as get(index).asFloat(), except that a view
+     * is thrown in a NotANumber (see ElementwiseValue.asFloat()).
+     */
+    public double getDouble(double index) {
+        if (m_shape.length != 1) {
+            return ElementwiseValue.asFloat(get(index));
+        }
+        return load(m_offset + checkIndex(0, index) * m_strides[0]);
+    }
+
+    /**
+     * A[i, j] as a double, like getDouble(i).
+     */
+    public double getDouble(double i, double j) {
+        if (m_shape.length != 2) {
+            return ElementwiseValue.asFloat(get(i, j));
+        }
+        return load(position(i, j));
+    }
+
+    /**
+     * A[i] <- value. With more than one dimension, the value must be an array
+     * with the shape of A[i], which is copied in.
+     */
+    public void set(double index, Value value) {
+        if (m_shape.length == 1) {
+            set(index, number(value));
+        } else {
+            ((NDArrayValue) get(index)).assign(value);
+        }
+    }
+
+    public void set(double index, double value) {
+        if (m_shape.length != 1) {
+            set(index, FloatValue.valueOf(value));
+            return;
+        }
+        store(m_offset + checkIndex(0, index) * m_strides[0], value);
+    }
+
+    /**
+     * A[i, j] <- value, without making a view of A[i] if there are two
+     * dimensions.
+     */
+    public void set(double i, double j, Value value) {
+        if (m_shape.length != 2) {
+            get(i).set(FloatValue.valueOf(j), value);
+            return;
+        }
+        store(position(i, j), number(value));
+    }
+
+    public void set(double i, double j, double value) {
+        if (m_shape.length != 2) {
+            set(i, j, FloatValue.valueOf(value));
+            return;
+        }
+        store(position(i, j), value);
+    }
+
+    private static double number(Value value) {
+        if (!(value instanceof FloatValue || value instanceof BoolValue)) {
+            throw new IllegalArgumentException("An ndarray can only hold numbers");
+        }
+        return value.asFloat();
+    }
+
+    /**
+     * Copies an array of the same shape into this one.
+     */
+    private void assign(Value value) {
+        NDArrayValue source = from(value);
+        if (!Arrays.equals(source.m_shape, m_shape)) {
+            throw new IllegalArgumentException("Shapes do not match");
+        }
+        double[] items = source.toRowMajor();
+        int[] index = new int[m_shape.length];
+        for (int k = 0; k < items.length; k++) {
+            store(position(index), items[k]);
+            next(index);
+        }
+    }
+
+    private int position(double i, double j) {
+        return m_offset + checkIndex(0, i) * m_strides[0] + checkIndex(1, j) * m_strides[1];
+    }
+
+    private int position(int[] index) {
+        int pos = m_offset;
+        for (int d = 0; d < index.length; d++) {
+            pos += index[d] * m_strides[d];
+        }
+        return pos;
+    }
+
+    /**
+     * Steps a multi-index on in row-major order.
+     */
+    private void next(int[] index) {
+        for (int d = index.length - 1; d >= 0; d--) {
+            if (++index[d] < m_shape[d]) {
+                return;
+            }
+            index[d] = 0;
+        }
+    }
+
+    private int checkIndex(int d, double index) {
+        int i = (int) index;
+        if (i != index) {
+            throw new IllegalArgumentException("Index to array must be an integer");
+        }
+        if (i < 0 || i >= m_shape[d]) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + m_shape[d]);
+        }
+        return i;
+    }
+
+    private boolean isContiguous() {
+        return Arrays.equals(m_strides, rowMajor(m_shape));
+    }
+
+    /**
+     * @return the items in row-major order, which is the block itself if
+     *         the array is all of a heap block (so it must not be changed)
+     */
+    double[] toRowMajor() {
+        int size = size(m_shape);
+        if (m_heap != null && m_offset == 0 && size == m_heap.length && isContiguous()) {
+            return m_heap;
+        }
+        double[] items = new double[size];
+        if (isContiguous()) {
+            if (m_heap != null) {
+                System.arraycopy(m_heap, m_offset, items, 0, size);
+            } else {
+                DoubleBuffer source = m_direct.duplicate();
+                source.position(m_offset);
+                source.get(items);
+            }
+            return items;
+        }
+        int[] index = new int[m_shape.length];
+        for (int k = 0; k < size; k++) {
+            items[k] = load(position(index));
+            next(index);
+        }
+        return items;
+    }
+
+    /**
+     * @return a new array with the same items, in a block of its own
+     */
+    public NDArrayValue copy() {
+        return of(m_shape, toRowMajor().clone());
+    }
+
+    /**
+     * @return the view with the dimensions in the opposite order
+     */
+    public NDArrayValue transpose() {
+        int rank = m_shape.length;
+        int[] shape = new int[rank], strides = new int[rank];
+        for (int d = 0; d < rank; d++) {
+            shape[d] = m_shape[rank - 1 - d];
+            strides[d] = m_strides[rank - 1 - d];
+        }
+        return new NDArrayValue(m_heap, m_direct, m_offset, shape, strides);
+    }
+
+    /**
+     * @return the view of the items with first indices start, start + step,
+     *         ... up to but not including stop
+     */
+    public NDArrayValue slice(int start, int stop, int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("Step must be positive");
+        }
+        if (start < 0 || stop < start || stop > m_shape[0]) {
+            throw new IndexOutOfBoundsException("Slice " + start + " to " + stop + " out of bounds for length "
+                    + m_shape[0]);
+        }
+        int[] shape = m_shape.clone(), strides = m_strides.clone();
+        shape[0] = (stop - start + step - 1) / step;
+        strides[0] = m_strides[0] * step;
+        return new NDArrayValue(m_heap, m_direct, m_offset + start * m_strides[0], shape, strides);
+    }
+
+    /**
+     * @return the items in the given shape, in which one dimension may be -1
+     *         to stand for whatever is left. It is a view if this array is
+     *         contiguous, and otherwise a copy.
+     */
+    public NDArrayValue reshape(int[] shape) {
+        shape = shape.clone();
+        int size = size(m_shape), known = 1, unknown = -1;
+        for (int d = 0; d < shape.length; d++) {
+            if (shape[d] == -1 && unknown < 0) {
+                unknown = d;
+            } else {
+                known *= shape[d];
+            }
+        }
+        if (unknown >= 0 && known > 0 && size % known == 0) {
+            shape[unknown] = size / known;
+        }
+        if (size(shape) != size) {
+            throw new IllegalArgumentException("Cannot reshape " + size + " items to " + Arrays.toString(shape));
+        }
+        if (isContiguous()) {
+            return new NDArrayValue(m_heap, m_direct, m_offset, shape, rowMajor(shape));
+        }
+        return copy().reshape(shape);
+    }
+
+    /**
+     * The matrix product of two matrices, of a matrix and a vector, or of a
+     * vector and a matrix, or the dot product (a number) of two vectors. The work is done in BLOCK x BLOCK tiles so each
+     * tile of the operands is reused from the cache, with the innermost loop
+     * running along rows of b and c.
+     */
+    public static Value matmul(NDArrayValue a, NDArrayValue b) {
+        boolean vectorLeft = a.getRank() == 1, vectorRight = b.getRank() == 1;
+        if (vectorLeft) {
+            a = a.reshape(new int[] { 1, a.m_shape[0] });
+        }
+        if (vectorRight) {
+            b = b.reshape(new int[] { b.m_shape[0], 1 });
+        }
+        if (a.getRank() != 2 || b.getRank() != 2) {
+            throw new IllegalArgumentException("matmul expects matrices or vectors");
+        }
+        int m = a.m_shape[0], k = a.m_shape[1], n = b.m_shape[1];
+        if (b.m_shape[0] != k) {
+            throw new IllegalArgumentException("Shapes " + Arrays.toString(a.m_shape) + " and "
+                    + Arrays.toString(b.m_shape) + " do not match");
+        }
+        double[] x = a.toRowMajor(), y = b.toRowMajor(), z = new double[m * n];
+        for (int i0 = 0; i0 < m; i0 += BLOCK) {
+            int i1 = Math.min(i0 + BLOCK, m);
+            for (int p0 = 0; p0 < k; p0 += BLOCK) {
+                int p1 = Math.min(p0 + BLOCK, k);
+                for (int j0 = 0; j0 < n; j0 += BLOCK) {
+                    int j1 = Math.min(j0 + BLOCK, n);
+                    for (int i = i0; i < i1; i++) {
+                        int row = i * n;
+                        int p = p0;
+                        // four rows of y at a time, so each item of z is
+                        // loaded and stored a quarter as often
+                        for (; p + 3 < p1; p += 4) {
+                            double x0 = x[i * k + p], x1 = x[i * k + p + 1];
+                            double x2 = x[i * k + p + 2], x3 = x[i * k + p + 3];
+                            int y0 = p * n, y1 = y0 + n, y2 = y1 + n, y3 = y2 + n;
+                            for (int j = j0; j < j1; j++) {
+                                z[row + j] += x0 * y[y0 + j] + x1 * y[y1 + j] + x2 * y[y2 + j] + x3 * y[y3 + j];
+                            }
+                        }
+                        for (; p < p1; p++) {
+                            double xip = x[i * k + p];
+                            int col = p * n;
+                            for (int j = j0; j < j1; j++) {
+                                z[row + j] += xip * y[col + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (vectorLeft && vectorRight) {
+            return FloatValue.valueOf(z[0]);
+        }
+        return of(vectorLeft ? new int[] { n } : vectorRight ? new int[] { m } : new int[] { m, n }, z);
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        append(sb, 0, m_offset);
+        return sb.toString();
+    }
+
+    private void append(StringBuffer sb, int d, int pos) {
+        sb.append("[");
+        for (int i = 0; i < m_shape[d]; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (d == m_shape.length - 1) {
+                sb.append(FloatValue.valueOf(load(pos + i * m_strides[d])));
+            } else {
+                append(sb, d + 1, pos + i * m_strides[d]);
+            }
+        }
+        sb.append("]");
+    }
+}
@@ -0,0 +1,42 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+public class NegNode extends UnaryNode {
+
+    public NegNode(Expr operand) {
+        super(operand);
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.NEG1;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        try {
+            return FloatValue.valueOf(evaluateDouble(e));
+        } catch (NotANumber x) {
+            return x.materialize();
+        }
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        try {
+            return -m_operand.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw operandArray(x);
+        }
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        try {
+            return evaluateDouble(e) != 0.0;
+        } catch (NotANumber x) {
+            return x.materialize().asBool();
+        }
+    }
+}
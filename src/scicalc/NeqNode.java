@@ -0,0 +1,37 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+public class NeqNode extends BinaryNode {
+
+    public NeqNode(Expr left, Expr right) {
+        super(left, right);
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.NEQ2;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        return BoolValue.create(evaluateBool(e));
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return evaluateBool(e) ? 1.0 : 0.0;
+    }
+
+    /**
+     * Like ==, this is not elementwise, so an array is just not a number.
+     */
+    @Override
+    public boolean evaluateBool(Environment e) {
+        try {
+            return m_left.evaluateDouble(e) != m_right.evaluateDouble(e);
+        } catch (NotANumber x) {
+            throw new IllegalArgumentException(x.getMessage());
+        }
+    }
+}
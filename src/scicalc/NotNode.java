@@ -0,0 +1,28 @@
+package scicalc;
+
+public class NotNode extends UnaryNode {
+
+    public NotNode(Expr operand) {
+        super(operand);
+    }
+
+    @Override
+    public PrimFuncValue getPrim() {
+        return PrimFuncValue.NOT1;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        return BoolValue.create(evaluateBool(e));
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return evaluateBool(e) ? 1.0 : 0.0;
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return !m_operand.evaluateBool(e);
+    }
+}
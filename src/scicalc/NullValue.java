@@ -18,6 +18,16 @@ public class NullValue implements Expr, Value {
 		return this;
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		return asFloat();
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return asBool();
+	}
+
 	@Override
 	public double asFloat() {
 		return 0.0; // maybe a good idea, maybe not?
@@ -0,0 +1,290 @@
+package scicalc;
+
+import java.util.ArrayList;
+
+/**
+ * Simplifies a parsed tree before it is evaluated, so that work which does not
+ * depend on variables is not redone (and reallocated) every time.
+ *
+ * <ul>
+ * <li>Pure primitive applications whose arguments are all constants are
+ * folded into their value, like 126 - 32 or -1. If the primitive would throw,
+ * it is left alone so the error still happens at run time.</li>
+ * <li>The constant operands at the front of an arithmetic chain are folded
+ * together. Later constants are not, since floating point arithmetic is not
+ * actually associative.</li>
+ * <li>x^2, x^3 and x^4 of a variable become multiplications.</li>
+ * <li>Unary plus of something which is already a number is dropped, and so is
+ * double negation (and double "not" of a boolean).</li>
+ * <li>Ifs, whiles, ands and ors with constant conditions are decided, and
+ * constants which are not the last thing in a sequence are dropped.</li>
+ * </ul>
+ *
+ * @author kmill
+ *
+ */
+public class Optimizer extends ExprTransformer {
+
+    @Override
+    protected Expr transformApp(AppExpr e) {
+        Expr func = transform(e.getFunc());
+        Expr[] args = transformAll(e.getArgs());
+        if (func instanceof PrimFuncValue) {
+            return simplify((PrimFuncValue) func, args);
+        }
+        return new AppExpr(func, args);
+    }
+
+    private Expr simplify(PrimFuncValue prim, Expr[] args) {
+        if (isPure(prim) && allConstant(args)) {
+            Value folded = fold(prim, args);
+            if (folded != null) {
+                return (Expr) folded;
+            }
+        }
+        switch (prim) {
+        case POW2:
+            if (args.length == 2 && args[0] instanceof VariableExpr && args[1] instanceof FloatValue) {
+                double n = ((FloatValue) args[1]).asFloat();
+                if (n == 2) {
+                    return AppExpr.create(PrimFuncValue.MUL2, args[0], args[0]);
+                } else if (n == 3 || n == 4) {
+                    Expr[] operands = new Expr[(int) n];
+                    PrimFuncValue[] ops = new PrimFuncValue[operands.length - 1];
+                    for (int i = 0; i < operands.length; i++) {
+                        operands[i] = args[0];
+                    }
+                    for (int i = 0; i < ops.length; i++) {
+                        ops[i] = PrimFuncValue.MUL2;
+                    }
+                    return new ChainExpr(operands, ops);
+                }
+            }
+            break;
+        case PLUS1:
+            if (args.length == 1 && isNumeric(args[0])) {
+                return args[0];
+            }
+            break;
+        case NEG1:
+            if (args.length == 1 && isApp(args[0], PrimFuncValue.NEG1)) {
+                Expr x = ((AppExpr) args[0]).getArgs()[0];
+                return isNumeric(x) ? x : AppExpr.create(PrimFuncValue.PLUS1, x);
+            }
+            break;
+        case NOT1:
+            if (args.length == 1 && isApp(args[0], PrimFuncValue.NOT1)) {
+                Expr x = ((AppExpr) args[0]).getArgs()[0];
+                if (isBoolean(x)) {
+                    return x;
+                }
+            }
+            break;
+        default:
+            break;
+        }
+        return new AppExpr(prim, args);
+    }
+
+    @Override
+    protected Expr transformChain(ChainExpr e) {
+        Expr[] operands = transformAll(e.getOperands());
+        PrimFuncValue[] ops = e.getOps();
+        int folded = 0; // how many operations have been folded
+        Value acc = null;
+        if (isConstant(operands[0])) {
+            acc = (Value) operands[0];
+            while (folded < ops.length && isConstant(operands[folded + 1])) {
+                Value next = fold(ops[folded], new Expr[] { (Expr) acc, operands[folded + 1] });
+                if (next == null) {
+                    break;
+                }
+                acc = next;
+                folded++;
+            }
+        }
+        if (folded == 0) {
+            return new ChainExpr(operands, ops);
+        } else if (folded == ops.length) {
+            return (Expr) acc;
+        } else if (folded == ops.length - 1) {
+            return AppExpr.create(ops[folded], (Expr) acc, operands[folded + 1]);
+        } else {
+            Expr[] rest = new Expr[operands.length - folded];
+            PrimFuncValue[] restOps = new PrimFuncValue[ops.length - folded];
+            rest[0] = (Expr) acc;
+            System.arraycopy(operands, folded + 1, rest, 1, rest.length - 1);
+            System.arraycopy(ops, folded, restOps, 0, restOps.length);
+            return new ChainExpr(rest, restOps);
+        }
+    }
+
+    @Override
+    protected Expr transformSeq(SeqExpr e) {
+        Expr[] exprs = transformAll(e.getExprs());
+        ArrayList<Expr> kept = new ArrayList<>();
+        for (int i = 0; i < exprs.length; i++) {
+            Expr[] parts = exprs[i] instanceof SeqExpr ? ((SeqExpr) exprs[i]).getExprs() : new Expr[] { exprs[i] };
+            for (int j = 0; j < parts.length; j++) {
+                boolean last = i == exprs.length - 1 && j == parts.length - 1;
+                if (last || !isConstant(parts[j])) {
+                    kept.add(parts[j]);
+                }
+            }
+        }
+        if (kept.size() == 1) {
+            return kept.get(0);
+        }
+        return new SeqExpr(kept.toArray(new Expr[kept.size()]));
+    }
+
+    @Override
+    protected Expr transformIf(IfExpr e) {
+        Expr cond = transform(e.getCond());
+        if (isConstant(cond)) {
+            return ((Value) cond).asBool() ? transform(e.getCons()) : transform(e.getAlt());
+        }
+        Expr cons = transform(e.getCons());
+        return new IfExpr(cond, cons, transform(e.getAlt()));
+    }
+
+    @Override
+    protected Expr transformWhile(WhileExpr e) {
+        Expr cond = transform(e.getCond());
+        if (isConstant(cond) && !((Value) cond).asBool()) {
+            return NullValue.INSTANCE;
+        }
+        return new WhileExpr(cond, transform(e.getBody())).withSourceOf(e);
+    }
+
+    @Override
+    protected Expr transformAnd(AndExpr e) {
+        Expr left = transform(e.getLeft());
+        Expr right = transform(e.getRight());
+        if (isConstant(left) && !((Value) left).asBool()) {
+            return BoolValue.FALSE_INSTANCE;
+        } else if (isConstant(left) && isConstant(right)) {
+            return BoolValue.create(((Value) right).asBool());
+        }
+        return new AndExpr(left, right);
+    }
+
+    @Override
+    protected Expr transformOr(OrExpr e) {
+        Expr left = transform(e.getLeft());
+        Expr right = transform(e.getRight());
+        if (isConstant(left) && ((Value) left).asBool()) {
+            return BoolValue.TRUE_INSTANCE;
+        } else if (isConstant(left) && isConstant(right)) {
+            return BoolValue.create(((Value) right).asBool());
+        }
+        return new OrExpr(left, right);
+    }
+
+    /**
+     * @return the value of applying the primitive, or null if it throws
+     */
+    private static Value fold(PrimFuncValue prim, Expr[] args) {
+        Value[] values = new Value[args.length];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = (Value) args[i];
+        }
+        try {
+            return prim.apply(values);
+        } catch (RuntimeException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether a primitive has no side effects, so that applying it to
+     * constants (which are never arrays) can be done ahead of time.
+     */
+    private static boolean isPure(PrimFuncValue prim) {
+        switch (prim) {
+        case ADD2:
+        case SUB2:
+        case MUL2:
+        case DIV2:
+        case IDIV2:
+        case MOD2:
+        case POW2:
+        case NEG1:
+        case PLUS1:
+        case NOT1:
+        case LT2:
+        case LTE2:
+        case GT2:
+        case GTE2:
+        case EQ2:
+        case NEQ2:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isConstant(Expr e) {
+        return e instanceof FloatValue || e instanceof BoolValue || e instanceof StringValue || e instanceof NullValue;
+    }
+
+    private static boolean allConstant(Expr[] exprs) {
+        for (Expr e : exprs) {
+            if (!isConstant(e)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isApp(Expr e, PrimFuncValue prim) {
+        return e instanceof AppExpr && ((AppExpr) e).getFunc() == prim && ((AppExpr) e).getArgs().length == 1;
+    }
+
+    /**
+     * Whether the expression certainly evaluates to a new FloatValue, or to a
+     * new array of them from elementwise arithmetic (see ElementwiseValue),
+     * which unary plus would only copy.
+     */
+    private static boolean isNumeric(Expr e) {
+        if (e instanceof FloatValue || e instanceof ChainExpr) {
+            return true;
+        } else if (e instanceof AppExpr && ((AppExpr) e).getFunc() instanceof PrimFuncValue) {
+            switch ((PrimFuncValue) ((AppExpr) e).getFunc()) {
+            case ADD2:
+            case SUB2:
+            case MUL2:
+            case DIV2:
+            case IDIV2:
+            case MOD2:
+            case POW2:
+            case NEG1:
+            case PLUS1:
+                return true;
+            default:
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the expression certainly evaluates to a BoolValue. The ordering
+     * comparisons do not count, since they go elementwise on arrays.
+     */
+    private static boolean isBoolean(Expr e) {
+        if (e instanceof BoolValue || e instanceof AndExpr || e instanceof OrExpr) {
+            return true;
+        } else if (e instanceof AppExpr && ((AppExpr) e).getFunc() instanceof PrimFuncValue) {
+            switch ((PrimFuncValue) ((AppExpr) e).getFunc()) {
+            case NOT1:
+            case EQ2:
+            case NEQ2:
+                return true;
+            default:
+                return false;
+            }
+        }
+        return false;
+    }
+}
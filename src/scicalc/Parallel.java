@@ -0,0 +1,243 @@
+package scicalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The parallel primitives: pmap(a, f), preduce(a, f, init), and the PARFOR
+ * primitive which a parfor loop is parsed into (see SciParser). Each applies
+ * a function to a range of items on the workers of a ForkJoinPool, one per
+ * processor unless the scicalc.parallelism system property says otherwise.
+ *
+ * The range is split adaptively, as in the fork/join papers: a task splits
+ * off half of its range for another worker to steal only while there are few
+ * tasks queued for stealing, and otherwise just does its items. So a big
+ * range is cut into a few pieces per worker when the items are quick, and
+ * down to single items when they are slow and uneven.
+ *
+ * Every call of the function gets a frame of its own, whose parent is the
+ * environment the function was made in, as usual. Before the workers start,
+ * everything they can get to (through the function, and the array a pmap or
+ * preduce goes over) is found: the environments of the functions among it,
+ * with their ancestors, are shared by the workers, and while the operation
+ * runs their variables cannot be assigned to (see Environment). The items
+ * of arrays can be: every array among it is made a shared ArrayValue, whose
+ * changes take its lock. So no store is lost, even one which moves the
+ * array to another kind, though calls which store to the same item race as
+ * usual, and the last one wins.
+ *
+ * The first error in any call stops the operation, and is thrown again in
+ * the thread which started it, once the calls already running have finished.
+ * The workers see the global variables as the thread which started the
+ * operation does, through its overlay (see Interpreter.Session), which is
+ * shared like the function's environments, and they count their steps
+ * against its Budget.
+ *
+ * @author kmill
+ *
+ */
+final class Parallel {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("scicalc.parallelism",
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * How many tasks may be waiting to be stolen before a task stops
+     * splitting.
+     */
+    private static final int SURPLUS = 3;
+
+    private Parallel() {
+    }
+
+    /**
+     * What an operation does with each item, and with the results of the two
+     * halves of a range.
+     */
+    private abstract static class Work {
+        protected final Value m_f;
+        private final Environment.Overlay m_overlay = Environment.Overlay.current();
+        private final Budget m_budget = Budget.current();
+        private final AtomicReference<Throwable> m_error = new AtomicReference<>();
+
+        protected Work(Value f) {
+            m_f = f;
+        }
+
+        /**
+         * @return the result for the range so far, acc, and the i-th item
+         */
+        abstract Value item(int i, Value acc);
+
+        /**
+         * @return the result for two neighbouring ranges
+         */
+        Value combine(Value left, Value right) {
+            return null;
+        }
+
+        boolean failed() {
+            return m_error.get() != null;
+        }
+
+        void fail(Throwable x) {
+            m_error.compareAndSet(null, x);
+        }
+    }
+
+    private static class Range extends RecursiveTask<Value> {
+        private final Work m_work;
+        private final int m_from, m_to;
+
+        Range(Work work, int from, int to) {
+            m_work = work;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        protected Value compute() {
+            Environment.Overlay saved = Environment.Overlay.enter(m_work.m_overlay);
+            Budget savedBudget = Budget.enter(m_work.m_budget);
+            try {
+                if (m_to - m_from > 1 && getSurplusQueuedTaskCount() <= SURPLUS) {
+                    int middle = (m_from + m_to) >>> 1;
+                    Range right = new Range(m_work, middle, m_to);
+                    right.fork();
+                    Value left = new Range(m_work, m_from, middle).compute();
+                    return m_work.combine(left, right.join());
+                }
+                Value acc = null;
+                for (int i = m_from; i < m_to && !m_work.failed(); i++) {
+                    acc = m_work.item(i, acc);
+                }
+                return acc;
+            } catch (BlockExpr.Exit x) {
+                // the worker's own Exit is used again on its next exit
+                m_work.fail(x.copy());
+                return null;
+            } catch (RuntimeException | Error x) {
+                m_work.fail(x);
+                return null;
+            } finally {
+                Budget.leave(savedBudget);
+                Environment.Overlay.leave(saved);
+            }
+        }
+    }
+
+    /**
+     * @return a new array of f applied to each item of the array
+     */
+    static Value map(Value array, Value f) {
+        final Value[] items = items(array);
+        final Value[] results = new Value[items.length];
+        run(new Work(f) {
+            @Override
+            Value item(int i, Value acc) {
+                results[i] = m_f.apply(new Value[] { items[i] });
+                return null;
+            }
+        }, items.length, array);
+        return new ArrayValue(new ArrayList<>(Arrays.asList(results)));
+    }
+
+    /**
+     * @return init combined with the items by f, which must be associative,
+     *         since the halves of the array are combined separately
+     */
+    static Value reduce(Value array, Value f, Value init) {
+        final Value[] items = items(array);
+        Value result = run(new Work(f) {
+            @Override
+            Value item(int i, Value acc) {
+                return acc == null ? items[i] : m_f.apply(new Value[] { acc, items[i] });
+            }
+
+            @Override
+            Value combine(Value left, Value right) {
+                if (left == null || right == null) {
+                    return left == null ? right : left;
+                }
+                return m_f.apply(new Value[] { left, right });
+            }
+        }, items.length, array);
+        return result == null ? init : f.apply(new Value[] { init, result });
+    }
+
+    /**
+     * Applies f to each integer from lo up to (not including) hi.
+     */
+    static Value parfor(Value lo, Value hi, Value f) {
+        final int from = integer(lo);
+        run(new Work(f) {
+            @Override
+            Value item(int i, Value acc) {
+                m_f.apply(new Value[] { FloatValue.valueOf(from + i) });
+                return null;
+            }
+        }, Math.max(integer(hi) - from, 0), null);
+        return NullValue.INSTANCE;
+    }
+
+    /**
+     * Does the work on the items from 0 up to n, with the environments and
+     * the arrays which the function and the array (if not null) lead to
+     * shared.
+     *
+     * @return the result for the whole range
+     */
+    private static Value run(Work work, int n, Value array) {
+        Set<Environment> shared = ArrayValue.shareAll(array == null ? Collections.singleton(work.m_f)
+                : Arrays.asList(work.m_f, array));
+        for (Environment env : shared) {
+            env.share(1);
+        }
+        Value result;
+        try {
+            result = POOL.invoke(new Range(work, 0, n));
+        } finally {
+            for (Environment env : shared) {
+                env.share(-1);
+            }
+        }
+        Throwable error = work.m_error.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+        return result;
+    }
+
+    /**
+     * @return the items of an array, as they are when the operation starts
+     */
+    private static Value[] items(Value array) {
+        int n;
+        if (array instanceof ArrayValue) {
+            n = ((ArrayValue) array).size();
+        } else if (array instanceof NDArrayValue) {
+            n = ((NDArrayValue) array).length();
+        } else {
+            throw new IllegalArgumentException("First argument must be an array");
+        }
+        Value[] items = new Value[n];
+        for (int i = 0; i < n; i++) {
+            items[i] = array.get(FloatValue.valueOf(i));
+        }
+        return items;
+    }
+
+    private static int integer(Value value) {
+        double d = value.asFloat();
+        if ((int) d != d) {
+            throw new IllegalArgumentException("Bounds must be integers");
+        }
+        return (int) d;
+    }
+}
@@ -1,7 +1,5 @@
 package scicalc;
 
-import java.util.ArrayList;
-
 public enum PrimFuncValue implements Expr,Value {
 
     // arithmetic
@@ -13,13 +11,29 @@ public enum PrimFuncValue implements Expr,Value {
     // arrays
     MAKE_ARRAY, GET, SET, PUSH, POP, EXTEND, LEN,
     // strings
-    CHAR;
+    CHAR,
+    // ndarrays
+    NDARRAY, ZEROS, SHAPE, RESHAPE, TRANSPOSE, SLICE, MATMUL,
+    // elementwise array math
+    VADD, VSUB, VMUL, VDIV, VFMA, VSQRT, VLT, VGT, VSUM, VDOT,
+    // parallel
+    PMAP, PREDUCE, PARFOR;
 
     @Override
     public Value evaluate(Environment e) {
         return this;
     }
 
+    @Override
+    public double evaluateDouble(Environment e) {
+        return asFloat();
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return asBool();
+    }
+
     @Override
     public double asFloat() {
         throw new IllegalArgumentException("Function is not a float");
@@ -41,53 +55,53 @@ public enum PrimFuncValue implements Expr,Value {
         switch (this) {
         case ADD2:
             checkNumArgs(values, 2);
-            return new FloatValue(values[0].asFloat() + values[1].asFloat());
+            return add(values[0], values[1]);
         case SUB2:
             checkNumArgs(values, 2);
-            return new FloatValue(values[0].asFloat() - values[1].asFloat());
+            return sub(values[0], values[1]);
         case MUL2:
             checkNumArgs(values, 2);
-            return new FloatValue(values[0].asFloat() * values[1].asFloat());
+            return mul(values[0], values[1]);
         case DIV2:
             checkNumArgs(values, 2);
-            return new FloatValue(values[0].asFloat() / values[1].asFloat());
+            return div(values[0], values[1]);
         case IDIV2:
             checkNumArgs(values, 2);
-            return new FloatValue((int) values[0].asFloat() / (int) values[1].asFloat());
+            return idiv(values[0], values[1]);
         case MOD2:
             checkNumArgs(values, 2);
-            return new FloatValue(values[0].asFloat() % values[1].asFloat());
+            return mod(values[0], values[1]);
         case POW2:
             checkNumArgs(values, 2);
-            return new FloatValue(Math.pow(values[0].asFloat(), values[1].asFloat()));
+            return pow(values[0], values[1]);
         case NEG1:
             checkNumArgs(values, 1);
-            return new FloatValue(-values[0].asFloat());
+            return neg(values[0]);
         case PLUS1:
             checkNumArgs(values, 1);
-            return new FloatValue(values[0].asFloat());
+            return plus(values[0]);
         case NOT1:
             checkNumArgs(values, 1);
-            return BoolValue.create(!values[0].asBool());
+            return not(values[0]);
 
         case LT2:
             checkNumArgs(values, 2);
-            return BoolValue.create(values[0].asFloat() < values[1].asFloat());
+            return lt(values[0], values[1]);
         case LTE2:
             checkNumArgs(values, 2);
-            return BoolValue.create(values[0].asFloat() <= values[1].asFloat());
+            return lte(values[0], values[1]);
         case GT2:
             checkNumArgs(values, 2);
-            return BoolValue.create(values[0].asFloat() > values[1].asFloat());
+            return gt(values[0], values[1]);
         case GTE2:
             checkNumArgs(values, 2);
-            return BoolValue.create(values[0].asFloat() >= values[1].asFloat());
+            return gte(values[0], values[1]);
         case EQ2:
             checkNumArgs(values, 2);
-            return BoolValue.create(values[0].equals(values[1]));
+            return eq(values[0], values[1]);
         case NEQ2:
             checkNumArgs(values, 2);
-            return BoolValue.create(values[0].asFloat() != values[1].asFloat());
+            return neq(values[0], values[1]);
 
         case PRINT:
             for (int i = 0; i < values.length; i++) {
@@ -123,23 +137,18 @@ public enum PrimFuncValue implements Expr,Value {
             if (values.length > 2) {
                 throw new IllegalArgumentException("Expecting at most two arguments");
             }
-            ArrayList<Value> items = new ArrayList<>();
-            for (int i = 0; i < length; i++) {
-                items.add(fill);
-            }
-            return new ArrayValue(items);
+            return new ArrayValue(length, fill);
         }
         case GET:
             checkNumArgs(values, 2);
             return values[0].get(values[1]);
         case SET:
             checkNumArgs(values, 3);
-            values[0].set(values[1], values[2]);
-            return NullValue.INSTANCE;
+            return set(values[0], values[1], values[2]);
         case PUSH:
             checkNumArgs(values, 2);
             if (values[0] instanceof ArrayValue) {
-                ((ArrayValue) values[0]).getArray().add(values[1]);
+                ((ArrayValue) values[0]).push(values[1]);
                 return NullValue.INSTANCE;
             } else {
                 throw new IllegalArgumentException("First argument must be an array");
@@ -147,17 +156,14 @@ public enum PrimFuncValue implements Expr,Value {
         case POP:
             checkNumArgs(values, 2);
             if (values[0] instanceof ArrayValue) {
-                ArrayList<Value> array = ((ArrayValue) values[0]).getArray();
-                return array.remove(array.size() - 1);
+                return ((ArrayValue) values[0]).pop();
             } else {
                 throw new IllegalArgumentException("First argument must be an array");
             }
         case EXTEND:
             checkNumArgs(values, 2);
             if (values[0] instanceof ArrayValue && values[1] instanceof ArrayValue) {
-                ArrayList<Value> array1 = ((ArrayValue) values[0]).getArray();
-                ArrayList<Value> array2 = ((ArrayValue) values[1]).getArray();
-                array1.addAll(array2);
+                ((ArrayValue) values[0]).extend((ArrayValue) values[1]);
                 return NullValue.INSTANCE;
             } else {
                 throw new IllegalArgumentException("Both arguments must be arrays");
@@ -165,9 +171,11 @@ public enum PrimFuncValue implements Expr,Value {
         case LEN:
             checkNumArgs(values, 1);
             if (values[0] instanceof ArrayValue) {
-                return new FloatValue(((ArrayValue) values[0]).getArray().size());
+                return FloatValue.valueOf(((ArrayValue) values[0]).size());
+            } else if (values[0] instanceof NDArrayValue) {
+                return FloatValue.valueOf(((NDArrayValue) values[0]).length());
             } else if (values[0] instanceof StringValue) {
-                return new FloatValue(((StringValue) values[0]).getString().length());
+                return FloatValue.valueOf(((StringValue) values[0]).getString().length());
             } else {
                 throw new IllegalArgumentException();
             }
@@ -180,10 +188,230 @@ public enum PrimFuncValue implements Expr,Value {
             }
             return new StringValue(new String(new byte[] { (byte) i }));
         }
+
+        case NDARRAY:
+            // ndarray(a) copies a (rectangular) array of arrays of numbers,
+            // or an ndarray
+            checkNumArgs(values, 1);
+            if (values[0] instanceof NDArrayValue) {
+                return ((NDArrayValue) values[0]).copy();
+            }
+            return NDArrayValue.from(values[0]);
+        case ZEROS:
+            // zeros(n1, n2, ...) or zeros([n1, n2, ...])
+            return new NDArrayValue(dimensions(values, 0));
+        case SHAPE:
+            checkNumArgs(values, 1);
+            return NDArrayValue.from(values[0]).shape();
+        case RESHAPE:
+            // reshape(a, n1, n2, ...) or reshape(a, [n1, n2, ...])
+            if (values.length < 2) {
+                throw new IllegalArgumentException("Expecting an array and dimensions");
+            }
+            return NDArrayValue.from(values[0]).reshape(dimensions(values, 1));
+        case TRANSPOSE:
+            checkNumArgs(values, 1);
+            return NDArrayValue.from(values[0]).transpose();
+        case SLICE: {
+            // slice(a, start, stop) or slice(a, start, stop, step)
+            if (values.length != 3 && values.length != 4) {
+                throw new IllegalArgumentException("Expecting 3 or 4 arguments.  Given " + values.length);
+            }
+            int step = values.length == 4 ? integer(values[3]) : 1;
+            return NDArrayValue.from(values[0]).slice(integer(values[1]), integer(values[2]), step);
+        }
+        case MATMUL:
+            checkNumArgs(values, 2);
+            return NDArrayValue.matmul(NDArrayValue.from(values[0]), NDArrayValue.from(values[1]));
+
+        case VADD:
+        case VSUB:
+        case VMUL:
+        case VDIV:
+            checkNumArgs(values, 2);
+            return VectorOps.arithmetic(this, values[0], values[1]);
+        case VFMA:
+            checkNumArgs(values, 3);
+            return VectorOps.fma(values[0], values[1], values[2]);
+        case VSQRT:
+            checkNumArgs(values, 1);
+            return VectorOps.sqrt(values[0]);
+        case VLT:
+        case VGT:
+            checkNumArgs(values, 2);
+            return VectorOps.compare(this, values[0], values[1]);
+        case VSUM:
+            checkNumArgs(values, 1);
+            return FloatValue.valueOf(VectorOps.sum(values[0]));
+        case VDOT:
+            checkNumArgs(values, 2);
+            return FloatValue.valueOf(VectorOps.dot(values[0], values[1]));
+
+        case PMAP:
+            checkNumArgs(values, 2);
+            return Parallel.map(values[0], values[1]);
+        case PREDUCE:
+            checkNumArgs(values, 3);
+            return Parallel.reduce(values[0], values[1], values[2]);
+        case PARFOR:
+            // what parfor i := lo, hi do body end is parsed into:
+            // parfor(lo, hi, fun (i) body end)
+            checkNumArgs(values, 3);
+            return Parallel.parfor(values[0], values[1], values[2]);
         }
         throw new InternalError("missing Func implementation");
     }
 
+    private static int integer(Value value) {
+        double d = value.asFloat();
+        if ((int) d != d) {
+            throw new IllegalArgumentException("Argument must be an integer");
+        }
+        return (int) d;
+    }
+
+    /**
+     * @return the dimensions given by the arguments from first on, either
+     *         one each or as one array
+     */
+    private static int[] dimensions(Value[] values, int first) {
+        if (values.length == first + 1 && values[first] instanceof ArrayValue) {
+            ArrayValue dims = (ArrayValue) values[first];
+            values = new Value[dims.size()];
+            for (int d = 0; d < values.length; d++) {
+                values[d] = dims.get(FloatValue.valueOf(d));
+            }
+            first = 0;
+        }
+        if (values.length == first) {
+            throw new IllegalArgumentException("Expecting at least one dimension");
+        }
+        int[] shape = new int[values.length - first];
+        for (int d = 0; d < shape.length; d++) {
+            shape[d] = integer(values[first + d]);
+        }
+        return shape;
+    }
+
+    /*
+     * The operators themselves, shared by apply() and the operator nodes
+     * (AddNode and so on) which the Lowering pass puts in place of
+     * applications of these primitives. The arithmetic and comparisons work
+     * elementwise on arrays (see ElementwiseValue), computed straight away.
+     */
+
+    private static boolean isArray(Value a, Value b) {
+        return VectorOps.isArray(a) || VectorOps.isArray(b);
+    }
+
+    public static Value add(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(ADD2, a, b);
+        }
+        return FloatValue.valueOf(a.asFloat() + b.asFloat());
+    }
+
+    public static Value sub(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(SUB2, a, b);
+        }
+        return FloatValue.valueOf(a.asFloat() - b.asFloat());
+    }
+
+    public static Value mul(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(MUL2, a, b);
+        }
+        return FloatValue.valueOf(a.asFloat() * b.asFloat());
+    }
+
+    public static Value div(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(DIV2, a, b);
+        }
+        return FloatValue.valueOf(a.asFloat() / b.asFloat());
+    }
+
+    public static Value idiv(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(IDIV2, a, b);
+        }
+        return FloatValue.valueOf((int) a.asFloat() / (int) b.asFloat());
+    }
+
+    public static Value mod(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(MOD2, a, b);
+        }
+        return FloatValue.valueOf(a.asFloat() % b.asFloat());
+    }
+
+    public static Value pow(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(POW2, a, b);
+        }
+        return FloatValue.valueOf(Math.pow(a.asFloat(), b.asFloat()));
+    }
+
+    public static Value neg(Value a) {
+        if (VectorOps.isArray(a)) {
+            return ElementwiseValue.apply(NEG1, a, null);
+        }
+        return FloatValue.valueOf(-a.asFloat());
+    }
+
+    public static Value plus(Value a) {
+        if (VectorOps.isArray(a)) {
+            return ElementwiseValue.apply(PLUS1, a, null);
+        }
+        return FloatValue.valueOf(a.asFloat());
+    }
+
+    public static Value not(Value a) {
+        return BoolValue.create(!a.asBool());
+    }
+
+    public static Value lt(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(LT2, a, b);
+        }
+        return BoolValue.create(a.asFloat() < b.asFloat());
+    }
+
+    public static Value lte(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(LTE2, a, b);
+        }
+        return BoolValue.create(a.asFloat() <= b.asFloat());
+    }
+
+    public static Value gt(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(GT2, a, b);
+        }
+        return BoolValue.create(a.asFloat() > b.asFloat());
+    }
+
+    public static Value gte(Value a, Value b) {
+        if (isArray(a, b)) {
+            return ElementwiseValue.apply(GTE2, a, b);
+        }
+        return BoolValue.create(a.asFloat() >= b.asFloat());
+    }
+
+    public static Value eq(Value a, Value b) {
+        return BoolValue.create(a.equals(b));
+    }
+
+    public static Value neq(Value a, Value b) {
+        return BoolValue.create(a.asFloat() != b.asFloat());
+    }
+
+    public static Value set(Value array, Value index, Value value) {
+        array.set(index, value);
+        return NullValue.INSTANCE;
+    }
+
     @Override
     public Value get(Value index) {
         throw new IllegalArgumentException("Function is not indexable");
@@ -0,0 +1,453 @@
+package scicalc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds which functions of a program its time goes to (the wall-clock time
+ * of the threads evaluating it), and its allocation, by sampling. While a
+ * profiler is running, each thread keeps a stack of the functions it is in,
+ * pushed and popped by FunExpr.call() (and Interpreter.Session, for the code
+ * outside any function), which also counts the calls. Every interval (1 ms,
+ * or scicalc.profile.interval microseconds), a thread of the profiler's own
+ * looks at those stacks, and the time since it last did, and what each
+ * thread allocated since then, are put down to where that thread is. So a
+ * call costs a few array writes, and the sampling takes much less than the
+ * interval, which is low enough to leave on.
+ *
+ * Functions are known by FunExpr.describe(), the name and place in the
+ * source, so that the same function parsed again (as for each request to a
+ * Server) adds up with the others. A direct call which compiled code makes
+ * to its own function (see JitCompiler) is counted but not pushed, as
+ * though the recursion were one call.
+ *
+ * The results are a table of the functions which took the most time
+ * themselves (top()), and the sampled stacks in the collapsed format which
+ * flame graph tools read (writeCollapsed()), one line of labels separated by
+ * semicolons and then the microseconds or bytes, for each stack.
+ *
+ * @author kmill
+ *
+ */
+public final class Profiler {
+    /** the label for code outside any function */
+    static final String TOP_LEVEL = "(top level)";
+
+    /** the running profiler, which every call looks at */
+    static volatile Profiler s_active;
+
+    /** null if the JVM cannot say how much a thread has allocated */
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+
+    private final long m_interval;
+    private final ThreadLocal<Stack> m_stack = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<Stack> m_stacks = new ConcurrentLinkedQueue<>();
+
+    /* the functions seen, numbered from 1, with 0 for the top level */
+    private final HashMap<String, Key> m_keys = new HashMap<>();
+    private final ArrayList<String> m_labels = new ArrayList<>(Collections.singletonList(TOP_LEVEL));
+
+    /** the nanoseconds and bytes for each stack sampled */
+    private final HashMap<Trace, long[]> m_traces = new HashMap<>();
+    /** the calls counted by the stacks of threads which have finished */
+    private long[] m_calls = new long[0];
+    private Thread m_sampler;
+
+    public Profiler() {
+        this(Long.getLong("scicalc.profile.interval", 1000));
+    }
+
+    /**
+     * @param interval
+     *            the microseconds between samples
+     */
+    public Profiler(long interval) {
+        m_interval = interval * 1000;
+    }
+
+    /**
+     * Starts profiling every thread, which only one profiler can do at a
+     * time.
+     */
+    public synchronized void start() {
+        if (m_sampler != null) {
+            throw new IllegalStateException("The profiler has been started already");
+        }
+        synchronized (Profiler.class) {
+            if (s_active != null) {
+                throw new IllegalStateException("Another profiler is running");
+            }
+            s_active = this;
+        }
+        if (ALLOCATIONS != null && !ALLOCATIONS.isThreadAllocatedMemoryEnabled()) {
+            ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+        }
+        m_sampler = new Thread("scicalc-profiler") {
+            @Override
+            public void run() {
+                long last = System.nanoTime();
+                while (true) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(m_interval);
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    sample(now - last);
+                    last = now;
+                }
+            }
+        };
+        m_sampler.setDaemon(true);
+        m_sampler.start();
+    }
+
+    /**
+     * Stops profiling. The results stay as they are from then on.
+     */
+    public void stop() throws InterruptedException {
+        Thread sampler;
+        synchronized (this) {
+            sampler = m_sampler;
+        }
+        synchronized (Profiler.class) {
+            if (s_active == this) {
+                s_active = null;
+            }
+        }
+        if (sampler != null) {
+            sampler.interrupt();
+            sampler.join();
+        }
+    }
+
+    /**
+     * Pushes the function on this thread's stack if a profiler is running.
+     *
+     * @return the stack, to leave() once the call is over, or null
+     */
+    static Stack enter(FunExpr fun) {
+        Profiler profiler = s_active;
+        if (profiler == null) {
+            return null;
+        }
+        Stack stack = profiler.stack();
+        stack.push(profiler.id(fun));
+        return stack;
+    }
+
+    /**
+     * enter() for the code of a program outside its functions.
+     */
+    static Stack enterTopLevel() {
+        Profiler profiler = s_active;
+        if (profiler == null) {
+            return null;
+        }
+        Stack stack = profiler.stack();
+        stack.push(0);
+        return stack;
+    }
+
+    /**
+     * Counts a call of the function, without pushing it.
+     */
+    static void count(FunExpr fun) {
+        Profiler profiler = s_active;
+        if (profiler != null) {
+            profiler.stack().count(profiler.id(fun));
+        }
+    }
+
+    private Stack stack() {
+        Stack stack = m_stack.get();
+        if (stack == null) {
+            stack = new Stack(this, Thread.currentThread());
+            m_stack.set(stack);
+            m_stacks.add(stack);
+        }
+        return stack;
+    }
+
+    private int id(FunExpr fun) {
+        Key key = fun.m_profile_key;
+        if (key == null || key.m_profiler != this) {
+            key = key(fun.describe());
+            fun.m_profile_key = key;
+        }
+        return key.m_id;
+    }
+
+    private synchronized Key key(String label) {
+        Key key = m_keys.get(label);
+        if (key == null) {
+            key = new Key(this, m_labels.size());
+            m_keys.put(label, key);
+            m_labels.add(label);
+        }
+        return key;
+    }
+
+    /**
+     * Puts the time since the last sample, and what was allocated, down to
+     * where each thread is now. The stacks are read as they are, without
+     * stopping the threads, which is good enough for a sample.
+     */
+    private void sample(long nanos) {
+        for (Stack stack : m_stacks) {
+            long allocated = allocated(stack.m_thread);
+            long bytes = allocated - stack.m_allocated;
+            stack.m_allocated = allocated;
+            int[] frames = stack.m_frames;
+            int depth = Math.min(stack.m_depth, frames.length);
+            if (depth <= 0) {
+                if (!stack.m_thread.isAlive()) {
+                    fold(stack);
+                }
+                continue;
+            }
+            Trace trace = new Trace(Arrays.copyOf(frames, depth));
+            synchronized (this) {
+                long[] totals = m_traces.get(trace);
+                if (totals == null) {
+                    totals = new long[2];
+                    m_traces.put(trace, totals);
+                }
+                totals[0] += nanos;
+                totals[1] += bytes;
+            }
+        }
+    }
+
+    /**
+     * Adds up the calls of a thread which has finished, and drops its stack.
+     */
+    private synchronized void fold(Stack stack) {
+        if (m_stacks.remove(stack)) {
+            m_calls = add(m_calls, stack.m_calls);
+        }
+    }
+
+    private static long[] add(long[] sum, long[] counts) {
+        if (sum.length < counts.length) {
+            sum = Arrays.copyOf(sum, counts.length);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            sum[i] += counts[i];
+        }
+        return sum;
+    }
+
+    private static com.sun.management.ThreadMXBean allocations() {
+        Object threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) threads;
+        }
+        return null;
+    }
+
+    private static long allocated(Thread thread) {
+        return ALLOCATIONS != null ? Math.max(ALLOCATIONS.getThreadAllocatedBytes(thread.getId()), 0) : 0;
+    }
+
+    /**
+     * Writes a line for each stack sampled: the labels of its functions,
+     * outermost first and separated by semicolons, a space, and the
+     * microseconds spent there (or the bytes allocated there).
+     */
+    public synchronized void writeCollapsed(Writer out, boolean allocations) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        for (Map.Entry<Trace, long[]> entry : m_traces.entrySet()) {
+            long value = allocations ? entry.getValue()[1] : entry.getValue()[0] / 1000;
+            if (value > 0) {
+                StringBuilder sb = new StringBuilder();
+                for (int id : entry.getKey().m_frames) {
+                    if (sb.length() > 0) {
+                        sb.append(';');
+                    }
+                    sb.append(m_labels.get(id));
+                }
+                lines.add(sb.append(' ').append(value).toString());
+            }
+        }
+        Collections.sort(lines);
+        for (String line : lines) {
+            out.write(line);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Writes the collapsed stacks of time to the file, and those of
+     * allocation to the same name with ".alloc" after it.
+     */
+    public void save(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writeCollapsed(out, false);
+        }
+        try (Writer out = Files.newBufferedWriter(Paths.get(path + ".alloc"), StandardCharsets.UTF_8)) {
+            writeCollapsed(out, true);
+        }
+    }
+
+    /**
+     * @return a table of the n functions with the most time spent in them
+     *         and not in the functions they call (self), with the time spent
+     *         in their calls altogether (total), the number of calls, and the
+     *         bytes allocated
+     */
+    public synchronized String top(int n) {
+        final int count = m_labels.size();
+        long[] calls = m_calls;
+        for (Stack stack : m_stacks) {
+            calls = add(calls, stack.m_calls);
+        }
+        calls = Arrays.copyOf(calls, count);
+        final long[] self = new long[count], total = new long[count];
+        long[] selfBytes = new long[count], totalBytes = new long[count];
+        int[] seen = new int[count];
+        int mark = 0;
+        long all = 0;
+        for (Map.Entry<Trace, long[]> entry : m_traces.entrySet()) {
+            int[] frames = entry.getKey().m_frames;
+            long nanos = entry.getValue()[0], bytes = entry.getValue()[1];
+            all += nanos;
+            self[frames[frames.length - 1]] += nanos;
+            selfBytes[frames[frames.length - 1]] += bytes;
+            // a function in the stack more than once (by recursion) is only
+            // in it for the time once
+            mark++;
+            for (int id : frames) {
+                if (seen[id] != mark) {
+                    seen[id] = mark;
+                    total[id] += nanos;
+                    totalBytes[id] += bytes;
+                }
+            }
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < count; id++) {
+            if (calls[id] > 0 || total[id] > 0) {
+                ids.add(id);
+            }
+        }
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(self[b], self[a]);
+                return c != 0 ? c : Long.compare(total[b], total[a]);
+            }
+        });
+        StringBuilder sb = new StringBuilder(String.format("%10s %6s %10s %12s %12s %12s  %s%n", "self ms", "self%",
+                "total ms", "calls", "self KB", "total KB", "function"));
+        for (int id : ids.subList(0, Math.min(n, ids.size()))) {
+            sb.append(String.format("%10.1f %6.1f %10.1f %12d %12d %12d  %s%n", self[id] / 1e6,
+                    all == 0 ? 0.0 : 100.0 * self[id] / all, total[id] / 1e6, calls[id], selfBytes[id] / 1024,
+                    totalBytes[id] / 1024, m_labels.get(id)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The number a profiler gives a function, kept by the FunExpr so that it
+     * need only be looked up once.
+     */
+    static final class Key {
+        final Profiler m_profiler;
+        final int m_id;
+
+        Key(Profiler profiler, int id) {
+            m_profiler = profiler;
+            m_id = id;
+        }
+    }
+
+    /**
+     * The functions a thread is in, innermost last, and how many times it
+     * has called each. Only the thread changes it; the sampler reads the
+     * frames without synchronization.
+     */
+    static final class Stack {
+        private final Profiler m_profiler;
+        private final Thread m_thread;
+        private int[] m_frames = new int[64];
+        private int m_depth;
+        private long[] m_calls = new long[16];
+        /** what the thread had allocated when it was last sampled */
+        private long m_allocated;
+
+        Stack(Profiler profiler, Thread thread) {
+            m_profiler = profiler;
+            m_thread = thread;
+            m_allocated = allocated(thread);
+        }
+
+        void push(int id) {
+            if (m_depth == m_frames.length) {
+                m_frames = Arrays.copyOf(m_frames, m_depth * 2);
+            }
+            m_frames[m_depth] = id;
+            m_depth++;
+            count(id);
+        }
+
+        /**
+         * Replaces the innermost function, which has made a tail call.
+         */
+        void replace(FunExpr fun) {
+            int id = m_profiler.id(fun);
+            m_frames[m_depth - 1] = id;
+            count(id);
+        }
+
+        void count(int id) {
+            if (id >= m_calls.length) {
+                m_calls = Arrays.copyOf(m_calls, Math.max(id + 1, m_calls.length * 2));
+            }
+            m_calls[id]++;
+        }
+
+        void leave() {
+            m_depth--;
+        }
+    }
+
+    /**
+     * The functions of a stack sampled, as the numbers they have in the
+     * profiler, outermost first.
+     */
+    private static final class Trace {
+        final int[] m_frames;
+        private final int m_hash;
+
+        Trace(int[] frames) {
+            m_frames = frames;
+            m_hash = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Trace && Arrays.equals(m_frames, ((Trace) o).m_frames);
+        }
+    }
+}
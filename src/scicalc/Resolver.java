@@ -0,0 +1,362 @@
+package scicalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Works out, ahead of time, where each variable lives, so that evaluation can
+ * use numbered slots in frames (see Environment) instead of looking names up
+ * in a chain of HashMaps.
+ *
+ * Every function and every block which needs one gets a frame. Its slots are
+ * the parameters (or the label) followed by every variable defined with ":="
+ * directly in its body, that is, not inside a nested function or block. A
+ * variable reference then gets the (depth, slot) of each enclosing frame that
+ * defines the name. There can be several since a definition might not have
+ * run yet, in which case the reference falls through to the next frame out,
+ * and then to the global environment, exactly as with the name-based lookup.
+ *
+ * The top level is the global environment, which stays name-based, so
+ * variables which are only defined there are left as VariableExprs.
+ *
+ * A block with no function in it shares the frame of the enclosing function
+ * or block instead, with slots of its own after the enclosing scope's, since
+ * without a closure nothing can tell the difference. A label which is only
+ * ever called becomes ExitExprs (see BlockExpr): ones which name the block
+ * if the calls are all directly in its body, and otherwise ones which name
+ * the block's frame, where the label keeps its slot.
+ *
+ * The Resolver also marks the applications in tail position in each function
+ * body: the body itself, both branches of an if in tail position, and the
+ * last expression of a sequence in tail position. Those calls are made by
+ * the caller's FunExpr.call() after the body returns (see TailCall). A block
+ * is not looked into, since a call of its label has to happen inside it.
+ *
+ * @author kmill
+ *
+ */
+public class Resolver extends ExprTransformer {
+
+    private static class Scope {
+        private Scope m_parent;
+        /**
+         * The scope whose frame the variables are in: this one, or for a
+         * shared block, the enclosing one (null at the top level)
+         */
+        private Scope m_frame;
+        private HashMap<String, Integer> m_slots = new HashMap<>();
+        /** for a scope with a frame, the number of slots of the frame */
+        private int m_size;
+
+        public Scope(Scope parent) {
+            m_parent = parent;
+            m_frame = this;
+        }
+
+        public Scope(Scope parent, Scope frame) {
+            m_parent = parent;
+            m_frame = frame;
+        }
+
+        public int declare(String name) {
+            Integer slot = m_slots.get(name);
+            if (slot == null) {
+                slot = m_frame.m_size++;
+                m_slots.put(name, slot);
+            }
+            return slot;
+        }
+
+        public Integer lookup(String name) {
+            return m_slots.get(name);
+        }
+
+        /**
+         * @return the number of slots of the frame
+         */
+        public int size() {
+            return m_frame == null ? 0 : m_frame.m_size;
+        }
+
+        /**
+         * @return the number of variables declared in this scope itself
+         */
+        public int count() {
+            return m_slots.size();
+        }
+    }
+
+    /**
+     * The innermost frame, or null at the top level.
+     */
+    private Scope m_scope;
+    /**
+     * The labels of the enclosing blocks whose calls become ExitExprs, with
+     * their exit keys.
+     */
+    private HashMap<String, Object> m_exits = new HashMap<>();
+    /** the exit keys of the blocks which are left by frame */
+    private IdentityHashMap<Object, Boolean> m_frame_exits = new IdentityHashMap<>();
+
+    @Override
+    protected Expr transformFun(FunExpr e) {
+        Scope scope = new Scope(m_scope);
+        String[] params = e.getParameters();
+        int[] paramSlots = new int[params.length];
+        for (int i = 0; i < params.length; i++) {
+            paramSlots[i] = scope.declare(params[i]);
+        }
+        declareDefinitions(scope, e.getBody());
+        Expr body = tail(transformIn(scope, e.getBody()));
+        return new FunExpr(params, body, scope.size(), paramSlots).withSourceOf(e);
+    }
+
+    /**
+     * @return e with the applications in tail position marked
+     */
+    private static Expr tail(Expr e) {
+        if (e instanceof AppExpr) {
+            AppExpr app = (AppExpr) e;
+            return new AppExpr(app.getFunc(), app.getArgs(), true);
+        } else if (e instanceof IfExpr) {
+            IfExpr ife = (IfExpr) e;
+            return new IfExpr(ife.getCond(), tail(ife.getCons()), tail(ife.getAlt()));
+        } else if (e instanceof SeqExpr) {
+            Expr[] exprs = ((SeqExpr) e).getExprs().clone();
+            if (exprs.length > 0) {
+                exprs[exprs.length - 1] = tail(exprs[exprs.length - 1]);
+            }
+            return new SeqExpr(exprs);
+        }
+        return e;
+    }
+
+    @Override
+    protected Expr transformBlock(BlockExpr e) {
+        String label = e.getLabel();
+        boolean exits = label != null && !escapes(label, e.getBody(), false);
+        boolean byFrame = label != null && !exits && !escapes(label, e.getBody(), true);
+        boolean shared;
+        if (m_scope != null) {
+            // the block's variables would be seen by a closure made in it
+            // after the block has been entered again
+            shared = !containsFunction(e.getBody());
+        } else {
+            // a block at the top level can only share the global
+            // environment's frame, which does not exist
+            Scope probe = new Scope(null);
+            declareDefinitions(probe, e.getBody());
+            shared = exits && probe.count() == 0;
+        }
+        Scope scope = shared ? new Scope(m_scope, m_scope == null ? null : m_scope.m_frame) : new Scope(m_scope);
+        int firstSlot = scope.size();
+        int labelSlot = -1;
+        if (label != null && !exits) {
+            labelSlot = scope.declare(label);
+        }
+        declareDefinitions(scope, e.getBody());
+        if (label == null && scope.count() == 0) {
+            // an unlabeled block which defines nothing is just its body
+            return transform(e.getBody());
+        }
+        Object exitKey = exits || byFrame ? new Object() : null;
+        if (byFrame) {
+            m_frame_exits.put(exitKey, true);
+        }
+        Object saved = exitKey != null ? m_exits.put(label, exitKey) : null;
+        Expr body;
+        try {
+            body = transformIn(scope, e.getBody());
+        } finally {
+            if (saved != null) {
+                m_exits.put(label, saved);
+            } else if (exitKey != null) {
+                m_exits.remove(label);
+            }
+        }
+        return new BlockExpr(label, body, scope.count(), labelSlot, shared ? firstSlot : -1, exitKey);
+    }
+
+    @Override
+    protected Expr transformApp(AppExpr e) {
+        if (e.getFunc() instanceof VariableExpr) {
+            String name = ((VariableExpr) e.getFunc()).getIdentifier();
+            Object exitKey = m_exits.get(name);
+            if (exitKey != null) {
+                Expr[] args = e.getArgs();
+                Expr value = args.length == 0 ? NullValue.INSTANCE : transform(args[0]);
+                if (m_frame_exits.containsKey(exitKey)) {
+                    // the label's slot is the innermost definition of the name
+                    int[][] candidates = candidates(name);
+                    return new ExitExpr(name, exitKey, candidates[0][0], candidates[1][0], value);
+                }
+                return new ExitExpr(name, exitKey, value);
+            }
+        }
+        return super.transformApp(e);
+    }
+
+    private Expr transformIn(Scope scope, Expr e) {
+        Scope saved = m_scope;
+        m_scope = scope;
+        try {
+            return transform(e);
+        } finally {
+            m_scope = saved;
+        }
+    }
+
+    @Override
+    protected Expr transformVariable(VariableExpr e) {
+        int[][] candidates = candidates(e.getIdentifier());
+        if (candidates == null) {
+            return e;
+        }
+        return new LocalExpr(e.getIdentifier(), candidates[0], candidates[1]);
+    }
+
+    @Override
+    protected Expr transformStore(StoreExpr e) {
+        Expr expr = transform(e.getExpr());
+        if (m_scope == null) {
+            return new StoreExpr(e.getIdentifier(), expr);
+        }
+        return new LocalStoreExpr(e.getIdentifier(), m_scope.lookup(e.getIdentifier()), expr);
+    }
+
+    @Override
+    protected Expr transformUpdate(UpdateExpr e) {
+        Expr expr = transform(e.getExpr());
+        int[][] candidates = candidates(e.getIdentifier());
+        if (candidates == null) {
+            return new UpdateExpr(e.getIdentifier(), expr);
+        }
+        return new LocalUpdateExpr(e.getIdentifier(), candidates[0], candidates[1], expr);
+    }
+
+    /**
+     * @return the depths and slots of every enclosing frame which defines the
+     *         name, innermost first, or null if there are none
+     */
+    private int[][] candidates(String name) {
+        ArrayList<Integer> depths = new ArrayList<>();
+        ArrayList<Integer> slots = new ArrayList<>();
+        int depth = 0;
+        for (Scope scope = m_scope; scope != null; scope = scope.m_parent) {
+            Integer slot = scope.lookup(name);
+            if (slot != null) {
+                depths.add(depth);
+                slots.add(slot);
+            }
+            if (scope.m_parent != null && scope.m_parent.m_frame != scope.m_frame) {
+                depth++;
+            }
+        }
+        if (depths.isEmpty()) {
+            return null;
+        }
+        int[][] result = new int[2][depths.size()];
+        for (int i = 0; i < depths.size(); i++) {
+            result[0][i] = depths.get(i);
+            result[1][i] = slots.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the label of a block with the given body might be used
+     *         other than by calling it with at most one argument, directly
+     *         in the body (or, if fromFunctions, also in nested functions):
+     *         as a value, or where a variable of the same name might be meant
+     */
+    private static boolean escapes(final String label, Expr body, final boolean fromFunctions) {
+        final boolean[] escapes = { false };
+        new ExprTransformer() {
+            private int m_functions;
+
+            @Override
+            protected Expr transformApp(AppExpr e) {
+                if ((m_functions == 0 || fromFunctions) && e.getFunc() instanceof VariableExpr
+                        && ((VariableExpr) e.getFunc()).getIdentifier().equals(label) && e.getArgs().length <= 1) {
+                    transformAll(e.getArgs());
+                    return e;
+                }
+                return super.transformApp(e);
+            }
+
+            @Override
+            protected Expr transformVariable(VariableExpr e) {
+                escapes[0] |= e.getIdentifier().equals(label);
+                return e;
+            }
+
+            @Override
+            protected Expr transformStore(StoreExpr e) {
+                escapes[0] |= e.getIdentifier().equals(label);
+                return super.transformStore(e);
+            }
+
+            @Override
+            protected Expr transformUpdate(UpdateExpr e) {
+                escapes[0] |= e.getIdentifier().equals(label);
+                return super.transformUpdate(e);
+            }
+
+            @Override
+            protected Expr transformFun(FunExpr e) {
+                escapes[0] |= fromFunctions && Arrays.asList(e.getParameters()).contains(label);
+                m_functions++;
+                try {
+                    return super.transformFun(e);
+                } finally {
+                    m_functions--;
+                }
+            }
+
+            @Override
+            protected Expr transformBlock(BlockExpr e) {
+                escapes[0] |= label.equals(e.getLabel());
+                return super.transformBlock(e);
+            }
+        }.transform(body);
+        return escapes[0];
+    }
+
+    private static boolean containsFunction(Expr body) {
+        final boolean[] contains = { false };
+        new ExprTransformer() {
+            @Override
+            protected Expr transformFun(FunExpr e) {
+                contains[0] = true;
+                return e;
+            }
+        }.transform(body);
+        return contains[0];
+    }
+
+    /**
+     * Gives a slot in the scope to every variable defined directly in the
+     * body.
+     */
+    private static void declareDefinitions(final Scope scope, Expr body) {
+        new ExprTransformer() {
+            @Override
+            protected Expr transformStore(StoreExpr e) {
+                scope.declare(e.getIdentifier());
+                return super.transformStore(e);
+            }
+
+            @Override
+            protected Expr transformFun(FunExpr e) {
+                return e; // has its own frame
+            }
+
+            @Override
+            protected Expr transformBlock(BlockExpr e) {
+                return e; // has its own frame
+            }
+        }.transform(body);
+    }
+}
@@ -28,69 +28,83 @@ public class SciParser {
         m_scanner = scanner;
     }
 
+    /**
+     * Parse {"elif" expr "do" expr} ["else" expr], given the condition and
+     * consequent which came first. The elif chain is collected with a loop and
+     * then nested from the back.
+     */
     private Expr parseIf(Expr cond, Expr cons) throws ParseError {
-        if (matchReserved("else")) {
-            Expr alt = parseExprSeq();
-            return new IfExpr(cond, cons, alt);
-        } else if (matchReserved("elif")) {
-            Expr cond2 = parseExprSeq();
-            checkToken(TokenType.RESERVED, "do");
-            Expr cons2 = parseExprSeq();
-            return new IfExpr(cond, cons, parseIf(cond2, cons2));
-        } else {
-            return new IfExpr(cond, cons, NullValue.INSTANCE);
+        ArrayList<Expr> conds = new ArrayList<>();
+        ArrayList<Expr> conses = new ArrayList<>();
+        conds.add(cond);
+        conses.add(cons);
+        while (match(TokenKind.ELIF)) {
+            conds.add(parseExprSeq());
+            checkToken(TokenKind.DO);
+            conses.add(parseExprSeq());
         }
+        Expr e = NullValue.INSTANCE;
+        if (match(TokenKind.ELSE)) {
+            e = parseExprSeq();
+        }
+        for (int i = conds.size() - 1; i >= 0; i--) {
+            e = new IfExpr(conds.get(i), conses.get(i), e);
+        }
+        return e;
     }
 
     private Expr parseTerm() throws ParseError {
         Expr e;
+        int line = m_scanner.getLine(), column = m_scanner.getColumn();
         if (m_scanner.isTokenType(TokenType.FLOAT)) {
             e = new FloatValue(m_scanner.getFloatVal());
             nextToken();
         } else if (m_scanner.isTokenType(TokenType.STRING)) {
             e = new StringValue(m_scanner.getToken());
             nextToken();
-        } else if (matchOperator("!")) {
+        } else if (match(TokenKind.NOT)) {
             e = AppExpr.create(PrimFuncValue.NOT1, parseTerm());
-        } else if (matchOperator("(")) {
+        } else if (match(TokenKind.LPAREN)) {
             e = parseExprSeq();
-            checkToken(TokenType.OPERATOR, ")");
-        } else if (matchOperator("[")) {
+            checkToken(TokenKind.RPAREN);
+        } else if (match(TokenKind.LBRACKET)) {
             ArrayList<Expr> items = new ArrayList<>();
-            if (!matchOperator("]")) {
+            if (!match(TokenKind.RBRACKET)) {
                 items.add(parseExpr());
-                while (matchOperator(",")) {
+                while (match(TokenKind.COMMA)) {
                     items.add(parseExpr());
                 }
-                matchOperator(","); // allow trailing comma.
-                checkToken(TokenType.OPERATOR, "]");
+                match(TokenKind.COMMA); // allow trailing comma.
+                checkToken(TokenKind.RBRACKET);
             }
             e = new ArrayExpr(items.toArray(new Expr[items.size()]));
-        } else if (matchReserved("null")) {
+        } else if (match(TokenKind.NULL)) {
             e = NullValue.INSTANCE;
-        } else if (matchReserved("true")) {
+        } else if (match(TokenKind.TRUE)) {
             e = BoolValue.TRUE_INSTANCE;
-        } else if (matchReserved("false")) {
+        } else if (match(TokenKind.FALSE)) {
             e = BoolValue.FALSE_INSTANCE;
-        } else if (matchReserved("if")) {
+        } else if (match(TokenKind.IF)) {
             // "if" expr "do" expr {"elif" expr "do"} ["else" expr] "end"
             Expr cond = parseExprSeq();
-            checkToken(TokenType.RESERVED, "do");
+            checkToken(TokenKind.DO);
             Expr cons = parseExprSeq();
             e = parseIf(cond, cons);
-            checkToken(TokenType.RESERVED, "end");
-        } else if (matchReserved("while")) {
+            checkToken(TokenKind.END);
+        } else if (match(TokenKind.WHILE)) {
             // "while" expr ["do" expr] "end"
             Expr cond = parseExprSeq();
             Expr body;
-            if (matchReserved("do")) {
+            if (match(TokenKind.DO)) {
                 body = parseExprSeq();
             } else {
                 body = NullValue.INSTANCE;
             }
-            e = new WhileExpr(cond, body);
-            checkToken(TokenType.RESERVED, "end");
-        } else if (matchReserved("fun")) {
+            WhileExpr loop = new WhileExpr(cond, body);
+            loop.setSource(line, column);
+            e = loop;
+            checkToken(TokenKind.END);
+        } else if (match(TokenKind.FUN)) {
             // "fun" [name] "("param1, param2, ...")" body "end"
             // if name is present, then this is shorthand for the expression
             // name := "fun" "("param1, param2, ...")" body "end"
@@ -99,16 +113,16 @@ public class SciParser {
                 name = m_scanner.getToken();
                 nextToken();
             }
-            checkToken(TokenType.OPERATOR, "(");
+            checkToken(TokenKind.LPAREN);
             ArrayList<String> parameters = new ArrayList<>();
-            if (!matchOperator(")")) {
+            if (!match(TokenKind.RPAREN)) {
                 if (m_scanner.isTokenType(TokenType.IDENTIFIER)) {
                     parameters.add(m_scanner.getToken());
                     nextToken();
                 } else {
                     throw parseError("Expecting parameter");
                 }
-                while (matchOperator(",")) {
+                while (match(TokenKind.COMMA)) {
                     if (m_scanner.isTokenType(TokenType.IDENTIFIER)) {
                         parameters.add(m_scanner.getToken());
                         nextToken();
@@ -116,28 +130,46 @@ public class SciParser {
                         throw parseError("Expecting parameter");
                     }
                 }
-                checkToken(TokenType.OPERATOR, ")");
+                checkToken(TokenKind.RPAREN);
             }
             Expr body = parseExprSeq();
-            e = new FunExpr(parameters.toArray(new String[parameters.size()]), body);
-            checkToken(TokenType.RESERVED, "end");
-            if (name != null) {
-                e = new StoreExpr(name, e);
-            }
-        } else if (matchReserved("block")) {
+            FunExpr fun = new FunExpr(parameters.toArray(new String[parameters.size()]), body);
+            fun.setSource(name, line, column);
+            checkToken(TokenKind.END);
+            e = name != null ? new StoreExpr(name, fun) : fun;
+        } else if (match(TokenKind.BLOCK)) {
             // "block" [label] "do" body "end"
             String label = null;
-            if (!matchReserved("do")) {
+            if (!match(TokenKind.DO)) {
                 if (!m_scanner.isTokenType(TokenType.IDENTIFIER)) {
                     throw parseError("Expecting identifier");
                 }
                 label = m_scanner.getToken();
                 nextToken();
-                checkToken(TokenType.RESERVED, "do");
+                checkToken(TokenKind.DO);
             }
             Expr body = parseExprSeq();
             e = new BlockExpr(label, body);
-            checkToken(TokenType.RESERVED, "end");
+            checkToken(TokenKind.END);
+        } else if (match(TokenKind.PARFOR)) {
+            // "parfor" name ":=" expr "," expr "do" body "end"
+            // runs the body for each integer from the first expr up to the
+            // second in parallel, as parfor(lo, hi, "fun" (name) body "end")
+            if (!m_scanner.isTokenType(TokenType.IDENTIFIER)) {
+                throw parseError("Expecting identifier");
+            }
+            String name = m_scanner.getToken();
+            nextToken();
+            checkToken(TokenKind.DEFINE);
+            Expr lo = parseExpr();
+            checkToken(TokenKind.COMMA);
+            Expr hi = parseExpr();
+            checkToken(TokenKind.DO);
+            Expr body = parseExprSeq();
+            checkToken(TokenKind.END);
+            FunExpr fun = new FunExpr(new String[] { name }, body);
+            fun.setSource("parfor", line, column);
+            e = new AppExpr(PrimFuncValue.PARFOR, new Expr[] { lo, hi, fun });
         } else if (m_scanner.isTokenType(TokenType.IDENTIFIER)) {
             e = new VariableExpr(m_scanner.getToken());
             nextToken();
@@ -147,24 +179,24 @@ public class SciParser {
         // now match parentheses for function application and brackets for
         // indexing
         while (true) {
-            if (matchOperator("(")) {
+            if (match(TokenKind.LPAREN)) {
                 ArrayList<Expr> args = new ArrayList<>();
-                if (!matchOperator(")")) {
+                if (!match(TokenKind.RPAREN)) {
                     args.add(parseExpr());
-                    while (matchOperator(",")) {
+                    while (match(TokenKind.COMMA)) {
                         args.add(parseExpr());
                     }
-                    matchOperator(","); // allow a trailing comma.
-                    checkToken(TokenType.OPERATOR, ")");
+                    match(TokenKind.COMMA); // allow a trailing comma.
+                    checkToken(TokenKind.RPAREN);
                 }
                 e = new AppExpr(e, args.toArray(new Expr[args.size()]));
-            } else if (matchOperator("[")) {
+            } else if (match(TokenKind.LBRACKET)) {
                 // [index1,index2,...]
                 e = AppExpr.create(PrimFuncValue.GET, e, parseExpr());
-                while (matchOperator(",")) {
+                while (match(TokenKind.COMMA)) {
                     e = AppExpr.create(PrimFuncValue.GET, e, parseExpr());
                 }
-                checkToken(TokenType.OPERATOR, "]");
+                checkToken(TokenKind.RBRACKET);
             } else {
                 break;
             }
@@ -173,41 +205,69 @@ public class SciParser {
     }
 
     /**
-     * Parse term {"^" term}
+     * Parse term {"^" term}. Powers are right associative, so the terms are
+     * collected with a loop and then nested from the back.
      * 
      * @return
      * @throws ParseError
      */
     private Expr parsePow() throws ParseError {
         Expr expr = parseTerm();
-        if (matchOperator("^")) {
-            expr = AppExpr.create(PrimFuncValue.POW2, expr, parsePow());
+        if (!m_scanner.isKind(TokenKind.CARET)) {
+            return expr;
+        }
+        ArrayList<Expr> terms = new ArrayList<>();
+        terms.add(expr);
+        while (match(TokenKind.CARET)) {
+            terms.add(parseTerm());
+        }
+        expr = terms.get(terms.size() - 1);
+        for (int i = terms.size() - 2; i >= 0; i--) {
+            expr = AppExpr.create(PrimFuncValue.POW2, terms.get(i), expr);
         }
         return expr;
     }
 
     /**
-     * Parse pow {("*"|"/"|"%") pow}
+     * Parse pow {("*"|"/"|"div"|"%") pow}
      * 
      * @return
      * @throws ParseError
      */
     private Expr parseMulDiv() throws ParseError {
-        Expr expr = parsePow();
+        ArrayList<Expr> operands = new ArrayList<>();
+        ArrayList<PrimFuncValue> ops = new ArrayList<>();
+        operands.add(parsePow());
         while (true) {
-            if (matchOperator("*")) {
-                expr = AppExpr.create(PrimFuncValue.MUL2, expr, parsePow());
-            } else if (matchOperator("/")) {
-                expr = AppExpr.create(PrimFuncValue.DIV2, expr, parsePow());
-            } else if (matchReserved("div")) {
-                expr = AppExpr.create(PrimFuncValue.IDIV2, expr, parsePow());
-            } else if (matchOperator("%")) {
-                expr = AppExpr.create(PrimFuncValue.MOD2, expr, parsePow());
+            if (match(TokenKind.STAR)) {
+                ops.add(PrimFuncValue.MUL2);
+            } else if (match(TokenKind.SLASH)) {
+                ops.add(PrimFuncValue.DIV2);
+            } else if (match(TokenKind.DIV)) {
+                ops.add(PrimFuncValue.IDIV2);
+            } else if (match(TokenKind.PERCENT)) {
+                ops.add(PrimFuncValue.MOD2);
             } else {
                 break;
             }
+            operands.add(parsePow());
+        }
+        return makeChain(operands, ops);
+    }
+
+    /**
+     * A single operation stays an ordinary application, and anything longer
+     * becomes one flat ChainExpr.
+     */
+    private static Expr makeChain(ArrayList<Expr> operands, ArrayList<PrimFuncValue> ops) {
+        if (ops.size() == 0) {
+            return operands.get(0);
+        } else if (ops.size() == 1) {
+            return AppExpr.create(ops.get(0), operands.get(0), operands.get(1));
+        } else {
+            return new ChainExpr(operands.toArray(new Expr[operands.size()]),
+                    ops.toArray(new PrimFuncValue[ops.size()]));
         }
-        return expr;
     }
 
     /**
@@ -219,9 +279,9 @@ public class SciParser {
     private Expr parseAddSub() throws ParseError {
         Expr expr;
         if (m_scanner.isTokenType(TokenType.OPERATOR)) {
-            if (matchOperator("+")) {
+            if (match(TokenKind.PLUS)) {
                 expr = AppExpr.create(PrimFuncValue.PLUS1, parseMulDiv());
-            } else if (matchOperator("-")) {
+            } else if (match(TokenKind.MINUS)) {
                 expr = AppExpr.create(PrimFuncValue.NEG1, parseMulDiv());
             } else {
                 expr = parseMulDiv();
@@ -229,16 +289,20 @@ public class SciParser {
         } else {
             expr = parseMulDiv();
         }
+        ArrayList<Expr> operands = new ArrayList<>();
+        ArrayList<PrimFuncValue> ops = new ArrayList<>();
+        operands.add(expr);
         while (true) {
-            if (matchOperator("+")) {
-                expr = AppExpr.create(PrimFuncValue.ADD2, expr, parseMulDiv());
-            } else if (matchOperator("-")) {
-                expr = AppExpr.create(PrimFuncValue.SUB2, expr, parseMulDiv());
+            if (match(TokenKind.PLUS)) {
+                ops.add(PrimFuncValue.ADD2);
+            } else if (match(TokenKind.MINUS)) {
+                ops.add(PrimFuncValue.SUB2);
             } else {
                 break;
             }
+            operands.add(parseMulDiv());
         }
-        return expr;
+        return makeChain(operands, ops);
     }
 
     /**
@@ -249,17 +313,17 @@ public class SciParser {
      */
     private Expr parseConds() throws ParseError {
         Expr expr = parseAddSub();
-        if (matchOperator("==")) {
+        if (match(TokenKind.EQ)) {
             expr = AppExpr.create(PrimFuncValue.EQ2, expr, parseAddSub());
-        } else if (matchOperator("!=")) {
+        } else if (match(TokenKind.NE)) {
             expr = AppExpr.create(PrimFuncValue.NEQ2, expr, parseAddSub());
-        } else if (matchOperator("<")) {
+        } else if (match(TokenKind.LT)) {
             expr = AppExpr.create(PrimFuncValue.LT2, expr, parseAddSub());
-        } else if (matchOperator("<=")) {
+        } else if (match(TokenKind.LE)) {
             expr = AppExpr.create(PrimFuncValue.LTE2, expr, parseAddSub());
-        } else if (matchOperator(">")) {
+        } else if (match(TokenKind.GT)) {
             expr = AppExpr.create(PrimFuncValue.GT2, expr, parseAddSub());
-        } else if (matchOperator(">=")) {
+        } else if (match(TokenKind.GE)) {
             expr = AppExpr.create(PrimFuncValue.GTE2, expr, parseAddSub());
         }
         return expr;
@@ -272,7 +336,7 @@ public class SciParser {
      */
     private Expr parseAndOp() throws ParseError {
         Expr expr = parseConds();
-        while (matchOperator("&&")) {
+        while (match(TokenKind.AND)) {
             expr = new AndExpr(expr, parseConds());
         }
         return expr;
@@ -285,7 +349,7 @@ public class SciParser {
      */
     private Expr parseOrOp() throws ParseError {
         Expr expr = parseAndOp();
-        while (matchOperator("||")) {
+        while (match(TokenKind.OR)) {
             expr = new OrExpr(expr, parseAndOp());
         }
         return expr;
@@ -297,15 +361,17 @@ public class SciParser {
      */
     private Expr parseStore() throws ParseError {
         Expr expr = parseOrOp();
-        if (matchOperator(":=")) {
+        if (match(TokenKind.DEFINE)) {
             if (expr instanceof VariableExpr) {
-                expr = new StoreExpr(((VariableExpr) expr).getIdentifier(), parseOrOp());
+                String name = ((VariableExpr) expr).getIdentifier();
+                expr = new StoreExpr(name, named(name, parseOrOp()));
             } else {
                 throw parseError("Can only store into variable");
             }
-        } else if (matchOperator("<-")) {
+        } else if (match(TokenKind.ASSIGN)) {
             if (expr instanceof VariableExpr) {
-                expr = new UpdateExpr(((VariableExpr) expr).getIdentifier(), parseOrOp());
+                String name = ((VariableExpr) expr).getIdentifier();
+                expr = new UpdateExpr(name, named(name, parseOrOp()));
             } else if (expr instanceof AppExpr && ((AppExpr) expr).getFunc() == PrimFuncValue.GET) {
                 AppExpr aexpr = (AppExpr) expr;
                 Expr[] args = aexpr.getArgs();
@@ -317,6 +383,18 @@ public class SciParser {
         return expr;
     }
 
+    /**
+     * Gives a function stored straight into a variable that variable's name,
+     * as "fun" name would have (for error messages and the Profiler).
+     */
+    private static Expr named(String name, Expr value) {
+        if (value instanceof FunExpr && ((FunExpr) value).getName() == null) {
+            FunExpr fun = (FunExpr) value;
+            fun.setSource(name, fun.getLine(), fun.getColumn());
+        }
+        return value;
+    }
+
     /**
      * An expr is just a store
      * 
@@ -329,23 +407,38 @@ public class SciParser {
 
     private Expr parseExprSeq() throws ParseError {
         // parse {";"} expr {";"|expr} [";"]
-        while (matchOperator(";")) {
+        while (match(TokenKind.SEMICOLON)) {
             // consume leading semicolons
         }
-        Expr e = parseExpr();
-        while (matchOperator(";")) {
-            while (matchOperator(";")) {
+        ArrayList<Expr> exprs = new ArrayList<>();
+        exprs.add(parseExpr());
+        while (match(TokenKind.SEMICOLON)) {
+            while (match(TokenKind.SEMICOLON)) {
                 // consume semicolons
             }
-            if (m_scanner.isTokenType(TokenType.EOF)
-                    || m_scanner.isTokenType(TokenType.OPERATOR) && (m_scanner.isToken(")"))
-                    || m_scanner.isTokenType(TokenType.RESERVED) && (m_scanner.isToken("elif")
-                            || m_scanner.isToken("else") || m_scanner.isToken("end") || m_scanner.isToken("do"))) {
+            if (isSeqTerminator(m_scanner.getKind())) {
                 break;
             }
-            e = new SeqExpr(e, parseExpr());
+            exprs.add(parseExpr());
+        }
+        if (exprs.size() == 1) {
+            return exprs.get(0);
+        }
+        return new SeqExpr(exprs.toArray(new Expr[exprs.size()]));
+    }
+
+    private static boolean isSeqTerminator(TokenKind kind) {
+        switch (kind) {
+        case EOF:
+        case RPAREN:
+        case ELIF:
+        case ELSE:
+        case END:
+        case DO:
+            return true;
+        default:
+            return false;
         }
-        return e;
     }
 
     public Expr parseTopExpr() throws ParseError {
@@ -359,33 +452,50 @@ public class SciParser {
     }
 
     /**
-     * Checks whether the current token is the given token, and consumes it.
+     * Parses the next top-level statement, so that a program can be run one
+     * statement at a time without ever building the tree for all of it.
+     * Statements are separated by semicolons, just like for parseTopExpr.
      * 
-     * @param type
-     *            the required type (only for tokens which have a token string)
-     * @param token
-     *            the token string
+     * @return the statement, or null at the end of the input
      * @throws ParseError
-     *             if it doesn't match
      */
-    private void checkToken(TokenType type, String token) throws ParseError {
-        if (!(m_scanner.isTokenType(type) && m_scanner.isToken(token))) {
-            throw parseError("Expecting " + token);
+    public Expr parseStatement() throws ParseError {
+        if (m_scanner.getKind() == null) {
+            nextToken(); // initialize scanner
         }
-        nextToken();
+        while (match(TokenKind.SEMICOLON)) {
+            // consume semicolons
+        }
+        if (m_scanner.isKind(TokenKind.EOF)) {
+            return null;
+        }
+        if (isSeqTerminator(m_scanner.getKind())) {
+            throw parseError("Expecting end of input");
+        }
+        Expr e = parseExpr();
+        if (!match(TokenKind.SEMICOLON) && !m_scanner.isKind(TokenKind.EOF)) {
+            throw parseError("Expecting end of input");
+        }
+        return e;
     }
 
-    private boolean matchOperator(String token) throws ParseError {
-        if (m_scanner.isTokenType(TokenType.OPERATOR) && m_scanner.isToken(token)) {
-            nextToken();
-            return true;
-        } else {
-            return false;
+    /**
+     * Checks whether the current token is the given token, and consumes it.
+     * 
+     * @param kind
+     *            the required operator or reserved word
+     * @throws ParseError
+     *             if it doesn't match
+     */
+    private void checkToken(TokenKind kind) throws ParseError {
+        if (!m_scanner.isKind(kind)) {
+            throw parseError("Expecting " + kind.getText());
         }
+        nextToken();
     }
 
-    private boolean matchReserved(String token) throws ParseError {
-        if (m_scanner.isTokenType(TokenType.RESERVED) && m_scanner.isToken(token)) {
+    private boolean match(TokenKind kind) throws ParseError {
+        if (m_scanner.isKind(kind)) {
             nextToken();
             return true;
         } else {
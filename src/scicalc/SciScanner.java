@@ -1,159 +1,510 @@
 package scicalc;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.Reader;
 
 /**
  * The scanner is responsible for reading individual tokens, like numbers and
  * operators and names and strings and such.
- * 
+ *
+ * It is written by hand rather than with regular expressions: the first
+ * character of a token is looked up in a character class table, which decides
+ * what kind of token we are looking at, and then the rest of the token is
+ * consumed with a simple loop. Every operator and reserved word has its own
+ * TokenKind, and identifiers are interned in a little hash table (which is
+ * seeded with the reserved words) so that names we have already seen do not
+ * allocate a new String.
+ *
+ * The scanner can also read from a Reader, in which case it only keeps a
+ * window of the input around: characters before the current line are thrown
+ * away as scanning proceeds, so memory use does not depend on the size of the
+ * input.
+ *
  * @author kmill
  *
  */
 public class SciScanner {
-    private String m_input;
+    private char[] m_input;
+    private int m_end;
+    private Reader m_reader;
     private int m_index, m_line, m_col;
-    private int m_last_line, m_last_col;
+    private int m_line_start;
+    private int m_last_index, m_last_line, m_last_col;
 
-    private TokenType m_token_type;
+    private TokenKind m_kind;
     private String m_token;
     private String m_error;
     private double m_floatval;
     private int m_intval;
 
-    private static Pattern whitespace = Pattern.compile("\\s+"),
-            identifier = Pattern.compile("[a-zA-Z_$][a-zA-Z\\d_$]*"),
-            number = Pattern.compile("[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?"),
-            operator = Pattern.compile("->|[-+*/^%()\\[\\],;]|:=|<-|==|<=|<|>=|>|!=|!|&&|\\|\\|");
+    // interned identifiers and reserved words, using open addressing
+    private String[] m_names;
+    private TokenKind[] m_name_kinds;
+    private int m_name_count;
+
+    private static final byte C_OTHER = 0, C_SPACE = 1, C_NEWLINE = 2, C_TAB = 3, C_DIGIT = 4, C_LETTER = 5,
+            C_OPERATOR = 6, C_DOT = 7, C_QUOTE = 8, C_DQUOTE = 9;
+
+    /**
+     * Character classes for the ASCII characters. Anything else is C_OTHER.
+     */
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    static {
+        // these are the characters matched by \s
+        CHAR_CLASS[' '] = C_SPACE;
+        CHAR_CLASS['\u000B'] = C_SPACE;
+        CHAR_CLASS['\f'] = C_SPACE;
+        CHAR_CLASS['\r'] = C_SPACE;
+        CHAR_CLASS['\n'] = C_NEWLINE;
+        CHAR_CLASS['\t'] = C_TAB;
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASS[c] = C_DIGIT;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASS[c] = C_LETTER;
+            CHAR_CLASS[Character.toUpperCase(c)] = C_LETTER;
+        }
+        CHAR_CLASS['_'] = C_LETTER;
+        CHAR_CLASS['$'] = C_LETTER;
+        for (char c : "-+*/^%()[],;:<=>!&|".toCharArray()) {
+            CHAR_CLASS[c] = C_OPERATOR;
+        }
+        CHAR_CLASS['.'] = C_DOT;
+        CHAR_CLASS['\''] = C_QUOTE;
+        CHAR_CLASS['"'] = C_DQUOTE;
+    }
+
+    private static final TokenKind[] RESERVED = { TokenKind.DIV, TokenKind.NULL, TokenKind.TRUE, TokenKind.FALSE,
+            TokenKind.IF, TokenKind.ELIF, TokenKind.ELSE, TokenKind.END, TokenKind.WHILE, TokenKind.DO,
+            TokenKind.FUN, TokenKind.BLOCK, TokenKind.PARFOR };
 
-    private static final String[] RESERVED_IDENTS = { "div", "null", "true", "false", "if", "elif", "else", "end",
-            "while", "do", "fun", "block" };
+    /**
+     * Powers of ten which are exactly representable as doubles.
+     */
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * How much of a line we hold on to for error messages when reading from a
+     * Reader.
+     */
+    private static final int MAX_KEPT_LINE = 1024;
 
     public SciScanner(String input) {
+        this(input.toCharArray(), null);
+    }
+
+    /**
+     * Scans characters as they are read from the given reader. The reader is
+     * not closed by the scanner.
+     */
+    public SciScanner(Reader reader) {
+        this(new char[8192], reader);
+        m_end = 0;
+    }
+
+    private SciScanner(char[] input, Reader reader) {
         m_input = input;
+        m_end = m_input.length;
+        m_reader = reader;
         m_index = 0; // current input location
         m_last_line = m_line = 1;
         m_last_col = m_col = 0;
+
+        m_names = new String[64];
+        m_name_kinds = new TokenKind[64];
+        for (TokenKind kind : RESERVED) {
+            String text = kind.getText();
+            char[] chars = text.toCharArray();
+            intern(chars, 0, chars.length, text.hashCode(), kind);
+        }
     }
 
     /**
      * Find the next token and update the members
      */
     public void nextToken() {
-        boolean keepGoing = true; // this is to handle consuming comments
-        m_token_type = TokenType.ERROR;
-        m_error = "Error in SciScanner"; // this shouldn't happen
-        Matcher m;
-        while (keepGoing) {
-            keepGoing = false;
-            match(whitespace); // just consume whitespace
+        while (true) { // loop to handle consuming comments
+            if (m_reader != null && m_index > m_input.length / 2) {
+                compact();
+            }
+            skipWhitespace();
+            m_last_index = m_index;
             m_last_line = m_line;
             m_last_col = m_col;
-            if (isEof()) {
-                m_token_type = TokenType.EOF;
-            } else if (match("//", true)) {
-                while (!isEof() && peek() != '\n') {
-                    next();
-                }
-                keepGoing = true;
-            } else if (match("/*", true)) {
-                // consume characters while not end-of-comment
-                while (!isEof() && !match("*/", false)) {
-                    next();
-                }
-                if (match("*/", true)) {
-                    keepGoing = true;
+            if (!has(m_index)) {
+                m_kind = TokenKind.EOF;
+                return;
+            }
+            char c = m_input[m_index];
+            switch (c < 128 ? CHAR_CLASS[c] : C_OTHER) {
+            case C_LETTER:
+                scanIdentifier();
+                return;
+            case C_DIGIT:
+                scanNumber();
+                return;
+            case C_DOT:
+                if (isDigit(peek(1))) {
+                    scanNumber();
                 } else {
-                    m_token_type = TokenType.ERROR;
-                    m_error = "Unmatched multiline comment";
+                    error("Unexpected");
                 }
-            } else if (null != (m = match(operator))) {
-                m_token = m.group(0);
-                m_token_type = TokenType.OPERATOR;
-            } else if (null != (m = match(identifier))) {
-                m_token = m.group(0);
-                m_token_type = TokenType.IDENTIFIER;
-                // check if it is a reserved word:
-                for (int i = 0; i < RESERVED_IDENTS.length; i++) {
-                    if (m_token.equals(RESERVED_IDENTS[i])) {
-                        m_token_type = TokenType.RESERVED;
-                        break;
+                return;
+            case C_OPERATOR:
+                if (c == '/' && peek(1) == '/') {
+                    while (has(m_index) && m_input[m_index] != '\n') {
+                        next();
+                    }
+                    continue;
+                } else if (c == '/' && peek(1) == '*') {
+                    if (skipMultilineComment()) {
+                        continue;
                     }
+                    error("Unmatched multiline comment");
+                    return;
+                }
+                scanOperator(c);
+                return;
+            case C_QUOTE:
+                scanCharacter();
+                return;
+            case C_DQUOTE:
+                scanString();
+                return;
+            default:
+                error("Unexpected");
+                return;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        int i = m_index, line = m_line, col = m_col;
+        scan: while (i < m_end || more()) {
+            char c = m_input[i];
+            switch (c < 128 ? CHAR_CLASS[c] : C_OTHER) {
+            case C_SPACE:
+                col++;
+                break;
+            case C_NEWLINE:
+                line++;
+                col = 0;
+                m_line_start = i + 1;
+                break;
+            case C_TAB:
+                col += 8;
+                break;
+            default:
+                break scan;
+            }
+            i++;
+        }
+        m_index = i;
+        m_line = line;
+        m_col = col;
+    }
+
+    /**
+     * Consumes a comment starting with slash-star.
+     *
+     * @return whether the comment was terminated
+     */
+    private boolean skipMultilineComment() {
+        next();
+        next();
+        while (has(m_index)) {
+            if (m_input[m_index] == '*' && peek(1) == '/') {
+                next();
+                next();
+                return true;
+            }
+            next();
+        }
+        return false;
+    }
+
+    private void scanIdentifier() {
+        int start = m_index, i = start, hash = 0;
+        while (i < m_end || more()) {
+            char c = m_input[i];
+            if (c >= 128 || (CHAR_CLASS[c] != C_LETTER && CHAR_CLASS[c] != C_DIGIT)) {
+                break;
+            }
+            hash = 31 * hash + c;
+            i++;
+        }
+        m_col += i - start;
+        m_index = i;
+        int slot = intern(m_input, start, i - start, hash, TokenKind.IDENTIFIER);
+        m_token = m_names[slot];
+        m_kind = m_name_kinds[slot];
+    }
+
+    /**
+     * Finds the given name in the table of names, adding it with the given
+     * kind if it is not already there. The hash must be what String.hashCode
+     * would give.
+     *
+     * @return the slot of the name in the table
+     */
+    private int intern(char[] chars, int start, int length, int hash, TokenKind kind) {
+        int mask = m_names.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String name;
+        while ((name = m_names[slot]) != null) {
+            if (name.hashCode() == hash && name.length() == length) {
+                int j = 0;
+                while (j < length && name.charAt(j) == chars[start + j]) {
+                    j++;
                 }
-            } else if (null != (m = match(number))) {
-                try {
-                    m_token_type = TokenType.FLOAT;
-                    m_floatval = Double.parseDouble(m.group(0));
-                } catch (NumberFormatException x) {
-                    m_token_type = TokenType.ERROR;
-                    m_error = "Invalid number";
+                if (j == length) {
+                    return slot;
                 }
-            } else if (match("\'", true)) {
-                char c;
-                if (match("\\", true)) {
-                    switch (next()) {
-                    case 'n':
-                        c = '\n';
-                    case 'r':
-                        c = '\r';
-                    case 't':
-                        c = '\t';
-                    case '\\':
-                        c = '\\';
-                    case '\'':
-                        c = '\'';
-                    default:
-                        m_token_type = TokenType.ERROR;
-                        m_error = "Invalid escape sequence";
-                        return;
-                    }
+            }
+            slot = (slot + 1) & mask;
+        }
+        m_names[slot] = new String(chars, start, length).intern();
+        m_name_kinds[slot] = kind;
+        m_name_count++;
+        if (2 * m_name_count > m_names.length) {
+            rehash();
+            return intern(chars, start, length, hash, kind);
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        String[] names = m_names;
+        TokenKind[] kinds = m_name_kinds;
+        m_names = new String[2 * names.length];
+        m_name_kinds = new TokenKind[2 * names.length];
+        int mask = m_names.length - 1;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                int hash = names[i].hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (m_names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                m_names[slot] = names[i];
+                m_name_kinds[slot] = kinds[i];
+            }
+        }
+    }
+
+    /**
+     * Scans digits [. digits] [(e|E) [+|-] digits]. The value is computed
+     * directly from the digits when that can be done exactly (at most 15
+     * significant digits and a small power of ten), and otherwise falls back
+     * to Double.parseDouble.
+     */
+    private void scanNumber() {
+        int start = m_index, i = start;
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        while (has(i) && isDigit(m_input[i])) {
+            if (mantissa != 0 || m_input[i] != '0') {
+                if (digits < 18) {
+                    mantissa = 10 * mantissa + (m_input[i] - '0');
                 } else {
-                    c = (char) next();
+                    exponent++;
                 }
-                if (next() == '\'') {
-                    m_token_type = TokenType.FLOAT;
-                    m_floatval = c;
+                digits++;
+            }
+            i++;
+        }
+        if (has(i + 1) && m_input[i] == '.' && isDigit(m_input[i + 1])) {
+            i++;
+            while (has(i) && isDigit(m_input[i])) {
+                if (mantissa != 0 || m_input[i] != '0') {
+                    if (digits < 18) {
+                        mantissa = 10 * mantissa + (m_input[i] - '0');
+                        exponent--;
+                    }
+                    digits++;
                 } else {
-                    m_token_type = TokenType.ERROR;
-                    m_error = "Unterminated character literal";
+                    exponent--;
                 }
-            } else if (match("\"", true)) {
-                StringBuffer str = new StringBuffer();
-                while (true) {
-                    if (match("\"", true)) {
-                        m_token_type = TokenType.STRING;
-                        m_token = str.toString();
-                        return;
-                    } else if (isEof()) {
-                        m_token_type = TokenType.ERROR;
-                        m_error = "Unterminated string literal";
-                        return;
-                    } else if (match("\\", true)) {
-                        switch (next()) {
-                        case 'n':
-                            str.append('\n');
-                        case 'r':
-                            str.append('\r');
-                        case 't':
-                            str.append('\t');
-                        case '\\':
-                            str.append('\\');
-                        case '"':
-                            str.append('"');
-                        default:
-                            m_token_type = TokenType.ERROR;
-                            m_error = "Invalid escape sequence";
-                            return;
-                        }
-                    } else {
-                        str.append((char) next());
+                i++;
+            }
+        }
+        if (has(i) && (m_input[i] == 'e' || m_input[i] == 'E')) {
+            int j = i + 1;
+            boolean negative = false;
+            if (has(j) && (m_input[j] == '+' || m_input[j] == '-')) {
+                negative = m_input[j] == '-';
+                j++;
+            }
+            if (has(j) && isDigit(m_input[j])) {
+                int e = 0;
+                while (has(j) && isDigit(m_input[j])) {
+                    if (e < 100000) {
+                        e = 10 * e + (m_input[j] - '0');
                     }
+                    j++;
                 }
-            } else {
-                m_token_type = TokenType.ERROR;
-                m_error = "Unexpected";
+                exponent += negative ? -e : e;
+                i = j;
             }
         }
+        m_col += i - start;
+        m_index = i;
+        m_kind = TokenKind.FLOAT;
+        if (mantissa == 0) {
+            m_floatval = 0.0;
+        } else if (digits <= 15 && exponent >= 0 && exponent < POW10.length) {
+            m_floatval = mantissa * POW10[exponent];
+        } else if (digits <= 15 && exponent < 0 && -exponent < POW10.length) {
+            m_floatval = mantissa / POW10[-exponent];
+        } else {
+            m_floatval = Double.parseDouble(new String(m_input, start, i - start));
+        }
+    }
+
+    private void scanOperator(char c) {
+        int next = peek(1);
+        TokenKind kind;
+        switch (c) {
+        case '-':
+            kind = next == '>' ? TokenKind.ARROW : TokenKind.MINUS;
+            break;
+        case '+':
+            kind = TokenKind.PLUS;
+            break;
+        case '*':
+            kind = TokenKind.STAR;
+            break;
+        case '/':
+            kind = TokenKind.SLASH;
+            break;
+        case '^':
+            kind = TokenKind.CARET;
+            break;
+        case '%':
+            kind = TokenKind.PERCENT;
+            break;
+        case '(':
+            kind = TokenKind.LPAREN;
+            break;
+        case ')':
+            kind = TokenKind.RPAREN;
+            break;
+        case '[':
+            kind = TokenKind.LBRACKET;
+            break;
+        case ']':
+            kind = TokenKind.RBRACKET;
+            break;
+        case ',':
+            kind = TokenKind.COMMA;
+            break;
+        case ';':
+            kind = TokenKind.SEMICOLON;
+            break;
+        case ':':
+            kind = next == '=' ? TokenKind.DEFINE : null;
+            break;
+        case '<':
+            kind = next == '-' ? TokenKind.ASSIGN : next == '=' ? TokenKind.LE : TokenKind.LT;
+            break;
+        case '>':
+            kind = next == '=' ? TokenKind.GE : TokenKind.GT;
+            break;
+        case '=':
+            kind = next == '=' ? TokenKind.EQ : null;
+            break;
+        case '!':
+            kind = next == '=' ? TokenKind.NE : TokenKind.NOT;
+            break;
+        case '&':
+            kind = next == '&' ? TokenKind.AND : null;
+            break;
+        case '|':
+            kind = next == '|' ? TokenKind.OR : null;
+            break;
+        default:
+            kind = null;
+        }
+        if (kind == null) {
+            error("Unexpected");
+            return;
+        }
+        int length = kind.getText().length();
+        m_col += length;
+        m_index += length;
+        m_kind = kind;
+        m_token = kind.getText();
+    }
+
+    private void scanCharacter() {
+        next(); // the quote
+        int c;
+        if (peek(0) == '\\') {
+            next();
+            c = escape(next());
+            if (c < 0) {
+                error("Invalid escape sequence");
+                return;
+            }
+        } else {
+            c = next();
+        }
+        if (next() == '\'') {
+            m_kind = TokenKind.FLOAT;
+            m_floatval = (char) c;
+        } else {
+            error("Unterminated character literal");
+        }
+    }
+
+    private void scanString() {
+        next(); // the quote
+        StringBuilder str = new StringBuilder();
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                m_kind = TokenKind.STRING;
+                m_token = str.toString();
+                return;
+            } else if (c < 0) {
+                error("Unterminated string literal");
+                return;
+            } else if (c == '\\') {
+                c = escape(next());
+                if (c < 0) {
+                    error("Invalid escape sequence");
+                    return;
+                }
+            }
+            str.append((char) c);
+        }
+    }
+
+    /**
+     * @return the character for the escape sequence, or -1 if it is invalid
+     */
+    private static int escape(int c) {
+        switch (c) {
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case '\\':
+        case '\'':
+        case '"':
+            return c;
+        default:
+            return -1;
+        }
+    }
+
+    private void error(String msg) {
+        m_kind = TokenKind.ERROR;
+        m_error = msg;
     }
 
     public String getError(String msg) {
@@ -165,35 +516,100 @@ public class SciScanner {
     }
 
     public String showLocation() {
-        String[] lines = m_input.split("\n");
-        int i = m_last_line - 1;
-        if (i >= lines.length) {
+        int start = Math.min(m_last_index, m_end);
+        while (start > 0 && m_input[start - 1] != '\n') {
+            start--;
+        }
+        if (!has(start)) {
             return "at end of input";
         } else {
-            StringBuffer carat = new StringBuffer();
-            for (int j = 0; j < m_last_col; j++) {
-                carat.append(' ');
+            int end = start;
+            while (has(end) && m_input[end] != '\n') {
+                end++;
+            }
+            // when reading from a Reader, the beginning of a very long line
+            // might have been discarded already, so count columns from what we
+            // still have rather than using m_last_col.
+            StringBuilder carat = new StringBuilder();
+            for (int j = start; j < m_last_index; j++) {
+                carat.append(m_input[j] == '\t' ? "        " : " ");
             }
             carat.append('^');
-            return lines[i] + "\n" + carat.toString();
+            return new String(m_input, start, end - start) + "\n" + carat.toString();
         }
     }
 
     /**
-     * @return whether at end of file
+     * Makes sure the character at the given index has been read in, if there
+     * is one.
+     *
+     * @return whether the index is before the end of the input
      */
-    private boolean isEof() {
-        return m_index >= m_input.length();
+    private boolean has(int index) {
+        while (index >= m_end) {
+            if (!more()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more characters from the reader, growing the buffer if it is full.
+     * Indices into the buffer stay valid.
+     *
+     * @return whether anything was read
+     */
+    private boolean more() {
+        if (m_reader == null) {
+            return false;
+        }
+        if (m_end == m_input.length) {
+            char[] input = new char[2 * m_input.length];
+            System.arraycopy(m_input, 0, input, 0, m_end);
+            m_input = input;
+        }
+        try {
+            int n = m_reader.read(m_input, m_end, m_input.length - m_end);
+            if (n < 0) {
+                m_reader = null;
+                return false;
+            }
+            m_end += n;
+            return true;
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    /**
+     * Throws away the characters before the current line (or before the
+     * current position if the line is very long) by shifting the rest to the
+     * beginning of the buffer. This is only done between tokens.
+     */
+    private void compact() {
+        int keep = m_index - m_line_start <= MAX_KEPT_LINE ? m_line_start : m_index;
+        System.arraycopy(m_input, keep, m_input, 0, m_end - keep);
+        m_end -= keep;
+        m_index -= keep;
+        m_line_start = Math.max(0, m_line_start - keep);
+        m_last_index = Math.max(0, m_last_index - keep);
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
     }
 
     /**
      * Like next, but does not consume
-     * 
-     * @return the next character, or -1 if at end of file
+     *
+     * @param offset
+     *            how far past the current character to look
+     * @return the character, or -1 if at end of file
      */
-    private int peek() {
-        if (m_index < m_input.length()) {
-            return m_input.charAt(m_index);
+    private int peek(int offset) {
+        if (has(m_index + offset)) {
+            return m_input[m_index + offset];
         } else {
             return -1;
         }
@@ -201,12 +617,12 @@ public class SciScanner {
 
     /**
      * Consumes
-     * 
+     *
      * @return the next character, or -1 if at end of file
      */
     private int next() {
-        if (m_index < m_input.length()) {
-            char c = m_input.charAt(m_index);
+        if (has(m_index)) {
+            char c = m_input[m_index];
             updateLocation(c);
             return c;
         } else {
@@ -219,6 +635,7 @@ public class SciScanner {
         case '\n':
             m_line++;
             m_col = 0;
+            m_line_start = m_index + 1;
             break;
         case '\t':
             m_col += 8;
@@ -229,61 +646,55 @@ public class SciScanner {
         m_index++;
     }
 
-    private void updateLocation(String s) {
-        for (int i = 0; i < s.length(); i++) {
-            updateLocation(s.charAt(i));
-        }
-    }
-
-    private boolean match(String s, boolean consume) {
-        for (int j = 0; j < s.length(); j++) {
-            if (m_index + j >= m_input.length()) {
-                return false;
-            }
-            if (s.charAt(j) != m_input.charAt(m_index + j)) {
-                return false;
-            }
-        }
-        if (consume) {
-            updateLocation(s);
-        }
-        return true;
-    }
-
-    private Matcher match(Pattern p, boolean consume) {
-        Matcher m = p.matcher(m_input);
-        m.useAnchoringBounds(true);
-        m.region(m_index, m_input.length());
-        if (m.lookingAt()) {
-            if (consume) {
-                updateLocation(m.group(0));
-            }
-            return m;
-        } else {
-            return null;
-        }
+    public TokenKind getKind() {
+        return m_kind;
     }
 
-    private Matcher match(Pattern p) {
-        return match(p, true);
+    public boolean isKind(TokenKind kind) {
+        return m_kind == kind;
     }
 
     public TokenType getTokenType() {
-        return m_token_type;
+        return m_kind.getType();
     }
 
     public boolean isTokenType(TokenType type) {
-        return m_token_type.equals(type);
+        return m_kind.getType() == type;
     }
 
     public String getToken() {
         return m_token;
     }
 
+    /**
+     * @return the line the current token starts on, from 1
+     */
+    public int getLine() {
+        return m_last_line;
+    }
+
+    /**
+     * @return the column the current token starts at, counted as in error
+     *         messages
+     */
+    public int getColumn() {
+        return m_last_col;
+    }
+
     public boolean isToken(String tok) {
         return m_token.equals(tok);
     }
 
+    /**
+     * Wraps an IOException from the reader, since nextToken does not declare
+     * any checked exceptions.
+     */
+    public static class UncheckedIOException extends RuntimeException {
+        public UncheckedIOException(IOException cause) {
+            super(cause);
+        }
+    }
+
     public double getFloatVal() {
         return m_floatval;
     }
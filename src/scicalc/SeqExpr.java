@@ -1,29 +1,63 @@
 package scicalc;
 
 /**
- * A sequence expression evaluates the first thing then the second thing. The
- * second thing's evaluated value is the value for the whole sequence
- * expression.  In the language, sequences are represented by semicolons.
+ * A sequence expression evaluates each of its expressions in order. The last
+ * one's evaluated value is the value for the whole sequence expression. In the
+ * language, sequences are represented by semicolons.
+ * 
+ * The expressions are kept in one flat array rather than as a chain of pairs,
+ * so a long program does not turn into a deep tree.
  * 
  * @author kmill
  *
  */
 public class SeqExpr implements Expr {
-	private Expr m_a, m_b;
+	private Expr[] m_exprs;
+
+	public SeqExpr(Expr[] exprs) {
+		m_exprs = exprs;
+	}
 
-	public SeqExpr(Expr a, Expr b) {
-		m_a = a;
-		m_b = b;
+	public Expr[] getExprs() {
+		return m_exprs;
 	}
 
 	@Override
 	public Value evaluate(Environment e) {
-		m_a.evaluate(e);
-		return m_b.evaluate(e);
+		int last = m_exprs.length - 1;
+		for (int i = 0; i < last; i++) {
+			m_exprs[i].evaluate(e);
+		}
+		return m_exprs[last].evaluate(e);
+	}
+
+	@Override
+	public double evaluateDouble(Environment e) {
+		int last = m_exprs.length - 1;
+		for (int i = 0; i < last; i++) {
+			m_exprs[i].evaluate(e);
+		}
+		return m_exprs[last].evaluateDouble(e);
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		int last = m_exprs.length - 1;
+		for (int i = 0; i < last; i++) {
+			m_exprs[i].evaluate(e);
+		}
+		return m_exprs[last].evaluateBool(e);
 	}
 
 	public String toString() {
-		return "Seq(" + m_a + ", " + m_b + ")";
+		StringBuffer exprs = new StringBuffer();
+		String delim = "";
+		for (int i = 0; i < m_exprs.length; i++) {
+			exprs.append(delim);
+			delim = ", ";
+			exprs.append(m_exprs[i].toString());
+		}
+		return "Seq(" + exprs + ")";
 	}
 
 }
@@ -0,0 +1,342 @@
+package scicalc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates programs sent over a socket, each in a session of its own (see
+ * Interpreter.Session) against whatever the interpreter has loaded, and
+ * never committed, so requests cannot see each other's variables.
+ *
+ * A request is a program as UTF-8, after its length in bytes as a 4-byte
+ * big-endian int. The response is a status byte (OK, ERROR, TIMEOUT or BUSY)
+ * and then the value or the error message, framed the same way. A connection
+ * can send any number of requests, one after another.
+ *
+ * Each connection has a thread of its own, up to scicalc.server.connections
+ * of them; one more is closed straight away. The evaluations run on
+ * scicalc.server.workers threads, with up to scicalc.server.queue more
+ * waiting for one. A request which finds the queue full is answered BUSY at
+ * once, so that clients back off instead of piling up behind a slow
+ * program. One which takes longer than scicalc.server.timeout ms is
+ * answered TIMEOUT, and its thread is interrupted, which stops the program
+ * (see Budget). A program may also take at most scicalc.server.steps steps,
+ * if that is set.
+ *
+ * The address is a port on the loopback interface, host:port, or
+ * unix:path for a Unix domain socket on JVMs which have them (Java 16 on).
+ * The latencies, from a request being read to its response being ready,
+ * are reported every scicalc.server.report seconds and when the server
+ * closes. With scicalc.server.profile set to a file, main() runs a Profiler
+ * too, and writes what it found there when the server closes.
+ *
+ * @author kmill
+ *
+ */
+public class Server implements AutoCloseable {
+    static final byte OK = 0, ERROR = 1, TIMEOUT = 2, BUSY = 3;
+
+    private static final int MAX_REQUEST = Integer.getInteger("scicalc.server.max_request", 1 << 20);
+
+    private final Interpreter m_interp;
+    private final ServerSocketChannel m_channel;
+    private final Path m_socket_file;
+    private final long m_timeout = Long.getLong("scicalc.server.timeout", 5000);
+    private final long m_steps = Long.getLong("scicalc.server.steps", Budget.UNLIMITED);
+    private final ThreadPoolExecutor m_connections;
+    private final ThreadPoolExecutor m_workers;
+
+    private final LatencyHistogram m_latencies = new LatencyHistogram();
+    private final AtomicLong[] m_outcomes = { new AtomicLong(), new AtomicLong(), new AtomicLong(),
+            new AtomicLong() };
+
+    public Server(Interpreter interp, String address) throws IOException {
+        m_interp = interp;
+        if (address.startsWith("unix:")) {
+            m_socket_file = Paths.get(address.substring("unix:".length()));
+            Files.deleteIfExists(m_socket_file);
+        } else {
+            m_socket_file = null;
+        }
+        m_channel = open(ServerSocketChannel.class, address);
+        m_channel.bind(address(address));
+        int workers = Integer.getInteger("scicalc.server.workers", Runtime.getRuntime().availableProcessors());
+        m_workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Integer.getInteger("scicalc.server.queue", 64)),
+                new Threads("scicalc-worker-"));
+        m_connections = new ThreadPoolExecutor(0, Integer.getInteger("scicalc.server.connections", 256), 60,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new Threads("scicalc-connection-"));
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    public void run() throws IOException {
+        while (m_channel.isOpen()) {
+            final SocketChannel connection;
+            try {
+                connection = m_channel.accept();
+            } catch (IOException x) {
+                if (!m_channel.isOpen()) {
+                    return;
+                }
+                throw x;
+            }
+            try {
+                m_connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(connection);
+                    }
+                });
+            } catch (RejectedExecutionException x) {
+                connection.close();
+            }
+        }
+    }
+
+    private void serve(SocketChannel connection) {
+        try (SocketChannel c = connection) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            while (true) {
+                String program;
+                try {
+                    program = readFrame(in);
+                } catch (EOFException x) {
+                    return;
+                }
+                long start = System.nanoTime();
+                byte status;
+                String result;
+                try {
+                    result = evaluate(program);
+                    status = OK;
+                } catch (RejectedExecutionException x) {
+                    result = "Too many requests waiting";
+                    status = BUSY;
+                } catch (TimeoutException x) {
+                    result = "No result after " + m_timeout + " ms";
+                    status = TIMEOUT;
+                } catch (ExecutionException x) {
+                    result = x.getCause().toString();
+                    status = ERROR;
+                }
+                if (status != BUSY) {
+                    m_latencies.record(System.nanoTime() - start);
+                }
+                m_outcomes[status].incrementAndGet();
+                out.writeByte(status);
+                writeFrame(out, result);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException x) {
+            // the connection is gone, or the server is closing
+        }
+    }
+
+    private String evaluate(final String program) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        Future<String> result = m_workers.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                Interpreter.Session session = m_interp.newSession();
+                session.setBudget(new Budget(m_steps, Budget.UNLIMITED));
+                return session.evaluate(program).toString();
+            }
+        });
+        try {
+            return result.get(m_timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            result.cancel(true);
+        }
+    }
+
+    /**
+     * @return a line of the numbers of requests answered each way, and their
+     *         latencies
+     */
+    public String report() {
+        return String.format("ok=%d error=%d timeout=%d busy=%d %s", m_outcomes[OK].get(), m_outcomes[ERROR].get(),
+                m_outcomes[TIMEOUT].get(), m_outcomes[BUSY].get(), m_latencies);
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_channel.close();
+        m_connections.shutdownNow();
+        m_workers.shutdownNow();
+        if (m_socket_file != null) {
+            Files.deleteIfExists(m_socket_file);
+        }
+    }
+
+    static String readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_REQUEST) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeFrame(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static SocketAddress address(String address) {
+        if (address.startsWith("unix:")) {
+            try {
+                return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class)
+                        .invoke(null, address.substring("unix:".length()));
+            } catch (ReflectiveOperationException x) {
+                throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later", x);
+            }
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress("localhost", Integer.parseInt(address));
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * @return a new ServerSocketChannel or SocketChannel of the right
+     *         protocol family for the address
+     */
+    static <T> T open(Class<T> kind, String address) throws IOException {
+        try {
+            if (address.startsWith("unix:")) {
+                ProtocolFamily unix = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+                return kind.cast(kind.getMethod("open", ProtocolFamily.class).invoke(null, unix));
+            }
+            return kind.cast(kind.getMethod("open").invoke(null));
+        } catch (InvocationTargetException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException) x.getCause();
+            }
+            throw new IllegalStateException(x.getCause());
+        } catch (IllegalArgumentException | ReflectiveOperationException x) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later", x);
+        }
+    }
+
+    /**
+     * Makes daemon threads with stacks as big as the interpreter's recursion
+     * may need (scicalc.server.stack, in KB).
+     */
+    private static class Threads implements ThreadFactory {
+        private static final long STACK = Long.getLong("scicalc.server.stack", 16 * 1024) * 1024;
+
+        private final String m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        Threads(String prefix) {
+            m_prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(null, r, m_prefix + m_count.incrementAndGet(), STACK);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Serves with an interpreter which has the given files loaded.
+     *
+     * Usage: Server address [file ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: Server address [file ...]");
+            return;
+        }
+        Interpreter interp = new Interpreter();
+        for (int i = 1; i < args.length; i++) {
+            interp.evaluateFile(Paths.get(args[i]));
+        }
+        final Server server = new Server(interp, args[0]);
+        final String profile = System.getProperty("scicalc.server.profile");
+        final Profiler profiler = profile != null ? new Profiler() : null;
+        if (profiler != null) {
+            profiler.start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.close();
+                } catch (IOException x) {
+                }
+                System.err.println(server.report());
+                if (profiler != null) {
+                    try {
+                        profiler.stop();
+                        System.err.print(profiler.top(20));
+                        profiler.save(Paths.get(profile));
+                    } catch (IOException | InterruptedException x) {
+                        System.err.println(x);
+                    }
+                }
+            }
+        });
+        final long every = Long.getLong("scicalc.server.report", 10);
+        if (every > 0) {
+            Thread reporter = new Thread() {
+                @Override
+                public void run() {
+                    String last = server.report();
+                    while (true) {
+                        try {
+                            Thread.sleep(every * 1000);
+                        } catch (InterruptedException x) {
+                            return;
+                        }
+                        String report = server.report();
+                        if (!report.equals(last)) {
+                            System.err.println(report);
+                            last = report;
+                        }
+                    }
+                }
+            };
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+        System.err.println("serving on " + args[0]);
+        server.run();
+    }
+}
@@ -0,0 +1,74 @@
+package scicalc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a Server: each of a number of connections sends the same program
+ * over and over, waiting for each response before sending the next, and the
+ * latencies seen from here are printed along with how the requests were
+ * answered (see Server) and one of the results.
+ *
+ * Usage: ServerClient address [connections] [requests] [program]
+ *
+ * where requests is how many each connection sends.
+ *
+ * @author kmill
+ *
+ */
+public class ServerClient {
+    public static void main(String[] args) throws Exception {
+        final String address = args[0];
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        final int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        final String program = args.length > 3 ? args[3]
+                : "fun fib(n) if n < 2 do n else fib(n-1) + fib(n-2) end end; fib(15)";
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong[] outcomes = { new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong() };
+        final String[] sample = new String[1];
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+        for (int t = 0; t < connections; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try (SocketChannel c = Server.open(SocketChannel.class, address)) {
+                        c.connect(Server.address(address));
+                        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(Channels.newInputStream(c)));
+                        DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(Channels.newOutputStream(c)));
+                        for (int i = 0; i < requests; i++) {
+                            long sent = System.nanoTime();
+                            Server.writeFrame(out, program);
+                            out.flush();
+                            byte status = in.readByte();
+                            String result = Server.readFrame(in);
+                            latencies.record(System.nanoTime() - sent);
+                            outcomes[status].incrementAndGet();
+                            sample[0] = result;
+                        }
+                    } catch (Exception x) {
+                        System.err.println(x);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("result: " + sample[0]);
+        System.out.printf("ok=%d error=%d timeout=%d busy=%d in %.2f s, %.0f requests/s%n", outcomes[Server.OK].get(),
+                outcomes[Server.ERROR].get(), outcomes[Server.TIMEOUT].get(), outcomes[Server.BUSY].get(), seconds,
+                latencies.count() / seconds);
+        System.out.println(latencies);
+    }
+}
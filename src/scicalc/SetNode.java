@@ -0,0 +1,120 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+/**
+ * Assignment into an array, a[i] <- v. When v is arithmetic, and so always a
+ * number (unless it has gone elementwise on arrays), it is stored into an
+ * ArrayValue without being boxed. Like GetNode,
+ * A[i, j] <- v on a matrix stores straight into it.
+ * 
+ * @author kmill
+ *
+ */
+public class SetNode implements Expr {
+    private final Expr m_array;
+    private final Expr m_index;
+    private final Expr m_value;
+    private final boolean m_numeric;
+    /** the array, if it is indexing (the a[i] of a[i][j] <- v) */
+    private final GetNode m_row;
+
+    public SetNode(Expr array, Expr index, Expr value) {
+        m_array = array;
+        m_index = index;
+        m_value = value;
+        m_numeric = isNumeric(value);
+        m_row = array instanceof GetNode ? (GetNode) array : null;
+    }
+
+    /**
+     * @return whether the expression always evaluates to a FloatValue
+     */
+    private static boolean isNumeric(Expr e) {
+        if (e instanceof FloatValue || e instanceof ChainExpr) {
+            return true;
+        } else if (e instanceof BinaryNode) {
+            switch (((BinaryNode) e).getPrim()) {
+            case ADD2:
+            case SUB2:
+            case MUL2:
+            case DIV2:
+            case IDIV2:
+            case MOD2:
+            case POW2:
+                return true;
+            default:
+                return false;
+            }
+        } else if (e instanceof UnaryNode) {
+            return ((UnaryNode) e).getPrim() != PrimFuncValue.NOT1;
+        }
+        return false;
+    }
+
+    public Expr getArray() {
+        return m_array;
+    }
+
+    public Expr getIndex() {
+        return m_index;
+    }
+
+    public Expr getValue() {
+        return m_value;
+    }
+
+    @Override
+    public Value evaluate(Environment e) {
+        Value array;
+        if (m_row != null) {
+            Value matrix = m_row.getLeft().evaluate(e);
+            if (matrix instanceof NDArrayValue) {
+                double i = GetNode.evaluateIndex(m_row.getRight(), e);
+                double j = GetNode.evaluateIndex(m_index, e);
+                if (m_numeric) {
+                    try {
+                        ((NDArrayValue) matrix).set(i, j, m_value.evaluateDouble(e));
+                    } catch (NotANumber x) {
+                        ((NDArrayValue) matrix).set(i, j, x.materialize());
+                    }
+                } else {
+                    ((NDArrayValue) matrix).set(i, j, m_value.evaluate(e));
+                }
+                return NullValue.INSTANCE;
+            }
+            array = m_row.index(matrix, e);
+        } else {
+            array = m_array.evaluate(e);
+        }
+        if (array instanceof ArrayValue) {
+            double index = GetNode.evaluateIndex(m_index, e);
+            if (m_numeric) {
+                try {
+                    ((ArrayValue) array).set(index, m_value.evaluateDouble(e));
+                } catch (NotANumber x) {
+                    ((ArrayValue) array).set(index, x.materialize());
+                }
+            } else {
+                ((ArrayValue) array).set(index, m_value.evaluate(e));
+            }
+            return NullValue.INSTANCE;
+        }
+        Value index = m_index.evaluate(e);
+        return PrimFuncValue.set(array, index, m_value.evaluate(e));
+    }
+
+    @Override
+    public double evaluateDouble(Environment e) {
+        return evaluate(e).asFloat();
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return evaluate(e).asBool();
+    }
+
+    public String toString() {
+        return "Apply(" + PrimFuncValue.SET + ", " + m_array + ", " + m_index + ", " + m_value + ")";
+    }
+}
@@ -10,12 +10,30 @@ public class StoreExpr implements Expr {
 		m_expr = expr;
 	}
 
+	public String getIdentifier() {
+		return m_identifier;
+	}
+
+	public Expr getExpr() {
+		return m_expr;
+	}
+
 	@Override
 	public Value evaluate(Environment e) {
 		e.set(m_identifier, m_expr.evaluate(e));
 		return NullValue.INSTANCE;
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
 	public String toString() {
 		return "Store(" + m_identifier + ", " + m_expr + ")";
 	}
@@ -23,6 +23,16 @@ public class StringValue implements Expr, Value {
         return this;
     }
 
+    @Override
+    public double evaluateDouble(Environment e) {
+        return asFloat();
+    }
+
+    @Override
+    public boolean evaluateBool(Environment e) {
+        return asBool();
+    }
+
     @Override
     public double asFloat() {
         return Double.parseDouble(m_string);
@@ -44,7 +54,7 @@ public class StringValue implements Expr, Value {
         if ((int) i != i) {
             throw new IllegalArgumentException("Index to string must be an integer");
         }
-        return new FloatValue(m_string.charAt((int) i));
+        return FloatValue.valueOf(m_string.charAt((int) i));
     }
 
     @Override
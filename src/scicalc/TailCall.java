@@ -0,0 +1,70 @@
+package scicalc;
+
+/**
+ * A call in tail position which has not been made yet: the function and the
+ * frame with its arguments. The Resolver marks the calls in tail position
+ * (see AppExpr.isTail()), and such a call of a resolved function gives back a
+ * TailCall instead of calling it. It is only ever returned by the body of a
+ * function, to the FunExpr.call() which is running it, which then makes the
+ * call in its own loop. So a chain of tail calls takes no more Java stack
+ * than one call, however long it is.
+ *
+ * @author kmill
+ *
+ */
+final class TailCall implements Value {
+    private final FunExpr m_fun;
+    private final Environment m_frame;
+
+    TailCall(FunExpr fun, Environment frame) {
+        m_fun = fun;
+        m_frame = frame;
+    }
+
+    public FunExpr getFun() {
+        return m_fun;
+    }
+
+    public Environment getFrame() {
+        return m_frame;
+    }
+
+    /**
+     * Applies func to the arguments from tail position.
+     */
+    static Value apply(Value func, Value[] args) {
+        if (func instanceof FunValue) {
+            return ((FunValue) func).applyTail(args);
+        }
+        return func.apply(args);
+    }
+
+    @Override
+    public double asFloat() {
+        throw new InternalError("tail call escaped its function");
+    }
+
+    @Override
+    public boolean asBool() {
+        throw new InternalError("tail call escaped its function");
+    }
+
+    @Override
+    public Value apply(Value[] values) {
+        throw new InternalError("tail call escaped its function");
+    }
+
+    @Override
+    public Value get(Value index) {
+        throw new InternalError("tail call escaped its function");
+    }
+
+    @Override
+    public Value set(Value index, Value value) {
+        throw new InternalError("tail call escaped its function");
+    }
+
+    public String toString() {
+        return "<tail call of " + m_fun + ">";
+    }
+}
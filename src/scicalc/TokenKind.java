@@ -0,0 +1,49 @@
+package scicalc;
+
+/**
+ * The specific kind of a token. Every operator and reserved word gets its own
+ * kind so that the parser can compare tokens with == instead of comparing
+ * strings. The coarser TokenType is still available through getType().
+ *
+ * @author kmill
+ *
+ */
+public enum TokenKind {
+    // operators
+    ARROW("->"), MINUS("-"), PLUS("+"), STAR("*"), SLASH("/"), CARET("^"), PERCENT("%"),
+    LPAREN("("), RPAREN(")"), LBRACKET("["), RBRACKET("]"), COMMA(","), SEMICOLON(";"),
+    DEFINE(":="), ASSIGN("<-"), EQ("=="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">="),
+    NOT("!"), AND("&&"), OR("||"),
+    // reserved words
+    DIV("div", TokenType.RESERVED), NULL("null", TokenType.RESERVED), TRUE("true", TokenType.RESERVED),
+    FALSE("false", TokenType.RESERVED), IF("if", TokenType.RESERVED), ELIF("elif", TokenType.RESERVED),
+    ELSE("else", TokenType.RESERVED), END("end", TokenType.RESERVED), WHILE("while", TokenType.RESERVED),
+    DO("do", TokenType.RESERVED), FUN("fun", TokenType.RESERVED), BLOCK("block", TokenType.RESERVED),
+    PARFOR("parfor", TokenType.RESERVED),
+    // everything else
+    FLOAT(null, TokenType.FLOAT), STRING(null, TokenType.STRING), IDENTIFIER(null, TokenType.IDENTIFIER),
+    EOF(null, TokenType.EOF), ERROR(null, TokenType.ERROR);
+
+    private final String m_text;
+    private final TokenType m_type;
+
+    private TokenKind(String text) {
+        this(text, TokenType.OPERATOR);
+    }
+
+    private TokenKind(String text, TokenType type) {
+        m_text = text;
+        m_type = type;
+    }
+
+    /**
+     * @return the source text for operators and reserved words, otherwise null
+     */
+    public String getText() {
+        return m_text;
+    }
+
+    public TokenType getType() {
+        return m_type;
+    }
+}
@@ -0,0 +1,68 @@
+package scicalc;
+
+import scicalc.ElementwiseValue.NotANumber;
+
+/**
+ * An operator with one operand: -a, +a or not a. Like BinaryNode, but with
+ * one operand. The arithmetic ones compute on doubles in the same way (and
+ * go elementwise on an array), and 'not' on booleans.
+ * 
+ * @author kmill
+ *
+ */
+public abstract class UnaryNode implements Expr {
+    protected final Expr m_operand;
+
+    /**
+     * Whether the operand has only been numbers, as in BinaryNode.
+     */
+    protected boolean m_specialized = true;
+
+    protected UnaryNode(Expr operand) {
+        m_operand = operand;
+    }
+
+    public boolean isSpecialized() {
+        return m_specialized;
+    }
+
+    /**
+     * Goes on elementwise, the operand having been the array in x.
+     *
+     * @return the NotANumber for this node to throw, with the result
+     */
+    protected NotANumber operandArray(NotANumber x) {
+        m_specialized = false;
+        return new NotANumber(ElementwiseValue.create(getPrim(), x.getValue(), null));
+    }
+
+    /**
+     * @return the node for the primitive, or null if it is not a one-operand
+     *         operator
+     */
+    public static UnaryNode create(PrimFuncValue prim, Expr operand) {
+        switch (prim) {
+        case NEG1:
+            return new NegNode(operand);
+        case PLUS1:
+            return new PlusNode(operand);
+        case NOT1:
+            return new NotNode(operand);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return the primitive which this node computes
+     */
+    public abstract PrimFuncValue getPrim();
+
+    public Expr getOperand() {
+        return m_operand;
+    }
+
+    public String toString() {
+        return "Apply(" + getPrim() + ", " + m_operand + ")";
+    }
+}
@@ -16,6 +16,16 @@ public class VariableExpr implements Expr {
 		return e.lookup(m_identifier);
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		return ElementwiseValue.asFloat(evaluate(e));
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
 	public String toString() {
 		return m_identifier;
 	}
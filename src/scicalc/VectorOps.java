@@ -0,0 +1,263 @@
+package scicalc;
+
+/**
+ * The elementwise primitives on arrays of numbers: vadd, vsub, vmul, vdiv,
+ * vfma, vsqrt, vlt, vgt, vsum and vdot (see PrimFuncValue). Each takes its
+ * operands' items as double[]s, which is free for a double ArrayValue or a
+ * contiguous NDArrayValue, and runs one plain counted loop over them. That
+ * is the shape of loop which C2 compiles to SIMD instructions, so a kernel
+ * does as many items per instruction as the machine has lanes. Any other
+ * array is first copied into a double[], one asFloat() at a time.
+ *
+ * Where a binary operation has one array operand and one number, the number
+ * is used with every item. The result of an elementwise operation is like
+ * its first array operand: an ArrayValue or an NDArrayValue of that shape.
+ *
+ * @author kmill
+ *
+ */
+final class VectorOps {
+
+    private VectorOps() {
+    }
+
+    static boolean isArray(Value v) {
+        return v instanceof ArrayValue || v instanceof NDArrayValue;
+    }
+
+    /**
+     * @return the items of an array; see ArrayValue.toDoubles() and
+     *         NDArrayValue.toRowMajor() for when it is the array's own storage
+     */
+    static double[] items(Value v) {
+        if (v instanceof ArrayValue) {
+            return ((ArrayValue) v).toDoubles();
+        } else if (v instanceof NDArrayValue) {
+            return ((NDArrayValue) v).toRowMajor();
+        }
+        throw new IllegalArgumentException("Expecting an array");
+    }
+
+    static int count(Value v) {
+        return v instanceof ArrayValue ? ((ArrayValue) v).size() : ((NDArrayValue) v).size();
+    }
+
+    static Value like(Value v, double[] items, int n) {
+        if (v instanceof ArrayValue) {
+            return new ArrayValue(items, n);
+        }
+        return ((NDArrayValue) v).withItems(items);
+    }
+
+    /**
+     * @return the number of items of the arrays, which must be the same
+     */
+    private static int count(Value a, Value b) {
+        int n = count(a);
+        if (count(b) != n) {
+            throw new IllegalArgumentException("Arrays have different lengths");
+        }
+        return n;
+    }
+
+    /**
+     * a + b, a - b, a * b or a / b, item by item.
+     *
+     * @param op
+     *            VADD, VSUB, VMUL or VDIV
+     */
+    static Value arithmetic(PrimFuncValue op, Value a, Value b) {
+        if (isArray(a) && isArray(b)) {
+            int n = count(a, b);
+            double[] x = items(a), y = items(b), r = new double[n];
+            switch (op) {
+            case VADD:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] + y[i];
+                }
+                break;
+            case VSUB:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] - y[i];
+                }
+                break;
+            case VMUL:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] * y[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] / y[i];
+                }
+            }
+            return like(a, r, n);
+        } else if (isArray(a)) {
+            int n = count(a);
+            double[] x = items(a), r = new double[n];
+            double s = b.asFloat();
+            switch (op) {
+            case VADD:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] + s;
+                }
+                break;
+            case VSUB:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] - s;
+                }
+                break;
+            case VMUL:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] * s;
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i] / s;
+                }
+            }
+            return like(a, r, n);
+        } else if (isArray(b)) {
+            int n = count(b);
+            double[] y = items(b), r = new double[n];
+            double s = a.asFloat();
+            switch (op) {
+            case VADD:
+                for (int i = 0; i < n; i++) {
+                    r[i] = s + y[i];
+                }
+                break;
+            case VSUB:
+                for (int i = 0; i < n; i++) {
+                    r[i] = s - y[i];
+                }
+                break;
+            case VMUL:
+                for (int i = 0; i < n; i++) {
+                    r[i] = s * y[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    r[i] = s / y[i];
+                }
+            }
+            return like(b, r, n);
+        }
+        throw new IllegalArgumentException("Expecting an array");
+    }
+
+    /**
+     * a * b + c, item by item, where c may be a number. (It is not fused:
+     * there is no Math.fma() before Java 9.)
+     */
+    static Value fma(Value a, Value b, Value c) {
+        int n = count(a, b);
+        double[] x = items(a), y = items(b), r = new double[n];
+        if (isArray(c)) {
+            double[] z = items(c);
+            count(a, c);
+            for (int i = 0; i < n; i++) {
+                r[i] = x[i] * y[i] + z[i];
+            }
+        } else {
+            double s = c.asFloat();
+            for (int i = 0; i < n; i++) {
+                r[i] = x[i] * y[i] + s;
+            }
+        }
+        return like(a, r, n);
+    }
+
+    static Value sqrt(Value a) {
+        int n = count(a);
+        double[] x = items(a), r = new double[n];
+        for (int i = 0; i < n; i++) {
+            r[i] = Math.sqrt(x[i]);
+        }
+        return like(a, r, n);
+    }
+
+    /**
+     * a < b or a > b, item by item. The result is an array of booleans, or
+     * for an NDArrayValue (which only holds numbers), of 1s and 0s.
+     *
+     * @param op
+     *            VLT or VGT
+     */
+    static Value compare(PrimFuncValue op, Value a, Value b) {
+        boolean less = op == PrimFuncValue.VLT;
+        Value first = isArray(a) ? a : b;
+        int n = isArray(a) && isArray(b) ? count(a, b) : count(first);
+        boolean[] r = new boolean[n];
+        if (isArray(a) && isArray(b)) {
+            double[] x = items(a), y = items(b);
+            for (int i = 0; i < n; i++) {
+                r[i] = less ? x[i] < y[i] : x[i] > y[i];
+            }
+        } else if (isArray(a)) {
+            double[] x = items(a);
+            double s = b.asFloat();
+            for (int i = 0; i < n; i++) {
+                r[i] = less ? x[i] < s : x[i] > s;
+            }
+        } else {
+            double[] y = items(b);
+            double s = a.asFloat();
+            for (int i = 0; i < n; i++) {
+                r[i] = less ? s < y[i] : s > y[i];
+            }
+        }
+        if (first instanceof ArrayValue) {
+            return new ArrayValue(r, n);
+        }
+        double[] ones = new double[n];
+        for (int i = 0; i < n; i++) {
+            ones[i] = r[i] ? 1.0 : 0.0;
+        }
+        return ((NDArrayValue) first).withItems(ones);
+    }
+
+    /**
+     * @return the sum of the items. It is added up in four separate partial
+     *         sums, so it can use four lanes, and so it may round slightly
+     *         differently from adding the items up in order.
+     */
+    static double sum(Value a) {
+        int n = count(a);
+        double[] x = items(a);
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += x[i];
+            s1 += x[i + 1];
+            s2 += x[i + 2];
+            s3 += x[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += x[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * @return the dot product, added up like sum()
+     */
+    static double dot(Value a, Value b) {
+        int n = count(a, b);
+        double[] x = items(a), y = items(b);
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += x[i] * y[i];
+            s1 += x[i + 1] * y[i + 1];
+            s2 += x[i + 2] * y[i + 2];
+            s3 += x[i + 3] * y[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += x[i] * y[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
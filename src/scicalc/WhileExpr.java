@@ -1,21 +1,180 @@
 package scicalc;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class WhileExpr implements Expr {
+	/**
+	 * How many times a loop records a new trace before giving up on it.
+	 */
+	private static final int MAX_TRACES = 3;
+
 	private Expr m_cond, m_body;
+	/** where the loop starts, or 0 if the parser did not say */
+	private int m_line, m_column;
+	/**
+	 * The function whose body the loop is in, if the Jit is profiling it.
+	 */
+	private FunExpr m_owner;
+	/**
+	 * Whether the Jit is counting the iterations towards recording a trace,
+	 * and how many there have been.
+	 */
+	private boolean m_tracing;
+	private int m_iterations;
+	private int m_traces;
+	private volatile CompiledLoop m_trace;
+	/**
+	 * The 'if' statements which earlier traces found go either way, which
+	 * are compiled with both branches rather than as guards. (A loop in a
+	 * function run by pmap or parfor may be recorded on one worker while it
+	 * is retraced on another.)
+	 */
+	private final CopyOnWriteArrayList<IfExpr> m_unbiased = new CopyOnWriteArrayList<>();
 
 	public WhileExpr(Expr cond, Expr body) {
 		m_cond = cond;
 		m_body = body;
 	}
 
+	public Expr getCond() {
+		return m_cond;
+	}
+
+	public Expr getBody() {
+		return m_body;
+	}
+
+	/**
+	 * Gives this the source position of the loop it was made from, for
+	 * describe().
+	 */
+	WhileExpr withSourceOf(WhileExpr original) {
+		setSource(original.m_line, original.m_column);
+		return this;
+	}
+
+	void setSource(int line, int column) {
+		m_line = line;
+		m_column = column;
+	}
+
+	public int getLine() {
+		return m_line;
+	}
+
+	public int getColumn() {
+		return m_column;
+	}
+
+	/**
+	 * @return "a while loop" and where it starts, as in "a while loop
+	 *         (12:4)", if the parser said
+	 */
+	public String describe() {
+		return m_line > 0 ? "a while loop (" + m_line + ":" + m_column + ")" : "a while loop";
+	}
+
+	void setOwner(FunExpr owner) {
+		m_owner = owner;
+	}
+
+	/**
+	 * Makes the loop's iterations count towards recording a trace of it.
+	 */
+	void startTracing() {
+		m_tracing = true;
+	}
+
+	/**
+	 * Called when the trace is left too often: the loop counts iterations
+	 * again, and records a new trace once it is hot.
+	 * 
+	 * @param unbiased
+	 *            the 'if' statements whose guards were the reason
+	 */
+	void retrace(CompiledLoop trace, ArrayList<IfExpr> unbiased) {
+		if (m_trace == trace) {
+			m_unbiased.addAll(unbiased);
+			m_trace = null;
+			m_iterations = 0;
+			m_tracing = m_traces < MAX_TRACES;
+		}
+	}
+
+	public CompiledLoop getTrace() {
+		return m_trace;
+	}
+
 	@Override
 	public Value evaluate(Environment e) {
-		while (m_cond.evaluate(e).asBool()) {
-			m_body.evaluate(e);
+		FunExpr owner = m_owner;
+		while (true) {
+			CompiledLoop trace = m_trace;
+			if (trace != null) {
+				int exit = trace.run(e);
+				if (exit == CompiledLoop.DONE) {
+					break;
+				} else if (exit != CompiledLoop.NOT_ENTERED) {
+					trace.resume(exit, e);
+					Budget.check(this);
+					continue;
+				}
+			}
+			if (!m_cond.evaluateBool(e)) {
+				break;
+			}
+			if (m_tracing && ++m_iterations >= Jit.THRESHOLD) {
+				record(e);
+			} else {
+				m_body.evaluate(e);
+			}
+			if (owner != null) {
+				owner.heat();
+			}
+			Budget.check(this);
 		}
 		return NullValue.INSTANCE;
 	}
 
+	@Override
+	public double evaluateDouble(Environment e) {
+		return evaluate(e).asFloat();
+	}
+
+	@Override
+	public boolean evaluateBool(Environment e) {
+		return evaluate(e).asBool();
+	}
+
+	/**
+	 * Runs the body once, noting which way each 'if' statement goes, and
+	 * compiles that path.
+	 */
+	private void record(Environment e) {
+		m_tracing = false;
+		m_traces++;
+		IdentityHashMap<IfExpr, Boolean> path = new IdentityHashMap<>();
+		record(m_body, e, path);
+		m_trace = Jit.compileLoop(this, path, e);
+	}
+
+	private void record(Expr statement, Environment e, IdentityHashMap<IfExpr, Boolean> path) {
+		if (statement instanceof SeqExpr) {
+			for (Expr s : ((SeqExpr) statement).getExprs()) {
+				record(s, e, path);
+			}
+		} else if (statement instanceof IfExpr && !m_unbiased.contains(statement)) {
+			IfExpr ife = (IfExpr) statement;
+			boolean taken = ife.getCond().evaluateBool(e);
+			path.put(ife, taken);
+			record(taken ? ife.getCons() : ife.getAlt(), e, path);
+		} else {
+			statement.evaluate(e);
+		}
+	}
+
 	public String toString() {
 		return "While(" + m_cond + ", " + m_body + ")";
 	}
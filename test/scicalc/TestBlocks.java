@@ -0,0 +1,76 @@
+package scicalc;
+
+/**
+ * Checks leaving blocks by calling their labels, with each engine: directly
+ * in the block, from a nested function (including one made by an earlier
+ * entry of the same block, and one running in a pmap worker), and through
+ * the label as a value, and that a label called after its block has
+ * finished is an error.
+ *
+ * @author kmill
+ *
+ */
+public class TestBlocks {
+    private static final String DEFINITIONS = "fun iter(xs, f) i := 0; while i < len(xs) do f(xs[i]); i <- i + 1 end end;\n"
+            + "fun first_over(xs, t) block found do iter(xs, fun (x) if x > t do found(x) end end); -1 end end;\n"
+            + "fun g(n, k) block out do if n == 0 do k(7) end; 100 * g(n - 1, fun (v) out(v + n) end) end end;\n"
+            + "fun stale() block out do fun () out(1) end end end";
+
+    public static void main(String[] args) throws Exception {
+        check(Interpreter.Engine.TREE, false);
+        check(Interpreter.Engine.TREE, true);
+        check(Interpreter.Engine.BYTECODE, false);
+        check(Interpreter.Engine.HANDLES, false);
+        System.out.println("TestBlocks: all checks passed");
+    }
+
+    private static void check(Interpreter.Engine engine, boolean jit) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setEngine(engine);
+        interp.setJit(jit);
+        interp.evaluate(DEFINITIONS);
+        String what = engine + (jit ? "+jit" : "");
+
+        check(what, interp, "block out do 3 end", "3");
+        check(what, interp, "block out do i := 0; while true do if i == 5 do out(i * 10) end; i <- i + 1 end end", "50");
+        check(what, interp, "block a do block b do a(1) end; 2 end", "1");
+        check(what, interp, "block a do block b do b(1) end + 2 end", "3");
+        check(what, interp, "first_over([1, 2, 9, 4], 3)", "9");
+        check(what, interp, "first_over([1, 2], 3)", "-1");
+        // the closure made by g(1) leaves g(1), not the entry running it
+        check(what, interp, "g(2, fun (v) v end)", "800");
+        // a parameter of the same name is not the label
+        check(what, interp, "block out do f := fun (out) out(5) end; f(fun (v) v * 2 end) + 1 end", "11");
+        check(what, interp, "block out do f := out; f(3); 4 end", "3");
+        fails(what, interp, "k := stale(); k()", "Label invalid outside defining block");
+        fails(what, interp, "l := block out do out end; l(1)", "Label invalid outside defining block");
+        fails(what, interp, "block out do out(1, 2) end", "Label expecting exactly one argument");
+
+        // enough calls for the jit to compile the closure in first_over
+        check(what, interp, "s := 0; i := 0; while i < 3000 do s <- s + first_over([1, i, 5], 3); i <- i + 1 end; s",
+                "4498514");
+        for (int round = 0; round < 200; round++) {
+            check(what, interp, "block out do pmap([1, 2, 3, 4], fun (x) if x == 2 do out(42) end; x end) end",
+                    "42");
+        }
+    }
+
+    private static void check(String what, Interpreter interp, String program, String expected) throws Exception {
+        String result = String.valueOf(interp.evaluate(program));
+        if (!result.equals(expected)) {
+            throw new AssertionError(what + ": " + program + " gave " + result + ", not " + expected);
+        }
+    }
+
+    private static void fails(String what, Interpreter interp, String program, String message) throws Exception {
+        try {
+            interp.evaluate(program);
+        } catch (RuntimeException x) {
+            if (!message.equals(x.getMessage())) {
+                throw new AssertionError(what + ": " + program + " failed with " + x);
+            }
+            return;
+        }
+        throw new AssertionError(what + ": " + program + " did not fail");
+    }
+}
@@ -0,0 +1,104 @@
+package scicalc;
+
+/**
+ * Checks that a Budget stops a program, with each engine, when it runs out
+ * of steps, when its deadline passes, when it is cancelled and when the
+ * thread running the program is interrupted, that the error says where the
+ * program was, and that a program within its budget runs as usual.
+ *
+ * @author kmill
+ *
+ */
+public class TestBudget {
+    private static final String DEFINITIONS = "fun fib(n) if n < 2 do n else fib(n - 1) + fib(n - 2) end end;\n"
+            + "fun spin() while true do 1 end end;\n"
+            + "fun sum_to(n) s := 0; i := 0; while i < n do s <- s + i; i <- i + 1 end; s end";
+
+    public static void main(String[] args) throws Exception {
+        check(Interpreter.Engine.TREE, false);
+        check(Interpreter.Engine.TREE, true);
+        check(Interpreter.Engine.BYTECODE, false);
+        check(Interpreter.Engine.HANDLES, false);
+        System.out.println("TestBudget: all checks passed");
+    }
+
+    private static void check(Interpreter.Engine engine, boolean jit) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setEngine(engine);
+        interp.setJit(jit);
+        interp.evaluate(DEFINITIONS);
+        String what = engine + (jit ? "+jit" : "");
+
+        // fib(10) makes 177 calls, and sum_to(100) 100 iterations
+        equal(what, "55", interp.evaluate("fib(10)", new Budget(177, Budget.UNLIMITED)).toString());
+        exceeds(what, interp, "fib(10)", new Budget(176, Budget.UNLIMITED),
+                "Ran out of steps (176) in a call of fib (1:0)");
+        equal(what, "4950", interp.evaluate("sum_to(100)", new Budget(101, Budget.UNLIMITED)).toString());
+        exceeds(what, interp, "sum_to(100)", new Budget(100, Budget.UNLIMITED),
+                "Ran out of steps (100) in a while loop (3:30)");
+
+        exceeds(what, interp, "spin()", new Budget(Budget.UNLIMITED, 100),
+                "Ran out of time (100 ms) in a while loop (2:11)");
+        exceeds(what, interp, "while true do 1 end", new Budget(Budget.UNLIMITED, 100),
+                "Ran out of time (100 ms) in a while loop (1:0)");
+
+        final Budget cancelled = new Budget(Budget.UNLIMITED, Budget.UNLIMITED);
+        later(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.cancel();
+            }
+        });
+        exceeds(what, interp, "spin()", cancelled, "Cancelled in a while loop (2:11)");
+
+        final Thread thread = Thread.currentThread();
+        later(new Runnable() {
+            @Override
+            public void run() {
+                thread.interrupt();
+            }
+        });
+        exceeds(what, interp, "fib(100)", new Budget(Budget.UNLIMITED, Budget.UNLIMITED),
+                "Cancelled in a call of fib (1:0)");
+        if (!Thread.interrupted()) {
+            throw new AssertionError(what + ": the interrupt was lost");
+        }
+
+        // and without a budget, as before
+        equal(what, "610", interp.evaluate("fib(15)").toString());
+    }
+
+    private static void exceeds(String what, Interpreter interp, String program, Budget budget, String message)
+            throws Exception {
+        try {
+            interp.evaluate(program, budget);
+        } catch (Budget.ExceededException x) {
+            equal(what + ": " + program, message, x.getMessage());
+            return;
+        }
+        throw new AssertionError(what + ": " + program + " was not stopped");
+    }
+
+    /**
+     * Runs the action in another thread, a little later.
+     */
+    private static void later(final Runnable action) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException x) {
+                    return;
+                }
+                action.run();
+            }
+        }.start();
+    }
+
+    private static void equal(String what, String expected, String actual) {
+        if (!actual.equals(expected)) {
+            throw new AssertionError(what + " gave " + actual + ", not " + expected);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package scicalc;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that a program run through the cache of parsed programs (see
+ * AstCache) gives the same result as it does from its source, and that a
+ * damaged entry, cut short anywhere or not an entry at all, is replaced,
+ * with the program still running each of its statements exactly once.
+ *
+ * @author kmill
+ *
+ */
+public class TestCache {
+    /** each statement which runs is logged, in an array made beforehand */
+    private static final String PROGRAM = "push(log, 1);\nfun f(n) n * 10 end;\npush(log, f(2));\n"
+            + "a := [3, \"s\", true];\npush(log, len(a));\nlog";
+    private static final String EXPECTED = "[1, 20, 3]";
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("scicalc-cache");
+        Path source = dir.resolve("program.sci");
+        Files.write(source, PROGRAM.getBytes(StandardCharsets.UTF_8));
+        Path cacheDir = dir.resolve("cache");
+        try {
+            check("without an entry", source, cacheDir);
+            Path entry = new AstCache(cacheDir).entryFor(source);
+            byte[] bytes = Files.readAllBytes(entry);
+            check("from the entry", source, cacheDir);
+
+            for (int length = 0; length < bytes.length; length++) {
+                Files.write(entry, Arrays.copyOf(bytes, length));
+                check("from an entry cut to " + length + " bytes", source, cacheDir);
+                if (!Arrays.equals(bytes, Files.readAllBytes(entry))) {
+                    throw new AssertionError("the entry cut to " + length + " bytes was not replaced");
+                }
+            }
+            Files.write(entry, "not an entry".getBytes(StandardCharsets.UTF_8));
+            check("from a file which is not an entry", source, cacheDir);
+        } finally {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDir)) {
+                for (Path path : entries) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(cacheDir);
+            Files.delete(source);
+            Files.delete(dir);
+        }
+        System.out.println("TestCache: all checks passed");
+    }
+
+    private static void check(String what, Path source, Path cacheDir) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setCacheDirectory(cacheDir);
+        interp.evaluate("log := []");
+        String result = String.valueOf(interp.evaluateFile(source));
+        if (!result.equals(EXPECTED)) {
+            throw new AssertionError(what + ": gave " + result + ", not " + EXPECTED);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package scicalc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+
+/**
+ * Runs test.sci with each engine, and checks that everything it prints, and
+ * its result, are the same as with the tree interpreter on its own.
+ *
+ * Usage: TestEngines, from the directory test.sci is in
+ *
+ * @author kmill
+ *
+ */
+public class TestEngines {
+
+    public static void main(String[] args) throws Exception {
+        String expected = run(Interpreter.Engine.TREE, false);
+        check("tree+jit", expected, run(Interpreter.Engine.TREE, true));
+        check("bytecode", expected, run(Interpreter.Engine.BYTECODE, false));
+        check("handles", expected, run(Interpreter.Engine.HANDLES, false));
+        // a second run in the same interpreter finds its functions compiled
+        Interpreter interp = interpreter(Interpreter.Engine.TREE, true);
+        run(interp);
+        check("tree+jit, again", expected, run(interp));
+        System.out.println("TestEngines: all engines agree");
+    }
+
+    private static Interpreter interpreter(Interpreter.Engine engine, boolean jit) {
+        Interpreter interp = new Interpreter();
+        interp.setEngine(engine);
+        interp.setJit(jit);
+        return interp;
+    }
+
+    private static String run(Interpreter.Engine engine, boolean jit) throws Exception {
+        return run(interpreter(engine, jit));
+    }
+
+    /**
+     * @return what test.sci printed, and its result
+     */
+    private static String run(Interpreter interp) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+        try {
+            bytes.write(String.valueOf(interp.evaluateFile(Paths.get("test.sci"))).getBytes("UTF-8"));
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private static void check(String what, String expected, String actual) {
+        if (!actual.equals(expected)) {
+            throw new AssertionError(what + " printed\n" + actual + "\ninstead of\n" + expected);
+        }
+    }
+}
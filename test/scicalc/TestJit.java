@@ -0,0 +1,105 @@
+package scicalc;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that functions give the same results, and the same errors, before
+ * and after the jit compiles them as with the tree interpreter alone: with
+ * arguments of the kinds the code was compiled for, with ones which send
+ * the call back to the tree, past the point where the function is compiled
+ * again without assumptions, and with a recursive function rebound while
+ * it runs. Meant to be run with a low -Dscicalc.jit.threshold, so that it
+ * does not take thousands of rounds.
+ *
+ * @author kmill
+ *
+ */
+public class TestJit {
+    private static final String[] DEFINITIONS = {
+            "fun f(n) block r do i := 0; while true do if i >= n do r(i * 2) end; i <- i + 1 end end end",
+            "fun g(x) x + 1 end",
+            "fun h(x) if x do 1 else \"s\" end end",
+            "fun d() block r do x := r(1); x + 1 end end",
+            "fun mk() c := 0; fun () c <- c + 1; c end end; inc := mk()",
+            "cnt := 0; fun bump() cnt <- cnt + 1; cnt end",
+            "fun e(a, b) [a == b, a != b, a < b, a <= b, a > b, a >= b] end",
+            "fun lg(a, b) [a && b, a || b, !a, if a && b do 1 else 2 end, if a || b do 1 else 2 end] end",
+            "fun ar(a, b) [a div b, a % b, a ^ b, -a, +a, a / b, a * b, a - b] end",
+            "fun bad(x) x + [1] end",
+            "fun r1(n) if n <= 0 do 0 else r1(n - 1) + 1 end end",
+            "fun sum(a) s := 0; i := 0; while i < len(a) do s <- s + a[i]; i <- i + 1 end; s end",
+            "fun hh(c) if c do y := 1 end; y end; y := 99",
+            "fun st(a, i) a[i] <- a[i] * 2; a end",
+            "fun lp(n) s := 0; while n > 0 do s <- s + n; n <- n - 1 end; s end",
+            "fun ts(n) n <- \"x\"; n end",
+            "fun outerread() PI * 2 end",
+            "fun rb(n) if n <= 0 do 0 else rb(n - 1) + 1 end end" };
+    private static final String[] CALLS = { "f(5)", "g(1)", "g(true)", "g(nothing)", "g(\"s\")", "g(1, 2)", "h(1)",
+            "h(0)", "d()", "inc()", "bump()", "e(1, 2)", "e(2, 2)", "e(0/0, 0/0)", "e(\"a\", \"a\")", "e(true, 1)",
+            "lg(true, false)", "lg(1, 0)", "lg(0, 5)", "ar(7, 2)", "ar(-7.5, 2)", "ar(1, 0)", "ar(true, 2)", "bad(1)",
+            "r1(10)", "sum([1, 2, 3.5])", "hh(true)", "hh(false)", "st([1, 2, 3], 1)", "lp(100)", "lp(true)",
+            "ts(1)", "outerread()", "rb(5)" };
+    /** functions which the jit should have compiled by the end */
+    private static final String[] COMPILED = { "f", "g", "e", "ar", "r1", "sum", "lp" };
+
+    public static void main(String[] args) throws Exception {
+        int rounds = Jit.THRESHOLD + Jit.MAX_DEOPTIMIZATIONS + 10;
+        Interpreter tree = interpreter(false);
+        Interpreter jit = interpreter(true);
+        ArrayList<String> expected = run(tree, rounds);
+        ArrayList<String> actual = run(jit, rounds);
+        for (int i = 0; i < expected.size(); i++) {
+            if (!expected.get(i).equals(actual.get(i))) {
+                throw new AssertionError("round " + i / CALLS.length + ": " + actual.get(i) + ", not "
+                        + expected.get(i));
+            }
+        }
+        for (String name : COMPILED) {
+            if (((FunValue) jit.evaluate(name)).getFun().getCompiled() == null) {
+                throw new AssertionError(name + " was not compiled");
+            }
+        }
+
+        // a recursive function rebound while it runs, after it is compiled
+        String rebind = "fun rb2(n) if n == 3 do rb <- fun (m) \"str\" end end; if n <= 0 do 0 else rb(n - 1) + 1 end end;"
+                + " rb <- rb2; rb(5)";
+        equal("rebinding", outcome(tree, rebind), outcome(jit, rebind));
+        System.out.println("TestJit: compiled code agrees with the tree");
+    }
+
+    private static Interpreter interpreter(boolean jit) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setJit(jit);
+        for (String definition : DEFINITIONS) {
+            interp.evaluate(definition);
+        }
+        return interp;
+    }
+
+    /**
+     * @return the result or the error of each call, in each round
+     */
+    private static ArrayList<String> run(Interpreter interp, int rounds) throws Exception {
+        ArrayList<String> results = new ArrayList<>();
+        for (int round = 0; round < rounds; round++) {
+            for (String call : CALLS) {
+                results.add(outcome(interp, call));
+            }
+        }
+        return results;
+    }
+
+    private static String outcome(Interpreter interp, String program) throws Exception {
+        try {
+            return program + " = " + interp.evaluate(program);
+        } catch (RuntimeException x) {
+            return program + " fails with " + x;
+        }
+    }
+
+    private static void equal(String what, String expected, String actual) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(what + ": " + actual + ", not " + expected);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package scicalc;
+
+/**
+ * Checks that programs give the same results, and the same errors, with the
+ * Optimizer as without it, for each of its simplifications, on numbers and
+ * on arrays (which the arithmetic and the ordering comparisons go
+ * elementwise over).
+ *
+ * @author kmill
+ *
+ */
+public class TestOptimizer {
+    private static final String[] PROGRAMS = { "126 - 32", "-1", "2 ^ 10", "1 / 0", "7 div 0", "\"a\" + 1",
+            "1 < 2", "1 == 1", "!true", "!!true", "x := 3; x ^ 2 + x ^ 3 + x ^ 4", "x := 3; 1 + 2 + x + 4 + 5",
+            "x := 3; +x", "x := 3; -(-x)", "x := 3; -(-(x + 1))", "x := 3; !!(x < 2)", "x := 3; !!x",
+            "if 1 < 2 do \"yes\" else \"no\" end", "while false do 1 end", "true && 5", "false || 0",
+            "1; 2; 3", "a := [1, 2, 3]; !!(a < 2)", "a := [1, 2, 3]; !!(a <= 2)", "a := [1, 2, 3]; !!(a > 2)",
+            "a := [1, 2, 3]; !!(a >= 2)", "a := [1, 2, 3]; !!(a == [1, 2, 3])", "a := [1, 2, 3]; !!(a != a)",
+            "a := [1, 2, 3]; !!a", "a := [1, 2, 3]; !a", "a := [1, 2, 3]; +(a + 1)", "a := [1, 2, 3]; -(-a)",
+            "a := [1, 2, 3]; -(-(a * 2))", "a := [1, 2, 3]; a ^ 2", "a := [1, 2, 3]; a ^ 3",
+            "a := [1, 2, 3]; 1 + 2 + a", "a := [1, 2, 3]; b := -(-a); b[0] <- 9; a",
+            "a := ndarray([1, 2, 3]); !!(a < 2)", "a := ndarray([1, 2, 3]); +(a - 1)" };
+
+    public static void main(String[] args) throws Exception {
+        Interpreter optimized = new Interpreter();
+        Interpreter plain = new Interpreter();
+        plain.setOptimize(false);
+        for (String program : PROGRAMS) {
+            String expected = outcome(plain, program);
+            String actual = outcome(optimized, program);
+            if (!expected.equals(actual)) {
+                throw new AssertionError(program + " gave " + actual + " optimized, not " + expected);
+            }
+        }
+        System.out.println("TestOptimizer: optimized programs agree");
+    }
+
+    private static String outcome(Interpreter interp, String program) throws Exception {
+        try {
+            return String.valueOf(interp.evaluate(program));
+        } catch (RuntimeException x) {
+            return "error " + x;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package scicalc;
+
+/**
+ * Checks the results of pmap, preduce and parfor (see Parallel), that an
+ * error in a call comes out of the operation, that a closure it can get to
+ * cannot assign to its variables meanwhile, and that calls storing to
+ * the items of one array, even items which move it to another kind, lose
+ * none of the stores. Meant to be run with -Dscicalc.parallelism=8 or so,
+ * so that there are workers to race, however many processors there are.
+ *
+ * @author kmill
+ *
+ */
+public class TestParallel {
+
+    public static void main(String[] args) throws Exception {
+        Interpreter interp = new Interpreter();
+        check(interp, "pmap([1, 2, 3, 4, 5], fun (x) x * x end)", "[1, 4, 9, 16, 25]");
+        check(interp, "pmap([], fun (x) x end)", "[]");
+        check(interp, "pmap(ndarray([1, 2, 3]), fun (x) x + 1 end)", "[2, 3, 4]");
+        check(interp, "pmap([[1, 2], [3]], len)", "[2, 1]");
+        check(interp, "preduce([1, 2, 3, 4, 5, 6, 7, 8, 9, 10], fun (a, b) a + b end, 100)", "155");
+        check(interp, "preduce([], fun (a, b) a + b end, 7)", "7");
+        // not commutative, so the halves must be combined in order
+        check(interp, "preduce([[1], [2], [3], [4], [5], [6]], fun (a, b) r := []; extend(r, a); extend(r, b); r end, [])",
+                "[1, 2, 3, 4, 5, 6]");
+        check(interp, "r := make_array(10, 0); parfor i := 0, 10 do r[i] <- i * i end; r",
+                "[0, 1, 4, 9, 16, 25, 36, 49, 64, 81]");
+        check(interp, "r := make_array(3, 0); parfor i := 5, 8 do r[i - 5] <- i end; r", "[5, 6, 7]");
+        check(interp, "n := 0; parfor i := 3, 1 do n <- 1 end; n", "0");
+        check(interp, "u := 1; pmap([1, 2, 3], fun (x) x + u end)", "[2, 3, 4]");
+
+        fails(interp, "pmap([1, 2, 0, 4], fun (x) if x == 0 do x(1) else x end end)");
+        fails(interp, "fun f(n) s := 0; parfor i := 0, n do s <- s + i end; s end; f(10)");
+        fails(interp, "pmap(5, fun (x) x end)");
+        fails(interp, "parfor i := 0.5, 3 do 1 end");
+        // a closure the function gets to through a variable, or an array,
+        // is shared too
+        fails(interp, "fun mk() c := 0; fun () c <- c + 1; c end end; g := mk();"
+                + " pmap(make_array(200000, 0), fun (x) g() end)");
+        fails(interp, "pmap([g, g], fun (h) h() end)");
+        // the variables are usable again afterwards
+        check(interp, "u <- 5; u", "5");
+        check(interp, "g()", "1");
+
+        for (int round = 0; round < 50; round++) {
+            check(interp, "n := 20000; arr := make_array(n, 0);"
+                    + " parfor i := 0, n do if i == n div 2 do arr[i] <- \"s\" else arr[i] <- i + 1 end end;"
+                    + " bad := 0; i := 0;"
+                    + " while i < n do if i != n div 2 && arr[i] != i + 1 do bad <- bad + 1 end; i <- i + 1 end;"
+                    + " [bad, arr[n div 2]]", "[0, s]");
+            check(interp, "a := []; parfor i := 0, 1000 do push(a, [i]) end;"
+                    + " seen := make_array(1000, false); i := 0;"
+                    + " while i < len(a) do seen[a[i][0]] <- true; i <- i + 1 end;"
+                    + " preduce(seen, fun (x, y) x && y end, len(a) == 1000)", "true");
+        }
+        System.out.println("TestParallel: all checks passed");
+    }
+
+    private static void check(Interpreter interp, String program, String expected) throws Exception {
+        String result = String.valueOf(interp.evaluate(program));
+        if (!result.equals(expected)) {
+            throw new AssertionError(program + " gave " + result + ", not " + expected);
+        }
+    }
+
+    private static void fails(Interpreter interp, String program) throws Exception {
+        try {
+            interp.evaluate(program);
+        } catch (RuntimeException x) {
+            return;
+        }
+        throw new AssertionError(program + " did not fail");
+    }
+}
@@ -0,0 +1,80 @@
+package scicalc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that sessions (see Interpreter.Session) see their own changes to
+ * the global variables, and only those committed by others, and that
+ * sessions running at once in many threads can all change an array in the
+ * image, even in ways which move it to another kind or to bigger storage,
+ * without losing any of the changes.
+ *
+ * @author kmill
+ *
+ */
+public class TestSessions {
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.evaluate("fun sq(x) x * x end; counter := 0; fun getc() counter end");
+        Interpreter.Session a = interp.newSession(), b = interp.newSession();
+        a.evaluate("counter := 5; fun sq(x) x * x * x end");
+        check(a, "[getc(), sq(2)]", "[5, 8]");
+        check(b, "[getc(), sq(2)]", "[0, 4]");
+        a.commit();
+        check(interp.newSession(), "[getc(), sq(2)]", "[5, 8]");
+        check(b, "[getc(), sq(2)]", "[0, 4]");
+        b.commit();
+        check(b, "[getc(), sq(2)]", "[5, 8]");
+
+        for (int round = 0; round < 20; round++) {
+            // loaded before the first session, or committed after it
+            mutate(round % 2 == 0 ? new Interpreter() : interp);
+        }
+        System.out.println("TestSessions: all checks passed");
+    }
+
+    /**
+     * Has sessions in many threads store to, and push onto, arrays loaded
+     * before any of them started.
+     */
+    private static void mutate(final Interpreter interp) throws Exception {
+        final int n = 4000;
+        interp.evaluate("items := make_array(" + n * THREADS + ", 0); log := []; nested := [[]]");
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<Value>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            results.add(pool.submit(new Callable<Value>() {
+                @Override
+                public Value call() throws Exception {
+                    Interpreter.Session session = interp.newSession();
+                    // one thread moves the arrays to the general kind
+                    String item = id == 0 ? "\"s\"" : "i";
+                    return session.evaluate("i := " + id * n + "; while i < " + (id + 1) * n + " do"
+                            + " items[i] <- " + item + "; push(log, i); push(nested[0], [i]); i <- i + 1 end");
+                }
+            }));
+        }
+        for (Future<Value> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        check(interp.newSession(), "bad := 0; i := " + n + "; while i < len(items) do"
+                + " if items[i] != i do bad <- bad + 1 end; i <- i + 1 end;"
+                + " [bad, items[0], len(log), len(nested[0])]", "[0, s, " + n * THREADS + ", " + n * THREADS + "]");
+    }
+
+    private static void check(Interpreter.Session session, String program, String expected) throws Exception {
+        String result = String.valueOf(session.evaluate(program));
+        if (!result.equals(expected)) {
+            throw new AssertionError(program + " gave " + result + ", not " + expected);
+        }
+    }
+}
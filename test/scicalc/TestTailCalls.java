@@ -0,0 +1,60 @@
+package scicalc;
+
+/**
+ * Checks, with each engine, that calls in tail position take no stack:
+ * recursion a million deep, mutual recursion, closures calling each other,
+ * and a function whose tail call has variables of its own. Meant to be run
+ * with a small stack, -Xss256k or so, on which the same depth of ordinary
+ * recursion overflows (which is checked too, so that the test shows
+ * something).
+ *
+ * @author kmill
+ *
+ */
+public class TestTailCalls {
+    private static final String DEFINITIONS = "fun count(n, acc) if n == 0 do acc else count(n - 1, acc + 1) end end;\n"
+            + "fun ev(n) if n == 0 do true else od(n - 1) end end;\n"
+            + "fun od(n) if n == 0 do false else ev(n - 1) end end;\n"
+            + "fun sq(n) x := n; if x <= 0 do \"done\" else y := x - 1; sq(y) end end;\n"
+            + "fun mk(k) fun (n, f) if n == 0 do k else f(n - 1, f) end end end; ca := mk(1); cb := mk(2);\n"
+            + "fun go(n, s) if n == 0 do s else go(n - 1, s + n / 2) end end;\n"
+            + "fun nt(n) if n == 0 do 0 else 1 + nt(n - 1) end end";
+
+    public static void main(String[] args) throws Exception {
+        check(Interpreter.Engine.TREE, false);
+        check(Interpreter.Engine.TREE, true);
+        check(Interpreter.Engine.BYTECODE, false);
+        check(Interpreter.Engine.HANDLES, false);
+        System.out.println("TestTailCalls: all checks passed");
+    }
+
+    private static void check(Interpreter.Engine engine, boolean jit) throws Exception {
+        Interpreter interp = new Interpreter();
+        interp.setEngine(engine);
+        interp.setJit(jit);
+        interp.evaluate(DEFINITIONS);
+        String what = engine + (jit ? "+jit" : "");
+
+        // twice, so that the jit has compiled them the second time
+        for (int round = 0; round < 2; round++) {
+            check(what, interp, "count(1000000, 0)", "1000000");
+            check(what, interp, "ev(300001)", "false");
+            check(what, interp, "sq(200000)", "done");
+            check(what, interp, "cb(100000, ca)", "1");
+            check(what, interp, "go(300000, 0)", "2.2500075E10");
+        }
+        try {
+            interp.evaluate("nt(1000000)");
+        } catch (StackOverflowError x) {
+            return;
+        }
+        throw new AssertionError(what + ": nt(1000000) did not overflow the stack, so the others show nothing");
+    }
+
+    private static void check(String what, Interpreter interp, String program, String expected) throws Exception {
+        String result = String.valueOf(interp.evaluate(program));
+        if (!result.equals(expected)) {
+            throw new AssertionError(what + ": " + program + " gave " + result + ", not " + expected);
+        }
+    }
+}